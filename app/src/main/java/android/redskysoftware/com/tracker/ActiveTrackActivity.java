@@ -38,6 +38,9 @@ public class ActiveTrackActivity extends AppCompatActivity
     private static final String KEY_RUNNING = "RUNNING";
     private static final String KEY_ELAPSED_TIME = "ELAPSED_TIME";
 
+    /** How often the display is refreshed while the activity is in the foreground (4 Hz) */
+    private static final long FOREGROUND_REFRESH_MS = 250;
+
     /**
      * The data model
      */
@@ -57,6 +60,16 @@ public class ActiveTrackActivity extends AppCompatActivity
     private TextView mDistanceText;
     private TextView mLatitudeText;
     private TextView mLongitudeText;
+    private TextView mMovingTimeText;
+    private TextView mPaceText;
+
+    /** The text shown in the views above, reused on every refresh */
+    private final StatsText mElapsedTime = new StatsText();
+    private final StatsText mDistance = new StatsText();
+    private final StatsText mLatitude = new StatsText();
+    private final StatsText mLongitude = new StatsText();
+    private final StatsText mMovingTime = new StatsText();
+    private final StatsText mPace = new StatsText();
 
 
 
@@ -73,6 +86,8 @@ public class ActiveTrackActivity extends AppCompatActivity
         mDistanceText = findViewById(R.id.distance_value);
         mLatitudeText = findViewById(R.id.latitude_value);
         mLongitudeText = findViewById(R.id.longitude_value);
+        mMovingTimeText = findViewById(R.id.moving_time_value);
+        mPaceText = findViewById(R.id.pace_value);
 
 
         //
@@ -90,8 +105,9 @@ public class ActiveTrackActivity extends AppCompatActivity
 
                 } else {
 
-                    // Set the mRunning false to flag to stop the thread
+                    // Set the mRunning false and stop updating the display
                     mRunning = false;
+                    stopRefreshing();
 
                     mModel.stopTrack();
                     //TODO need to ask the user if they want to save the track, etc.
@@ -106,10 +122,21 @@ public class ActiveTrackActivity extends AppCompatActivity
             //
             int running = savedInstanceState.getInt(KEY_RUNNING, 0);
             if (running != 0) {
+
+                /* If the process died meanwhile, the data model carries the track on */
+                mModel.resumeInterruptedTrack(this);
                 mRunning = true;
                 monitorTrack();
             }
         }
+
+        //
+        // The track may also be running without any saved instance data, when it was carried on
+        // after the process died and the app was opened again from the launcher.
+        //
+        if (!mRunning && mModel.isTrackActive()) {
+            monitorTrack();
+        }
     }
 
     /**
@@ -171,6 +198,97 @@ public class ActiveTrackActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mRunning) {
+            startRefreshing();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        /* Nothing is shown in the background, so stop refreshing */
+        stopRefreshing();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        stopRefreshing();
+    }
+
+    /**
+     * Updates the display with the latest track info from the data model on each tick while a
+     * track is being monitored
+     */
+    private final TickScheduler.Listener mTickListener = new TickScheduler.Listener() {
+        @Override
+        public void onTick() {
+            updateDisplay();
+        }
+    };
+
+    /**
+     * Displays the latest track info and subscribes to the data model's shared tick to keep
+     * displaying it at the foreground refresh rate
+     */
+    private void startRefreshing() {
+        mModel.setBatchedDelivery(false);
+        updateDisplay();
+        TickScheduler scheduler = mModel.getTickScheduler();
+        scheduler.setPeriodMs(FOREGROUND_REFRESH_MS);
+        scheduler.addListener(mTickListener);
+    }
+
+    private void stopRefreshing() {
+        mModel.getTickScheduler().removeListener(mTickListener);
+
+        //
+        // Nothing is showing the track live, so locations can wait and come in batches.  Not
+        // when the track is being stopped, though: the location source is about to go.
+        //
+        if (mRunning) {
+            mModel.setBatchedDelivery(true);
+        }
+    }
+
+    /**
+     * Displays the latest track info from the data model.  All of the values come from one
+     * snapshot, are formatted without allocating, and a view is only updated when the text it
+     * shows changes.
+     */
+    private void updateDisplay() {
+
+        TrackSnapshot snapshot = mModel.getSnapshot();
+        long now = TrackerLocationService.ELAPSED_REALTIME.nanoTime();
+
+        if (mElapsedTime.setElapsed(snapshot.getElapsedMs(now) / 1000)) {
+            show(mElapsedTimeText, mElapsedTime);
+        }
+        if (mDistance.setInteger((long) snapshot.getDistanceFeet())) {
+            show(mDistanceText, mDistance);
+        }
+        if (mLatitude.setFixed(snapshot.getLatitude(), 5, 8)) {
+            show(mLatitudeText, mLatitude);
+        }
+        if (mLongitude.setFixed(snapshot.getLongitude(), 5, 8)) {
+            show(mLongitudeText, mLongitude);
+        }
+        if (mMovingTime.setElapsed(snapshot.getMovingMs() / 1000)) {
+            show(mMovingTimeText, mMovingTime);
+        }
+        if (mPace.setElapsed(snapshot.getCurrentPaceSeconds(TrackStats.MILE))) {
+            show(mPaceText, mPace);
+        }
+    }
+
+    private static void show(TextView view, StatsText text) {
+        view.setText(text.getChars(), 0, text.length());
+    }
+
     /**
      * Starts the monitoring of an active track, displaying the latest information to the user
      */
@@ -179,82 +297,10 @@ public class ActiveTrackActivity extends AppCompatActivity
         mRunning = true;
 
         /*
-         * Create a thread that will periodically retrieve the latest track info from the data
-         * model and display that info.
+         * Subscribe to the data model's shared tick to periodically display the latest track
+         * info.
          */
-        new Thread(new Runnable() {
-            public void run() {
-
-                do {
-
-                    mElapsedTimeText.post(new Runnable() {
-                        public void run() {
-
-                            int elapsedTime = mModel.getElapsedTime();
-
-                            //
-                            // Convert the elapsed time (which is in seconds) to
-                            // hh:mm:ss format.
-                            //
-                            int minutes = elapsedTime / 60;
-                            int seconds = elapsedTime % 60;
-                            int hours = minutes / 60;
-                            minutes = minutes % 60;
-
-                            String str = "";
-
-                            if (hours <= 9) {
-                                str = str.concat("0");
-                            }
-                            str = str.concat(Integer.toString(hours));
-                            str = str.concat(":");
-
-                            if (minutes <= 9) {
-                                str = str.concat("0");
-                            }
-                            str = str.concat(Integer.toString(minutes));
-                            str = str.concat(":");
-
-                            if (seconds <= 9) {
-                                str = str.concat("0");
-                            }
-                            str = str.concat(Integer.toString(seconds));
-
-                            mElapsedTimeText.setText(str);
-                        }
-                    });
-
-                    mDistanceText.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mDistanceText.setText(String.format("%d", (int)mModel.getDistanceInFeet()));
-                        }
-                    });
-
-                    mLatitudeText.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mLatitudeText.setText(String.format("%8.5f", mModel.getLatitude()));
-                        }
-                    });
-
-                    mLongitudeText.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mLongitudeText.setText(String.format("%8.5f", mModel.getLongitude()));
-                        }
-                    });
-
-                    // Sleep for one second and then do it all again
-                    try {
-                        Thread.sleep(1000);
-                    } catch (java.lang.InterruptedException ie) {
-
-                    }
-
-                } while (mRunning);
-            }
-        }).start();
+        startRefreshing();
 
         //
         // Change the text on the button to "Stop"
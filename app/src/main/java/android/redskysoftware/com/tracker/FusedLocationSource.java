@@ -0,0 +1,163 @@
+package android.redskysoftware.com.tracker;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Looper;
+
+import java.util.List;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.LocationSettingsRequest;
+import com.google.android.gms.location.SettingsClient;
+
+/**
+ * Locations from the fused location provider.  Locations are delivered on the looper of the
+ * thread that calls start().
+ *
+ * With a maximum wait set, the provider holds locations back and delivers them together in one
+ * LocationResult.  Every location in a result is passed on, oldest first.
+ */
+public class FusedLocationSource implements LocationSource {
+
+    private final Context mContext;
+
+    private final FusedLocationProviderClient mClient;
+
+    private LocationCallback mLocationCallback = null;
+
+    private LocationSource.Listener mListener = null;
+
+    private Looper mLooper = null;
+
+    private SamplingController.Profile mProfile = null;
+
+    private long mMaxWaitMs = 0;
+
+    public FusedLocationSource(Context context) {
+        mContext = context;
+        mClient = LocationServices.getFusedLocationProviderClient(context);
+    }
+
+    @Override
+    public boolean start(SamplingController.Profile profile, LocationSource.Listener listener) {
+
+        mListener = listener;
+        mLooper = Looper.myLooper();
+        mProfile = profile;
+
+        LocationRequest request = buildLocationRequest();
+
+        // Create LocationSettingsRequest object using location request
+        LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
+        builder.addLocationRequest(request);
+        LocationSettingsRequest locationSettingsRequest = builder.build();
+
+        // Check whether location settings are satisfied
+        // https://developers.google.com/android/reference/com/google/android/gms/location/SettingsClient
+        SettingsClient settingsClient = LocationServices.getSettingsClient(mContext);
+        settingsClient.checkLocationSettings(locationSettingsRequest);
+
+        mLocationCallback = new LocationCallback() {
+            @Override
+            public void onLocationResult(LocationResult locationResult) {
+
+                LocationSource.Listener listener = mListener;
+                List<Location> locations = locationResult.getLocations();
+                if ((listener == null) || (locations == null)) {
+                    return;
+                }
+
+                for (int i = 0; i < locations.size(); i++) {
+                    Location location = locations.get(i);
+                    listener.onLocation(location.getLatitude(),
+                                        location.getLongitude(),
+                                        location.getTime(),
+                                        location.hasAccuracy() ? location.getAccuracy() : 0.0f,
+                                        location.hasSpeed() ? location.getSpeed() : Float.NaN);
+                }
+                listener.onBatchEnd();
+            }
+        };
+
+        return requestUpdates(request);
+    }
+
+    @Override
+    public void setProfile(SamplingController.Profile profile) {
+        mProfile = profile;
+        updateRequest();
+    }
+
+    @Override
+    public void setMaxWaitMs(long maxWaitMs) {
+        if (maxWaitMs != mMaxWaitMs) {
+            mMaxWaitMs = maxWaitMs;
+            updateRequest();
+        }
+    }
+
+    /**
+     * Requests updates again with the current profile and maximum wait, if started.  Requesting
+     * updates with the same callback replaces the earlier request; if that fails the earlier
+     * request stays in place.
+     */
+    private void updateRequest() {
+        if (mLocationCallback != null) {
+            requestUpdates(buildLocationRequest());
+        }
+    }
+
+    @Override
+    public void stop() {
+
+        if (mLocationCallback != null) {
+            try {
+                mClient.removeLocationUpdates(mLocationCallback);
+            } catch (SecurityException se) {
+                TrackerMetrics.REGISTRY.recordError(TrackerMetrics.SECURITY_ERRORS, se);
+            }
+            mLocationCallback = null;
+        }
+        mListener = null;
+    }
+
+    /**
+     * @return  True if the request was made, false if the location permission is missing
+     */
+    private boolean requestUpdates(LocationRequest request) {
+
+        // new Google API SDK v11 uses getFusedLocationProviderClient(this)
+        try {
+            mClient.requestLocationUpdates(request, mLocationCallback, mLooper);
+        } catch (SecurityException se) {
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.SECURITY_ERRORS, se);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates a location request for the current sampling profile and maximum wait
+     */
+    private LocationRequest buildLocationRequest() {
+
+        SamplingController.Profile profile = mProfile;
+
+        LocationRequest request = new LocationRequest();
+        request.setPriority(profile.isHighAccuracy()
+                                    ? LocationRequest.PRIORITY_HIGH_ACCURACY
+                                    : LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+        request.setInterval(profile.getIntervalMs());
+        request.setFastestInterval(profile.getFastestIntervalMs());
+        request.setSmallestDisplacement(profile.getSmallestDisplacementMeters());
+        if (mMaxWaitMs > 0) {
+            request.setMaxWaitTime(mMaxWaitMs);
+        }
+        return request;
+    }
+}
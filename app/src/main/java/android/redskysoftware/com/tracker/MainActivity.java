@@ -28,6 +28,15 @@ public class MainActivity extends AppCompatActivity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        //
+        // Convert any tracks saved by earlier versions of the app to the binary track format
+        // (this only does work the first time the app runs after an upgrade), finish any
+        // track that was cut short by the app being killed, and load the track catalog and
+        // spatial index so the history is ready when asked for.  This is done once per process,
+        // on the location pipeline thread.
+        //
+        TrackerDataModel.getInstance().prepareTracks(this);
+
         //
         // Get the New Track button and add a click listener to it.
         //
@@ -50,13 +59,26 @@ public class MainActivity extends AppCompatActivity
         });
 
         //
-        // Get the History button and add a click listener to it
+        // Get the History button and add click and long click listeners to it
         //
         mHistoryButton = findViewById(R.id.history_button);
         mHistoryButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
 
+                Intent intent = new Intent(MainActivity.this, TrackHistoryActivity.class);
+                startActivity(intent);
+            }
+        });
+
+        /* A long press on History shows the metrics, for debugging */
+        mHistoryButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+
+                Intent intent = new Intent(MainActivity.this, MetricsActivity.class);
+                startActivity(intent);
+                return true;
             }
         });
     }
@@ -0,0 +1,54 @@
+package android.redskysoftware.com.tracker;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.widget.TextView;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The MetricsActivity shows the app's metrics (see TrackerMetrics), the same as dumpsys prints
+ * them, refreshed on the data model's shared tick.  It is a debugging screen, opened by a long
+ * press on the History button.
+ */
+public class MetricsActivity extends AppCompatActivity {
+
+    private TrackerDataModel mModel = TrackerDataModel.getInstance();
+
+    private TextView mMetricsText;
+
+    private final TickScheduler.Listener mTickListener = new TickScheduler.Listener() {
+        @Override
+        public void onTick() {
+            updateDisplay();
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        mMetricsText = findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        updateDisplay();
+        mModel.getTickScheduler().addListener(mTickListener);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mModel.getTickScheduler().removeListener(mTickListener);
+    }
+
+    private void updateDisplay() {
+        StringWriter text = new StringWriter();
+        TrackerMetrics.REGISTRY.dump(new PrintWriter(text));
+        mMetricsText.setText(text.toString());
+    }
+}
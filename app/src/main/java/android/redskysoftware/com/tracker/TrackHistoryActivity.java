@@ -0,0 +1,318 @@
+package android.redskysoftware.com.tracker;
+
+import android.os.Bundle;
+import android.support.v4.app.FragmentManager;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * The TrackHistoryActivity lists the tracks that have been recorded, newest first, with the
+ * distance and elapsed time of each.  Tapping a track shows a summary of its points, from the
+ * track summary cache so a track opened before isn't read again; a long press exports it as GPX
+ * and TCX to the app's external files folder, where other apps and a connected computer can get
+ * at it.
+ *
+ * The list comes from the track catalog, so showing it costs one read of the catalog file no
+ * matter how many tracks there are or how long they are.  Above it is a summary of this week and
+ * month and the records, from the history analytics, which read only the tracks recorded since
+ * the history was last shown.
+ */
+public class TrackHistoryActivity extends AppCompatActivity {
+
+    private static final String TAG = "TrackHistoryActivity";
+
+    private static final String MESSAGE_DIALOG_TAG = "MESSAGE_DIALOG";
+
+    private static final double FEET_PER_METER = 3.28084;
+
+    /** The folder in the external files area tracks are exported to */
+    private static final String EXPORT_DIRECTORY = "exports";
+
+    /** The list of tracks */
+    private ListView mTrackList;
+
+    /** Shown instead of the list when there are no tracks */
+    private TextView mEmptyText;
+
+    /** This week's and month's totals and the records */
+    private TextView mSummaryText;
+
+    private final TrackAdapter mAdapter = new TrackAdapter();
+
+    /** The index of the stored tracks */
+    private TrackCatalog mCatalog;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_track_history);
+
+        mEmptyText = findViewById(R.id.track_list_empty);
+        mEmptyText.setVisibility(View.GONE);
+
+        mSummaryText = findViewById(R.id.track_history_summary);
+
+        mTrackList = findViewById(R.id.track_list);
+        mTrackList.setAdapter(mAdapter);
+        mTrackList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                showTrackDetails(new File(getFilesDir(),
+                                          mCatalog.getName(mAdapter.getItem(position))));
+            }
+        });
+        mTrackList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position,
+                                           long id) {
+                exportTrack(new File(getFilesDir(),
+                                     mCatalog.getName(mAdapter.getItem(position))));
+                return true;
+            }
+        });
+
+        //
+        // Loading the catalog is disk I/O (and may mean rebuilding it from the track files), so
+        // it's done off the UI thread.
+        //
+        final TrackerDataModel model = TrackerDataModel.getInstance();
+        new Thread(new Runnable() {
+            public void run() {
+                final TrackCatalog catalog = model.getCatalog(getApplicationContext());
+                final int[] order = catalog.sortedByStartTime();
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        mCatalog = catalog;
+                        mAdapter.setOrder(order);
+                        mEmptyText.setVisibility((order.length == 0) ? View.VISIBLE : View.GONE);
+                    }
+                });
+            }
+        }).start();
+
+        /* The totals take longer than the list, so they are worked out on a thread of their own */
+        new Thread(new Runnable() {
+            public void run() {
+                final HistoryAnalytics.Totals totals =
+                        model.analyzeHistory(getApplicationContext());
+                if ((totals != null) && (totals.getTrackCount() > 0)) {
+                    final String summary = formatSummary(totals);
+                    runOnUiThread(new Runnable() {
+                        public void run() {
+                            mSummaryText.setText(summary);
+                            mSummaryText.setVisibility(View.VISIBLE);
+                        }
+                    });
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Formats this week's and month's totals and the records for the summary
+     */
+    private String formatSummary(HistoryAnalytics.Totals totals) {
+
+        Calendar calendar = Calendar.getInstance();
+        long now = System.currentTimeMillis();
+
+        HistoryAnalytics.Periods weeks = totals.getWeeks();
+        int week = weeks.indexOf(HistoryAnalytics.startOfWeek(calendar, now));
+        HistoryAnalytics.Periods months = totals.getMonths();
+        int month = months.indexOf(HistoryAnalytics.startOfMonth(calendar, now));
+
+        return getString(R.string.history_summary,
+                         (week >= 0) ? weeks.getDistanceMeters(week) / 1000.0 : 0.0,
+                         (week >= 0) ? weeks.getTrackCount(week) : 0,
+                         (month >= 0) ? months.getDistanceMeters(month) / 1000.0 : 0.0,
+                         formatRecord(totals.getRecordMs(
+                                 HistoryAnalytics.RECORD_FASTEST_KILOMETER)),
+                         formatRecord(totals.getRecordMs(
+                                 HistoryAnalytics.RECORD_FASTEST_5_KILOMETERS)),
+                         totals.getLongestMeters() / 1000.0);
+    }
+
+    /**
+     * Formats a record time as m:ss, or h:mm:ss if it's an hour or more
+     */
+    private static String formatRecord(int recordMs) {
+        if (recordMs == HistoryAnalytics.NO_RECORD) {
+            return "-:--";
+        }
+        if (recordMs >= 3600000) {
+            return formatElapsed(recordMs);
+        }
+        long seconds = recordMs / 1000;
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Gets the summary of a track in the background and shows how many points there are and the
+     * area they cover.  The track file is only read if the summary isn't cached.
+     * @param file  The track file
+     */
+    private void showTrackDetails(final File file) {
+
+        final TrackSummaryCache cache =
+                TrackerDataModel.getInstance().getSummaryCache(getApplicationContext());
+
+        new Thread(new Runnable() {
+            public void run() {
+
+                String message;
+                try {
+                    TrackSummaryCache.Summary summary = cache.get(file);
+                    message = getString(R.string.track_details, summary.getFixCount(),
+                            TrackFormat.fromE7(summary.getMinLatitudeE7()),
+                            TrackFormat.fromE7(summary.getMaxLatitudeE7()),
+                            TrackFormat.fromE7(summary.getMinLongitudeE7()),
+                            TrackFormat.fromE7(summary.getMaxLongitudeE7()));
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read track " + file.getName() + ": " + e.getMessage());
+                    TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, e);
+                    message = getString(R.string.track_unreadable);
+                }
+
+                showMessage(message);
+            }
+        }).start();
+    }
+
+    /**
+     * Exports a track as GPX and TCX in the background, and says where the files went.
+     * @param file  The track file
+     */
+    private void exportTrack(final File file) {
+
+        final File dir = getExternalFilesDir(EXPORT_DIRECTORY);
+
+        new Thread(new Runnable() {
+            public void run() {
+
+                String message;
+                try {
+                    if ((dir == null) || (!dir.isDirectory() && !dir.mkdirs())) {
+                        throw new IOException("External storage is not available");
+                    }
+
+                    String name = file.getName();
+                    if (name.endsWith(TrackFormat.FILE_EXTENSION)) {
+                        name = name.substring(0,
+                                name.length() - TrackFormat.FILE_EXTENSION.length());
+                    }
+
+                    TrackExporter exporter = new TrackExporter();
+                    int[] formats = { TrackExporter.FORMAT_GPX, TrackExporter.FORMAT_TCX };
+                    for (int format : formats) {
+                        File export = new File(dir, name
+                                               + TrackExporter.getFileExtension(format));
+                        try (OutputStream out = new FileOutputStream(export)) {
+                            exporter.export(file, format, name, out);
+                        }
+                    }
+                    message = getString(R.string.track_exported, dir.getPath());
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export track " + file.getName() + ": "
+                               + e.getMessage());
+                    TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, e);
+                    message = getString(R.string.track_export_failed);
+                }
+
+                showMessage(message);
+            }
+        }).start();
+    }
+
+    /**
+     * Shows a message from a background thread, unless the activity has gone.
+     */
+    private void showMessage(final String text) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                if (!isFinishing()) {
+                    FragmentManager manager = getSupportFragmentManager();
+                    MessageDialogFragment.newInstance(text).show(manager, MESSAGE_DIALOG_TAG);
+                }
+            }
+        });
+    }
+
+    /**
+     * Formats an elapsed time as h:mm:ss
+     */
+    private static String formatElapsed(long elapsedMs) {
+        if (elapsedMs == TrackCatalog.ELAPSED_UNFINISHED) {
+            return "-:--:--";
+        }
+        long seconds = elapsedMs / 1000;
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Shows each track as two lines: the date it was started, then its distance and elapsed time
+     */
+    private class TrackAdapter extends BaseAdapter {
+
+        /** Catalog indexes of the tracks, in the order shown */
+        private int[] mOrder = new int[0];
+
+        private final DateFormat mDateFormat =
+                DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+
+        void setOrder(int[] order) {
+            mOrder = order;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mOrder.length;
+        }
+
+        @Override
+        public Integer getItem(int position) {
+            return mOrder[position];
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+
+            View view = convertView;
+            if (view == null) {
+                view = LayoutInflater.from(parent.getContext())
+                        .inflate(android.R.layout.simple_list_item_2, parent, false);
+            }
+
+            int index = mOrder[position];
+
+            TextView title = view.findViewById(android.R.id.text1);
+            TextView detail = view.findViewById(android.R.id.text2);
+            title.setText(mDateFormat.format(new Date(mCatalog.getStartTimeMs(index))));
+            detail.setText(String.format("%.0f ft   %s",
+                                         mCatalog.getDistanceMeters(index) * FEET_PER_METER,
+                                         formatElapsed(mCatalog.getElapsedMs(index))));
+
+            return view;
+        }
+    }
+}
@@ -5,12 +5,21 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
 
 
 /**
@@ -18,13 +27,29 @@ import java.util.Calendar;
  *
  * Location data is collected by the TrackerLocationService.  That service is started by the
  * TrackerDataModel each time a new track is started.  This class implements the
- * TrackerLocationService.DistanceChangedCallback interface in order to be notified of changes
- * in the location/distance of the current track.  The data model class logs the data.
+ * DistanceBatchCallback interface in order to be notified of changes
+ * in the location/distance of the current track, a delivery of locations at a time.  The data
+ * model class logs the data.
  *
- * Track data is logged to a text file.  The file is stored in the application's file cache
- * area.
+ * Track data is logged to a binary track file (see TrackFormat).  The file is stored in the
+ * application's file area.  Locations pass through a TrackSimplifier on their way to the file,
+ * so only the ones needed to keep the track within a tolerance of its shape are stored.  The
+ * track's statistics (see TrackStats), worked out from every location, are stored in the
+ * footer so nothing reading the track later has to work them out again.
+ *
+ * The current track's state (its file, writer, simplifier, totals and catalog record) belongs to
+ * the service's pipeline thread (see TrackerLocationService.getPipelineHandler()): the locations
+ * are delivered there, and starting and stopping a track post the file work there too, so the
+ * main thread never waits on storage.  The UI reads the track from the service's snapshot.
+ *
+ * Every CHECKPOINT_INTERVAL_MS of locations the track's state is saved in a SessionCheckpoint,
+ * which the track writer stores once the file has caught up with it.  If the process dies, the
+ * restarted service (or the app, when it next starts) calls resumeInterruptedTrack(), which
+ * carries the same track on from the checkpoint rather than ending it: the file is cut back to
+ * the checkpoint and the service's pipeline picks up the distance, clock and statistics where
+ * they were, without reading the file.
  */
-public class TrackerDataModel implements TrackerLocationService.DistanceChangedCallback {
+public class TrackerDataModel implements DistanceBatchCallback {
 
     /** Tag to use to ID Logcat entries */
     private static final String TAG = "TrackerDataModel";
@@ -39,17 +64,123 @@ public class TrackerDataModel implements TrackerLocationService.DistanceChangedC
      * The service that is providing us track location and distance data.  This is non-null
      * when a track is active
      */
-    private TrackerLocationService mLocationService = null;
+    private volatile TrackerLocationService mLocationService = null;
+
+    /** Writes the current track to its file on a background thread */
+    private volatile TrackWriter mWriter = null;
+
+    /** The file the current track is being written to, or null */
+    private volatile File mTrackFile = null;
+
+    /** When the track writer commits buffered fixes to storage */
+    private volatile FlushPolicy mFlushPolicy = FlushPolicy.DEFAULT;
+
+    /** What the track writer does with locations when storage falls behind; see TrackWriter */
+    private volatile int mOverflowPolicy = TrackWriter.OVERFLOW_MERGE;
+
+    /** The writer's dropped and merged counts as of the last time they went in the metrics */
+    private long mReportedDropped = 0;
+    private long mReportedMerged = 0;
+
+    /** How the distances of a track are measured; see DistanceKernel */
+    private volatile int mDistanceMode = DistanceKernel.EXACT;
+
+    /** How far from the stored track a dropped location may be, in meters */
+    private volatile double mSimplifyToleranceMeters = TrackSimplifier.DEFAULT_TOLERANCE_METERS;
+
+    /** Decides which locations of the current track are stored */
+    private TrackSimplifier mSimplifier = null;
+
+    /** The locations the simplifier keeps from each delivery, on their way to the writer */
+    private final FixBatch mKept = new FixBatch();
+
+    /** The total distance of the current track, in meters, as of the last location logged */
+    private float mDistanceMeters = 0.0f;
+
+    /** The index of the stored tracks, created by getCatalog() */
+    private TrackCatalog mCatalog = null;
+
+    /** Guards creating the catalog, separately from the location data */
+    private final Object mCatalogLock = new Object();
+
+    /** The spatial index of the stored tracks, created by getSpatialIndex() */
+    private TrackSpatialIndex mSpatialIndex = null;
+
+    /** The decoded summaries of the tracks opened, created by getSummaryCache() */
+    private TrackSummaryCache mSummaryCache = null;
+
+    /** The most the summaries may take in memory, and their cache files on disk */
+    private static final long SUMMARY_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long SUMMARY_DISK_BYTES = 32 * 1024 * 1024;
+
+    /** The directory in the app's cache area the summaries' files are kept in */
+    private static final String SUMMARY_DIRECTORY = "summaries";
 
-    /** The output stream used to save data */
-    private FileOutputStream mOutputFile = null;
+    /** The totals over every track, and a pool of a thread per core to read the tracks on */
+    private HistoryAnalytics mHistory = null;
+    private ForkJoinPool mHistoryPool = null;
+
+    /** Works out the current track's spatial index entries from the locations stored */
+    private final TrackSpatialIndex.Builder mIndexBuilder = new TrackSpatialIndex.Builder();
+
+    /** The tick shared by the UI, created by getTickScheduler() */
+    private TickScheduler mTickScheduler = null;
+
+    /** The period of the shared tick until a subscriber changes it */
+    private static final long TICK_PERIOD_MS = 1000;
+
+    /** True if locations should be delivered in batches; see setBatchedDelivery() */
+    private volatile boolean mBatchedDelivery = false;
+
+    /** The catalog record of the current track, or -1 */
+    private int mCatalogIndex = -1;
+
+    /** The longest a track waits for its writer to finish when it is stopped, in ms */
+    private static final long WRITER_FINISH_TIMEOUT_MS = 10000;
+
+    /** True once prepareTracks() has been called; only touched on the main thread */
+    private boolean mTracksPrepared = false;
+
+    /** How often the current track is checkpointed, in ms of location time */
+    private static final long CHECKPOINT_INTERVAL_MS = 15000;
+
+    /** True from when a track is started or resumed until it is stopped */
+    private volatile boolean mTrackActive = false;
+
+    /** The current track's state, filled in for the writer to store */
+    private final SessionCheckpoint mCheckpoint = new SessionCheckpoint();
+
+    /** The time of the location the last checkpoint was taken at */
+    private long mLastCheckpointMs = 0;
+
+    /** The checkpoint a resumed track carries on from, until the service has it */
+    private volatile SessionCheckpoint mResumeFrom = null;
+
+    /** True if the current track was carried on from a checkpoint */
+    private boolean mResumed = false;
+
+    /** The number of fixes logged for the current track, and their bounding box */
+    private int mFixCount = 0;
+    private int mMinLatE7;
+    private int mMinLonE7;
+    private int mMaxLatE7;
+    private int mMaxLonE7;
 
     /** The connection to the TrackerLocationService */
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mLocationService = ((TrackerLocationService.LocalBinder)service).getService();
-            mLocationService.startLocationCollecting(mContext, TrackerDataModel.this);
+
+            SessionCheckpoint from = mResumeFrom;
+            mResumeFrom = null;
+            if (from != null) {
+                mLocationService.resumeLocationCollecting(mContext, TrackerDataModel.this, from);
+            } else {
+                mLocationService.setDistanceMode(mDistanceMode);
+                mLocationService.startLocationCollecting(mContext, TrackerDataModel.this);
+            }
+            mLocationService.setBatchedDelivery(mBatchedDelivery);
         }
 
         @Override
@@ -70,17 +201,19 @@ public class TrackerDataModel implements TrackerLocationService.DistanceChangedC
         return sModel;
     }
 
+    /**
+     * @return  The latest snapshot of the current track, or TrackSnapshot.EMPTY if no track has
+     *          been started.  This never blocks, and the values in the snapshot are all from the
+     *          same moment.
+     */
+    public TrackSnapshot getSnapshot() {
+        TrackerLocationService service = mLocationService;
+        return (service != null) ? service.getSnapshot() : TrackSnapshot.EMPTY;
+    }
+
     public float getDistanceInFeet()
     {
-        float distance = 0.0f;
-
-        synchronized (this) {
-            if (mLocationService != null) {
-                distance = mLocationService.getDistance();
-            }
-        }
-
-        return distance;
+        return getSnapshot().getDistanceFeet();
     }
 
     /**
@@ -89,101 +222,693 @@ public class TrackerDataModel implements TrackerLocationService.DistanceChangedC
      */
     public int getElapsedTime()
     {
-        int elapsedTime = 0;
+        return (int) (getElapsedMs() / 1000);
+    }
 
-        synchronized (this) {
-            if ((mLocationService != null) && (mLocationService != null)) {
-                elapsedTime = mLocationService.getElapsedTime();
-            }
+    /**
+     * @return  The elapsed time of the current track in ms, or 0 if there is no current track in
+     *          progress.
+     */
+    public long getElapsedMs() {
+        return getSnapshot().getElapsedMs(TrackerLocationService.ELAPSED_REALTIME.nanoTime());
+    }
+
+    /**
+     * Stops counting elapsed time for the current track until resumeTrack() is called.
+     */
+    public void pauseTrack() {
+        TrackerLocationService service = mLocationService;
+        if (service != null) {
+            service.pauseClock();
+        }
+    }
+
+    /**
+     * Continues counting elapsed time for the current track after pauseTrack().
+     */
+    public void resumeTrack() {
+        TrackerLocationService service = mLocationService;
+        if (service != null) {
+            service.resumeClock();
+        }
+    }
+
+    /**
+     * @return  True if a track has been started or carried on after the process died, and not
+     *          yet stopped
+     */
+    public boolean isTrackActive() {
+        return mTrackActive;
+    }
+
+    /**
+     * Returns the tick shared by everything that updates regularly while a track is shown.
+     * Ticks are delivered on the main thread, where listeners must be added and removed.
+     * @return  The scheduler, ticking (once a second unless its period is changed) while it
+     *          has listeners
+     */
+    public TickScheduler getTickScheduler() {
+
+        if (mTickScheduler == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mTickScheduler = new TickScheduler(TrackerLocationService.ELAPSED_REALTIME,
+                    new TickScheduler.Timer() {
+                        @Override
+                        public void postDelayed(Runnable task, long delayMs) {
+                            handler.postDelayed(task, delayMs);
+                        }
+
+                        @Override
+                        public void cancel(Runnable task) {
+                            handler.removeCallbacks(task);
+                        }
+                    }, TICK_PERIOD_MS);
         }
 
-        return elapsedTime;
+        return mTickScheduler;
     }
 
     public float getLatitude() {
+        return (float) getSnapshot().getLatitude();
+    }
 
-        float lat = 0.0f;
+    public float getLongitude() {
+        return (float) getSnapshot().getLongitude();
+    }
 
-        synchronized (this) {
-            if ((mLocationService != null) && (mLocationService.getCurrentLocation() != null)) {
-                lat = (float) mLocationService.getCurrentLocation().getLatitude();
+    /**
+     * @return  A view of the points of the current track so far, or null if there is no current
+     *          track in progress.  Call refresh() on the view to see points added since.
+     */
+    public TrackBuffer.View getTrackView() {
+
+        TrackerLocationService service = mLocationService;
+        return (service != null) ? service.getTrackBuffer().newView() : null;
+    }
+
+    /**
+     * Stores the locations accepted from a delivery.  Called on the pipeline thread.
+     */
+    @Override
+    public void onDistanceBatch(FixBatch batch) {
+
+        int size = batch.size();
+        mDistanceMeters = batch.getDistanceMeters(size - 1);
+
+        if (mWriter == null) {
+            return;
+        }
+
+        mSimplifier.add(batch, mKept);
+        write(mKept);
+
+        long timeMs = batch.getTimeMs(size - 1);
+        if (timeMs - mLastCheckpointMs >= CHECKPOINT_INTERVAL_MS) {
+            checkpoint(timeMs);
+        }
+    }
+
+    /**
+     * Hands the writer a checkpoint of the track as of the last location.  The location the
+     * simplifier is holding back is stored first, so the file has everything up to the
+     * checkpoint.  Called on the pipeline thread.
+     * @param timeMs  The time of the last location
+     */
+    private void checkpoint(long timeMs) {
+
+        TrackerLocationService service = mLocationService;
+        if (service == null) {
+            return;
+        }
+
+        mSimplifier.flush(mKept);
+        write(mKept);
+
+        service.saveSessionState(mCheckpoint);
+        if (mWriter.checkpoint(mCheckpoint)) {
+            mLastCheckpointMs = timeMs;
+        }
+    }
+
+    /**
+     * Queues locations to be written, and empties the batch.
+     * @param fixes  The locations to store
+     */
+    private void write(FixBatch fixes) {
+
+        int taken = mWriter.append(fixes);
+
+        long dropped = mWriter.getDroppedFixes();
+        long merged = mWriter.getMergedFixes();
+        TrackerMetrics.FIXES_STORED.add(taken);
+        TrackerMetrics.FIXES_DROPPED.add(dropped - mReportedDropped);
+        TrackerMetrics.FIXES_MERGED.add(merged - mReportedMerged);
+        mReportedDropped = dropped;
+        mReportedMerged = merged;
+
+        /* Keep the totals the catalog needs, so stopping doesn't have to read the file */
+        for (int i = 0; i < taken; i++) {
+            mIndexBuilder.addPoint(fixes.getLatitude(i), fixes.getLongitude(i));
+            int latE7 = TrackFormat.toE7(fixes.getLatitude(i));
+            int lonE7 = TrackFormat.toE7(fixes.getLongitude(i));
+            if (mFixCount == 0) {
+                mMinLatE7 = mMaxLatE7 = latE7;
+                mMinLonE7 = mMaxLonE7 = lonE7;
+            } else {
+                mMinLatE7 = Math.min(mMinLatE7, latE7);
+                mMaxLatE7 = Math.max(mMaxLatE7, latE7);
+                mMinLonE7 = Math.min(mMinLonE7, lonE7);
+                mMaxLonE7 = Math.max(mMaxLonE7, lonE7);
             }
+            mFixCount++;
         }
 
-        return lat;
+        fixes.clear();
     }
 
-    public float getLongitude() {
+    /**
+     * Sets whether the location service delivers locations as they come, or holds them back and
+     * delivers them in batches.  Batching saves waking the app for every location while nothing
+     * is showing the track live.
+     * @param batched  True to batch locations
+     */
+    public void setBatchedDelivery(boolean batched) {
+        mBatchedDelivery = batched;
+        TrackerLocationService service = mLocationService;
+        if (service != null) {
+            service.setBatchedDelivery(batched);
+        }
+    }
 
-        float lon = 0.0f;
+    /**
+     * Sets how the distances of a track are measured.  Takes effect on the next track started;
+     * a track carried on from a checkpoint keeps the mode it was started with.
+     * @param mode  DistanceKernel.EXACT, HAVERSINE or EQUIRECTANGULAR
+     */
+    public void setDistanceMode(int mode) {
+        if ((mode < DistanceKernel.EXACT) || (mode > DistanceKernel.EQUIRECTANGULAR)) {
+            throw new IllegalArgumentException("Unknown distance mode " + mode);
+        }
+        mDistanceMode = mode;
+    }
 
-        if ((mLocationService != null) && (mLocationService.getCurrentLocation() != null)) {
-            lon = (float) mLocationService.getCurrentLocation().getLongitude();
+    /**
+     * Sets how closely the stored track follows the locations.  Takes effect on the next track
+     * started.
+     * @param toleranceMeters  How far from the stored track a location that isn't stored may be,
+     *                         in meters; 0 stores every location
+     */
+    public void setSimplifyTolerance(double toleranceMeters) {
+        mSimplifyToleranceMeters = toleranceMeters;
+    }
+
+    /**
+     * Sets what happens to locations if storage falls so far behind that the track writer's
+     * buffer fills.  Takes effect on the next track started.
+     * @param policy  One of the TrackWriter.OVERFLOW_ policies
+     */
+    public void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Prints the state of the current track's writer, for dumpsys.  The counts are read from
+     * another thread, so may be a moment out of date.
+     */
+    public void dump(PrintWriter out) {
+
+        TrackWriter writer = mWriter;
+        if (writer == null) {
+            out.println("Writer: no track");
+            return;
         }
 
-        return lon;
+        out.println(String.format(Locale.US,
+                "Writer: %d queued, %d stored, %d dropped, %d merged, %d blocked for %d ms,"
+                + " %d writes, %d commits, error %s",
+                writer.getQueuedFixes(), writer.getStoredFixes(), writer.getDroppedFixes(),
+                writer.getMergedFixes(), writer.getBlockedFixes(),
+                writer.getBlockedNanos() / 1000000, writer.getWriteCount(),
+                writer.getCommitCount(), writer.getError()));
     }
 
-    public void onDistanceChanged(float lat, float lon, float distance) {
+    /**
+     * Sets when track data is committed to storage.  Takes effect on the next track started.
+     * @param policy  The policy to use
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        mFlushPolicy = policy;
+    }
 
-        if (mOutputFile != null) {
-            try {
-                String str = String.format("L,%f,%f,%f\n", lat, lon, distance);
-                mOutputFile.write(str.getBytes());
-                mOutputFile.flush();
-            } catch (IOException ioe) {
+    /**
+     * Returns the index of the stored tracks, loading it (or rebuilding it from the track files
+     * if it's missing) the first time it's needed.
+     * @param context  The context whose file area holds the tracks
+     * @return  The catalog.  If it couldn't be loaded or rebuilt it is empty.
+     */
+    public TrackCatalog getCatalog(Context context) {
 
+        synchronized (mCatalogLock) {
+            if (mCatalog == null) {
+                mCatalog = new TrackCatalog(context.getFilesDir());
+                try {
+                    mCatalog.open();
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to load the track catalog", ioe);
+                    TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+                }
             }
+
+            return mCatalog;
         }
     }
 
     /**
-     * Starts a new track, collecting and storing position data periodically
-     * @return  True if the track was started successfully, false if not
+     * Returns the spatial index of the stored tracks, loading it (or rebuilding it from the track
+     * files if it's missing) the first time it's needed.
+     * @param context  The context whose file area holds the tracks
+     * @return  The index.  If it couldn't be loaded or rebuilt it is empty.
      */
-    public boolean startNewTrack(Activity activity) {
+    public TrackSpatialIndex getSpatialIndex(Context context) {
 
-        mContext = activity;
+        synchronized (mCatalogLock) {
+            if (mSpatialIndex == null) {
+                mSpatialIndex = new TrackSpatialIndex(context.getFilesDir());
+                try {
+                    mSpatialIndex.open();
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to load the track spatial index", ioe);
+                    TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+                }
+            }
+
+            return mSpatialIndex;
+        }
+    }
+
+    /**
+     * Returns the cache of decoded track summaries, so a track opened before is shown without
+     * reading its file.  The summaries' files are kept in the app's cache area, which the system
+     * may clear.
+     * @param context  The context whose cache area holds the summaries
+     * @return  The cache
+     */
+    public TrackSummaryCache getSummaryCache(Context context) {
+
+        synchronized (mCatalogLock) {
+            if (mSummaryCache == null) {
+                mSummaryCache = new TrackSummaryCache(
+                        new File(context.getCacheDir(), SUMMARY_DIRECTORY),
+                        SUMMARY_MEMORY_BYTES, SUMMARY_DISK_BYTES);
+                mSummaryCache.setMetrics(TrackerMetrics.SUMMARY_HITS,
+                                         TrackerMetrics.SUMMARY_DISK_HITS,
+                                         TrackerMetrics.SUMMARY_MISSES,
+                                         TrackerMetrics.SUMMARY_EVICTIONS);
+            }
+
+            return mSummaryCache;
+        }
+    }
+
+    /**
+     * Works out the totals, records and distance histogram over every stored track.  Only the
+     * tracks that are new or have changed since the last time are read, on a thread per core.
+     * This is disk I/O, so it must not be called on the UI thread.
+     * @param context  The context whose file area holds the tracks
+     * @return  The totals, or null if they couldn't be worked out
+     */
+    public HistoryAnalytics.Totals analyzeHistory(Context context) {
+
+        HistoryAnalytics history;
+        ForkJoinPool pool;
+        synchronized (mCatalogLock) {
+            if (mHistory == null) {
+                mHistory = new HistoryAnalytics(context.getFilesDir(), TimeZone.getDefault(),
+                                                Locale.getDefault());
+                mHistoryPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+            history = mHistory;
+            pool = mHistoryPool;
+        }
 
-        File dir = mContext.getFilesDir();
         try {
+            return history.analyze(pool);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to update the track history cache", ioe);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Converts any text track files written by earlier versions of the app to the binary track
+     * format.  A legacy file is deleted once it has been converted successfully.
+     * @param context  The context whose file area holds the tracks
+     */
+    public static void convertLegacyTracks(Context context) {
+
+        File[] files = context.getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        LegacyTrackConverter converter = new LegacyTrackConverter();
+
+        for (File file : files) {
+            if (LegacyTrackConverter.isLegacyTrack(file)) {
+                File converted = LegacyTrackConverter.getConvertedFile(file);
+                if (!converted.exists()) {
+                    try {
+                        converter.convert(file, converted);
+                        file.delete();
+                        getInstance().getCatalog(context).index(converted);
+                        getInstance().getSpatialIndex(context).index(converted);
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "Unable to convert " + file.getName(), ioe);
+                        TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the stored tracks ready the first time it's called in the process: converts legacy
+     * track files, recovers unfinished tracks (carrying on the interrupted one) and loads the
+     * catalog and spatial index, so the history is ready when asked for.  The work is done on the
+     * pipeline thread, which owns the current track, so it never touches a track being written.
+     * @param context  The context whose file area holds the tracks
+     */
+    public void prepareTracks(Context context) {
+
+        if (mTracksPrepared) {
+            return;
+        }
+        mTracksPrepared = true;
+
+        final Context appContext = context.getApplicationContext();
+
+        TrackerLocationService.getPipelineHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                convertLegacyTracks(appContext);
+                recoverTracks(appContext);
+                getCatalog(appContext);
+                getSpatialIndex(appContext);
+            }
+        });
+    }
+
+    /**
+     * Finishes any track files that were left unfinished because the app was killed while a
+     * track was being recorded.  Only the tail of each unfinished file is read.  The track named
+     * in the session checkpoint, if there is one, is carried on instead (see
+     * resumeInterruptedTrack()).  Runs on the pipeline thread.
+     * @param context  The context whose file area holds the tracks
+     */
+    private void recoverTracks(Context context) {
+
+        File[] files = context.getFilesDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        String interrupted = readCheckpointTrackName(context);
+        TrackJournal journal = new TrackJournal();
+
+        for (File file : files) {
+            if (file.getName().endsWith(TrackFormat.FILE_EXTENSION) && !file.equals(mTrackFile)
+                    && !file.getName().equals(interrupted)) {
+                recoverTrack(context, journal, file);
+            }
+        }
+
+        if (interrupted != null) {
+            resumeInterruptedTrack(context);
+        }
+    }
+
+    /**
+     * Finishes a track file if it was left unfinished.
+     */
+    private void recoverTrack(Context context, TrackJournal journal, File file) {
+
+        try {
+            if (!TrackJournal.isComplete(file)) {
+                int result = journal.recover(file);
+                if (result == TrackJournal.RESULT_RECOVERED) {
+                    Log.i(TAG, "Recovered unfinished track " + file.getName());
+                    getCatalog(context).index(file);
+                    getSpatialIndex(context).index(file);
+                } else if (result == TrackJournal.RESULT_UNRECOVERABLE) {
+                    Log.w(TAG, "Unable to recover track " + file.getName());
+                }
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to recover track " + file.getName(), ioe);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+        }
+    }
+
+    /**
+     * @return  The name of the track in the session checkpoint, or null if there is no intact
+     *          checkpoint
+     */
+    private static String readCheckpointTrackName(Context context) {
+
+        File file = new File(context.getFilesDir(), SessionCheckpoint.FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        SessionCheckpoint checkpoint = new SessionCheckpoint();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return checkpoint.read(raf.getChannel()) ? checkpoint.getTrackName() : null;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to read the session checkpoint", ioe);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Carries on the track that was being recorded when the process died, if there is one, from
+     * its session checkpoint.  The work is done on the pipeline thread; if a track is already
+     * being recorded by then, nothing is done.  If the track can't be carried on it is finished
+     * as it would have been before checkpoints, and the service is stopped.
+     * @param context  The context whose file area holds the tracks
+     */
+    public void resumeInterruptedTrack(Context context) {
+
+        final Context appContext = context.getApplicationContext();
+
+        TrackerLocationService.getPipelineHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if ((mTrackFile == null) && !resumeFromCheckpoint(appContext)) {
+                    appContext.stopService(new Intent(appContext, TrackerLocationService.class));
+                }
+            }
+        });
+    }
+
+    /**
+     * Reopens the track in the session checkpoint, starts its writer where the checkpoint left
+     * off and binds to the service to carry on collecting.  Runs on the pipeline thread.
+     * @return  True if the track was resumed
+     */
+    private boolean resumeFromCheckpoint(Context context) {
+
+        File checkpointFile = new File(context.getFilesDir(), SessionCheckpoint.FILE_NAME);
+        if (!checkpointFile.exists()) {
+            return false;
+        }
+
+        SessionCheckpoint checkpoint = new SessionCheckpoint();
+        FileChannel checkpointChannel = null;
+        File trackFile = null;
+
+        try {
+            checkpointChannel = new RandomAccessFile(checkpointFile, "rw").getChannel();
+
+            FileChannel trackChannel = null;
+            if (checkpoint.read(checkpointChannel)) {
+                trackFile = new File(context.getFilesDir(), checkpoint.getTrackName());
+                if (trackFile.exists()) {
+                    trackChannel = new TrackJournal().reopen(trackFile, checkpoint);
+                }
+            }
+
+            if (trackChannel == null) {
+                checkpointChannel.close();
+                checkpointFile.delete();
+                if ((trackFile != null) && trackFile.exists()) {
+                    recoverTrack(context, new TrackJournal(), trackFile);
+                }
+                return false;
+            }
 
-            /* Construct a file name in year.month.day.hour.minute.txt format */
-            Calendar calendar = Calendar.getInstance();
-            String filename = String.format("%d.%d.%d.%d.%d.txt", calendar.get(Calendar.YEAR),
-                    calendar.get(Calendar.MONTH) + 1,
-                    calendar.get(Calendar.DAY_OF_MONTH) + 1,
-                    calendar.get(Calendar.HOUR_OF_DAY),
-                    calendar.get(Calendar.MINUTE));
+            mContext = context;
+            mTrackFile = trackFile;
+            mDistanceMeters = (float) checkpoint.getDistanceMeters();
 
-            /* Open the file */
-            mOutputFile = mContext.openFileOutput(filename, 0);
+            mWriter = new TrackWriter(trackChannel, mFlushPolicy, TrackWriter.DEFAULT_CAPACITY);
+            mWriter.setLatencyHistograms(TrackerMetrics.FILE_WRITE, TrackerMetrics.FILE_FORCE);
+            mWriter.setOverflowPolicy(mOverflowPolicy);
+            mWriter.setCheckpointChannel(checkpointChannel);
+            mReportedDropped = 0;
+            mReportedMerged = 0;
+            mWriter.resume(checkpoint);
+            mSimplifier = new TrackSimplifier(mSimplifyToleranceMeters);
+            mCheckpoint.setTrack(checkpoint.getTrackName(), checkpoint.getStartTimeMs());
+            mLastCheckpointMs = checkpoint.getReceivedTimeMs();
 
-        } catch (java.io.FileNotFoundException e) {
+            /* The file's totals so far; the spatial index is built from the file at the end */
+            mFixCount = checkpoint.getFixCount();
+            mMinLatE7 = checkpoint.getMinLatitudeE7();
+            mMinLonE7 = checkpoint.getMinLongitudeE7();
+            mMaxLatE7 = checkpoint.getMaxLatitudeE7();
+            mMaxLonE7 = checkpoint.getMaxLongitudeE7();
+            mIndexBuilder.reset();
+            mResumed = true;
 
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to resume the interrupted track", e);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, e);
+            if (checkpointChannel != null) {
+                try {
+                    checkpointChannel.close();
+                } catch (IOException ioe) {
+                    /* Nothing more can be done with it */
+                }
+            }
+            return false;
         }
 
-        /*
-         * Bind to the TrackerLocationService.  This will start the service
-         */
+        /* The track is still listed as unfinished unless the catalog was rebuilt since */
+        try {
+            TrackCatalog catalog = getCatalog(context);
+            mCatalogIndex = catalog.indexOf(trackFile.getName());
+            if (mCatalogIndex < 0) {
+                mCatalogIndex = catalog.put(trackFile.getName(), checkpoint.getStartTimeMs(),
+                        TrackCatalog.ELAPSED_UNFINISHED, 0.0f, 0, 0, 0, 0, 0);
+            }
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to update the track catalog", ioe);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+        }
+
+        Log.i(TAG, "Resuming interrupted track " + trackFile.getName());
+        mTrackActive = true;
+        mResumeFrom = checkpoint;
+
+        Intent i = new Intent(context, TrackerLocationService.class);
+        context.startService(i);
+        context.bindService(i, mServiceConnection, Context.BIND_AUTO_CREATE);
+
+        return true;
+    }
+
+    /**
+     * Starts a new track, collecting and storing position data periodically
+     * @return  True if the track was started successfully, false if not
+     */
+    public boolean startNewTrack(Activity activity) {
+
+        mContext = activity;
+        final Context context = activity;
+
+        /* Construct a file name in year.month.day.hour.minute.trk format */
+        final Calendar calendar = Calendar.getInstance();
+        final String filename = String.format("%d.%d.%d.%d.%d%s", calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.MINUTE),
+                TrackFormat.FILE_EXTENSION);
+
+        //
+        // Create the file on the pipeline thread.  The service starts collecting on that thread
+        // once it is bound, so the file is always ready before the first location.
+        //
+        TrackerLocationService.getPipelineHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                createTrack(context, filename, calendar.getTimeInMillis());
+            }
+        });
+
+        //
+        // Start the TrackerLocationService and bind to it.  Starting it, not just binding,
+        // means the system restarts it if the process dies, so the track can be carried on.
+        //
+        mTrackActive = true;
         Intent i = new Intent(activity, TrackerLocationService.class);
+        activity.startService(i);
         activity.bindService(i, mServiceConnection, Context.BIND_AUTO_CREATE);
 
         return true;
     }
 
+    /**
+     * Opens the file for a new track, starts its writer and lists it in the catalog.  Runs on the
+     * pipeline thread.
+     * @param filename  The name of the track file, in the context's file area
+     * @param startTimeMs  The wall clock time the track was started
+     */
+    private void createTrack(Context context, String filename, long startTimeMs) {
+
+        try {
+
+            /* Open the file and start the writer, which writes the track header */
+            FileOutputStream outputFile = context.openFileOutput(filename, 0);
+            mTrackFile = new File(context.getFilesDir(), filename);
+            mDistanceMeters = 0.0f;
+
+            mWriter = new TrackWriter(outputFile.getChannel(), mFlushPolicy,
+                                      TrackWriter.DEFAULT_CAPACITY);
+            mWriter.setLatencyHistograms(TrackerMetrics.FILE_WRITE, TrackerMetrics.FILE_FORCE);
+            mWriter.setOverflowPolicy(mOverflowPolicy);
+            mReportedDropped = 0;
+            mReportedMerged = 0;
+
+            /* A new track's checkpoints start in an empty file */
+            RandomAccessFile checkpointFile = new RandomAccessFile(
+                    new File(context.getFilesDir(), SessionCheckpoint.FILE_NAME), "rw");
+            checkpointFile.setLength(0);
+            mWriter.setCheckpointChannel(checkpointFile.getChannel());
+            mCheckpoint.setTrack(filename, startTimeMs);
+            mLastCheckpointMs = startTimeMs;
+
+            mWriter.start(startTimeMs);
+            mSimplifier = new TrackSimplifier(mSimplifyToleranceMeters);
+
+            /* List the track in the catalog as unfinished until it is stopped */
+            mFixCount = 0;
+            mIndexBuilder.reset();
+            mResumed = false;
+            mCatalogIndex = getCatalog(context).put(filename, startTimeMs,
+                    TrackCatalog.ELAPSED_UNFINISHED, 0.0f, 0, 0, 0, 0, 0);
+
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create the track file", e);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, e);
+        }
+    }
+
     /**
      * Stops the currently active track.  The elapsed time for the track will be recorded in the
      * output file.  The data model will unbind from the TrackerLocationService.
      */
     public void stopTrack() {
 
-        int elapsedTime = 0;
+        final TrackerLocationService service = mLocationService;
+        mTrackActive = false;
 
-        if (mLocationService != null) {
+        if (service != null) {
 
-            /* Before we let the service go, get the final elapsed time */
-            elapsedTime = mLocationService.getElapsedTime();
+            /* Stop collecting; anything posted to the pipeline thread now runs after the end */
+            service.stopLocationCollecting();
 
             /* Unbind from the service and stop it */
             mContext.unbindService(mServiceConnection);
@@ -192,16 +917,127 @@ public class TrackerDataModel implements TrackerLocationService.DistanceChangedC
             mContext.stopService(i);
         }
 
-        if (mOutputFile != null) {
+        /* Finish the track on the pipeline thread, after the last location delivered */
+        TrackerLocationService.getPipelineHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                finishTrack(service);
+            }
+        });
+    }
+
+    /**
+     * Updates a finished track's catalog record from its footer.
+     */
+    private void indexCatalog(File file) {
+        try {
+            getCatalog(mContext).index(file);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Unable to update the track catalog", ioe);
+            TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+        }
+    }
+
+    /**
+     * Writes out the rest of the current track with its footer, and records it in the spatial
+     * index and catalog.  Runs on the pipeline thread.
+     * @param service  The service that collected the track, for its final elapsed time and
+     *                 statistics, or null if it never connected
+     */
+    private void finishTrack(TrackerLocationService service) {
+
+        long elapsedMs = 0;
+        TrackStats stats = null;
+
+        if (service != null) {
+
+            /* Collecting has stopped, so these are final */
+            elapsedMs = service.getClock().getElapsedMs();
+            stats = service.getStats();
+        }
+
+        if (mWriter != null) {
+
+            /* The last location is always stored, so the track ends where it did */
+            mSimplifier.flush(mKept);
+            write(mKept);
+
+            if (mWriter.getError() != null) {
+                Log.e(TAG, "Error writing track " + mTrackFile.getName(), mWriter.getError());
+                TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, mWriter.getError());
+            }
+
+            /*
+             * Log the elapsed time, total distance and statistics in the footer.  The writer
+             * thread commits whatever is still buffered and closes the file.
+             */
+            mWriter.finish(elapsedMs, mDistanceMeters, stats);
+
+            /* Locations dropped or merged when storage fell behind aren't in the file */
+            mFixCount = (int) mWriter.getStoredFixes();
+
+            /* The track is ending properly, so there's nothing to carry on */
+            new File(mContext.getFilesDir(), SessionCheckpoint.FILE_NAME).delete();
+
+            //
+            // Index the track from the locations stored, rather than reading it back.  A resumed
+            // track's builder only saw the locations since it was resumed, and locations merged
+            // or evicted from the writer's buffer after it took them shift the builder's point
+            // ranges and the bounding box, so those tracks are read back once the writer has
+            // finished them, for the catalog as well as the spatial index.
+            //
+            boolean readBack = mResumed || (mWriter.getMergedFixes() != 0)
+                               || (mWriter.getDroppedFixes() != 0);
             try {
-                /* Log the elapsed time in the file */
-                String str = String.format("E,%d\n", elapsedTime);
-                mOutputFile.write(str.getBytes());
-                mOutputFile.flush();
-                mOutputFile.close();
-            } catch (java.io.IOException ioe) {
+                if (!readBack) {
+                    getSpatialIndex(mContext).add(mTrackFile.getName(), mIndexBuilder);
+                }
+            } catch (IOException ioe) {
+                Log.e(TAG, "Unable to update the track spatial index", ioe);
+                TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+            }
 
+            //
+            // The file is only let go once the writer has closed it, so nothing that runs on this
+            // thread afterwards (recovering unfinished tracks, say) sees it half written.
+            //
+            boolean finished = false;
+            try {
+                finished = mWriter.awaitFinished(WRITER_FINISH_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (!finished) {
+                Log.w(TAG, "Track " + mTrackFile.getName() + " is still being written");
+            } else if (readBack) {
+                try {
+                    getSpatialIndex(mContext).index(mTrackFile);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Unable to update the track spatial index", ioe);
+                    TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
+                }
+                if (mCatalogIndex >= 0) {
+                    mCatalogIndex = -1;
+                    indexCatalog(mTrackFile);
+                }
+            }
+            mWriter = null;
+            mTrackFile = null;
+            mResumed = false;
+        }
+
+        if (mCatalogIndex >= 0) {
+
+            /* Update the track's catalog record in place with its totals */
+            try {
+                mCatalog.update(mCatalogIndex, elapsedMs, mDistanceMeters, mFixCount,
+                                mMinLatE7, mMinLonE7, mMaxLatE7, mMaxLonE7);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Unable to update the track catalog", ioe);
+                TrackerMetrics.REGISTRY.recordError(TrackerMetrics.IO_ERRORS, ioe);
             }
+            mCatalogIndex = -1;
         }
     }
 }
@@ -3,42 +3,56 @@ package android.redskysoftware.com.tracker;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.location.Location;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationCallback;
-import com.google.android.gms.location.LocationResult;
-import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.LocationSettingsRequest;
-import com.google.android.gms.location.SettingsClient;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * This service is responsible for collecting user location and updating track related information.
  * This is done in this service so it will continue to happen, even when the Tracker activity is
  * not currently active.
  *
- * This service also runs a thread to keep track of how long the track is active (duration).  That
- * thread is started at the same time the service is started (and location data is requested).
+ * Locations come from the fused location provider through a FusedLocationSource and are turned
+ * into the track by a LocationPipeline, which smooths them with a KalmanFixFilter and also keeps
+ * the track's TrackClock.  The clock is started at the same time the service is started (and
+ * location data is requested).
  *
- * The collecting of location data and the duration task will both continue until the service is
+ * The collecting of location data and the clock will both continue until the service is
  * stopped (the user of the service unbinds from this service).
+ *
+ * The pipeline runs on a thread of its own, the pipeline thread (see getPipelineHandler()),
+ * through a PipelineRunner: the fused provider delivers locations there, and the pipeline's
+ * DistanceBatchCallback is called there.  The methods that change the track hand the change to
+ * the pipeline thread and return; the UI reads the track from the snapshot and track buffer the
+ * pipeline publishes.  Nothing the pipeline does, and nothing done with the locations, runs on
+ * the main thread.
+ *
+ * Locations are counted and timed on their way into the pipeline (see TrackerMetrics), and the
+ * service's dump() prints the pipeline's state and the metrics for dumpsys.
+ *
+ * The service is started as well as bound while a track is recorded, and is sticky, so if the
+ * process is killed the system restarts it.  A restart has no intent; the service then asks the
+ * data model to carry the track on from its session checkpoint (see SessionCheckpoint), which
+ * binds again and resumes collecting with resumeLocationCollecting().
  */
 public class TrackerLocationService extends Service {
 
-    /** Meters per degree of longitude at the equator */
-    private final Double METERS_PER_DEGREE = 111319.9;
+    private static final String TAG = "TrackerLocationService";
 
-    public interface DistanceChangedCallback {
-        void onDistanceChanged(float latitude, float longitude, float totalDistanceMeters);
-    }
+    /** Name of the thread the location pipeline runs on */
+    private static final String PIPELINE_THREAD_NAME = "LocationPipeline";
+
+    /** The thread the location pipeline runs on, and a handler on it; see getPipelineHandler() */
+    private static HandlerThread sPipelineThread = null;
+    private static Handler sPipelineHandler = null;
 
     /**
      * Class for clients to access.  Because we know this service always
@@ -52,74 +66,72 @@ public class TrackerLocationService extends Service {
     }
 
     /**
-     * This class implements a thread that increments the elapsed seconds counter once a second.
+     * The elapsed realtime clock, which is monotonic and keeps counting while the device sleeps
      */
-    private class ElapsedTimeThread extends Thread {
+    public static final TrackClock.TimeSource ELAPSED_REALTIME = new TrackClock.TimeSource() {
         @Override
-        public void run() {
-
-            while (true) {
-                try {
-                    Thread.sleep(1000);
-                } catch (java.lang.InterruptedException ie) {
-
-                }
-
-                //TODO jpk, not the right object to sync on.
-                synchronized (this) {
-                    mElapsedSeconds++;
-                }
-            }
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
         }
-    }
+    };
 
     private final IBinder mBinder = new LocalBinder();
 
-    private LocationRequest mLocationRequest;
-
-    private Location mPreviousLocation;
-    private Location mCurrentLocation;
-    private float mDistanceMeters;
-    private boolean mFirstPosition = true;
-
-    /** The number of seconds the service has been tracking location */
-    private int mElapsedSeconds = 0;
+    /** How long locations may be held back while nothing is showing the track, in ms */
+    static final long BATCHED_MAX_WAIT_MS = 2 * 60 * 1000;
 
-    /** Thread to increment the mElapsedSeconds value once a second */
-    private ElapsedTimeThread mElapsedTimeThread;
+    /**
+     * Turns locations into the current track, and measures how long it has been active, on the
+     * pipeline thread
+     */
+    private final PipelineRunner mRunner = new PipelineRunner(
+            new LocationPipeline(new TrackClock(ELAPSED_REALTIME)), new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    getPipelineHandler().post(task);
+                }
+            });
 
-    private LocationCallback mLocationCallback = null;
-    private Context mContext;
+    /** True once collecting has started */
+    private volatile boolean mCollecting = false;
 
-    private long UPDATE_INTERVAL = 1 * 1000;  /* 5 secs */
-    private long FASTEST_INTERVAL = 2000; /* 2 sec */
 
-    /** The object that will be called when the location changes */
-    private DistanceChangedCallback mCallback = null;
+    /**
+     * Returns a handler on the pipeline thread, starting the thread the first time it's asked
+     * for.  The thread lasts as long as the process, so work posted for one track always runs
+     * after all the work for the track before it, whichever service it came from.
+     * @return  The handler
+     */
+    static synchronized Handler getPipelineHandler() {
 
+        if (sPipelineHandler == null) {
+            sPipelineThread = new HandlerThread(PIPELINE_THREAD_NAME);
+            sPipelineThread.start();
+            sPipelineHandler = new Handler(sPipelineThread.getLooper());
+        }
 
+        return sPipelineHandler;
+    }
 
     @Override
     public void onCreate() {
-
+        mRunner.setFilter(new KalmanFixFilter());
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+
+        /* Restarted after the process died; carry on the track that was being recorded */
+        if (intent == null) {
+            TrackerDataModel.getInstance().resumeInterruptedTrack(getApplicationContext());
+        }
+
         return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
-
-        if (mLocationCallback != null) {
-            try {
-                LocationServices.getFusedLocationProviderClient(mContext).removeLocationUpdates(mLocationCallback);
-            } catch (SecurityException se) {
-
-            }
-        }
-
+        stopLocationCollecting();
     }
 
     @Override
@@ -128,149 +140,251 @@ public class TrackerLocationService extends Service {
     }
 
     /**
-     * Starts the collection of location data
+     * Starts the collection of location data on the pipeline thread.  If the location provider
+     * can't be started (it may be due to a location permissions issue), dump() says so and no
+     * locations are delivered.
      * @param context  The application or context that wants the data
-     * @param cb  The object to callback when the distance changes
-     * @return  True if started successfully, false if not started.  If not started, it may be due
-     *          to a location permissions issue.
+     * @param cb  The object to callback with the locations accepted from each delivery, on the
+     *            pipeline thread
      */
-    public boolean startLocationCollecting(Context context, DistanceChangedCallback cb) {
-
-        boolean result = true;
-
-        mContext = context;
-        mCallback = cb;
-        mElapsedSeconds = 0;
+    public void startLocationCollecting(Context context, DistanceBatchCallback cb) {
+        mCollecting = true;
+        mRunner.startBatched(new MeteredSource(new FusedLocationSource(context)), cb);
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunner.hasStartFailed()) {
+                    Log.w(TAG, "Unable to start location updates");
+                }
+            }
+        });
+    }
 
-        mElapsedTimeThread = new ElapsedTimeThread();
-        mElapsedTimeThread.start();
+    /**
+     * Carries on collecting location data for a track from its checkpoint, on the pipeline
+     * thread.  The distance, clock and statistics pick up where the checkpoint left them.
+     * @param context  The application or context that wants the data
+     * @param cb  The object to callback with the locations accepted from each delivery, on the
+     *            pipeline thread
+     * @param checkpoint  The checkpoint to carry on from
+     */
+    public void resumeLocationCollecting(Context context, DistanceBatchCallback cb,
+                                         SessionCheckpoint checkpoint) {
+        mCollecting = true;
+        mRunner.resumeBatched(new MeteredSource(new FusedLocationSource(context)), cb,
+                              checkpoint);
+        mRunner.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunner.hasStartFailed()) {
+                    Log.w(TAG, "Unable to resume location updates");
+                }
+            }
+        });
+    }
 
-        // Create the location request to start receiving updates
-        mLocationRequest = new LocationRequest();
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-        mLocationRequest.setInterval(UPDATE_INTERVAL);
-        mLocationRequest.setFastestInterval(FASTEST_INTERVAL);
+    /**
+     * Fills in a checkpoint with the pipeline's part of the track's state; see
+     * LocationPipeline.saveState().  Only for the pipeline thread.
+     * @param checkpoint  The checkpoint to fill in
+     */
+    public void saveSessionState(SessionCheckpoint checkpoint) {
+        mRunner.getPipeline().saveState(checkpoint);
+    }
 
-        // Create LocationSettingsRequest object using location request
-        LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(mLocationRequest);
-        LocationSettingsRequest locationSettingsRequest = builder.build();
+    /**
+     * Stops the collection of location data and the clock.  Work posted to the pipeline thread
+     * after this runs after the last location has been delivered.
+     */
+    public void stopLocationCollecting() {
+        mCollecting = false;
+        mRunner.stop();
+    }
 
-        // Check whether location settings are satisfied
-        // https://developers.google.com/android/reference/com/google/android/gms/location/SettingsClient
-        SettingsClient settingsClient = LocationServices.getSettingsClient(context);
-        settingsClient.checkLocationSettings(locationSettingsRequest);
+    /**
+     * Sets how the distances of the next track are measured.  See DistanceKernel for what each
+     * mode costs and how close it comes to the exact distance.
+     * @param mode  DistanceKernel.EXACT, HAVERSINE or EQUIRECTANGULAR
+     */
+    public void setDistanceMode(int mode) {
+        mRunner.setDistanceMode(mode);
+    }
 
-        mLocationCallback = new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
+    /**
+     * Sets whether locations are delivered as they come or held back and delivered in batches.
+     * Batching wakes the app far less often on a long track, so it suits the times nothing is
+     * showing the track live.  No locations are lost either way.
+     * @param batched  True to batch locations, false to deliver each as it comes
+     */
+    public void setBatchedDelivery(boolean batched) {
+        mRunner.setMaxWaitMs(batched ? BATCHED_MAX_WAIT_MS : 0);
+    }
 
-                // New location is available...
-                synchronized (this) {
+    /**
+     * @return  The points of the current track.  Read them through TrackBuffer.newView().
+     */
+    public TrackBuffer getTrackBuffer() {
+        return mRunner.getTrackBuffer();
+    }
 
-                    Location temp = locationResult.getLastLocation();
-                    if (temp != null) {
+    /**
+     * @return  The latest snapshot of the track.  This never blocks.
+     */
+    public TrackSnapshot getSnapshot() {
+        return mRunner.getSnapshot();
+    }
 
-                        if (!mFirstPosition) {
+    /**
+     * @return  The statistics of the current track, with its splits.  Only for the pipeline
+     *          thread, which locations are delivered on; other threads read the live statistics
+     *          from the snapshot.
+     */
+    public TrackStats getStats() {
+        return mRunner.getPipeline().getStats();
+    }
 
-                            mCurrentLocation = temp;
+    public float getDistance() {
+        return mRunner.getSnapshot().getDistanceFeet();
+    }
 
-                            float accuracyMeters = 3.0f;
+    /**
+     * @return  The number of seconds the current track has been active.
+     */
+    public int getElapsedTime() {
+        return getElapsedSeconds();
+    }
 
-                            if (mCurrentLocation.hasAccuracy()) {
-                                accuracyMeters = mCurrentLocation.getAccuracy();
-                            }
+    /**
+     * @return  The clock measuring how long the current track has been active.  Only for the
+     *          pipeline thread; other threads read the elapsed time from the snapshot.
+     */
+    public TrackClock getClock() {
+        return mRunner.getPipeline().getClock();
+    }
 
-                            float deltaMeters = mCurrentLocation.distanceTo(mPreviousLocation);
+    /**
+     * Stops counting elapsed time until resumeClock() is called
+     */
+    public void pauseClock() {
+        mRunner.pauseClock();
+    }
 
-                            if (deltaMeters >= accuracyMeters) {
-                                mPreviousLocation = mCurrentLocation;
-                                mDistanceMeters += deltaMeters;
+    /**
+     * Continues counting elapsed time after pauseClock()
+     */
+    public void resumeClock() {
+        mRunner.resumeClock();
+    }
 
-                                if (mCallback != null) {
-                                    mCallback.onDistanceChanged((float) mCurrentLocation.getLatitude(),
-                                                (float) mCurrentLocation.getLongitude(),
-                                                mDistanceMeters);
-                                }
-                            }
+    /**
+     * @return  The sampling controller's motion state; see SamplingController.getState().  Only
+     *          for the pipeline thread.
+     */
+    public int getSamplingState() {
+        return mRunner.getPipeline().getSamplingState();
+    }
 
-                        } else {
+    public int getElapsedSeconds() {
+        return (int) (mRunner.getSnapshot().getElapsedMs(ELAPSED_REALTIME.nanoTime()) / 1000);
+    }
 
-                            //
-                            // This is the first location we've received, so set our
-                            // current and previous to this location.
-                            //
-                            mCurrentLocation = temp;
-                            mPreviousLocation = temp;
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+
+        /* The pipeline's counts belong to the pipeline thread; for a dump a stale read will do */
+        LocationPipeline pipeline = mRunner.getPipeline();
+        writer.println(String.format(Locale.US,
+                "Pipeline: %s, %d received, %d accepted, %.1f m in %d s, sampling state %d",
+                mRunner.hasStartFailed() ? "start failed" : (mCollecting ? "collecting" : "idle"),
+                pipeline.getReceivedCount(), pipeline.getAcceptedCount(),
+                pipeline.getDistanceMeters(), getElapsedSeconds(), pipeline.getSamplingState()));
+
+        TrackerDataModel.getInstance().dump(writer);
+        TrackerMetrics.REGISTRY.dump(writer);
+    }
 
-                            if (mCallback != null) {
-                                mCallback.onDistanceChanged((float) mCurrentLocation.getLatitude(),
-                                        (float) mCurrentLocation.getLongitude(),
-                                        mDistanceMeters);
-                            }
-                        }
-                    }
+    /**
+     * Passes locations from a source on to the pipeline, counting and timing them on the way.
+     * Whether the pipeline accepted a location is told from its accepted count.
+     */
+    private class MeteredSource implements LocationSource, LocationSource.Listener {
 
-                    mFirstPosition = false;
-                }
-            }
-        };
-
-        // new Google API SDK v11 uses getFusedLocationProviderClient(this)
-        try {
-            LocationServices.getFusedLocationProviderClient(context)
-                       .requestLocationUpdates(mLocationRequest,
-                                               mLocationCallback,
-                                               Looper.myLooper());
-        } catch (SecurityException se) {
-            result = false;
-        }
+        private final LocationSource mSource;
 
-        return result;
-    }
+        private LocationSource.Listener mListener = null;
 
-    public float getDistance() {
+        /** Time of the last location, for the intervals between them */
+        private long mLastTimeMs = -1;
 
-        float distance;
+        /** When the current delivery's first location arrived, or -1 before it has */
+        private long mBatchStartNanos = -1;
 
-        synchronized (this) {
-            distance = mDistanceMeters * 3.28f;
+        MeteredSource(LocationSource source) {
+            mSource = source;
         }
 
-        return distance;
-    }
+        @Override
+        public boolean start(SamplingController.Profile profile, LocationSource.Listener listener) {
+            mListener = listener;
+            mLastTimeMs = -1;
+            mBatchStartNanos = -1;
+            return mSource.start(profile, this);
+        }
 
-    /**
-     * @return  The number of seconds the current track has been active.
-     */
-    public int getElapsedTime() {
+        @Override
+        public void setProfile(SamplingController.Profile profile) {
+            mSource.setProfile(profile);
+        }
 
-        int elapsedTime;
+        @Override
+        public void setMaxWaitMs(long maxWaitMs) {
+            mSource.setMaxWaitMs(maxWaitMs);
+        }
 
-        synchronized (this) {
-            elapsedTime = mElapsedSeconds;
+        @Override
+        public void stop() {
+            mSource.stop();
         }
 
-        return elapsedTime;
-    }
+        @Override
+        public void onLocation(double latitude, double longitude, long timeMs,
+                               float accuracyMeters, float speedMetersPerSecond) {
+
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            if (mBatchStartNanos < 0) {
+                mBatchStartNanos = startNanos;
+            }
 
-    public Location getCurrentLocation() {
-        Location temp;
+            TrackerMetrics.FIXES_RECEIVED.increment();
+            TrackerMetrics.FIX_AGE.record((System.currentTimeMillis() - timeMs) * 1000000L);
+            if (mLastTimeMs >= 0) {
+                TrackerMetrics.FIX_INTERVAL.record((timeMs - mLastTimeMs) * 1000000L);
+            }
+            mLastTimeMs = timeMs;
+
+            LocationPipeline pipeline = mRunner.getPipeline();
+            long accepted = pipeline.getAcceptedCount();
+            mListener.onLocation(latitude, longitude, timeMs, accuracyMeters,
+                                 speedMetersPerSecond);
+            if (pipeline.getAcceptedCount() != accepted) {
+                TrackerMetrics.FIXES_ACCEPTED.increment();
+            } else {
+                TrackerMetrics.FIXES_REJECTED.increment();
+            }
 
-        synchronized (this) {
-            temp = mCurrentLocation;
+            TrackerMetrics.FIX_CALLBACK.record(SystemClock.elapsedRealtimeNanos() - startNanos);
         }
 
-        return temp;
-    }
+        @Override
+        public void onBatchEnd() {
 
-    public int getElapsedSeconds() {
-        int seconds;
+            mListener.onBatchEnd();
 
-        synchronized (this) {
-            seconds = getElapsedSeconds();
+            if (mBatchStartNanos >= 0) {
+                TrackerMetrics.BATCH_CALLBACK.record(
+                        SystemClock.elapsedRealtimeNanos() - mBatchStartNanos);
+                mBatchStartNanos = -1;
+            }
         }
-
-        return seconds;
     }
 }
@@ -0,0 +1,60 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * The app's metrics, in one registry that dumpsys and the metrics screen show.
+ *
+ *   adb shell dumpsys activity service android.redskysoftware.com.tracker/.TrackerLocationService
+ *
+ * Counters count fixes as they go through the app, how the track summaries opened were found,
+ * and errors that are handled rather than reported.  Histograms time the gaps between fixes, how old fixes are when they arrive, the
+ * location callbacks and the track file's writes.
+ */
+final class TrackerMetrics {
+
+    static final MetricsRegistry REGISTRY =
+            new MetricsRegistry(TrackerLocationService.ELAPSED_REALTIME);
+
+    /** Fixes delivered by the location provider */
+    static final StripedCounter FIXES_RECEIVED = REGISTRY.counter("fixes.received");
+
+    /** Fixes accepted into the track, and those the filter turned down (mostly for accuracy) */
+    static final StripedCounter FIXES_ACCEPTED = REGISTRY.counter("fixes.accepted");
+    static final StripedCounter FIXES_REJECTED = REGISTRY.counter("fixes.rejected");
+
+    /**
+     * Fixes handed to the track file's writer, and those it dropped or merged into its last
+     * point when storage fell behind (see TrackWriter's overflow policies)
+     */
+    static final StripedCounter FIXES_STORED = REGISTRY.counter("fixes.stored");
+    static final StripedCounter FIXES_DROPPED = REGISTRY.counter("fixes.dropped");
+    static final StripedCounter FIXES_MERGED = REGISTRY.counter("fixes.merged");
+
+    /**
+     * Track summaries found in memory or in their cache file, those decoded from the track file,
+     * and those dropped from memory (see TrackSummaryCache)
+     */
+    static final StripedCounter SUMMARY_HITS = REGISTRY.counter("summaries.hits");
+    static final StripedCounter SUMMARY_DISK_HITS = REGISTRY.counter("summaries.disk_hits");
+    static final StripedCounter SUMMARY_MISSES = REGISTRY.counter("summaries.misses");
+    static final StripedCounter SUMMARY_EVICTIONS = REGISTRY.counter("summaries.evictions");
+
+    static final StripedCounter IO_ERRORS = REGISTRY.counter("errors.io");
+    static final StripedCounter SECURITY_ERRORS = REGISTRY.counter("errors.security");
+
+    /** Time between one fix and the next, by the fixes' own times */
+    static final LatencyHistogram FIX_INTERVAL = REGISTRY.histogram("fix.interval");
+
+    /** How long after its time a fix reached the app; large while fixes are batched */
+    static final LatencyHistogram FIX_AGE = REGISTRY.histogram("fix.age");
+
+    /** Time the app took over each fix, and over each whole delivery including storing it */
+    static final LatencyHistogram FIX_CALLBACK = REGISTRY.histogram("callback.fix");
+    static final LatencyHistogram BATCH_CALLBACK = REGISTRY.histogram("callback.batch");
+
+    /** Time the track file's writer took to write each buffer, and to force it to storage */
+    static final LatencyHistogram FILE_WRITE = REGISTRY.histogram("file.write");
+    static final LatencyHistogram FILE_FORCE = REGISTRY.histogram("file.force");
+
+    private TrackerMetrics() {
+    }
+}
@@ -0,0 +1,68 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The distance kernel in each mode, measuring the steps of a track one after another the way a
+ * pass over a whole track history does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DistanceBenchmark {
+
+    /** Fixes in the track the benchmark walks along; a power of two */
+    private static final int FIXES = 4096;
+
+    @Param({ "exact", "haversine", "equirectangular" })
+    public String mode;
+
+    private final double[] mLatitude = new double[FIXES];
+    private final double[] mLongitude = new double[FIXES];
+
+    private DistanceKernel mKernel;
+    private int mCount;
+
+    /**
+     * Lays out a walk of 1.4 m steps heading north east, with a few meters of jitter.
+     */
+    @Setup
+    public void setUp() {
+
+        Random random = new Random(1);
+
+        for (int i = 0; i < FIXES; i++) {
+            double north = i * 1.0 + random.nextGaussian() * 2.0;
+            double east = i * 1.0 + random.nextGaussian() * 2.0;
+            mLatitude[i] = 45.0 + north / 111132.0;
+            mLongitude[i] = -93.0 + east / 78847.0;
+        }
+
+        if ("haversine".equals(mode)) {
+            mKernel = new DistanceKernel(DistanceKernel.HAVERSINE);
+        } else if ("equirectangular".equals(mode)) {
+            mKernel = new DistanceKernel(DistanceKernel.EQUIRECTANGULAR);
+        } else {
+            mKernel = new DistanceKernel(DistanceKernel.EXACT);
+        }
+    }
+
+    @Benchmark
+    public double distance() {
+
+        int i = ++mCount & (FIXES - 1);
+        int j = (i + 1) & (FIXES - 1);
+
+        return mKernel.distanceMeters(mLatitude[i], mLongitude[i], mLatitude[j], mLongitude[j]);
+    }
+}
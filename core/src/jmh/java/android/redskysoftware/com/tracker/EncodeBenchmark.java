@@ -0,0 +1,69 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding one fix for storage: a record in the binary track format, against the text line the
+ * app used to write for each fix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+
+    private static final long START_MS = 1559170800000L;
+
+    /** Room a segment needs at its end, as TrackWriter leaves it */
+    private static final int SEGMENT_END_SIZE = TrackFormat.MAX_CHECKPOINT_SIZE
+                                                + TrackFormat.SEGMENT_TRAILER_SIZE;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+
+    private final TrackEncoder mEncoder = new TrackEncoder();
+
+    private int mCount;
+
+    @Setup
+    public void setUp() {
+        mEncoder.writeHeader(mBuffer, START_MS);
+        mBuffer.clear();
+    }
+
+    @Benchmark
+    public int binaryFix() {
+
+        /* Start a new segment in an empty buffer when this one is full, as the writer does */
+        if (mBuffer.remaining() < TrackFormat.MAX_FIX_SIZE + SEGMENT_END_SIZE) {
+            mEncoder.endSegment(mBuffer, mCount);
+            mBuffer.clear();
+        }
+        if (!mEncoder.isSegmentOpen()) {
+            mEncoder.beginSegment(mBuffer);
+        }
+
+        int i = mCount++;
+        mEncoder.writeFix(mBuffer, 45.0 + (i & 1023) * 1e-5, -93.0 - (i & 1023) * 1e-5,
+                          START_MS + i * 1000L, 4.0f);
+
+        return mBuffer.position();
+    }
+
+    @Benchmark
+    public int legacyTextLine() {
+
+        int i = mCount++;
+        String str = String.format("L,%f,%f,%f\n", (float) (45.0 + (i & 1023) * 1e-5),
+                                   (float) (-93.0 - (i & 1023) * 1e-5), (float) i);
+
+        return str.getBytes().length;
+    }
+}
@@ -0,0 +1,91 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exporting a track of a million fixes as GPX and TCX, in points per second, to a stream that
+ * throws the bytes away so only the export is measured.  The GC profiler's allocation per
+ * operation should stay near zero: the reader allocates a little when it opens the track, and
+ * each point nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExportBenchmark {
+
+    private static final int FIXES = 1000000;
+
+    private static final long START_MS = 1582934000000L;
+
+    @Param({ "gpx", "tcx" })
+    public String format;
+
+    private File mFile;
+    private final TrackExporter mExporter = new TrackExporter();
+
+    /** Counts what's written to it and throws it away */
+    private final OutputStream mOut = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+            mBytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mBytes += len;
+        }
+    };
+    private long mBytes = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        mFile = File.createTempFile("export", TrackFormat.FILE_EXTENSION);
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            /* Room for the whole track, so nothing is dropped if the thread falls behind */
+            TrackWriter writer = new TrackWriter(out.getChannel(), FlushPolicy.DEFAULT, 1 << 20);
+            writer.start(START_MS);
+
+            for (int i = 0; i < FIXES; i++) {
+                writer.append(0.0005 + (i & 1023) * 1e-5, -0.0005 - (i & 1023) * 1e-5,
+                              START_MS + i * 1003L, 5.0f, i);
+            }
+
+            writer.finish(FIXES * 1003L, FIXES, new TrackStats());
+            if (!writer.awaitFinished(60000) || (writer.getError() != null)) {
+                throw new IOException("Unable to write the track", writer.getError());
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long export() throws IOException {
+        int kind = "tcx".equals(format) ? TrackExporter.FORMAT_TCX : TrackExporter.FORMAT_GPX;
+        mExporter.export(mFile, kind, "Benchmark", mOut);
+        return mBytes;
+    }
+}
@@ -0,0 +1,120 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The history analytics over a corpus of 10,000 half-hour tracks, in tracks per second, on pools
+ * of 1 to 8 threads: every track read (the cache deleted first), and a rerun that finds them all
+ * in the cache.  Half the tracks have statistics in the footer and are read straight to it; the
+ * other half, like tracks from before there were statistics, are decoded fix by fix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HistoryBenchmark {
+
+    private static final int TRACKS = 10000;
+
+    private static final int FIXES = 1800;
+
+    private static final long START_MS = 1559170800000L;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private File mDir;
+    private ForkJoinPool mPool;
+    private HistoryAnalytics mCached;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        mDir = File.createTempFile("history", "");
+        mDir.delete();
+        mDir.mkdir();
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE
+                                                + FIXES * TrackFormat.MAX_FIX_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        TrackStats stats = new TrackStats();
+
+        for (int track = 0; track < TRACKS; track++) {
+
+            long startMs = START_MS + track * 6 * 3600000L;
+            double speed = 2.0 + (track % 7);
+
+            buffer.clear();
+            stats.reset();
+            encoder.writeHeader(buffer, startMs);
+            encoder.beginSegment(buffer);
+            for (int i = 0; i < FIXES; i++) {
+                encoder.writeFix(buffer, 45.0 + i * speed / 111132.0, -93.0 + (i & 15) * 1e-6,
+                                 startMs + i * 1000L, 4.0f);
+                stats.add(startMs + i * 1000L, i * speed);
+            }
+            encoder.endSegment(buffer, (float) (FIXES * speed));
+            encoder.writeFooter(buffer, FIXES * 1000L, (float) (FIXES * speed),
+                                ((track & 1) == 0) ? stats : null);
+
+            try (FileOutputStream out = new FileOutputStream(new File(mDir, track + ".trk"))) {
+                out.write(buffer.array(), 0, buffer.position());
+            }
+        }
+
+        mPool = new ForkJoinPool(threads);
+        mCached = new HistoryAnalytics(mDir, TimeZone.getDefault(), Locale.getDefault());
+        mCached.analyze(mPool);
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteCache() {
+        new File(mDir, HistoryAnalytics.FILE_NAME).delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACKS)
+    public int readEveryTrack() throws IOException {
+        HistoryAnalytics analytics =
+                new HistoryAnalytics(mDir, TimeZone.getDefault(), Locale.getDefault());
+        return analytics.analyze(mPool).getTrackCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACKS)
+    public int rerunFromTheCache() throws IOException {
+
+        /* The cache file was deleted, but this instance still has it in memory */
+        return mCached.analyze(mPool).getTrackCount();
+    }
+}
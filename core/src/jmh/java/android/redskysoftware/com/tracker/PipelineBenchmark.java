@@ -0,0 +1,101 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-fix processing: what the location callback does with each location (the fix filter,
+ * distance accumulation, the track buffer and the published snapshot) with each filter.  See
+ * DistanceBenchmark for the distance kernel on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+
+    /** Fixes in the loop the benchmark walks round; a power of two */
+    private static final int FIXES = 4096;
+
+    /** Fixes between restarting the track, to keep the track buffer from growing without end */
+    private static final int RESTART_INTERVAL = 1 << 16;
+
+    /** A source that delivers nothing; the benchmark calls the pipeline itself */
+    private static final LocationSource IDLE = new LocationSource() {
+        @Override
+        public boolean start(SamplingController.Profile profile, Listener listener) {
+            return true;
+        }
+
+        @Override
+        public void setProfile(SamplingController.Profile profile) {
+        }
+
+        @Override
+        public void setMaxWaitMs(long maxWaitMs) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    @Param({ "threshold", "kalman" })
+    public String filter;
+
+    private final double[] mLatitude = new double[FIXES];
+    private final double[] mLongitude = new double[FIXES];
+    private final float[] mAccuracy = new float[FIXES];
+
+    private LocationPipeline mPipeline;
+    private long mTimeMs;
+    private int mCount;
+
+    /**
+     * Lays out a walk round a loop of about 5.7 km at 1.4 m/s, a fix a second, with a few meters
+     * of jitter so the accuracy filter rejects some fixes.
+     */
+    @Setup
+    public void setUp() {
+
+        Random random = new Random(1);
+        double radiusMeters = FIXES * 1.4 / (2.0 * Math.PI);
+
+        for (int i = 0; i < FIXES; i++) {
+            double angle = 2.0 * Math.PI * i / FIXES;
+            double north = radiusMeters * Math.sin(angle) + random.nextGaussian() * 2.0;
+            double east = radiusMeters * Math.cos(angle) + random.nextGaussian() * 2.0;
+            mLatitude[i] = 45.0 + north / 111132.0;
+            mLongitude[i] = -93.0 + east / 78847.0;
+            mAccuracy[i] = 3.0f + random.nextFloat() * 3.0f;
+        }
+
+        mPipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        mPipeline.setFilter("kalman".equals(filter) ? new KalmanFixFilter()
+                                                    : new AccuracyThresholdFilter());
+        mPipeline.start(IDLE, null);
+        mTimeMs = 1559170800000L;
+    }
+
+    @Benchmark
+    public double pipelineFix() {
+
+        if ((++mCount & (RESTART_INTERVAL - 1)) == 0) {
+            mPipeline.start(IDLE, null);
+        }
+
+        int i = mCount & (FIXES - 1);
+        mTimeMs += 1000;
+        mPipeline.onLocation(mLatitude[i], mLongitude[i], mTimeMs, mAccuracy[i], Float.NaN);
+
+        return mPipeline.getDistanceMeters();
+    }
+}
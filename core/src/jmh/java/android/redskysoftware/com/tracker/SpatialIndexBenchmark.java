@@ -0,0 +1,93 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The spatial index of 20,000 walks of about 5 km, a point every 50 m, scattered over a city
+ * 100 km across: loading the index file, and finding the tracks that pass within 200 m of a
+ * place twenty of them go by.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpatialIndexBenchmark {
+
+    private static final int TRACKS = 20000;
+
+    private static final int POINTS = 100;
+
+    /** Meters per degree of latitude, and of longitude at 45 degrees */
+    private static final double METERS_PER_DEGREE_LATITUDE = 111195.0;
+    private static final double METERS_PER_DEGREE_LONGITUDE = 78626.0;
+
+    private File mDir;
+    private TrackSpatialIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        mDir = File.createTempFile("spatial", "");
+        mDir.delete();
+        mDir.mkdir();
+
+        Random random = new Random(5);
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+
+        /* One track in every thousand heads east through the place the queries look at */
+        TrackSpatialIndex.Builder builder = new TrackSpatialIndex.Builder();
+        for (int track = 0; track < TRACKS; track++) {
+
+            boolean passing = (track % 1000) == 0;
+            double east = passing ? -2000.0 : random.nextDouble() * 100000.0 - 50000.0;
+            double north = passing ? 0.0 : random.nextDouble() * 100000.0 - 50000.0;
+            double heading = passing ? 0.0 : random.nextDouble() * 2.0 * Math.PI;
+
+            builder.reset();
+            for (int i = 0; i < POINTS; i++) {
+                builder.addPoint(45.0 + north / METERS_PER_DEGREE_LATITUDE,
+                                 -93.0 + east / METERS_PER_DEGREE_LONGITUDE);
+                heading += passing ? 0.0 : random.nextGaussian() * 0.1;
+                east += 50.0 * Math.cos(heading);
+                north += 50.0 * Math.sin(heading);
+            }
+            index.add("track" + track + TrackFormat.FILE_EXTENSION, builder);
+        }
+
+        mIndex = new TrackSpatialIndex(mDir);
+        mIndex.open();
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public boolean load() throws IOException {
+        return new TrackSpatialIndex(mDir).load();
+    }
+
+    @Benchmark
+    public int[] tracksNear() {
+        return mIndex.tracksNear(45.0, -93.0, 200.0);
+    }
+}
@@ -0,0 +1,80 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting the live stats for one display update: StatsText, against the string building the
+ * display used to do in monitorTrack().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StatsTextBenchmark {
+
+    private final StatsText mElapsed = new StatsText();
+    private final StatsText mDistance = new StatsText();
+    private final StatsText mLatitude = new StatsText();
+
+    private int mSeconds;
+
+    @Benchmark
+    public boolean statsText() {
+
+        int seconds = mSeconds++;
+        boolean changed = mElapsed.setElapsed(seconds);
+        changed |= mDistance.setInteger(seconds * 5L);
+        changed |= mLatitude.setFixed(45.0 + seconds * 1e-5, 5, 8);
+
+        return changed;
+    }
+
+    @Benchmark
+    public int legacyStrings() {
+
+        int seconds = mSeconds++;
+        String elapsed = legacyElapsed(seconds);
+        String distance = String.format("%d", seconds * 5);
+        String latitude = String.format("%8.5f", (float) (45.0 + seconds * 1e-5));
+
+        return elapsed.length() + distance.length() + latitude.length();
+    }
+
+    /**
+     * The elapsed time as monitorTrack() used to format it
+     */
+    private static String legacyElapsed(int elapsedTime) {
+
+        int minutes = elapsedTime / 60;
+        int seconds = elapsedTime % 60;
+        int hours = minutes / 60;
+        minutes = minutes % 60;
+
+        String str = "";
+
+        if (hours <= 9) {
+            str = str.concat("0");
+        }
+        str = str.concat(Integer.toString(hours));
+        str = str.concat(":");
+
+        if (minutes <= 9) {
+            str = str.concat("0");
+        }
+        str = str.concat(Integer.toString(minutes));
+        str = str.concat(":");
+
+        if (seconds <= 9) {
+            str = str.concat("0");
+        }
+        str = str.concat(Integer.toString(seconds));
+
+        return str;
+    }
+}
@@ -0,0 +1,81 @@
+package android.redskysoftware.com.tracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending a whole track to a file, in fixes per second: TrackWriter from the first append to
+ * the file being closed, against the text file written a line at a time the app used to write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriterBenchmark {
+
+    private static final int FIXES = 100000;
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("bench", TrackFormat.FILE_EXTENSION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long trackWriter() throws Exception {
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            /* Room for the whole track, so nothing is dropped if the thread falls behind */
+            TrackWriter writer = new TrackWriter(out.getChannel(), FlushPolicy.DEFAULT, 1 << 17);
+            writer.start(START_MS);
+
+            for (int i = 0; i < FIXES; i++) {
+                writer.append(45.0 + (i & 1023) * 1e-5, -93.0 - (i & 1023) * 1e-5,
+                              START_MS + i * 1000L, 4.0f, i);
+            }
+
+            writer.finish(FIXES * 1000L, FIXES);
+            writer.awaitFinished(60000);
+
+            return writer.getWriteCount();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public long legacyTextFile() throws Exception {
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            for (int i = 0; i < FIXES; i++) {
+                String str = String.format("L,%f,%f,%f\n", (float) (45.0 + (i & 1023) * 1e-5),
+                                           (float) (-93.0 - (i & 1023) * 1e-5), (float) i);
+                out.write(str.getBytes());
+                out.flush();
+            }
+
+            return out.getChannel().position();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Accepts a fix if it is at least its accuracy away from the last accepted fix, at the position
+ * it reports.  This was the only noise handling the location callback had; it is cheap, but it
+ * drops real movement at low speed and lets jitter add up while the device is stationary with a
+ * poor fix.  See KalmanFixFilter.
+ */
+public class AccuracyThresholdFilter implements FixFilter {
+
+    /** The accuracy assumed for a fix that doesn't give one, in meters */
+    static final float DEFAULT_ACCURACY_METERS = 3.0f;
+
+    private DistanceKernel mKernel = new DistanceKernel(DistanceKernel.EXACT);
+
+    private boolean mHasPrevious = false;
+    private double mLatitude;
+    private double mLongitude;
+    private long mTimeMs;
+    private double mStepMeters;
+    private float mSpeed;
+
+    @Override
+    public void setDistanceKernel(DistanceKernel kernel) {
+        mKernel = kernel;
+    }
+
+    @Override
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    @Override
+    public void resume(double latitude, double longitude, long timeMs, float accuracyMeters) {
+        mHasPrevious = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mTimeMs = timeMs;
+        mStepMeters = 0.0;
+        mSpeed = 0.0f;
+    }
+
+    @Override
+    public boolean accept(double latitude, double longitude, long timeMs, float accuracyMeters) {
+
+        double step = 0.0;
+        float speed = 0.0f;
+
+        if (mHasPrevious) {
+
+            float accuracy = (accuracyMeters > 0.0f) ? accuracyMeters : DEFAULT_ACCURACY_METERS;
+
+            step = mKernel.distanceMeters(mLatitude, mLongitude, latitude, longitude);
+            if (step < accuracy) {
+                return false;
+            }
+
+            long deltaMs = timeMs - mTimeMs;
+            if (deltaMs > 0) {
+                speed = (float) (step * 1000.0 / deltaMs);
+            }
+        }
+
+        mHasPrevious = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mTimeMs = timeMs;
+        mStepMeters = step;
+        mSpeed = speed;
+
+        return true;
+    }
+
+    @Override
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    @Override
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    @Override
+    public double getStepMeters() {
+        return mStepMeters;
+    }
+
+    @Override
+    public float getSpeed() {
+        return mSpeed;
+    }
+}
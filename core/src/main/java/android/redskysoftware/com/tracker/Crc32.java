@@ -0,0 +1,40 @@
+package android.redskysoftware.com.tracker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven CRC-32 (the same polynomial as java.util.zip.CRC32) that works on a range of any
+ * ByteBuffer, heap or direct, without changing its position or allocating.
+ * (CRC32.update(ByteBuffer) isn't available before API 26.)
+ */
+public final class Crc32 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = ((c & 1) != 0) ? (0xEDB88320 ^ (c >>> 1)) : (c >>> 1);
+            }
+            TABLE[n] = c;
+        }
+    }
+
+    private Crc32() {
+    }
+
+    /**
+     * @param buffer  The buffer holding the data
+     * @param start  Absolute index of the first byte
+     * @param end  Absolute index one past the last byte
+     * @return  The CRC-32 of the bytes
+     */
+    public static int compute(ByteBuffer buffer, int start, int end) {
+        int crc = 0xFFFFFFFF;
+        for (int i = start; i < end; i++) {
+            crc = TABLE[(crc ^ buffer.get(i)) & 0xFF] ^ (crc >>> 8);
+        }
+        return ~crc;
+    }
+}
@@ -0,0 +1,17 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Told about the locations accepted into the current track a delivery at a time.
+ *
+ * This is the batch form of DistanceChangedCallback.  When the location source holds fixes back
+ * and delivers them together (see LocationSource.setMaxWaitMs()), everything accepted from the
+ * delivery arrives in one call, so the persistence layer can take it in one go.
+ */
+public interface DistanceBatchCallback {
+
+    /**
+     * Called after each delivery of locations that put at least one fix into the track.
+     * @param batch  The fixes accepted, in order.  Only valid during the call.
+     */
+    void onDistanceBatch(FixBatch batch);
+}
@@ -0,0 +1,18 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Told about each location accepted into the current track.
+ */
+public interface DistanceChangedCallback {
+
+    /**
+     * Called each time a location is accepted into the track.
+     * @param latitude  Latitude in degrees
+     * @param longitude  Longitude in degrees
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     * @param totalDistanceMeters  Total distance of the track so far, in meters
+     */
+    void onDistanceChanged(double latitude, double longitude, long timeMs,
+                           float accuracyMeters, float totalDistanceMeters);
+}
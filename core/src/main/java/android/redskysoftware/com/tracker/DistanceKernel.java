@@ -0,0 +1,148 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Measures the distance between two points, trading accuracy for speed as chosen by its mode.
+ *
+ * EXACT is Geodesy.distanceMeters(), the ellipsoidal distance Location.distanceTo() gives.  It
+ * iterates, and costs several times the others.
+ *
+ * HAVERSINE is the great circle distance on a sphere of the earth's mean radius.  The earth is
+ * not a sphere, so it is within 0.6% of EXACT at any distance and latitude.
+ *
+ * EQUIRECTANGULAR treats a short line as straight on a plane that touches the ellipsoid, scaled
+ * by the ellipsoid's radii of curvature there.  The radii (and the cosine of the latitude in
+ * them) are cached, and only worked out again when a line's latitude is more than
+ * CACHE_TOLERANCE_DEGREES from the one they were worked out for, so a track's steps cost a
+ * multiply or two and a square root.  For lines up to MAX_EQUIRECTANGULAR_METERS long, at
+ * latitudes up to 70 degrees, it is within 0.1% of EXACT; longer lines or lines nearer the poles
+ * should use one of the other modes.
+ *
+ * A kernel is not thread safe, since the equirectangular cache is kept in plain fields.  It does
+ * not allocate.
+ */
+public final class DistanceKernel {
+
+    public static final int EXACT = 0;
+    public static final int HAVERSINE = 1;
+    public static final int EQUIRECTANGULAR = 2;
+
+    /** The longest line EQUIRECTANGULAR is documented for, in meters */
+    public static final double MAX_EQUIRECTANGULAR_METERS = 10000.0;
+
+    /** Mean radius of the earth, in meters */
+    static final double MEAN_RADIUS_METERS = 6371008.8;
+
+    /** How far a line's latitude may be from the cached one before it is worked out again */
+    static final double CACHE_TOLERANCE_DEGREES = 0.01;
+
+    /** WGS84 semi-major axis, in meters, and eccentricity squared */
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_E2 = 6.69437999014e-3;
+
+    private static final double RADIANS_PER_DEGREE = Math.PI / 180.0;
+
+    private final int mMode;
+
+    /** The latitude the equirectangular scales were worked out for; NaN until the first line */
+    private double mCachedLatitude = Double.NaN;
+    private double mMetersPerDegreeLatitude;
+    private double mMetersPerDegreeLongitude;
+
+    /**
+     * @param mode  EXACT, HAVERSINE or EQUIRECTANGULAR
+     */
+    public DistanceKernel(int mode) {
+        if ((mode < EXACT) || (mode > EQUIRECTANGULAR)) {
+            throw new IllegalArgumentException("Unknown distance mode " + mode);
+        }
+        mMode = mode;
+    }
+
+    /**
+     * @return  The mode the kernel measures with
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return  The distance between two points, in meters
+     */
+    public double distanceMeters(double latitude1, double longitude1,
+                                 double latitude2, double longitude2) {
+
+        switch (mMode) {
+            case HAVERSINE:
+                return haversineMeters(latitude1, longitude1, latitude2, longitude2);
+
+            case EQUIRECTANGULAR:
+                return equirectangularMeters(latitude1, longitude1, latitude2, longitude2);
+
+            default:
+                return Geodesy.distanceMeters(latitude1, longitude1, latitude2, longitude2);
+        }
+    }
+
+    /**
+     * @return  The great circle distance between two points on a sphere of the earth's mean
+     *          radius, in meters
+     */
+    public static double haversineMeters(double latitude1, double longitude1,
+                                         double latitude2, double longitude2) {
+
+        double phi1 = latitude1 * RADIANS_PER_DEGREE;
+        double phi2 = latitude2 * RADIANS_PER_DEGREE;
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) * 0.5);
+        double sinHalfDeltaLambda = Math.sin((longitude2 - longitude1) * RADIANS_PER_DEGREE * 0.5);
+
+        double h = sinHalfDeltaPhi * sinHalfDeltaPhi
+                + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+
+        /* Rounding can take h just over 1 for points at opposite sides of the earth */
+        return 2.0 * MEAN_RADIUS_METERS * Math.asin(Math.sqrt(Math.min(h, 1.0)));
+    }
+
+    /**
+     * @return  The distance between two nearby points on the plane touching the ellipsoid near
+     *          them, in meters
+     */
+    private double equirectangularMeters(double latitude1, double longitude1,
+                                         double latitude2, double longitude2) {
+
+        double latitude = (latitude1 + latitude2) * 0.5;
+        if (!(Math.abs(latitude - mCachedLatitude) <= CACHE_TOLERANCE_DEGREES)) {
+            cacheScales(latitude);
+        }
+
+        double deltaLongitude = longitude2 - longitude1;
+        if (deltaLongitude > 180.0) {
+            deltaLongitude -= 360.0;
+        } else if (deltaLongitude < -180.0) {
+            deltaLongitude += 360.0;
+        }
+
+        double x = deltaLongitude * mMetersPerDegreeLongitude;
+        double y = (latitude2 - latitude1) * mMetersPerDegreeLatitude;
+
+        return Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * Works out the meters per degree of latitude and longitude at a latitude, from the
+     * ellipsoid's meridional and prime vertical radii of curvature there.
+     */
+    private void cacheScales(double latitude) {
+
+        double phi = latitude * RADIANS_PER_DEGREE;
+        double sinPhi = Math.sin(phi);
+        double w2 = 1.0 - WGS84_E2 * sinPhi * sinPhi;
+        double w = Math.sqrt(w2);
+
+        double primeVertical = WGS84_A / w;
+        double meridional = WGS84_A * (1.0 - WGS84_E2) / (w2 * w);
+
+        mCachedLatitude = latitude;
+        mMetersPerDegreeLatitude = meridional * RADIANS_PER_DEGREE;
+        mMetersPerDegreeLongitude = primeVertical * Math.cos(phi) * RADIANS_PER_DEGREE;
+    }
+}
@@ -0,0 +1,106 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * The fixes accepted into the track from one delivery of locations, in order, held in primitive
+ * arrays.  A TrackSimplifier also passes the fixes it keeps on in one.
+ *
+ * The pipeline fills the same batch for every delivery, so a batch is only valid during the
+ * DistanceBatchCallback it is passed to.  The arrays grow when a delivery is bigger than any
+ * before it, and are never allocated otherwise.
+ */
+public final class FixBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mLatitude = new double[INITIAL_CAPACITY];
+    private double[] mLongitude = new double[INITIAL_CAPACITY];
+    private long[] mTimeMs = new long[INITIAL_CAPACITY];
+    private float[] mAccuracy = new float[INITIAL_CAPACITY];
+    private float[] mDistance = new float[INITIAL_CAPACITY];
+
+    private int mSize = 0;
+
+    /**
+     * Adds a fix to the end of the batch.
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     * @param totalDistanceMeters  Total distance of the track as of the fix, in meters
+     */
+    public void add(double latitude, double longitude, long timeMs, float accuracyMeters,
+                    float totalDistanceMeters) {
+
+        if (mSize == mLatitude.length) {
+            grow();
+        }
+
+        mLatitude[mSize] = latitude;
+        mLongitude[mSize] = longitude;
+        mTimeMs[mSize] = timeMs;
+        mAccuracy[mSize] = accuracyMeters;
+        mDistance[mSize] = totalDistanceMeters;
+        mSize++;
+    }
+
+    /**
+     * Empties the batch, keeping its arrays.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public double getLatitude(int index) {
+        return mLatitude[index];
+    }
+
+    public double getLongitude(int index) {
+        return mLongitude[index];
+    }
+
+    /**
+     * @return  Time of the fix, in ms since the epoch
+     */
+    public long getTimeMs(int index) {
+        return mTimeMs[index];
+    }
+
+    /**
+     * @return  Accuracy of the fix in meters, 0 if unknown
+     */
+    public float getAccuracy(int index) {
+        return mAccuracy[index];
+    }
+
+    /**
+     * @return  Total distance of the track as of the fix, in meters
+     */
+    public float getDistanceMeters(int index) {
+        return mDistance[index];
+    }
+
+    private void grow() {
+
+        int capacity = mLatitude.length * 2;
+
+        double[] latitude = new double[capacity];
+        double[] longitude = new double[capacity];
+        long[] timeMs = new long[capacity];
+        float[] accuracy = new float[capacity];
+        float[] distance = new float[capacity];
+
+        System.arraycopy(mLatitude, 0, latitude, 0, mSize);
+        System.arraycopy(mLongitude, 0, longitude, 0, mSize);
+        System.arraycopy(mTimeMs, 0, timeMs, 0, mSize);
+        System.arraycopy(mAccuracy, 0, accuracy, 0, mSize);
+        System.arraycopy(mDistance, 0, distance, 0, mSize);
+
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mTimeMs = timeMs;
+        mAccuracy = accuracy;
+        mDistance = distance;
+    }
+}
@@ -0,0 +1,67 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * A stage between the location source and distance accumulation that decides which fixes go
+ * into the track, and where.
+ *
+ * LocationPipeline passes every fix it receives to the filter.  If accept() returns true the
+ * fix goes into the track at the filter's position, and the step from the last accepted
+ * position is added to the distance, measured with the track's DistanceKernel.  Implementations
+ * keep their state in primitive fields and must not allocate per fix.
+ */
+public interface FixFilter {
+
+    /**
+     * Sets how the steps between fixes are measured.  The pipeline calls this before reset() at
+     * the start of each track; until then, steps are measured in DistanceKernel.EXACT mode.
+     * @param kernel  The kernel to measure with
+     */
+    void setDistanceKernel(DistanceKernel kernel);
+
+    /**
+     * Forgets all fixes, for a new track.
+     */
+    void reset();
+
+    /**
+     * Forgets all fixes, then carries on from a fix accepted earlier, as though it were the last
+     * one accepted.  The pipeline calls this, after setDistanceKernel(), to resume a track from a
+     * SessionCheckpoint.
+     * @param latitude  Latitude of the accepted position, in degrees
+     * @param longitude  Longitude of the accepted position, in degrees
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     */
+    void resume(double latitude, double longitude, long timeMs, float accuracyMeters);
+
+    /**
+     * Takes a fix into account.
+     * @param latitude  Latitude in degrees
+     * @param longitude  Longitude in degrees
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     * @return  True if the fix is accepted into the track; the getters then describe it
+     */
+    boolean accept(double latitude, double longitude, long timeMs, float accuracyMeters);
+
+    /**
+     * @return  The latitude of the last accepted fix, in degrees
+     */
+    double getLatitude();
+
+    /**
+     * @return  The longitude of the last accepted fix, in degrees
+     */
+    double getLongitude();
+
+    /**
+     * @return  The distance from the accepted position before the last to the last, in meters;
+     *          0 after the first fix
+     */
+    double getStepMeters();
+
+    /**
+     * @return  The speed at the last accepted fix, in meters per second
+     */
+    float getSpeed();
+}
@@ -0,0 +1,142 @@
+package android.redskysoftware.com.tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer, single-consumer queue of location fixes.
+ *
+ * Fixes are stored in parallel primitive arrays so queuing a fix doesn't create an object.  The
+ * producer (the thread delivering locations) calls offer(); the consumer (the TrackWriter thread)
+ * reads each fix between getReadIndex() and getWriteIndex() with the getters and then calls
+ * claim() to hand its slot back.  Neither side ever blocks or takes a lock.
+ *
+ * When the buffer is full the producer can make room with dropOldest().  Both sides advance the
+ * read index with a compare and set, so a fix is either claimed by the consumer or dropped by the
+ * producer, never both.  If claim() fails the fix was dropped, and its slot may already hold a
+ * newer fix, so what the consumer read from it must be ignored.
+ */
+public class FixRingBuffer {
+
+    private final int mMask;
+    private final int[] mLatE7;
+    private final int[] mLonE7;
+    private final long[] mTimeMs;
+    private final int[] mAccuracyDm;
+    private final float[] mDistanceMeters;
+
+    /** Sequence number of the next fix to be read; advanced by claim() and dropOldest() */
+    private final AtomicLong mReadIndex = new AtomicLong();
+
+    /** Sequence number of the next fix to be written; only advanced by the producer */
+    private final AtomicLong mWriteIndex = new AtomicLong();
+
+    /**
+     * @param capacity  The most fixes the buffer can hold, rounded up to a power of two
+     */
+    public FixRingBuffer(int capacity) {
+
+        int size = (capacity <= 2) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+
+        mMask = size - 1;
+        mLatE7 = new int[size];
+        mLonE7 = new int[size];
+        mTimeMs = new long[size];
+        mAccuracyDm = new int[size];
+        mDistanceMeters = new float[size];
+    }
+
+    /**
+     * @return  The most fixes the buffer can hold
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * @return  The number of fixes waiting to be read
+     */
+    public int size() {
+        return (int) (mWriteIndex.get() - mReadIndex.get());
+    }
+
+    /**
+     * Adds a fix to the buffer.  Must only be called from the producer thread.
+     * @param distanceMeters  The total distance of the track as of this fix
+     * @return  True if the fix was added, false if the buffer is full
+     */
+    public boolean offer(int latE7, int lonE7, long timeMs, int accuracyDm,
+                         float distanceMeters) {
+
+        long write = mWriteIndex.get();
+        if (write - mReadIndex.get() > mMask) {
+            return false;
+        }
+
+        int slot = (int) write & mMask;
+        mLatE7[slot] = latE7;
+        mLonE7[slot] = lonE7;
+        mTimeMs[slot] = timeMs;
+        mAccuracyDm[slot] = accuracyDm;
+        mDistanceMeters[slot] = distanceMeters;
+
+        /* Publish the slot; the ordered write makes the array stores visible first */
+        mWriteIndex.lazySet(write + 1);
+        return true;
+    }
+
+    /**
+     * @return  The sequence number of the oldest unread fix.  Consumer only.
+     */
+    public long getReadIndex() {
+        return mReadIndex.get();
+    }
+
+    /**
+     * @return  The sequence number one past the newest fix.  Fixes before this index can be
+     *          read by the consumer.
+     */
+    public long getWriteIndex() {
+        return mWriteIndex.get();
+    }
+
+    public int getLatitudeE7(long index) {
+        return mLatE7[(int) index & mMask];
+    }
+
+    public int getLongitudeE7(long index) {
+        return mLonE7[(int) index & mMask];
+    }
+
+    public long getTimeMs(long index) {
+        return mTimeMs[(int) index & mMask];
+    }
+
+    public int getAccuracyDm(long index) {
+        return mAccuracyDm[(int) index & mMask];
+    }
+
+    public float getDistanceMeters(long index) {
+        return mDistanceMeters[(int) index & mMask];
+    }
+
+    /**
+     * Takes the oldest fix, once it has been read, and hands its slot back to the producer.
+     * Consumer only.
+     * @param index  The sequence number of the fix, which must be getReadIndex()
+     * @return  True if the fix was taken, false if the producer dropped it first, in which case
+     *          what was read from its slot must be ignored
+     */
+    public boolean claim(long index) {
+        return mReadIndex.compareAndSet(index, index + 1);
+    }
+
+    /**
+     * Drops the oldest fix to make room.  Producer only.
+     * @return  True if a fix was dropped, false if the buffer was empty or the consumer took the
+     *          oldest fix first (which makes room just the same)
+     */
+    public boolean dropOldest() {
+        long read = mReadIndex.get();
+        return (mWriteIndex.get() > read) && mReadIndex.compareAndSet(read, read + 1);
+    }
+}
@@ -0,0 +1,75 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Controls how often the TrackWriter commits buffered fixes to storage.
+ *
+ * A commit writes everything buffered so far with a single write and, if the policy asks for it,
+ * forces it to the storage device.  A commit happens when the given number of fixes have been
+ * buffered, when the given time has passed since the last commit, or when the track is stopped,
+ * whichever comes first.  A limit of 0 disables that trigger.
+ */
+public final class FlushPolicy {
+
+    /** The policy the data model uses unless told otherwise */
+    public static final FlushPolicy DEFAULT = new FlushPolicy(60, 60000, true);
+
+    private final int mCommitEveryFixes;
+    private final long mCommitIntervalMs;
+    private final boolean mForce;
+
+    /**
+     * @param commitEveryFixes  Commit once this many fixes are buffered, 0 for no limit
+     * @param commitIntervalMs  Commit once this many ms have passed since the last commit, 0 for
+     *                          no limit
+     * @param force  True to force each commit to the storage device (fsync)
+     */
+    public FlushPolicy(int commitEveryFixes, long commitIntervalMs, boolean force) {
+
+        if ((commitEveryFixes < 0) || (commitIntervalMs < 0)) {
+            throw new IllegalArgumentException("Commit limits can't be negative");
+        }
+
+        mCommitEveryFixes = commitEveryFixes;
+        mCommitIntervalMs = commitIntervalMs;
+        mForce = force;
+    }
+
+    /**
+     * @return  A policy that commits every n fixes and when the track is stopped
+     */
+    public static FlushPolicy everyFixes(int n) {
+        return new FlushPolicy(n, 0, true);
+    }
+
+    /**
+     * @return  A policy that commits every t ms and when the track is stopped
+     */
+    public static FlushPolicy everyMillis(long t) {
+        return new FlushPolicy(0, t, true);
+    }
+
+    /**
+     * @return  A policy that only commits when the track is stopped (or the buffer fills)
+     */
+    public static FlushPolicy onStop() {
+        return new FlushPolicy(0, 0, true);
+    }
+
+    public int getCommitEveryFixes() {
+        return mCommitEveryFixes;
+    }
+
+    public long getCommitIntervalMs() {
+        return mCommitIntervalMs;
+    }
+
+    public boolean isForce() {
+        return mForce;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy[fixes=" + mCommitEveryFixes + ", ms=" + mCommitIntervalMs
+                + ", force=" + mForce + "]";
+    }
+}
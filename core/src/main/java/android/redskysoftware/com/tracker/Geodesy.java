@@ -0,0 +1,93 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Distances between points on the earth.
+ *
+ * distanceMeters() is the inverse solution of Vincenty on the WGS84 ellipsoid, which is what
+ * Location.distanceTo() computes, so tracks measure the same whether they are processed on the
+ * device or replayed on a plain JVM.
+ */
+public final class Geodesy {
+
+    /** WGS84 semi-major and semi-minor axes, in meters, and flattening */
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_B = 6356752.3142;
+    private static final double WGS84_F = (WGS84_A - WGS84_B) / WGS84_A;
+
+    /** Iterations allowed for the longitude on the auxiliary sphere to converge */
+    private static final int MAX_ITERATIONS = 20;
+
+    private static final double CONVERGENCE = 1.0e-12;
+
+    private Geodesy() {
+    }
+
+    /**
+     * @return  The distance between two points along the ellipsoid, in meters
+     */
+    public static double distanceMeters(double latitude1, double longitude1,
+                                        double latitude2, double longitude2) {
+
+        double l = Math.toRadians(longitude2 - longitude1);
+        double u1 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(latitude1)));
+        double u2 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(latitude2)));
+
+        double sinU1 = Math.sin(u1);
+        double cosU1 = Math.cos(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU2 = Math.cos(u2);
+
+        double lambda = l;
+        double sinSigma = 0.0;
+        double cosSigma = 0.0;
+        double sigma = 0.0;
+        double cos2Alpha = 0.0;
+        double cos2SigmaM = 0.0;
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            if (sinSigma == 0.0) {
+                /* The same point */
+                return 0.0;
+            }
+
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1.0 - sinAlpha * sinAlpha;
+
+            /* cos2Alpha is 0 only for a line along the equator */
+            cos2SigmaM = (cos2Alpha != 0.0) ? cosSigma - 2.0 * sinU1 * sinU2 / cos2Alpha : 0.0;
+
+            double c = WGS84_F / 16.0 * cos2Alpha * (4.0 + WGS84_F * (4.0 - 3.0 * cos2Alpha));
+            double previous = lambda;
+            lambda = l + (1.0 - c) * WGS84_F * sinAlpha
+                    * (sigma + c * sinSigma
+                    * (cos2SigmaM + c * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+
+            if (Math.abs(lambda - previous) < CONVERGENCE) {
+                break;
+            }
+        }
+
+        double uSquared = cos2Alpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+        double a = 1.0 + uSquared / 16384.0
+                * (4096.0 + uSquared * (-768.0 + uSquared * (320.0 - 175.0 * uSquared)));
+        double b = uSquared / 1024.0
+                * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+        double deltaSigma = b * sinSigma
+                * (cos2SigmaM + b / 4.0
+                * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)
+                - b / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma)
+                * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+
+        return WGS84_B * a * (sigma - deltaSigma);
+    }
+}
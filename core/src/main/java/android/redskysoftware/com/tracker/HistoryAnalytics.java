@@ -0,0 +1,864 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Totals, records and a distance histogram over every stored track: distance and time per week
+ * and per month, the fastest kilometer and 5 kilometers and the longest track, and how many
+ * tracks fall in each band of distance.
+ *
+ * The work is split across the cores with a ForkJoinPool.  The tracks are halved until a range
+ * is LEAF_TRACKS or fewer, each range is summarized into Totals of its own, and the partial Totals
+ * are merged as the halves are joined, so the threads share nothing while they read.  A track is
+ * summarized in one pass of a TrackReader, which maps the file and decodes it a fix at a time: a
+ * finished track with statistics in its footer is read through its trailer straight to the
+ * footer, and only older or unfinished tracks are read fix by fix to work their splits out.
+ *
+ * The summary of every track is cached in a file in the track directory, keyed by the track
+ * file's size and modification time, so a rerun reads only the tracks that are new or have
+ * changed since.  Tracks that have been deleted drop out of the cache when it is next written.
+ *
+ * <pre>
+ *   header   int magic 'TRKH', int version, int record count, int reserved
+ *   record   byte name length, 39 bytes name (US-ASCII), long file size, long modified ms,
+ *            long start time ms, long elapsed ms (NOT_A_TRACK if unreadable), long moving ms,
+ *            float distance m, int fastest kilometer ms, int fastest 5 km ms,
+ *            int CRC-32 of the preceding 92 bytes
+ * </pre>
+ *
+ * Like the catalog, the cache can always be rebuilt from the tracks: a record that fails its CRC
+ * is ignored and its track read again.  Records are by split, so the fastest kilometer is the
+ * fastest single kilometer split and the fastest 5 km the fastest five splits in a row.  Weeks
+ * and months are calendar ones in the time zone and locale given.
+ */
+public class HistoryAnalytics {
+
+    /** The name of the cache file in the track directory */
+    public static final String FILE_NAME = "tracks.hst";
+
+    /** 'TRKH' */
+    public static final int MAGIC = 0x54524B48;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 96;
+
+    /** The records kept; see Totals.getRecordMs() */
+    public static final int RECORD_FASTEST_KILOMETER = 0;
+    public static final int RECORD_FASTEST_5_KILOMETERS = 1;
+    public static final int RECORD_COUNT = 2;
+
+    /** The time of a record no track has set */
+    public static final int NO_RECORD = -1;
+
+    /** The width of a band of the distance histogram, and the number of bands */
+    public static final double HISTOGRAM_BIN_METERS = 1000.0;
+    public static final int HISTOGRAM_BINS = 50;
+
+    /** The most tracks summarized by one fork/join task before it is split in two */
+    static final int LEAF_TRACKS = 16;
+
+    /** The elapsed time cached for a file that isn't a readable track */
+    static final long NOT_A_TRACK = -1;
+
+    /** The number of kilometer splits in a row each record is timed over */
+    private static final int[] RECORD_SPLITS = { 1, 5 };
+
+    private static final int COUNT_OFFSET = 8;
+
+    /* Offsets of the fields within a record */
+    private static final int NAME_OFFSET = 0;
+    private static final int SIZE_OFFSET = 40;
+    private static final int MODIFIED_OFFSET = 48;
+    private static final int START_OFFSET = 56;
+    private static final int ELAPSED_OFFSET = 64;
+    private static final int MOVING_OFFSET = 72;
+    private static final int DISTANCE_OFFSET = 80;
+    private static final int FASTEST_OFFSET = 84;
+    private static final int CRC_OFFSET = 92;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The directory holding the tracks and the cache */
+    private final File mDir;
+
+    private final File mFile;
+
+    private final TimeZone mZone;
+    private final Locale mLocale;
+
+    /** The cached summaries as last read or written: the header followed by the records */
+    private ByteBuffer mCache = null;
+
+    /** The offset in mCache of the record of each track, by name */
+    private final HashMap<String, Integer> mCacheIndex = new HashMap<>();
+
+    /** The number of tracks read, rather than found in the cache, by the last analyze() */
+    private volatile int mReadCount = 0;
+
+    /**
+     * @param dir  The directory holding the track files
+     * @param zone  The time zone weeks and months start in
+     * @param locale  The locale whose first day of the week weeks start on
+     */
+    public HistoryAnalytics(File dir, TimeZone zone, Locale locale) {
+        mDir = dir;
+        mFile = new File(dir, FILE_NAME);
+        mZone = zone;
+        mLocale = locale;
+    }
+
+    /**
+     * Works the totals out over every track in the directory, reading the tracks that aren't in
+     * the cache on the threads of a pool, and updates the cache file.
+     * @param pool  The pool to read the tracks on; its parallelism sets how many are read at once
+     * @return  The totals
+     * @throws IOException  if the cache file can't be written.  The summaries read are kept in
+     *                      memory, so calling again doesn't read the tracks again.
+     */
+    public synchronized Totals analyze(ForkJoinPool pool) throws IOException {
+
+        if (mCache == null) {
+            load();
+        }
+
+        Summaries summaries = new Summaries(listTracks());
+        Totals totals = pool.invoke(new SummaryTask(summaries, 0, summaries.mFiles.length));
+
+        int read = 0;
+        for (boolean trackRead : summaries.mRead) {
+            if (trackRead) {
+                read++;
+            }
+        }
+        mReadCount = read;
+
+        if ((read > 0) || (summaries.mFiles.length != mCacheIndex.size())) {
+            updateCache(summaries);
+        }
+
+        return totals;
+    }
+
+    /**
+     * @return  The number of tracks the last analyze() had to read, because they weren't in the
+     *          cache or had changed
+     */
+    public int getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * @return  The track files in the directory, in name order.  A legacy text track that has
+     *          been converted is left out, so it isn't counted twice.
+     */
+    private File[] listTracks() {
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for (File file : files) {
+            if (TrackReader.isTrackFile(file)
+                    && !(LegacyTrackConverter.isLegacyTrack(file)
+                         && LegacyTrackConverter.getConvertedFile(file).exists())) {
+                files[count++] = file;
+            }
+        }
+
+        files = Arrays.copyOf(files, count);
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Reads the cache file with a single read, indexing the records that pass their CRC.  A
+     * missing or damaged file leaves the cache empty.
+     */
+    private void load() throws IOException {
+
+        mCache = ByteBuffer.allocate(HEADER_SIZE);
+        mCacheIndex.clear();
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            long length = file.length();
+            if ((length < HEADER_SIZE)
+                    || (length > HEADER_SIZE + (long) TrackCatalog.MAX_TRACKS * RECORD_SIZE)) {
+                return;
+            }
+            data = ByteBuffer.allocate((int) length);
+            file.readFully(data.array());
+        }
+
+        if ((data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+            return;
+        }
+
+        int count = data.getInt(COUNT_OFFSET);
+        if ((count < 0) || (count > (data.capacity() - HEADER_SIZE) / RECORD_SIZE)) {
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            int length = data.get(record + NAME_OFFSET);
+            if ((length > 0) && (length <= TrackCatalog.MAX_NAME_LENGTH)
+                    && (Crc32.compute(data, record, record + CRC_OFFSET)
+                        == data.getInt(record + CRC_OFFSET))) {
+                mCacheIndex.put(new String(data.array(), record + NAME_OFFSET + 1, length, ASCII),
+                                record);
+            }
+        }
+
+        mCache = data;
+    }
+
+    /**
+     * Replaces the cache with the summaries of this run, in memory and then in the file.
+     */
+    private void updateCache(Summaries summaries) throws IOException {
+
+        File[] files = summaries.mFiles;
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + files.length * RECORD_SIZE);
+        HashMap<String, Integer> index = new HashMap<>();
+        int count = 0;
+
+        for (int i = 0; i < files.length; i++) {
+
+            /* Names too long to store are just read every time */
+            String name = files[i].getName();
+            if (name.length() > TrackCatalog.MAX_NAME_LENGTH) {
+                continue;
+            }
+
+            int record = HEADER_SIZE + count * RECORD_SIZE;
+            data.put(record + NAME_OFFSET, (byte) name.length());
+            for (int c = 0; c < name.length(); c++) {
+                char ch = name.charAt(c);
+                data.put(record + NAME_OFFSET + 1 + c, (ch < 0x80) ? (byte) ch : (byte) '?');
+            }
+            data.putLong(record + SIZE_OFFSET, summaries.mSize[i]);
+            data.putLong(record + MODIFIED_OFFSET, summaries.mModifiedMs[i]);
+            data.putLong(record + START_OFFSET, summaries.mStartMs[i]);
+            data.putLong(record + ELAPSED_OFFSET, summaries.mElapsedMs[i]);
+            data.putLong(record + MOVING_OFFSET, summaries.mMovingMs[i]);
+            data.putFloat(record + DISTANCE_OFFSET, summaries.mDistanceMeters[i]);
+            for (int r = 0; r < RECORD_COUNT; r++) {
+                data.putInt(record + FASTEST_OFFSET + r * 4,
+                            summaries.mFastestMs[i * RECORD_COUNT + r]);
+            }
+            data.putInt(record + CRC_OFFSET, Crc32.compute(data, record, record + CRC_OFFSET));
+
+            index.put(name, record);
+            count++;
+        }
+
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putInt(COUNT_OFFSET, count);
+
+        mCache = data;
+        mCacheIndex.clear();
+        mCacheIndex.putAll(index);
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(data.array(), 0, HEADER_SIZE + count * RECORD_SIZE);
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + mFile);
+        }
+    }
+
+    /**
+     * Summarizes a range of the tracks into Totals of their own, on the calling pool thread.
+     */
+    private Totals summarize(Summaries summaries, int from, int to) {
+
+        Totals totals = new Totals();
+        Calendar calendar = Calendar.getInstance(mZone, mLocale);
+        TrackStats stats = null;
+
+        for (int i = from; i < to; i++) {
+
+            if (!findCached(summaries, i)) {
+                if (stats == null) {
+                    stats = new TrackStats();
+                }
+                readTrack(summaries, i, stats);
+                summaries.mRead[i] = true;
+            }
+
+            if (summaries.mElapsedMs[i] != NOT_A_TRACK) {
+                totals.add(summaries, i, calendar);
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * Fills in a track's summary from the cache, if the cache has it for the file as it is now.
+     * The cache is only read while the pool is working, so this is safe on any pool thread.
+     * @return  True if the summary was cached
+     */
+    private boolean findCached(Summaries summaries, int i) {
+
+        File file = summaries.mFiles[i];
+        summaries.mSize[i] = file.length();
+        summaries.mModifiedMs[i] = file.lastModified();
+
+        Integer offset = mCacheIndex.get(file.getName());
+        if (offset == null) {
+            return false;
+        }
+
+        int record = offset;
+        if ((mCache.getLong(record + SIZE_OFFSET) != summaries.mSize[i])
+                || (mCache.getLong(record + MODIFIED_OFFSET) != summaries.mModifiedMs[i])) {
+            return false;
+        }
+
+        summaries.mStartMs[i] = mCache.getLong(record + START_OFFSET);
+        summaries.mElapsedMs[i] = mCache.getLong(record + ELAPSED_OFFSET);
+        summaries.mMovingMs[i] = mCache.getLong(record + MOVING_OFFSET);
+        summaries.mDistanceMeters[i] = mCache.getFloat(record + DISTANCE_OFFSET);
+        for (int r = 0; r < RECORD_COUNT; r++) {
+            summaries.mFastestMs[i * RECORD_COUNT + r] =
+                    mCache.getInt(record + FASTEST_OFFSET + r * 4);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a track to fill in its summary.  The totals and statistics come from the footer when
+     * it has them; otherwise the distance and splits are worked out from the fixes.
+     * @param stats  Scratch statistics for working the splits out
+     */
+    static void readTrack(Summaries summaries, int i, TrackStats stats) {
+
+        long elapsedMs = NOT_A_TRACK;
+        long movingMs = 0;
+        float distanceMeters = 0.0f;
+        TrackStats splits = null;
+
+        try (TrackReader reader = TrackReader.open(summaries.mFiles[i])) {
+
+            summaries.mStartMs[i] = reader.getStartTimeMs();
+
+            if (reader.isLegacy()) {
+
+                /* Text tracks have no times per fix, so only their totals are known */
+                reader.skipToFooter();
+                elapsedMs = reader.getElapsedMs();
+                distanceMeters = reader.getDistanceMeters();
+
+            } else if (reader.skipToFooter() && reader.hasStats()) {
+
+                elapsedMs = reader.getElapsedMs();
+                distanceMeters = reader.getDistanceMeters();
+                splits = reader.getStats();
+                movingMs = splits.getMovingMs();
+
+            } else {
+
+                reader.rewind();
+                stats.reset();
+
+                double totalMeters = 0.0;
+                double lat = 0.0;
+                double lon = 0.0;
+                long firstMs = 0;
+                long lastMs = 0;
+
+                while (reader.next()) {
+                    if (reader.getFixCount() == 1) {
+                        firstMs = reader.getTimeMs();
+                    } else {
+                        totalMeters += DistanceKernel.haversineMeters(
+                                lat, lon, reader.getLatitude(), reader.getLongitude());
+                    }
+                    lat = reader.getLatitude();
+                    lon = reader.getLongitude();
+                    lastMs = reader.getTimeMs();
+                    stats.add(lastMs, totalMeters);
+                }
+
+                boolean finished = reader.hasFooter();
+                elapsedMs = finished ? reader.getElapsedMs() : Math.max(0, lastMs - firstMs);
+                distanceMeters = finished ? reader.getDistanceMeters() : (float) totalMeters;
+                splits = stats;
+                movingMs = stats.getMovingMs();
+            }
+
+        } catch (IOException e) {
+            /* Not a track; it's cached as such so it isn't read again until it changes */
+        }
+
+        summaries.mElapsedMs[i] = elapsedMs;
+        summaries.mMovingMs[i] = movingMs;
+        summaries.mDistanceMeters[i] = distanceMeters;
+        for (int r = 0; r < RECORD_COUNT; r++) {
+            summaries.mFastestMs[i * RECORD_COUNT + r] =
+                    (splits != null) ? fastestMs(splits, RECORD_SPLITS[r]) : NO_RECORD;
+        }
+    }
+
+    /**
+     * @return  The least moving time of a run of kilometer splits, or NO_RECORD if the track has
+     *          too few
+     */
+    static int fastestMs(TrackStats stats, int splits) {
+
+        int count = stats.getSplitCount(TrackStats.KILOMETER);
+        if (count < splits) {
+            return NO_RECORD;
+        }
+
+        long runMs = 0;
+        for (int i = 0; i < splits; i++) {
+            runMs += stats.getSplitMs(TrackStats.KILOMETER, i);
+        }
+
+        long bestMs = runMs;
+        for (int i = splits; i < count; i++) {
+            runMs += stats.getSplitMs(TrackStats.KILOMETER, i)
+                     - stats.getSplitMs(TrackStats.KILOMETER, i - splits);
+            bestMs = Math.min(bestMs, runMs);
+        }
+
+        return (int) Math.min(bestMs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The summary of each track of a run, in arrays indexed the same as the files.  Each pool
+     * task fills in its own range, and the results are read once the pool has joined them.
+     */
+    static final class Summaries {
+
+        final File[] mFiles;
+
+        final boolean[] mRead;
+        final long[] mSize;
+        final long[] mModifiedMs;
+        final long[] mStartMs;
+        final long[] mElapsedMs;
+        final long[] mMovingMs;
+        final float[] mDistanceMeters;
+
+        /** RECORD_COUNT times per track */
+        final int[] mFastestMs;
+
+        Summaries(File[] files) {
+            int count = files.length;
+            mFiles = files;
+            mRead = new boolean[count];
+            mSize = new long[count];
+            mModifiedMs = new long[count];
+            mStartMs = new long[count];
+            mElapsedMs = new long[count];
+            mMovingMs = new long[count];
+            mDistanceMeters = new float[count];
+            mFastestMs = new int[count * RECORD_COUNT];
+        }
+    }
+
+    /**
+     * Summarizes a range of the tracks, splitting it in two while it is longer than LEAF_TRACKS.
+     */
+    private final class SummaryTask extends RecursiveTask<Totals> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Summaries mSummaries;
+        private final int mFrom;
+        private final int mTo;
+
+        SummaryTask(Summaries summaries, int from, int to) {
+            mSummaries = summaries;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Totals compute() {
+
+            if (mTo - mFrom <= LEAF_TRACKS) {
+                return summarize(mSummaries, mFrom, mTo);
+            }
+
+            int middle = (mFrom + mTo) >>> 1;
+            SummaryTask first = new SummaryTask(mSummaries, mFrom, middle);
+            first.fork();
+
+            Totals totals = new SummaryTask(mSummaries, middle, mTo).compute();
+            totals.merge(first.join());
+            return totals;
+        }
+    }
+
+    /**
+     * The totals over a set of tracks.  Ties for a record go to the earlier track, so the totals
+     * come out the same whatever order the partial totals are merged in.
+     */
+    public static final class Totals {
+
+        private int mTrackCount = 0;
+        private double mDistanceMeters = 0.0;
+        private long mElapsedMs = 0;
+        private long mMovingMs = 0;
+
+        private final Periods mWeeks = new Periods();
+        private final Periods mMonths = new Periods();
+
+        private final int[] mHistogram = new int[HISTOGRAM_BINS];
+
+        private final int[] mRecordMs = new int[RECORD_COUNT];
+        private final long[] mRecordStartMs = new long[RECORD_COUNT];
+        private final String[] mRecordTrack = new String[RECORD_COUNT];
+
+        private float mLongestMeters = 0.0f;
+        private long mLongestStartMs = 0;
+        private String mLongestTrack = null;
+
+        Totals() {
+            Arrays.fill(mRecordMs, NO_RECORD);
+        }
+
+        /**
+         * Adds a track from a run's summaries.
+         * @param calendar  Scratch calendar in the time zone and locale weeks and months are in
+         */
+        void add(Summaries summaries, int i, Calendar calendar) {
+
+            long startMs = summaries.mStartMs[i];
+            long elapsedMs = summaries.mElapsedMs[i];
+            long movingMs = summaries.mMovingMs[i];
+            float distanceMeters = summaries.mDistanceMeters[i];
+            String name = summaries.mFiles[i].getName();
+
+            mTrackCount++;
+            mDistanceMeters += distanceMeters;
+            mElapsedMs += elapsedMs;
+            mMovingMs += movingMs;
+
+            mWeeks.add(startOfWeek(calendar, startMs), 1, distanceMeters, elapsedMs, movingMs);
+            mMonths.add(startOfMonth(calendar, startMs), 1, distanceMeters, elapsedMs, movingMs);
+
+            int bin = (distanceMeters > 0.0f) ? (int) (distanceMeters / HISTOGRAM_BIN_METERS) : 0;
+            mHistogram[Math.min(bin, HISTOGRAM_BINS - 1)]++;
+
+            for (int r = 0; r < RECORD_COUNT; r++) {
+                setRecord(r, summaries.mFastestMs[i * RECORD_COUNT + r], startMs, name);
+            }
+            setLongest(distanceMeters, startMs, name);
+        }
+
+        /**
+         * Adds the totals of another set of tracks.
+         */
+        void merge(Totals other) {
+
+            mTrackCount += other.mTrackCount;
+            mDistanceMeters += other.mDistanceMeters;
+            mElapsedMs += other.mElapsedMs;
+            mMovingMs += other.mMovingMs;
+
+            mWeeks.merge(other.mWeeks);
+            mMonths.merge(other.mMonths);
+
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+                mHistogram[bin] += other.mHistogram[bin];
+            }
+
+            for (int r = 0; r < RECORD_COUNT; r++) {
+                setRecord(r, other.mRecordMs[r], other.mRecordStartMs[r], other.mRecordTrack[r]);
+            }
+            setLongest(other.mLongestMeters, other.mLongestStartMs, other.mLongestTrack);
+        }
+
+        private void setRecord(int record, int ms, long startMs, String name) {
+            if ((ms != NO_RECORD)
+                    && ((mRecordMs[record] == NO_RECORD) || (ms < mRecordMs[record])
+                        || ((ms == mRecordMs[record]) && (startMs < mRecordStartMs[record])))) {
+                mRecordMs[record] = ms;
+                mRecordStartMs[record] = startMs;
+                mRecordTrack[record] = name;
+            }
+        }
+
+        private void setLongest(float meters, long startMs, String name) {
+            if ((name != null)
+                    && ((mLongestTrack == null) || (meters > mLongestMeters)
+                        || ((meters == mLongestMeters) && (startMs < mLongestStartMs)))) {
+                mLongestMeters = meters;
+                mLongestStartMs = startMs;
+                mLongestTrack = name;
+            }
+        }
+
+        public int getTrackCount() {
+            return mTrackCount;
+        }
+
+        public double getDistanceMeters() {
+            return mDistanceMeters;
+        }
+
+        public long getElapsedMs() {
+            return mElapsedMs;
+        }
+
+        public long getMovingMs() {
+            return mMovingMs;
+        }
+
+        /**
+         * @return  The totals of each calendar week with a track in it, oldest first
+         */
+        public Periods getWeeks() {
+            return mWeeks;
+        }
+
+        /**
+         * @return  The totals of each calendar month with a track in it, oldest first
+         */
+        public Periods getMonths() {
+            return mMonths;
+        }
+
+        /**
+         * @param bin  The band of distance, from 0 to HISTOGRAM_BINS - 1; the last band holds
+         *             every track longer than the bands before it
+         * @return  The number of tracks whose distance is in the band
+         */
+        public int getHistogramCount(int bin) {
+            return mHistogram[bin];
+        }
+
+        /**
+         * @param record  RECORD_FASTEST_KILOMETER or RECORD_FASTEST_5_KILOMETERS
+         * @return  The moving time of the record in ms, or NO_RECORD if no track has set it
+         */
+        public int getRecordMs(int record) {
+            return mRecordMs[record];
+        }
+
+        /**
+         * @return  The file name of the track that set a record, or null if none has
+         */
+        public String getRecordTrack(int record) {
+            return mRecordTrack[record];
+        }
+
+        public float getLongestMeters() {
+            return mLongestMeters;
+        }
+
+        /**
+         * @return  The file name of the longest track, or null if there are no tracks
+         */
+        public String getLongestTrack() {
+            return mLongestTrack;
+        }
+    }
+
+    /**
+     * Totals per period (week or month), ordered by the start of the period, in primitive arrays.
+     */
+    public static final class Periods {
+
+        private int mCount = 0;
+        private long[] mStartMs = new long[8];
+        private int[] mTrackCount = new int[8];
+        private double[] mDistanceMeters = new double[8];
+        private long[] mElapsedMs = new long[8];
+        private long[] mMovingMs = new long[8];
+
+        Periods() {
+        }
+
+        /**
+         * Adds to the totals of a period, adding the period if it isn't there.
+         */
+        void add(long startMs, int tracks, double distanceMeters, long elapsedMs, long movingMs) {
+
+            int index = Arrays.binarySearch(mStartMs, 0, mCount, startMs);
+            if (index < 0) {
+                index = -index - 1;
+                if (mCount == mStartMs.length) {
+                    grow(mCount * 2);
+                }
+                int moved = mCount - index;
+                System.arraycopy(mStartMs, index, mStartMs, index + 1, moved);
+                System.arraycopy(mTrackCount, index, mTrackCount, index + 1, moved);
+                System.arraycopy(mDistanceMeters, index, mDistanceMeters, index + 1, moved);
+                System.arraycopy(mElapsedMs, index, mElapsedMs, index + 1, moved);
+                System.arraycopy(mMovingMs, index, mMovingMs, index + 1, moved);
+                mStartMs[index] = startMs;
+                mTrackCount[index] = 0;
+                mDistanceMeters[index] = 0.0;
+                mElapsedMs[index] = 0;
+                mMovingMs[index] = 0;
+                mCount++;
+            }
+
+            mTrackCount[index] += tracks;
+            mDistanceMeters[index] += distanceMeters;
+            mElapsedMs[index] += elapsedMs;
+            mMovingMs[index] += movingMs;
+        }
+
+        /**
+         * Adds the totals of another set of the same periods, merging the two orders in one pass.
+         */
+        void merge(Periods other) {
+
+            long[] startMs = new long[mCount + other.mCount];
+            int[] trackCount = new int[startMs.length];
+            double[] distanceMeters = new double[startMs.length];
+            long[] elapsedMs = new long[startMs.length];
+            long[] movingMs = new long[startMs.length];
+
+            int a = 0;
+            int b = 0;
+            int count = 0;
+            while ((a < mCount) || (b < other.mCount)) {
+
+                boolean fromThis = (b == other.mCount)
+                        || ((a < mCount) && (mStartMs[a] <= other.mStartMs[b]));
+                boolean fromOther = (a == mCount)
+                        || ((b < other.mCount) && (other.mStartMs[b] <= mStartMs[a]));
+
+                startMs[count] = fromThis ? mStartMs[a] : other.mStartMs[b];
+                if (fromThis) {
+                    trackCount[count] += mTrackCount[a];
+                    distanceMeters[count] += mDistanceMeters[a];
+                    elapsedMs[count] += mElapsedMs[a];
+                    movingMs[count] += mMovingMs[a];
+                    a++;
+                }
+                if (fromOther) {
+                    trackCount[count] += other.mTrackCount[b];
+                    distanceMeters[count] += other.mDistanceMeters[b];
+                    elapsedMs[count] += other.mElapsedMs[b];
+                    movingMs[count] += other.mMovingMs[b];
+                    b++;
+                }
+                count++;
+            }
+
+            mStartMs = startMs;
+            mTrackCount = trackCount;
+            mDistanceMeters = distanceMeters;
+            mElapsedMs = elapsedMs;
+            mMovingMs = movingMs;
+            mCount = count;
+        }
+
+        private void grow(int capacity) {
+            mStartMs = Arrays.copyOf(mStartMs, capacity);
+            mTrackCount = Arrays.copyOf(mTrackCount, capacity);
+            mDistanceMeters = Arrays.copyOf(mDistanceMeters, capacity);
+            mElapsedMs = Arrays.copyOf(mElapsedMs, capacity);
+            mMovingMs = Arrays.copyOf(mMovingMs, capacity);
+        }
+
+        /**
+         * @return  The number of periods with a track in them
+         */
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @return  The start of the period, in ms since the epoch
+         */
+        public long getStartMs(int index) {
+            checkIndex(index);
+            return mStartMs[index];
+        }
+
+        public int getTrackCount(int index) {
+            checkIndex(index);
+            return mTrackCount[index];
+        }
+
+        public double getDistanceMeters(int index) {
+            checkIndex(index);
+            return mDistanceMeters[index];
+        }
+
+        public long getElapsedMs(int index) {
+            checkIndex(index);
+            return mElapsedMs[index];
+        }
+
+        public long getMovingMs(int index) {
+            checkIndex(index);
+            return mMovingMs[index];
+        }
+
+        /**
+         * @return  The index of the period starting at a time, or -1 if no track is in it
+         */
+        public int indexOf(long startMs) {
+            int index = Arrays.binarySearch(mStartMs, 0, mCount, startMs);
+            return (index >= 0) ? index : -1;
+        }
+
+        private void checkIndex(int index) {
+            if ((index < 0) || (index >= mCount)) {
+                throw new IndexOutOfBoundsException("No period " + index);
+            }
+        }
+    }
+
+    /**
+     * @return  The start of the calendar week a time is in
+     */
+    public static long startOfWeek(Calendar calendar, long timeMs) {
+        calendar.setTimeInMillis(timeMs);
+        startOfDay(calendar);
+        int days = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+        calendar.add(Calendar.DAY_OF_MONTH, -days);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * @return  The start of the calendar month a time is in
+     */
+    public static long startOfMonth(Calendar calendar, long timeMs) {
+        calendar.setTimeInMillis(timeMs);
+        startOfDay(calendar);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void startOfDay(Calendar calendar) {
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+}
@@ -0,0 +1,286 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Smooths fixes with a constant velocity Kalman filter.
+ *
+ * Fixes are projected onto a local east/north plane in meters around a nearby origin, and the
+ * filter tracks position and velocity on each axis.  A fix is weighted by its accuracy (the
+ * measurement variance is the accuracy squared), so a poor fix moves the estimate less than a
+ * good one.
+ *
+ * A fix is accepted, at the filtered position, once the filtered position has moved a few of its
+ * own standard deviations from the last accepted one.  The filtered position is far steadier than
+ * the fixes, so the step it takes is a few meters at most where the accuracy threshold needed the
+ * full accuracy: slow movement is kept, and jitter around a stationary position is averaged out
+ * rather than added to the distance.
+ *
+ * A fix is an outlier if getting to it from the last filtered position, less its accuracy,
+ * would take a speed over the maximum.  Outliers are rejected without touching the state, unless
+ * several come in a row, in which case the filter takes it that the user really did move (out of
+ * a tunnel, say) and starts again from the latest fix.
+ *
+ * Both axes have the same motion model and measurement noise, so they share one covariance
+ * matrix, which is symmetric and kept as three doubles.  All state is in primitive fields and
+ * nothing is allocated per fix.
+ */
+public class KalmanFixFilter implements FixFilter {
+
+    /** Acceleration noise for walking through driving, in m^2/s^3 */
+    public static final double DEFAULT_ACCELERATION_NOISE = 0.3;
+
+    /** Faster than anything the app tracks, in m/s */
+    public static final double DEFAULT_MAX_SPEED = 70.0;
+
+    /** The accuracy assumed for a fix that doesn't give one, in meters */
+    static final float DEFAULT_ACCURACY_METERS = 10.0f;
+
+    /** How far the filtered position must move to be accepted, in standard deviations */
+    static final double MIN_STEP_DEVIATIONS = 3.0;
+
+    /** Consecutive outliers after which the filter starts again from the latest fix */
+    static final int MAX_CONSECUTIVE_OUTLIERS = 5;
+
+    /** The velocity variance of a new filter, in (m/s)^2; the user could be going any way */
+    private static final double INITIAL_VELOCITY_VARIANCE = 100.0;
+
+    /** Meters per degree of latitude on a sphere of the earth's mean radius */
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180.0;
+
+    /** How far the position may get from the origin before the origin is moved, in meters */
+    private static final double MAX_ORIGIN_DISTANCE = 10000.0;
+
+    private final double mAccelerationNoise;
+    private final double mMaxSpeed;
+
+    /** Measures the step when the filter starts again after outliers */
+    private DistanceKernel mKernel = new DistanceKernel(DistanceKernel.EXACT);
+
+    private boolean mInitialized = false;
+
+    /** The origin of the local plane, and meters per degree of longitude there */
+    private double mOriginLatitude;
+    private double mOriginLongitude;
+    private double mMetersPerDegreeLongitude;
+
+    /** The state: position east and north of the origin in meters, and velocity in m/s */
+    private double mX;
+    private double mY;
+    private double mVx;
+    private double mVy;
+
+    /** The covariance of position and velocity on either axis */
+    private double mPositionVariance;
+    private double mCovariance;
+    private double mVelocityVariance;
+
+    private long mTimeMs;
+
+    /** The last accepted position, on the local plane */
+    private double mAcceptedX;
+    private double mAcceptedY;
+
+    private double mStepMeters;
+
+    private int mConsecutiveOutliers = 0;
+    private long mOutliers = 0;
+
+    public KalmanFixFilter() {
+        this(DEFAULT_ACCELERATION_NOISE, DEFAULT_MAX_SPEED);
+    }
+
+    /**
+     * @param accelerationNoise  How much the velocity is expected to wander, in m^2/s^3; higher
+     *                           follows turns and stops more closely, lower smooths more
+     * @param maxSpeed  Fixes implying a faster speed than this, in m/s, are outliers
+     */
+    public KalmanFixFilter(double accelerationNoise, double maxSpeed) {
+        mAccelerationNoise = accelerationNoise;
+        mMaxSpeed = maxSpeed;
+    }
+
+    @Override
+    public void setDistanceKernel(DistanceKernel kernel) {
+        mKernel = kernel;
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+        mConsecutiveOutliers = 0;
+        mOutliers = 0;
+    }
+
+    /**
+     * Starts again at rest from the accepted position.  The velocity and its covariance aren't
+     * kept, so the first few fixes after resuming are smoothed a little differently than they
+     * would have been.
+     */
+    @Override
+    public void resume(double latitude, double longitude, long timeMs, float accuracyMeters) {
+        double accuracy = (accuracyMeters > 0.0f) ? accuracyMeters : DEFAULT_ACCURACY_METERS;
+        reset();
+        initialize(latitude, longitude, timeMs, accuracy * accuracy);
+    }
+
+    @Override
+    public boolean accept(double latitude, double longitude, long timeMs, float accuracyMeters) {
+
+        double accuracy = (accuracyMeters > 0.0f) ? accuracyMeters : DEFAULT_ACCURACY_METERS;
+        double variance = accuracy * accuracy;
+
+        if (!mInitialized) {
+            initialize(latitude, longitude, timeMs, variance);
+            return true;
+        }
+
+        double zx = (longitude - mOriginLongitude) * mMetersPerDegreeLongitude;
+        double zy = (latitude - mOriginLatitude) * METERS_PER_DEGREE;
+        double dt = Math.max(0L, timeMs - mTimeMs) / 1000.0;
+
+        /* Reject a fix that would mean going impossibly fast to get to */
+        double dx = zx - mX;
+        double dy = zy - mY;
+        double jump = Math.sqrt(dx * dx + dy * dy) - accuracy;
+        if ((jump > 0.0) && (jump > mMaxSpeed * dt)) {
+            mOutliers++;
+            if (++mConsecutiveOutliers < MAX_CONSECUTIVE_OUTLIERS) {
+                return false;
+            }
+
+            /* The user really is over there; the step there still counts */
+            double acceptedLatitude = getLatitude();
+            double acceptedLongitude = getLongitude();
+            initialize(latitude, longitude, timeMs, variance);
+            mStepMeters = mKernel.distanceMeters(acceptedLatitude, acceptedLongitude,
+                                                 latitude, longitude);
+            return true;
+        }
+        mConsecutiveOutliers = 0;
+
+        //
+        // Predict: move on at the current velocity, and grow the covariance by the process noise
+        // of a random acceleration over dt.
+        //
+        if (dt > 0.0) {
+            mX += mVx * dt;
+            mY += mVy * dt;
+
+            double q = mAccelerationNoise;
+            mPositionVariance += dt * (2.0 * mCovariance + dt * mVelocityVariance)
+                                 + q * dt * dt * dt / 3.0;
+            mCovariance += dt * mVelocityVariance + q * dt * dt / 2.0;
+            mVelocityVariance += q * dt;
+        }
+
+        //
+        // Update: blend in the fix by the Kalman gain.
+        //
+        double s = mPositionVariance + variance;
+        double positionGain = mPositionVariance / s;
+        double velocityGain = mCovariance / s;
+
+        double innovationX = zx - mX;
+        double innovationY = zy - mY;
+        mX += positionGain * innovationX;
+        mY += positionGain * innovationY;
+        mVx += velocityGain * innovationX;
+        mVy += velocityGain * innovationY;
+
+        mVelocityVariance -= velocityGain * mCovariance;
+        mCovariance *= (1.0 - positionGain);
+        mPositionVariance *= (1.0 - positionGain);
+
+        mTimeMs = timeMs;
+
+        /* Accept the position once it has moved more than its uncertainty */
+        dx = mX - mAcceptedX;
+        dy = mY - mAcceptedY;
+        double step = Math.sqrt(dx * dx + dy * dy);
+        if (step < MIN_STEP_DEVIATIONS * Math.sqrt(mPositionVariance)) {
+            return false;
+        }
+
+        mAcceptedX = mX;
+        mAcceptedY = mY;
+        mStepMeters = step;
+
+        if ((Math.abs(mX) > MAX_ORIGIN_DISTANCE) || (Math.abs(mY) > MAX_ORIGIN_DISTANCE)) {
+            moveOrigin();
+        }
+
+        return true;
+    }
+
+    /**
+     * Starts the filter from a fix, at rest.
+     */
+    private void initialize(double latitude, double longitude, long timeMs, double variance) {
+
+        setOrigin(latitude, longitude);
+        mX = 0.0;
+        mY = 0.0;
+        mVx = 0.0;
+        mVy = 0.0;
+        mPositionVariance = variance;
+        mCovariance = 0.0;
+        mVelocityVariance = INITIAL_VELOCITY_VARIANCE;
+        mTimeMs = timeMs;
+        mAcceptedX = 0.0;
+        mAcceptedY = 0.0;
+        mStepMeters = 0.0;
+        mConsecutiveOutliers = 0;
+        mInitialized = true;
+    }
+
+    /**
+     * Moves the origin to the current position, which is the last accepted one, so the flat
+     * projection stays accurate
+     */
+    private void moveOrigin() {
+        setOrigin(getLatitude(), getLongitude());
+        mX = 0.0;
+        mY = 0.0;
+        mAcceptedX = 0.0;
+        mAcceptedY = 0.0;
+    }
+
+    private void setOrigin(double latitude, double longitude) {
+        mOriginLatitude = latitude;
+        mOriginLongitude = longitude;
+        mMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+    }
+
+    @Override
+    public double getLatitude() {
+        return mOriginLatitude + mAcceptedY / METERS_PER_DEGREE;
+    }
+
+    @Override
+    public double getLongitude() {
+        return mOriginLongitude + mAcceptedX / mMetersPerDegreeLongitude;
+    }
+
+    @Override
+    public double getStepMeters() {
+        return mStepMeters;
+    }
+
+    @Override
+    public float getSpeed() {
+        return (float) Math.sqrt(mVx * mVx + mVy * mVy);
+    }
+
+    /**
+     * @return  The standard deviation of the filtered position on each axis, in meters
+     */
+    public double getPositionError() {
+        return Math.sqrt(mPositionVariance);
+    }
+
+    /**
+     * @return  The number of fixes rejected as outliers since the last reset
+     */
+    public long getOutlierCount() {
+        return mOutliers;
+    }
+}
@@ -0,0 +1,120 @@
+package android.redskysoftware.com.tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something takes, in a fixed set of buckets doubling in width, so the typical
+ * and worst times can be seen without keeping every one.
+ *
+ * Bucket 0 counts times under a microsecond, and bucket i times from 2^(i-1) up to 2^i
+ * microseconds.  The last bucket counts everything longer, from about 18 minutes.  Percentiles
+ * are given as the upper bound of the bucket they fall in, so they are within a factor of two.
+ * The total and longest times are kept exactly.
+ *
+ * record() is a few atomic adds and doesn't allocate, so it can be left on everywhere.  Readers
+ * on other threads may see a record half made (counted in its bucket, but not yet in the total).
+ * Histograms are created by a MetricsRegistry.
+ */
+public final class LatencyHistogram {
+
+    public static final int BUCKETS = 32;
+
+    private final String mName;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a time.
+     * @param nanos  How long it took, in ns; less than 0 counts as 0
+     */
+    public void record(long nanos) {
+
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        long micros = nanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        mBuckets.incrementAndGet(bucket);
+        mTotalNanos.addAndGet(nanos);
+
+        long max = mMaxNanos.get();
+        while ((nanos > max) && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * @return  The number of times recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return  The number of times recorded in a bucket
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * @return  The time every time in a bucket is under, in microseconds
+     */
+    public static long getBucketLimitMicros(int bucket) {
+        return (bucket < BUCKETS - 1) ? 1L << bucket : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return  The mean time, in ns, or 0 if none have been recorded
+     */
+    public long getMeanNanos() {
+        long count = getCount();
+        return (count > 0) ? mTotalNanos.get() / count : 0;
+    }
+
+    /**
+     * @return  The longest time recorded, in ns
+     */
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param fraction  Which percentile, from 0 to 1; 0.99 for the 99th
+     * @return  The limit of the bucket the percentile falls in, in microseconds, or 0 if no times
+     *          have been recorded.  For the last bucket this is the longest time recorded.
+     */
+    public long getPercentileMicros(double fraction) {
+
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketLimitMicros(i);
+            }
+        }
+        return mMaxNanos.get() / 1000;
+    }
+}
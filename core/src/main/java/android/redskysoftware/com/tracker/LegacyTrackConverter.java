@@ -0,0 +1,123 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Converts the text track files written by earlier versions of the app into the binary track
+ * format.
+ *
+ * Legacy files don't record when each fix was taken or how accurate it was, so every converted
+ * fix gets the track's start time (taken from the file name) and an unknown accuracy.  The
+ * distance and elapsed time in the footer come from the last location line and the end line.
+ */
+public class LegacyTrackConverter {
+
+    /** Size of the buffer used to write the converted track */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Room needed in the buffer to add a fix and still close the segment */
+    private static final int SEGMENT_ROOM = TrackFormat.MAX_FIX_SIZE
+            + TrackFormat.MAX_CHECKPOINT_SIZE + TrackFormat.SEGMENT_TRAILER_SIZE;
+
+    private final LegacyTrackParser mParser = new LegacyTrackParser();
+    private final TrackEncoder mEncoder = new TrackEncoder();
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * @param file  A file in the app's track directory
+     * @return  True if the file is a legacy text track
+     */
+    public static boolean isLegacyTrack(File file) {
+        return file.getName().endsWith(TrackFormat.LEGACY_FILE_EXTENSION)
+                && (LegacyTrackParser.parseStartTime(file.getName()) != 0);
+    }
+
+    /**
+     * @param legacyFile  A legacy text track
+     * @return  The file the converted track is written to: the same name with the binary track
+     *          file extension
+     */
+    public static File getConvertedFile(File legacyFile) {
+        String name = legacyFile.getName();
+        name = name.substring(0, name.length() - TrackFormat.LEGACY_FILE_EXTENSION.length());
+        return new File(legacyFile.getParentFile(), name + TrackFormat.FILE_EXTENSION);
+    }
+
+    /**
+     * Converts a legacy text track.  The converted track is written to a temporary file and
+     * renamed once complete, so a failed conversion never leaves a partial track behind.
+     * @param legacyFile  The text track to convert
+     * @param outFile  The binary track file to create
+     * @throws IOException  if the legacy file can't be read or the new file can't be written
+     */
+    public void convert(File legacyFile, File outFile) throws IOException {
+
+        File tempFile = new File(outFile.getPath() + ".tmp");
+
+        try (RandomAccessFile in = new RandomAccessFile(legacyFile, "r");
+             FileOutputStream out = new FileOutputStream(tempFile)) {
+
+            FileChannel inChannel = in.getChannel();
+            MappedByteBuffer text = inChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                  inChannel.size());
+
+            long startTimeMs = LegacyTrackParser.parseStartTime(legacyFile.getName());
+            float distanceMeters = 0.0f;
+            long elapsedMs = 0;
+
+            mBuffer.clear();
+            mEncoder.writeHeader(mBuffer, startTimeMs);
+            mParser.reset(text);
+
+            int record;
+            while ((record = mParser.next()) != TrackDecoder.RECORD_END) {
+
+                if (record == TrackDecoder.RECORD_FIX) {
+                    if (mBuffer.remaining() < SEGMENT_ROOM) {
+                        writeSegment(out, distanceMeters);
+                    }
+                    if (!mEncoder.isSegmentOpen()) {
+                        mEncoder.beginSegment(mBuffer);
+                    }
+                    mEncoder.writeFix(mBuffer, mParser.getLatitude(), mParser.getLongitude(),
+                                      startTimeMs, 0.0f);
+                    distanceMeters = mParser.getDistanceMeters();
+                } else {
+                    elapsedMs = mParser.getElapsedSeconds() * 1000L;
+                }
+            }
+
+            if (mBuffer.remaining() < TrackFormat.MAX_FOOTER_SIZE) {
+                writeSegment(out, distanceMeters);
+            }
+            mEncoder.writeFooter(mBuffer, elapsedMs, distanceMeters);
+            out.write(mBuffer.array(), 0, mBuffer.position());
+            out.getFD().sync();
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(outFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + outFile);
+        }
+    }
+
+    /**
+     * Closes the open segment, if any, and writes the buffer out.
+     */
+    private void writeSegment(FileOutputStream out, float distanceMeters) throws IOException {
+        if (mEncoder.isSegmentOpen()) {
+            mEncoder.endSegment(mBuffer, distanceMeters);
+        }
+        out.write(mBuffer.array(), 0, mBuffer.position());
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,247 @@
+package android.redskysoftware.com.tracker;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+
+/**
+ * Parses the text track files written by earlier versions of the app.  Those files hold one line
+ * per record:
+ *
+ * <pre>
+ *   L,latitude,longitude,totalDistanceMeters
+ *   E,elapsedSeconds
+ * </pre>
+ *
+ * The numbers were written with String.format("%f"), which uses the default locale, so in locales
+ * with a decimal comma a location line has six comma separated fields instead of three.  Both
+ * forms are accepted.
+ *
+ * Like the TrackDecoder, the parser works directly on a ByteBuffer and exposes the most recently
+ * parsed record through its getters, so it does not create objects while parsing.
+ */
+public class LegacyTrackParser {
+
+    /** Most number fields a line can have (three decimal-comma numbers) */
+    private static final int MAX_FIELDS = 6;
+
+    /** The buffer being parsed */
+    private ByteBuffer mBuffer;
+
+    /** Digits, digit counts, signs and decimal point flags of the fields of the current line */
+    private final long[] mDigits = new long[MAX_FIELDS];
+    private final int[] mDigitCount = new int[MAX_FIELDS];
+    private final boolean[] mNegative = new boolean[MAX_FIELDS];
+    private final boolean[] mHasPoint = new boolean[MAX_FIELDS];
+    private final int[] mFractionDigits = new int[MAX_FIELDS];
+
+    /** Values of the most recently parsed record */
+    private double mLatitude;
+    private double mLongitude;
+    private float mDistanceMeters;
+    private int mElapsedSeconds;
+    private int mFixCount;
+
+    /**
+     * Starts parsing a legacy track.
+     * @param buffer  The buffer holding the file contents; parsing advances its position
+     */
+    public void reset(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mLatitude = 0.0;
+        mLongitude = 0.0;
+        mDistanceMeters = 0.0f;
+        mElapsedSeconds = 0;
+        mFixCount = 0;
+    }
+
+    /**
+     * Parses the next record.  Lines that can't be parsed (such as a line torn by a crash) are
+     * skipped.
+     * @return  TrackDecoder.RECORD_FIX for a location line, TrackDecoder.RECORD_FOOTER for the
+     *          elapsed time line, or TrackDecoder.RECORD_END at the end of the buffer
+     */
+    public int next() {
+
+        ByteBuffer in = mBuffer;
+
+        while ((in != null) && in.hasRemaining()) {
+
+            byte tag = in.get();
+            if ((tag == '\n') || (tag == '\r')) {
+                continue;
+            }
+
+            int fields = parseFields(in);
+
+            if (tag == 'L') {
+                if ((fields == 3) && mHasPoint[0] && mHasPoint[1]) {
+                    mLatitude = toDouble(0);
+                    mLongitude = toDouble(1);
+                    mDistanceMeters = (float) toDouble(2);
+                    mFixCount++;
+                    return TrackDecoder.RECORD_FIX;
+                } else if ((fields == 6) && !mHasPoint[0]) {
+                    mLatitude = toDouble(0, 1);
+                    mLongitude = toDouble(2, 3);
+                    mDistanceMeters = (float) toDouble(4, 5);
+                    mFixCount++;
+                    return TrackDecoder.RECORD_FIX;
+                }
+            } else if ((tag == 'E') && (fields == 1)) {
+                mElapsedSeconds = (int) toDouble(0);
+                return TrackDecoder.RECORD_FOOTER;
+            }
+        }
+
+        return TrackDecoder.RECORD_END;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * @return  The total distance of the track at the current fix, in meters
+     */
+    public float getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /**
+     * @return  The elapsed time from the end line, in seconds
+     */
+    public int getElapsedSeconds() {
+        return mElapsedSeconds;
+    }
+
+    /**
+     * @return  The number of location lines parsed so far
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * Recovers the start time of a legacy track from its file name.  Legacy files are named
+     * year.month.day.hour.minute.txt, where the day was written one too high.
+     * @param name  The file name
+     * @return  The start time in ms since the epoch, or 0 if the name isn't in the legacy format
+     */
+    public static long parseStartTime(String name) {
+
+        int[] parts = new int[5];
+        int part = 0;
+        int value = 0;
+        boolean digits = false;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= '0') && (c <= '9')) {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else if ((c == '.') && digits && (part < parts.length)) {
+                parts[part++] = value;
+                value = 0;
+                digits = false;
+            } else {
+                break;
+            }
+        }
+
+        if (part != parts.length) {
+            return 0;
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(parts[0], parts[1] - 1, parts[2] - 1, parts[3], parts[4]);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Parses the comma separated numbers that follow the tag, up to and including the end of the
+     * line.
+     * @return  The number of fields parsed, or -1 if the line is malformed
+     */
+    private int parseFields(ByteBuffer in) {
+
+        int fields = 0;
+        boolean valid = true;
+
+        while (in.hasRemaining()) {
+
+            byte c = in.get();
+
+            if (c == '\n') {
+                break;
+            } else if (c == ',') {
+                if (fields == MAX_FIELDS) {
+                    valid = false;
+                    continue;
+                }
+                mDigits[fields] = 0;
+                mDigitCount[fields] = 0;
+                mNegative[fields] = false;
+                mHasPoint[fields] = false;
+                mFractionDigits[fields] = 0;
+                fields++;
+            } else if (fields == 0) {
+                valid = false;
+            } else {
+                int f = fields - 1;
+                if ((c >= '0') && (c <= '9')) {
+                    if (mDigitCount[f] < 18) {
+                        mDigits[f] = mDigits[f] * 10 + (c - '0');
+                        mDigitCount[f]++;
+                        if (mHasPoint[f]) {
+                            mFractionDigits[f]++;
+                        }
+                    }
+                } else if ((c == '-') && (mDigitCount[f] == 0) && !mNegative[f]) {
+                    mNegative[f] = true;
+                } else if ((c == '.') && !mHasPoint[f]) {
+                    mHasPoint[f] = true;
+                } else if (c != '\r') {
+                    valid = false;
+                }
+            }
+        }
+
+        for (int f = 0; f < fields; f++) {
+            if (mDigitCount[f] == 0) {
+                valid = false;
+            }
+        }
+
+        return valid ? fields : -1;
+    }
+
+    /**
+     * @return  The value of a field written with a decimal point
+     */
+    private double toDouble(int field) {
+        double value = mDigits[field] / pow10(mFractionDigits[field]);
+        return mNegative[field] ? -value : value;
+    }
+
+    /**
+     * @return  The value of a number written with a decimal comma, split across two fields
+     */
+    private double toDouble(int integerField, int fractionField) {
+        double value = mDigits[integerField]
+                + mDigits[fractionField] / pow10(mDigitCount[fractionField]);
+        return mNegative[integerField] ? -value : value;
+    }
+
+    private static double pow10(int exponent) {
+        double value = 1.0;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10.0;
+        }
+        return value;
+    }
+}
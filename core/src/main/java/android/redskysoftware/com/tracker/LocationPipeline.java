@@ -0,0 +1,397 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Turns the locations from a LocationSource into the current track.
+ *
+ * Each location is passed through a FixFilter, and those it accepts are added to the track's
+ * distance (measured with a DistanceKernel in the mode chosen for the track), stored in the
+ * TrackBuffer, published in a TrackSnapshot and passed on to the DistanceChangedCallback, or
+ * collected in a FixBatch for the DistanceBatchCallback at the end of the delivery.  Every
+ * location, accepted or not, updates the TrackStats, whose live values go in the snapshots.
+ * Every location, accepted or not, also goes to the SamplingController, and the source is given
+ * a new profile when the user's motion state changes.
+ *
+ * The pipeline has no Android dependencies, so it runs the same behind the fused provider in
+ * TrackerLocationService as behind a ReplayLocationSource in a test or benchmark.  The track
+ * state is only touched by the thread the source delivers locations on; other threads read the
+ * published snapshots and the track buffer.  A PipelineRunner keeps the pipeline on a thread of
+ * its own.
+ *
+ * The track state can be saved in a SessionCheckpoint with saveState(), and a track carried on
+ * from one with resumeBatched() after the process has died.
+ */
+public class LocationPipeline implements LocationSource.Listener {
+
+    private final TrackClock mClock;
+
+    private final TrackSnapshot.Publisher mSnapshots = new TrackSnapshot.Publisher();
+
+    private final TrackBuffer mTrackBuffer = new TrackBuffer();
+
+    private final TrackStats mStats = new TrackStats();
+
+    private final SamplingController mSampling = new SamplingController();
+
+    private LocationSource mSource = null;
+
+    private DistanceChangedCallback mCallback = null;
+
+    private DistanceBatchCallback mBatchCallback = null;
+
+    /** The fixes accepted from the current delivery, for mBatchCallback */
+    private final FixBatch mBatch = new FixBatch();
+
+    /** Decides which locations go into the track, and where */
+    private FixFilter mFilter = new AccuracyThresholdFilter();
+
+    /** The distance mode for the next track started */
+    private int mDistanceMode = DistanceKernel.EXACT;
+
+    /** Measures distances in the current track */
+    private DistanceKernel mKernel = new DistanceKernel(DistanceKernel.EXACT);
+
+    /** The last location received, accepted or not; for checkpoints */
+    private boolean mHasLastRaw = false;
+    private double mLastRawLatitude;
+    private double mLastRawLongitude;
+    private long mLastRawTimeMs;
+
+    /** The last location accepted into the track, for checkpoints */
+    private double mLastLatitude;
+    private double mLastLongitude;
+    private long mLastTimeMs;
+    private float mLastAccuracy;
+
+    private double mDistanceMeters = 0.0;
+
+    /** The number of locations received, and of those accepted into the track */
+    private long mReceived = 0;
+    private long mAccepted = 0;
+
+    /**
+     * @param clock  The clock to time tracks with
+     */
+    public LocationPipeline(TrackClock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Sets the filter that decides which locations go into the track.  Takes effect on the next
+     * track started.  The default is an AccuracyThresholdFilter.
+     * @param filter  The filter to use
+     */
+    public void setFilter(FixFilter filter) {
+        mFilter = filter;
+    }
+
+    /**
+     * Sets how the distances in a track are measured.  Takes effect on the next track started.
+     * The default is DistanceKernel.EXACT.
+     * @param mode  DistanceKernel.EXACT, HAVERSINE or EQUIRECTANGULAR
+     */
+    public void setDistanceMode(int mode) {
+        if ((mode < DistanceKernel.EXACT) || (mode > DistanceKernel.EQUIRECTANGULAR)) {
+            throw new IllegalArgumentException("Unknown distance mode " + mode);
+        }
+        mDistanceMode = mode;
+    }
+
+    /**
+     * Starts a new track, with locations from the given source.
+     * @param source  Where the locations come from
+     * @param callback  Told about each location accepted into the track; may be null
+     * @return  True if the source started
+     */
+    public boolean start(LocationSource source, DistanceChangedCallback callback) {
+        return start(source, callback, null);
+    }
+
+    /**
+     * Starts a new track, with locations from the given source.
+     * @param source  Where the locations come from
+     * @param callback  Told about the locations accepted into the track a delivery at a time;
+     *                  may be null
+     * @return  True if the source started
+     */
+    public boolean startBatched(LocationSource source, DistanceBatchCallback callback) {
+        return start(source, null, callback);
+    }
+
+    private boolean start(LocationSource source, DistanceChangedCallback callback,
+                          DistanceBatchCallback batchCallback) {
+
+        mSource = source;
+        mCallback = callback;
+        mBatchCallback = batchCallback;
+        mBatch.clear();
+
+        if (mDistanceMode != mKernel.getMode()) {
+            mKernel = new DistanceKernel(mDistanceMode);
+        }
+        mFilter.setDistanceKernel(mKernel);
+        mFilter.reset();
+        mHasLastRaw = false;
+        mDistanceMeters = 0.0;
+        mReceived = 0;
+        mAccepted = 0;
+
+        mTrackBuffer.clear();
+        mStats.reset();
+        mSampling.reset();
+        mClock.start();
+        mSnapshots.reset(mClock);
+
+        return source.start(mSampling.getProfile(), this);
+    }
+
+    /**
+     * Carries on a track from a checkpoint, with locations from the given source.  The distance,
+     * counts, statistics and clock are restored, and the filter carries on from the last
+     * location accepted; the track buffer starts again from that location.  The distance mode is
+     * the track's, whatever setDistanceMode() was given.
+     * @param source  Where the locations come from
+     * @param callback  Told about the locations accepted into the track a delivery at a time;
+     *                  may be null
+     * @param checkpoint  The checkpoint to carry on from
+     * @return  True if the source started
+     */
+    public boolean resumeBatched(LocationSource source, DistanceBatchCallback callback,
+                                 SessionCheckpoint checkpoint) {
+
+        mSource = source;
+        mCallback = null;
+        mBatchCallback = callback;
+        mBatch.clear();
+
+        mDistanceMode = checkpoint.getDistanceMode();
+        if (mDistanceMode != mKernel.getMode()) {
+            mKernel = new DistanceKernel(mDistanceMode);
+        }
+        mFilter.setDistanceKernel(mKernel);
+        mFilter.reset();
+
+        mDistanceMeters = checkpoint.getDistanceMeters();
+        mReceived = checkpoint.getReceivedCount();
+        mAccepted = checkpoint.getAcceptedCount();
+
+        mHasLastRaw = checkpoint.hasReceived();
+        mLastRawLatitude = checkpoint.getReceivedLatitude();
+        mLastRawLongitude = checkpoint.getReceivedLongitude();
+        mLastRawTimeMs = checkpoint.getReceivedTimeMs();
+
+        mTrackBuffer.clear();
+        mStats.set(checkpoint.getStats());
+        mSampling.reset();
+        mClock.restore(checkpoint.getElapsedNanos(), checkpoint.getReadAtNanos(),
+                       checkpoint.isPaused());
+        mSnapshots.reset(mClock);
+
+        if (checkpoint.hasAccepted()) {
+            mLastLatitude = checkpoint.getAcceptedLatitude();
+            mLastLongitude = checkpoint.getAcceptedLongitude();
+            mLastTimeMs = checkpoint.getAcceptedTimeMs();
+            mLastAccuracy = checkpoint.getAcceptedAccuracy();
+
+            mFilter.resume(mLastLatitude, mLastLongitude, mLastTimeMs, mLastAccuracy);
+            mTrackBuffer.append(mLastLatitude, mLastLongitude, mLastTimeMs, mLastAccuracy);
+            mSnapshots.publishFix(mLastLatitude, mLastLongitude, (float) mDistanceMeters, 0.0f,
+                                  mStats, mClock);
+        }
+
+        return source.start(mSampling.getProfile(), this);
+    }
+
+    /**
+     * Saves the track state in a checkpoint; everything but the track and file, which are the
+     * caller's and the TrackWriter's.  Only for the source's thread, between deliveries.
+     * @param checkpoint  The checkpoint to fill in
+     */
+    public void saveState(SessionCheckpoint checkpoint) {
+
+        long now = mClock.getTimeSource().nanoTime();
+
+        checkpoint.setDistance(mKernel.getMode(), mDistanceMeters, mReceived, mAccepted);
+        checkpoint.setLastAccepted(mAccepted > 0, mLastLatitude, mLastLongitude, mLastTimeMs,
+                                   mLastAccuracy);
+        checkpoint.setLastReceived(mHasLastRaw, mLastRawLatitude, mLastRawLongitude,
+                                   mLastRawTimeMs);
+        checkpoint.setClock(mClock.getElapsedNanos(now), now, mClock.isPaused());
+        checkpoint.getStats().set(mStats);
+    }
+
+    /**
+     * Stops the source and the track clock.
+     */
+    public void stop() {
+
+        if (mSource != null) {
+            mSource.stop();
+            mSource = null;
+        }
+
+        mClock.stop();
+        mSnapshots.publishClock(mClock);
+    }
+
+    @Override
+    public void onLocation(double latitude, double longitude, long timeMs, float accuracyMeters,
+                           float speedMetersPerSecond) {
+
+        mReceived++;
+
+        updateSampling(latitude, longitude, timeMs, accuracyMeters, speedMetersPerSecond);
+
+        if (mFilter.accept(latitude, longitude, timeMs, accuracyMeters)) {
+
+            mDistanceMeters += mFilter.getStepMeters();
+
+            accept(mFilter.getLatitude(), mFilter.getLongitude(), timeMs, accuracyMeters,
+                   Float.isNaN(speedMetersPerSecond) ? mFilter.getSpeed() : speedMetersPerSecond);
+        } else {
+
+            /* The time still counts, as standing still */
+            mStats.add(timeMs, mDistanceMeters);
+            mSnapshots.publishStats(mStats, mClock);
+        }
+    }
+
+    @Override
+    public void onBatchEnd() {
+
+        if ((mBatchCallback != null) && (mBatch.size() > 0)) {
+            mBatchCallback.onDistanceBatch(mBatch);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Passes a location to the sampling controller, and gives the source the new profile if the
+     * user's motion state changed.  Every location counts here, not just the ones accepted into
+     * the track, or the controller would never see the user stop.
+     * @param speedMetersPerSecond  The speed from the source, or NaN for the controller to work
+     *                              out
+     */
+    private void updateSampling(double latitude, double longitude, long timeMs,
+                                float accuracyMeters, float speedMetersPerSecond) {
+
+        mHasLastRaw = true;
+        mLastRawLatitude = latitude;
+        mLastRawLongitude = longitude;
+        mLastRawTimeMs = timeMs;
+
+        if (mSampling.onFix(latitude, longitude, timeMs, accuracyMeters, speedMetersPerSecond)
+                && (mSource != null)) {
+            mSource.setProfile(mSampling.getProfile());
+        }
+    }
+
+    /**
+     * Adds an accepted location to the track buffer, publishes a new snapshot and passes the
+     * location on to the DistanceChangedCallback, or adds it to the batch
+     * @param speed  The speed at the location, in meters per second
+     */
+    private void accept(double latitude, double longitude, long timeMs, float accuracyMeters,
+                        float speed) {
+
+        mAccepted++;
+        mLastLatitude = latitude;
+        mLastLongitude = longitude;
+        mLastTimeMs = timeMs;
+        mLastAccuracy = accuracyMeters;
+
+        float distanceMeters = (float) mDistanceMeters;
+
+        mTrackBuffer.append(latitude, longitude, timeMs, accuracyMeters);
+        mStats.add(timeMs, mDistanceMeters);
+
+        mSnapshots.publishFix(latitude, longitude, distanceMeters, speed, mStats, mClock);
+
+        if (mCallback != null) {
+            mCallback.onDistanceChanged(latitude, longitude, timeMs, accuracyMeters,
+                                        distanceMeters);
+        }
+        if (mBatchCallback != null) {
+            mBatch.add(latitude, longitude, timeMs, accuracyMeters, distanceMeters);
+        }
+    }
+
+    /**
+     * @return  The latest snapshot of the track.  This never blocks.
+     */
+    public TrackSnapshot getSnapshot() {
+        return mSnapshots.get();
+    }
+
+    /**
+     * Stops counting elapsed time until resumeClock() is called
+     */
+    public void pauseClock() {
+        mClock.pause();
+        mSnapshots.publishClock(mClock);
+    }
+
+    /**
+     * Continues counting elapsed time after pauseClock()
+     */
+    public void resumeClock() {
+        mClock.resume();
+        mSnapshots.publishClock(mClock);
+    }
+
+    /**
+     * @return  The points of the current track.  Read them through TrackBuffer.newView().
+     */
+    public TrackBuffer getTrackBuffer() {
+        return mTrackBuffer;
+    }
+
+    /**
+     * @return  The clock measuring how long the current track has been active
+     */
+    public TrackClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * @return  The distance mode of the current track; see DistanceKernel
+     */
+    public int getDistanceMode() {
+        return mKernel.getMode();
+    }
+
+    /**
+     * @return  The sampling controller's motion state; see SamplingController.getState()
+     */
+    public int getSamplingState() {
+        return mSampling.getState();
+    }
+
+    /**
+     * @return  The statistics of the track.  Only for the source's thread; other threads read
+     *          them from the snapshot.
+     */
+    public TrackStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return  The total distance of the track, in meters.  Only for the source's thread.
+     */
+    public double getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /**
+     * @return  The number of locations received this track.  Only for the source's thread.
+     */
+    public long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * @return  The number of locations accepted into the track.  Only for the source's thread.
+     */
+    public long getAcceptedCount() {
+        return mAccepted;
+    }
+}
@@ -0,0 +1,63 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Somewhere locations come from.
+ *
+ * On the device that's the fused location provider (FusedLocationSource).  Off the device,
+ * ReplayLocationSource plays back a stored track, so the whole pipeline (filtering, distance and
+ * persistence) can be run on a plain JVM, as fast as it will go or in real time.
+ */
+public interface LocationSource {
+
+    /**
+     * Receives locations from a source.  Locations are delivered one at a time, in order, on
+     * one thread.  A source may deliver several locations together; onBatchEnd() follows the
+     * last location of each delivery.
+     */
+    interface Listener {
+
+        /**
+         * Called for each location the source delivers.
+         * @param latitude  Latitude in degrees
+         * @param longitude  Longitude in degrees
+         * @param timeMs  Time of the fix, in ms since the epoch
+         * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+         * @param speedMetersPerSecond  Speed at the fix, or NaN if the source doesn't know it
+         */
+        void onLocation(double latitude, double longitude, long timeMs, float accuracyMeters,
+                        float speedMetersPerSecond);
+
+        /**
+         * Called after the last location of each delivery.
+         */
+        void onBatchEnd();
+    }
+
+    /**
+     * Starts delivering locations.
+     * @param profile  How often and how accurately to deliver locations; a source may ignore it
+     * @param listener  The listener to deliver locations to
+     * @return  True if started, false if the source can't deliver locations (for example because
+     *          the location permission hasn't been granted)
+     */
+    boolean start(SamplingController.Profile profile, Listener listener);
+
+    /**
+     * Changes how often and how accurately locations are delivered, while started.
+     * @param profile  The new profile
+     */
+    void setProfile(SamplingController.Profile profile);
+
+    /**
+     * Sets how long locations may be held back so they can be delivered together, which saves
+     * waking the app for every one.  Takes effect immediately if started.
+     * @param maxWaitMs  The longest a location may be held back, in ms; 0 delivers each location
+     *                   as soon as it's available
+     */
+    void setMaxWaitMs(long maxWaitMs);
+
+    /**
+     * Stops delivering locations.
+     */
+    void stop();
+}
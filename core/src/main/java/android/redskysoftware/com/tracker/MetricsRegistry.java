@@ -0,0 +1,123 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the counters and latency histograms that show what the app is doing, and writes them out
+ * as text for dumpsys and the debug screen.
+ *
+ * Metrics are created by name when the registry is set up, and from then on are recorded through
+ * the StripedCounter and LatencyHistogram objects themselves, which costs a few atomic adds and
+ * never allocates or takes a lock.  Errors that are handled rather than thrown are counted with
+ * recordError(), which also keeps the latest one so it can be shown.
+ *
+ * Creating metrics and dump() are synchronized; recording is not.
+ */
+public class MetricsRegistry {
+
+    private final TrackClock.TimeSource mTimeSource;
+
+    /** When the registry was created, for rates */
+    private final long mStartNanos;
+
+    private final List<StripedCounter> mCounters = new ArrayList<>();
+    private final List<LatencyHistogram> mHistograms = new ArrayList<>();
+
+    /** The latest error recorded, the counter it was counted in and when */
+    private volatile Throwable mLastError = null;
+    private volatile StripedCounter mLastErrorCounter = null;
+    private volatile long mLastErrorNanos;
+
+    /**
+     * @param timeSource  The monotonic clock rates and error times are measured with
+     */
+    public MetricsRegistry(TrackClock.TimeSource timeSource) {
+        mTimeSource = timeSource;
+        mStartNanos = timeSource.nanoTime();
+    }
+
+    /**
+     * @param name  The name shown for the counter
+     * @return  A new counter, starting at 0
+     */
+    public synchronized StripedCounter counter(String name) {
+        StripedCounter counter = new StripedCounter(name);
+        mCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * @param name  The name shown for the histogram
+     * @return  A new histogram, with nothing recorded
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram(name);
+        mHistograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Counts an error that was handled, and keeps it as the latest error.
+     * @param counter  The counter for errors of its kind
+     * @param error  The error
+     */
+    public void recordError(StripedCounter counter, Throwable error) {
+        counter.increment();
+        mLastErrorNanos = mTimeSource.nanoTime();
+        mLastErrorCounter = counter;
+        mLastError = error;
+    }
+
+    /**
+     * @return  The latest error recorded, or null if there has been none
+     */
+    public Throwable getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Writes every metric out: counters with their rate per minute since the registry was
+     * created, then the histograms' counts, means, percentiles and maximums in microseconds, then
+     * the latest error.
+     * @param out  Where to write
+     */
+    public synchronized void dump(PrintWriter out) {
+
+        long now = mTimeSource.nanoTime();
+        double minutes = Math.max(now - mStartNanos, 1) / 60e9;
+
+        out.println(String.format(Locale.US, "Metrics over %.1f min", minutes));
+
+        out.println(String.format(Locale.US, "  %-24s %12s %10s", "counter", "count", "per min"));
+        for (StripedCounter counter : mCounters) {
+            long count = counter.get();
+            out.println(String.format(Locale.US, "  %-24s %12d %10.1f", counter.getName(), count,
+                                      count / minutes));
+        }
+
+        out.println(String.format(Locale.US, "  %-24s %10s %9s %9s %9s %9s %10s", "latency us",
+                                  "count", "mean", "p50", "p90", "p99", "max"));
+        for (LatencyHistogram histogram : mHistograms) {
+            out.println(String.format(Locale.US, "  %-24s %10d %9d %9d %9d %9d %10d",
+                                      histogram.getName(), histogram.getCount(),
+                                      histogram.getMeanNanos() / 1000,
+                                      histogram.getPercentileMicros(0.5),
+                                      histogram.getPercentileMicros(0.9),
+                                      histogram.getPercentileMicros(0.99),
+                                      histogram.getMaxNanos() / 1000));
+        }
+
+        Throwable error = mLastError;
+        StripedCounter errorCounter = mLastErrorCounter;
+        if ((error != null) && (errorCounter != null)) {
+            out.println(String.format(Locale.US, "  last error (%s, %.1f min ago): %s",
+                                      errorCounter.getName(), (now - mLastErrorNanos) / 60e9,
+                                      error));
+        }
+
+        out.flush();
+    }
+}
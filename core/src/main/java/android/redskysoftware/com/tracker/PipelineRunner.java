@@ -0,0 +1,198 @@
+package android.redskysoftware.com.tracker;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a LocationPipeline on a thread of its own, so no location work, and nothing the callbacks
+ * do with the locations, runs on the thread driving the UI.
+ *
+ * The pipeline thread is whatever thread the Executor runs its tasks on, one at a time and in
+ * order; on the device that's a HandlerThread (see TrackerLocationService.getPipelineHandler()).
+ * Every method here that changes the pipeline hands the change to the executor and returns, so
+ * they can be called from any thread and never wait on the pipeline.  The source is started on
+ * the pipeline thread, so a source that delivers on the looper of the thread that started it
+ * (as FusedLocationSource does) delivers there too, and the pipeline and its callbacks only ever
+ * run on that thread.
+ *
+ * The thread confinement rules:
+ *
+ *   The pipeline's track state, the source and the callbacks belong to the pipeline thread.
+ *   Anything else that touches state the callbacks use has to run there as well, through post().
+ *
+ *   Other threads read the track through getSnapshot() and getTrackBuffer(), which are published
+ *   for them and never block.
+ *
+ *   Tasks run in the order they were posted, so a task posted after stop() runs after the last
+ *   location has been delivered.
+ */
+public class PipelineRunner {
+
+    private final LocationPipeline mPipeline;
+
+    private final Executor mExecutor;
+
+    /** The source of the current track; only for the pipeline thread */
+    private LocationSource mSource = null;
+
+    /** True if the last source started couldn't deliver locations */
+    private volatile boolean mStartFailed = false;
+
+    /**
+     * @param pipeline  The pipeline to run.  It belongs to the pipeline thread from now on.
+     * @param executor  Runs tasks on the pipeline thread, one at a time and in order
+     */
+    public PipelineRunner(LocationPipeline pipeline, Executor executor) {
+        mPipeline = pipeline;
+        mExecutor = executor;
+    }
+
+    /**
+     * Runs a task on the pipeline thread, after everything posted before it.
+     */
+    public void post(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Sets the filter for the next track started.
+     */
+    public void setFilter(final FixFilter filter) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.setFilter(filter);
+            }
+        });
+    }
+
+    /**
+     * Starts a new track on the pipeline thread; see LocationPipeline.startBatched().  If the
+     * source can't start, hasStartFailed() becomes true.
+     * @param source  Where the locations come from; started on the pipeline thread
+     * @param callback  Told about the locations accepted into the track a delivery at a time,
+     *                  on the pipeline thread; may be null
+     */
+    public void startBatched(final LocationSource source, final DistanceBatchCallback callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mSource = source;
+                mStartFailed = !mPipeline.startBatched(source, callback);
+            }
+        });
+    }
+
+    /**
+     * Carries on a track from a checkpoint on the pipeline thread; see
+     * LocationPipeline.resumeBatched().  If the source can't start, hasStartFailed() becomes
+     * true.
+     * @param source  Where the locations come from; started on the pipeline thread
+     * @param callback  Told about the locations accepted into the track a delivery at a time,
+     *                  on the pipeline thread; may be null
+     * @param checkpoint  The checkpoint to carry on from; it belongs to the pipeline thread from
+     *                    now on
+     */
+    public void resumeBatched(final LocationSource source, final DistanceBatchCallback callback,
+                              final SessionCheckpoint checkpoint) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mSource = source;
+                mStartFailed = !mPipeline.resumeBatched(source, callback, checkpoint);
+            }
+        });
+    }
+
+    /**
+     * Stops the source and the track clock, on the pipeline thread.
+     */
+    public void stop() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.stop();
+                mSource = null;
+            }
+        });
+    }
+
+    /**
+     * Sets how the distances of the next track are measured; see DistanceKernel.
+     */
+    public void setDistanceMode(final int mode) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.setDistanceMode(mode);
+            }
+        });
+    }
+
+    /**
+     * Sets how long the current source may hold locations back; see LocationSource.
+     */
+    public void setMaxWaitMs(final long maxWaitMs) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSource != null) {
+                    mSource.setMaxWaitMs(maxWaitMs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops counting elapsed time until resumeClock() is called.  The snapshot shows the clock
+     * paused once the pipeline thread gets to it.
+     */
+    public void pauseClock() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.pauseClock();
+            }
+        });
+    }
+
+    /**
+     * Continues counting elapsed time after pauseClock()
+     */
+    public void resumeClock() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPipeline.resumeClock();
+            }
+        });
+    }
+
+    /**
+     * @return  True if the last source started couldn't deliver locations (for example because
+     *          the location permission hasn't been granted)
+     */
+    public boolean hasStartFailed() {
+        return mStartFailed;
+    }
+
+    /**
+     * @return  The latest snapshot of the track.  This never blocks.
+     */
+    public TrackSnapshot getSnapshot() {
+        return mPipeline.getSnapshot();
+    }
+
+    /**
+     * @return  The points of the current track.  Read them through TrackBuffer.newView().
+     */
+    public TrackBuffer getTrackBuffer() {
+        return mPipeline.getTrackBuffer();
+    }
+
+    /**
+     * @return  The pipeline.  Only for the pipeline thread, in tasks given to post().
+     */
+    public LocationPipeline getPipeline() {
+        return mPipeline;
+    }
+}
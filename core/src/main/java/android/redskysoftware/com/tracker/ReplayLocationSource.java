@@ -0,0 +1,209 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plays back the fixes of a stored track as locations.
+ *
+ * Every fix is delivered, in order, exactly as it was stored, so a replay reproduces what the
+ * pipeline did with the track.  Sampling profiles are ignored.  Stored tracks don't keep speed,
+ * so it is always delivered as unknown.
+ *
+ * Fixes are delivered one at a time unless a maximum wait is set, in which case they are
+ * delivered in batches of the fixes recorded within each maximum wait of the first in the batch,
+ * as a batching provider would.  A batch ends when the first fix after it is due.
+ *
+ * start() plays the track on a thread of its own, at real time or any multiple of it, or as fast
+ * as possible.  replay() plays it on the calling thread, for tests and benchmarks.
+ */
+public class ReplayLocationSource implements LocationSource {
+
+    /** The rate that delivers fixes without waiting between them */
+    public static final double AS_FAST_AS_POSSIBLE = 0.0;
+
+    /** The rate that delivers fixes as far apart as they were recorded */
+    public static final double REAL_TIME = 1.0;
+
+    /** The name of the replay thread */
+    static final String THREAD_NAME = "TrackReplay";
+
+    private final File mFile;
+
+    private final double mRate;
+
+    private Thread mThread = null;
+
+    private volatile boolean mStopped = false;
+
+    private volatile long mMaxWaitMs = 0;
+
+    /** The number of fixes delivered by the last replay */
+    private volatile int mDelivered = 0;
+
+    /** The error that ended the last replay, or null */
+    private volatile IOException mError = null;
+
+    /**
+     * @param file  The track file to play back
+     * @param rate  How many times faster than real time to deliver fixes, or AS_FAST_AS_POSSIBLE
+     */
+    public ReplayLocationSource(File file, double rate) {
+        if (rate < 0.0) {
+            throw new IllegalArgumentException("Replay rate " + rate);
+        }
+        mFile = file;
+        mRate = rate;
+    }
+
+    @Override
+    public boolean start(SamplingController.Profile profile,
+                         final LocationSource.Listener listener) {
+
+        if (!mFile.canRead()) {
+            return false;
+        }
+
+        mStopped = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay(listener);
+                } catch (IOException ioe) {
+                    mError = ioe;
+                }
+            }
+        }, THREAD_NAME);
+        mThread.start();
+
+        return true;
+    }
+
+    @Override
+    public void setProfile(SamplingController.Profile profile) {
+        /* Recorded fixes are played back as they are */
+    }
+
+    @Override
+    public void setMaxWaitMs(long maxWaitMs) {
+        mMaxWaitMs = maxWaitMs;
+    }
+
+    @Override
+    public void stop() {
+        mStopped = true;
+        if ((mThread != null) && (mThread != Thread.currentThread())) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Plays the track on the calling thread.  Returns when every fix has been delivered, or stop()
+     * has been called, or the thread is interrupted.
+     * @param listener  The listener to deliver the fixes to
+     * @return  The number of fixes delivered
+     * @throws IOException  If the track can't be read
+     */
+    public int replay(LocationSource.Listener listener) throws IOException {
+
+        int delivered = 0;
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+
+            long firstTimeMs = 0;
+            long startNs = System.nanoTime();
+
+            /* The time of the first fix of the current batch, if one is open */
+            boolean batchOpen = false;
+            long batchStartMs = 0;
+
+            while (!mStopped && reader.next()) {
+
+                long timeMs = reader.getTimeMs();
+
+                long maxWaitMs = mMaxWaitMs;
+                if (batchOpen && (timeMs - batchStartMs >= maxWaitMs)) {
+                    listener.onBatchEnd();
+                    batchOpen = false;
+                }
+
+                if (mRate != AS_FAST_AS_POSSIBLE) {
+                    if (delivered == 0) {
+                        firstTimeMs = timeMs;
+                    } else {
+                        long offsetNs = (long) ((timeMs - firstTimeMs) * 1.0e6 / mRate);
+                        if (!waitUntil(startNs + offsetNs)) {
+                            break;
+                        }
+                    }
+                }
+
+                listener.onLocation(reader.getLatitude(), reader.getLongitude(), timeMs,
+                                    reader.getAccuracy(), Float.NaN);
+                delivered++;
+
+                if (maxWaitMs <= 0) {
+                    listener.onBatchEnd();
+                } else if (!batchOpen) {
+                    batchOpen = true;
+                    batchStartMs = timeMs;
+                }
+            }
+
+            if (batchOpen) {
+                listener.onBatchEnd();
+            }
+
+        } finally {
+            mDelivered = delivered;
+        }
+
+        return delivered;
+    }
+
+    /**
+     * Sleeps until System.nanoTime() reaches a time.
+     * @return  False if interrupted
+     */
+    private static boolean waitUntil(long dueNs) {
+
+        long remainingNs;
+        while ((remainingNs = dueNs - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remainingNs / 1000000L, (int) (remainingNs % 1000000L));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for a replay started by start() to finish.
+     * @return  True if the replay finished within the timeout
+     */
+    public boolean awaitFinished(long timeoutMs) throws InterruptedException {
+        if (mThread != null) {
+            mThread.join(timeoutMs);
+            return !mThread.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * @return  The number of fixes delivered by the last replay
+     */
+    public int getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /**
+     * @return  The error that ended the last replay started by start(), or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,310 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Chooses how often to ask for locations, based on how fast the user is moving.
+ *
+ * Each location received is passed to onFix() with its speed.  The controller keeps a smoothed
+ * speed and classifies the user as stationary, walking or moving fast, and each state has a
+ * sampling profile: the location request interval, priority and smallest displacement.  Standing
+ * still at a stop needs far fewer (and less accurate) locations than walking, and walking fewer
+ * than driving, so matching the request to the state saves callbacks and wakeups on long tracks.
+ *
+ * To keep the state from flapping, the thresholds to leave a state are further from it than the
+ * thresholds to enter it, and a new state must hold for a while before the controller switches:
+ * briefly to speed up, so the start of a movement isn't lost, and longer to slow down.
+ *
+ * Only the stationary profile has a smallest displacement.  The moving profiles need locations
+ * to keep coming while the user stands still, or the controller would never see them stop.
+ *
+ * A location that comes without a speed, as the stationary profile's balanced power locations
+ * usually do, has its speed worked out from how far it is from a recent location.  Those
+ * locations can be 20 to 100 m out, and a walk covers only 14 m or so between them, so the
+ * distance is measured from the oldest of the last SPEED_FIXES locations that is within
+ * SPEED_WINDOW_MS, and only the larger of the two accuracies is taken off it.  Standing still,
+ * the distance rarely gets past the accuracy; walking, it soon does, and the user is seen to move
+ * off within a minute or two even on the least accurate locations.  The time is taken as at
+ * least SPEED_MIN_SPAN_MS, so the noise in the first few locations of a track doesn't read as a
+ * burst of speed.
+ */
+public class SamplingController {
+
+    public static final int STATE_STATIONARY = 0;
+    public static final int STATE_WALKING = 1;
+    public static final int STATE_FAST = 2;
+
+    /** Smoothed speeds that enter a state from a slower one, in m/s */
+    static final float WALKING_ENTER_SPEED = 0.8f;
+    static final float FAST_ENTER_SPEED = 4.0f;
+
+    /** Smoothed speeds that leave a state for a slower one, in m/s */
+    static final float WALKING_EXIT_SPEED = 0.3f;
+    static final float FAST_EXIT_SPEED = 2.5f;
+
+    /** How long a faster state must hold before switching to it */
+    static final long SPEED_UP_DWELL_MS = 3000;
+
+    /** How long a slower state must hold before switching to it */
+    static final long SLOW_DOWN_DWELL_MS = 30000;
+
+    /** Weight of a new speed in the smoothed speed */
+    private static final float SMOOTHING = 0.5f;
+
+    /** The most recent locations kept to work out speeds from, and how far back they're used */
+    static final int SPEED_FIXES = 32;
+    static final long SPEED_WINDOW_MS = 180000;
+
+    /** The shortest time a speed is worked out over, so noise soon after a start is damped */
+    static final long SPEED_MIN_SPAN_MS = 30000;
+
+    /**
+     * How to request locations in one state
+     */
+    public static final class Profile {
+
+        private final long mIntervalMs;
+        private final long mFastestIntervalMs;
+        private final float mSmallestDisplacementMeters;
+        private final boolean mHighAccuracy;
+
+        public Profile(long intervalMs, long fastestIntervalMs,
+                       float smallestDisplacementMeters, boolean highAccuracy) {
+            mIntervalMs = intervalMs;
+            mFastestIntervalMs = fastestIntervalMs;
+            mSmallestDisplacementMeters = smallestDisplacementMeters;
+            mHighAccuracy = highAccuracy;
+        }
+
+        public long getIntervalMs() {
+            return mIntervalMs;
+        }
+
+        public long getFastestIntervalMs() {
+            return mFastestIntervalMs;
+        }
+
+        public float getSmallestDisplacementMeters() {
+            return mSmallestDisplacementMeters;
+        }
+
+        /**
+         * @return  True for GPS accuracy, false for balanced power accuracy
+         */
+        public boolean isHighAccuracy() {
+            return mHighAccuracy;
+        }
+
+        @Override
+        public String toString() {
+            return "Profile[interval=" + mIntervalMs + ", fastest=" + mFastestIntervalMs
+                    + ", displacement=" + mSmallestDisplacementMeters + ", high="
+                    + mHighAccuracy + "]";
+        }
+    }
+
+    /** The default profiles, indexed by state */
+    public static final Profile[] DEFAULT_PROFILES = {
+            /* Stationary: a location now and then, or when the user moves off */
+            new Profile(10000, 5000, 10.0f, false),
+            /* Walking */
+            new Profile(3000, 2000, 0.0f, true),
+            /* Fast: cycling or driving; the interval the service always used */
+            new Profile(1000, 1000, 0.0f, true),
+    };
+
+    private final Profile[] mProfiles;
+
+    private int mState = STATE_WALKING;
+
+    /** The state the speed points to, and when it started doing so */
+    private int mCandidate = STATE_WALKING;
+    private long mCandidateSinceMs = 0;
+
+    private float mSmoothedSpeed = 0.0f;
+    private boolean mHasSpeed = false;
+
+    /** The number of times the state has changed */
+    private int mTransitions = 0;
+
+    /** The recent locations, oldest first from mFixStart */
+    private final double[] mFixLatitude = new double[SPEED_FIXES];
+    private final double[] mFixLongitude = new double[SPEED_FIXES];
+    private final long[] mFixTimeMs = new long[SPEED_FIXES];
+    private final float[] mFixAccuracy = new float[SPEED_FIXES];
+    private int mFixStart = 0;
+    private int mFixCount = 0;
+
+    public SamplingController() {
+        this(DEFAULT_PROFILES);
+    }
+
+    /**
+     * @param profiles  The profile for each state, indexed by state
+     */
+    public SamplingController(Profile[] profiles) {
+        if (profiles.length != 3) {
+            throw new IllegalArgumentException("A profile is needed for each state");
+        }
+        mProfiles = profiles.clone();
+    }
+
+    /**
+     * Starts over for a new track, in the walking state until the first locations show
+     * otherwise.
+     */
+    public void reset() {
+        mState = STATE_WALKING;
+        mCandidate = STATE_WALKING;
+        mCandidateSinceMs = 0;
+        mSmoothedSpeed = 0.0f;
+        mHasSpeed = false;
+        mTransitions = 0;
+        mFixStart = 0;
+        mFixCount = 0;
+    }
+
+    /**
+     * Takes a location into account, working out its speed if it doesn't have one.
+     * @param timeMs  The time of the location, in ms
+     * @param accuracyMeters  The accuracy of the location, in meters
+     * @param speedMetersPerSecond  The speed at the location, or NaN if it isn't known
+     * @return  True if the state (and so the profile) changed
+     */
+    public boolean onFix(double latitude, double longitude, long timeMs, float accuracyMeters,
+                         float speedMetersPerSecond) {
+
+        float speed = Float.isNaN(speedMetersPerSecond)
+                ? estimateSpeed(latitude, longitude, timeMs, accuracyMeters)
+                : speedMetersPerSecond;
+
+        int end = (mFixStart + mFixCount) % SPEED_FIXES;
+        if (mFixCount == SPEED_FIXES) {
+            mFixStart = (mFixStart + 1) % SPEED_FIXES;
+        } else {
+            mFixCount++;
+        }
+        mFixLatitude[end] = latitude;
+        mFixLongitude[end] = longitude;
+        mFixTimeMs[end] = timeMs;
+        mFixAccuracy[end] = accuracyMeters;
+
+        return onFix(timeMs, speed);
+    }
+
+    /**
+     * Takes a location into account.
+     * @param timeMs  The time of the location, in ms
+     * @param speedMetersPerSecond  The speed at the location
+     * @return  True if the state (and so the profile) changed
+     */
+    public boolean onFix(long timeMs, float speedMetersPerSecond) {
+
+        if (!mHasSpeed) {
+            mSmoothedSpeed = speedMetersPerSecond;
+            mHasSpeed = true;
+        } else {
+            mSmoothedSpeed += SMOOTHING * (speedMetersPerSecond - mSmoothedSpeed);
+        }
+
+        int target = classify(mSmoothedSpeed);
+
+        if (target == mState) {
+            mCandidate = mState;
+            return false;
+        }
+
+        if (target != mCandidate) {
+            mCandidate = target;
+            mCandidateSinceMs = timeMs;
+        }
+
+        long dwell = (target > mState) ? SPEED_UP_DWELL_MS : SLOW_DOWN_DWELL_MS;
+        if (timeMs - mCandidateSinceMs >= dwell) {
+            mState = target;
+            mTransitions++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return  The speed from the oldest recent location within SPEED_WINDOW_MS to a location,
+     *          counting only the distance beyond the larger of their accuracies and at least
+     *          SPEED_MIN_SPAN_MS of time; 0 if there's no such location
+     */
+    private float estimateSpeed(double latitude, double longitude, long timeMs,
+                                float accuracyMeters) {
+
+        for (int i = 0; i < mFixCount; i++) {
+
+            int index = (mFixStart + i) % SPEED_FIXES;
+            long deltaMs = timeMs - mFixTimeMs[index];
+            if ((deltaMs <= 0) || (deltaMs > SPEED_WINDOW_MS)) {
+                continue;
+            }
+
+            double moved = DistanceKernel.haversineMeters(mFixLatitude[index],
+                                                          mFixLongitude[index],
+                                                          latitude, longitude)
+                           - Math.max(mFixAccuracy[index], accuracyMeters);
+            return (moved > 0.0)
+                    ? (float) (moved * 1000.0 / Math.max(deltaMs, SPEED_MIN_SPAN_MS)) : 0.0f;
+        }
+
+        return 0.0f;
+    }
+
+    /**
+     * @return  The state the smoothed speed points to, given the current state
+     */
+    private int classify(float speed) {
+
+        switch (mState) {
+            case STATE_STATIONARY:
+                if (speed > FAST_ENTER_SPEED) {
+                    return STATE_FAST;
+                }
+                return (speed > WALKING_ENTER_SPEED) ? STATE_WALKING : STATE_STATIONARY;
+
+            case STATE_WALKING:
+                if (speed > FAST_ENTER_SPEED) {
+                    return STATE_FAST;
+                }
+                return (speed < WALKING_EXIT_SPEED) ? STATE_STATIONARY : STATE_WALKING;
+
+            default:
+                if (speed < WALKING_EXIT_SPEED) {
+                    return STATE_STATIONARY;
+                }
+                return (speed < FAST_EXIT_SPEED) ? STATE_WALKING : STATE_FAST;
+        }
+    }
+
+    /**
+     * @return  STATE_STATIONARY, STATE_WALKING or STATE_FAST
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return  How locations should be requested in the current state
+     */
+    public Profile getProfile() {
+        return mProfiles[mState];
+    }
+
+    /**
+     * @return  The smoothed speed, in m/s
+     */
+    public float getSmoothedSpeed() {
+        return mSmoothedSpeed;
+    }
+
+    /**
+     * @return  The number of times the state has changed since the last reset
+     */
+    public int getTransitionCount() {
+        return mTransitions;
+    }
+}
@@ -0,0 +1,548 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The state of the track being recorded, saved so that if the process dies the track can be
+ * carried on where it was rather than ended.
+ *
+ * A checkpoint holds everything needed to resume: which track file, how much of it is good and
+ * the encoder's totals as of there (from the TrackWriter), and the distance, filter position,
+ * clock and statistics as of the same fix (from the LocationPipeline).  The TrackWriter stores a
+ * checkpoint only once every fix before it is committed to the track file, so the two always
+ * agree.  Resuming reads one record, cuts the track file back to the offset in it (see
+ * TrackJournal.reopen()) and restores the pipeline and writer from it.  Of the splits, only the
+ * count and the end of the last are kept; reopen() times the earlier ones again from the
+ * checkpoints of the track's segments.
+ *
+ * The checkpoint file holds two slots of SLOT_SIZE bytes.  Each checkpoint goes into the slot
+ * older than the other, with a sequence number one higher than the last and a CRC, so a write
+ * torn by the process dying can only damage the slot being written, and read() takes the newest
+ * slot that is intact.
+ *
+ * <pre>
+ *   record   int magic 'TRKP', int version, long sequence,
+ *            byte name length, 39 bytes track file name (US-ASCII), long start time ms,
+ *            long file offset, int fix count, long last fix time ms, int bbox E7[4],
+ *            float distance as of the last fix stored,
+ *            int distance mode, double distance m, long fixes received, long fixes accepted,
+ *            byte has accepted, double lat, double lon, long time ms, float accuracy,
+ *            byte has received, double lat, double lon, long time ms,
+ *            long elapsed ns, long read at ns, byte paused,
+ *            TrackStats totals (TrackStats.STATE_SIZE bytes),
+ *            int CRC-32 of the preceding bytes
+ * </pre>
+ *
+ * A checkpoint is not thread safe.  The pipeline thread fills one in and hands it to the
+ * TrackWriter, which copies it.
+ */
+public class SessionCheckpoint {
+
+    /** The name of the checkpoint file in the track directory */
+    public static final String FILE_NAME = "session.chk";
+
+    /** 'TRKP' */
+    public static final int MAGIC = 0x54524B50;
+    public static final int VERSION = 3;
+
+    /** Size of a record */
+    public static final int RECORD_SIZE = 4 + 4 + 8
+                                          + 1 + TrackCatalog.MAX_NAME_LENGTH + 8
+                                          + 8 + 4 + 8 + 4 * 4 + 4
+                                          + 4 + 8 + 8 + 8
+                                          + 1 + 8 + 8 + 8 + 4
+                                          + 1 + 8 + 8 + 8
+                                          + 8 + 8 + 1
+                                          + TrackStats.STATE_SIZE
+                                          + 4;
+
+    /** Size of each of the two slots; a whole number of 4 KB pages */
+    public static final int SLOT_SIZE = (RECORD_SIZE + 4095) & ~4095;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The record being read or written */
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+
+    private long mSequence = 0;
+
+    /** The track */
+    private String mTrackName = null;
+    private final byte[] mTrackNameBytes = new byte[TrackCatalog.MAX_NAME_LENGTH];
+    private long mStartTimeMs;
+
+    /** The track file as of the checkpoint, from the TrackWriter */
+    private long mFileOffset;
+    private int mFixCount;
+    private long mLastFixTimeMs;
+    private int mMinLatE7;
+    private int mMinLonE7;
+    private int mMaxLatE7;
+    private int mMaxLonE7;
+    private float mStoredDistanceMeters;
+
+    /** The pipeline as of the checkpoint */
+    private int mDistanceMode = DistanceKernel.EXACT;
+    private double mDistanceMeters;
+    private long mReceived;
+    private long mAccepted;
+
+    /** The last location accepted into the track */
+    private boolean mHasAccepted = false;
+    private double mAcceptedLatitude;
+    private double mAcceptedLongitude;
+    private long mAcceptedTimeMs;
+    private float mAcceptedAccuracy;
+
+    /** The last location received, accepted or not */
+    private boolean mHasReceived = false;
+    private double mReceivedLatitude;
+    private double mReceivedLongitude;
+    private long mReceivedTimeMs;
+
+    /** The track clock */
+    private long mElapsedNanos;
+    private long mReadAtNanos;
+    private boolean mPaused;
+
+    private final TrackStats mStats = new TrackStats();
+
+    /**
+     * Sets which track this is the checkpoint of.
+     * @param name  The name of the track file, at most TrackCatalog.MAX_NAME_LENGTH characters
+     * @param startTimeMs  The wall clock time the track was started
+     */
+    public void setTrack(String name, long startTimeMs) {
+
+        if (name.length() > TrackCatalog.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Track name too long: " + name);
+        }
+
+        byte[] bytes = name.getBytes(ASCII);
+        System.arraycopy(bytes, 0, mTrackNameBytes, 0, bytes.length);
+        mTrackName = name;
+        mStartTimeMs = startTimeMs;
+    }
+
+    /**
+     * Sets the state of the track file.  Called by the TrackWriter once everything up to the
+     * checkpoint is committed.
+     */
+    void setFile(long offset, int fixCount, long lastFixTimeMs, int minLatE7, int minLonE7,
+                 int maxLatE7, int maxLonE7, float storedDistanceMeters) {
+        mFileOffset = offset;
+        mFixCount = fixCount;
+        mLastFixTimeMs = lastFixTimeMs;
+        mMinLatE7 = minLatE7;
+        mMinLonE7 = minLonE7;
+        mMaxLatE7 = maxLatE7;
+        mMaxLonE7 = maxLonE7;
+        mStoredDistanceMeters = storedDistanceMeters;
+    }
+
+    /**
+     * Sets the pipeline's distance and counts.
+     */
+    void setDistance(int distanceMode, double distanceMeters, long received, long accepted) {
+        mDistanceMode = distanceMode;
+        mDistanceMeters = distanceMeters;
+        mReceived = received;
+        mAccepted = accepted;
+    }
+
+    /**
+     * Sets the last location accepted into the track, which the filter carries on from.
+     * @param hasAccepted  False if no location has been accepted yet
+     */
+    void setLastAccepted(boolean hasAccepted, double latitude, double longitude, long timeMs,
+                         float accuracyMeters) {
+        mHasAccepted = hasAccepted;
+        mAcceptedLatitude = latitude;
+        mAcceptedLongitude = longitude;
+        mAcceptedTimeMs = timeMs;
+        mAcceptedAccuracy = accuracyMeters;
+    }
+
+    /**
+     * Sets the last location received, accepted or not.
+     * @param hasReceived  False if no location has been received yet
+     */
+    void setLastReceived(boolean hasReceived, double latitude, double longitude, long timeMs) {
+        mHasReceived = hasReceived;
+        mReceivedLatitude = latitude;
+        mReceivedLongitude = longitude;
+        mReceivedTimeMs = timeMs;
+    }
+
+    /**
+     * Sets a reading of the track clock.
+     * @param readAtNanos  When it was read, from the clock's time source
+     */
+    void setClock(long elapsedNanos, long readAtNanos, boolean paused) {
+        mElapsedNanos = elapsedNanos;
+        mReadAtNanos = readAtNanos;
+        mPaused = paused;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * Copies another checkpoint into this one, all but the sequence number, which belongs to the
+     * file the checkpoint is stored in.
+     * @param other  The checkpoint to copy
+     */
+    public void set(SessionCheckpoint other) {
+
+        mTrackName = other.mTrackName;
+        System.arraycopy(other.mTrackNameBytes, 0, mTrackNameBytes, 0, mTrackNameBytes.length);
+        mStartTimeMs = other.mStartTimeMs;
+
+        setFile(other.mFileOffset, other.mFixCount, other.mLastFixTimeMs, other.mMinLatE7,
+                other.mMinLonE7, other.mMaxLatE7, other.mMaxLonE7, other.mStoredDistanceMeters);
+        setDistance(other.mDistanceMode, other.mDistanceMeters, other.mReceived,
+                    other.mAccepted);
+        setLastAccepted(other.mHasAccepted, other.mAcceptedLatitude, other.mAcceptedLongitude,
+                        other.mAcceptedTimeMs, other.mAcceptedAccuracy);
+        setLastReceived(other.mHasReceived, other.mReceivedLatitude, other.mReceivedLongitude,
+                        other.mReceivedTimeMs);
+        setClock(other.mElapsedNanos, other.mReadAtNanos, other.mPaused);
+        mStats.set(other.mStats);
+    }
+
+    /**
+     * Stores the checkpoint in the slot older than the last one written.  Doesn't allocate.  A
+     * new track's checkpoints must go in an empty file, or an older track's could be read back.
+     * @param channel  The checkpoint file
+     * @param force  True to force the checkpoint to the storage device before returning
+     * @throws IOException  if the checkpoint can't be written
+     */
+    public void write(FileChannel channel, boolean force) throws IOException {
+
+        mSequence++;
+
+        ByteBuffer record = mRecord;
+        record.clear();
+
+        record.putInt(MAGIC);
+        record.putInt(VERSION);
+        record.putLong(mSequence);
+
+        int nameLength = (mTrackName != null) ? mTrackName.length() : 0;
+        record.put((byte) nameLength);
+        record.put(mTrackNameBytes, 0, TrackCatalog.MAX_NAME_LENGTH);
+        record.putLong(mStartTimeMs);
+
+        record.putLong(mFileOffset);
+        record.putInt(mFixCount);
+        record.putLong(mLastFixTimeMs);
+        record.putInt(mMinLatE7);
+        record.putInt(mMinLonE7);
+        record.putInt(mMaxLatE7);
+        record.putInt(mMaxLonE7);
+        record.putFloat(mStoredDistanceMeters);
+
+        record.putInt(mDistanceMode);
+        record.putDouble(mDistanceMeters);
+        record.putLong(mReceived);
+        record.putLong(mAccepted);
+
+        record.put((byte) (mHasAccepted ? 1 : 0));
+        record.putDouble(mAcceptedLatitude);
+        record.putDouble(mAcceptedLongitude);
+        record.putLong(mAcceptedTimeMs);
+        record.putFloat(mAcceptedAccuracy);
+
+        record.put((byte) (mHasReceived ? 1 : 0));
+        record.putDouble(mReceivedLatitude);
+        record.putDouble(mReceivedLongitude);
+        record.putLong(mReceivedTimeMs);
+
+        record.putLong(mElapsedNanos);
+        record.putLong(mReadAtNanos);
+        record.put((byte) (mPaused ? 1 : 0));
+
+        mStats.save(record);
+
+        record.putInt(Crc32.compute(record, 0, record.position()));
+        record.flip();
+
+        long position = (mSequence & 1) * SLOT_SIZE;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Loads the newest intact checkpoint from a checkpoint file.
+     * @param channel  The checkpoint file
+     * @return  True if a checkpoint was loaded, false if the file holds no intact checkpoint
+     *          (it is empty, or its slots are both damaged); this checkpoint is then unchanged
+     * @throws IOException  if the file can't be read
+     */
+    public boolean read(FileChannel channel) throws IOException {
+
+        long newest = 0;
+        int newestSlot = -1;
+
+        for (int slot = 0; slot < 2; slot++) {
+            if (readSlot(channel, slot) && (mRecord.getLong(8) > newest)) {
+                newest = mRecord.getLong(8);
+                newestSlot = slot;
+            }
+        }
+
+        if ((newestSlot < 0) || !readSlot(channel, newestSlot)) {
+            return false;
+        }
+
+        ByteBuffer record = mRecord;
+        record.position(8);
+
+        mSequence = record.getLong();
+
+        int nameLength = record.get();
+        record.get(mTrackNameBytes, 0, TrackCatalog.MAX_NAME_LENGTH);
+        mTrackName = new String(mTrackNameBytes, 0, nameLength, ASCII);
+        mStartTimeMs = record.getLong();
+
+        mFileOffset = record.getLong();
+        mFixCount = record.getInt();
+        mLastFixTimeMs = record.getLong();
+        mMinLatE7 = record.getInt();
+        mMinLonE7 = record.getInt();
+        mMaxLatE7 = record.getInt();
+        mMaxLonE7 = record.getInt();
+        mStoredDistanceMeters = record.getFloat();
+
+        mDistanceMode = record.getInt();
+        mDistanceMeters = record.getDouble();
+        mReceived = record.getLong();
+        mAccepted = record.getLong();
+
+        mHasAccepted = record.get() != 0;
+        mAcceptedLatitude = record.getDouble();
+        mAcceptedLongitude = record.getDouble();
+        mAcceptedTimeMs = record.getLong();
+        mAcceptedAccuracy = record.getFloat();
+
+        mHasReceived = record.get() != 0;
+        mReceivedLatitude = record.getDouble();
+        mReceivedLongitude = record.getDouble();
+        mReceivedTimeMs = record.getLong();
+
+        mElapsedNanos = record.getLong();
+        mReadAtNanos = record.getLong();
+        mPaused = record.get() != 0;
+
+        mStats.restore(record);
+
+        return true;
+    }
+
+    /**
+     * Reads a slot into mRecord and checks it.
+     * @return  True if the slot holds an intact record
+     */
+    private boolean readSlot(FileChannel channel, int slot) throws IOException {
+
+        ByteBuffer record = mRecord;
+        record.clear();
+
+        long position = (long) slot * SLOT_SIZE;
+        while (record.hasRemaining()) {
+            int n = channel.read(record, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+
+        int crcOffset = RECORD_SIZE - 4;
+        int nameLength = record.get(16);
+
+        return (record.getInt(0) == MAGIC) && (record.getInt(4) == VERSION)
+                && (nameLength >= 0) && (nameLength <= TrackCatalog.MAX_NAME_LENGTH)
+                && (record.getInt(crcOffset) == Crc32.compute(record, 0, crcOffset));
+    }
+
+    /**
+     * @return  The sequence number of the checkpoint last read or written; 0 before either
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return  The name of the track file, or null if it hasn't been set
+     */
+    public String getTrackName() {
+        return mTrackName;
+    }
+
+    /**
+     * @return  The wall clock time the track was started, in ms since the epoch
+     */
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    /**
+     * @return  The size of the track file as of the checkpoint; anything after it is cut off on
+     *          resuming
+     */
+    public long getFileOffset() {
+        return mFileOffset;
+    }
+
+    /**
+     * @return  The number of fixes in the track file as of the checkpoint
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * @return  The time of the newest fix in the track file, in ms since the epoch
+     */
+    public long getLastFixTimeMs() {
+        return mLastFixTimeMs;
+    }
+
+    /**
+     * The bounding box of the fixes in the track file, in 1e-7 degrees; min greater than max if
+     * there are none
+     */
+    public int getMinLatitudeE7() {
+        return mMinLatE7;
+    }
+
+    public int getMinLongitudeE7() {
+        return mMinLonE7;
+    }
+
+    public int getMaxLatitudeE7() {
+        return mMaxLatE7;
+    }
+
+    public int getMaxLongitudeE7() {
+        return mMaxLonE7;
+    }
+
+    /**
+     * @return  The total distance as of the newest fix in the track file, in meters
+     */
+    public float getStoredDistanceMeters() {
+        return mStoredDistanceMeters;
+    }
+
+    /**
+     * @return  The distance mode of the track; see DistanceKernel
+     */
+    public int getDistanceMode() {
+        return mDistanceMode;
+    }
+
+    /**
+     * @return  The total distance of the track, in meters
+     */
+    public double getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /**
+     * @return  The number of locations received, and of those accepted into the track
+     */
+    public long getReceivedCount() {
+        return mReceived;
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted;
+    }
+
+    /**
+     * @return  True if a location had been accepted into the track
+     */
+    public boolean hasAccepted() {
+        return mHasAccepted;
+    }
+
+    /**
+     * The last location accepted into the track, at the filter's position
+     */
+    public double getAcceptedLatitude() {
+        return mAcceptedLatitude;
+    }
+
+    public double getAcceptedLongitude() {
+        return mAcceptedLongitude;
+    }
+
+    public long getAcceptedTimeMs() {
+        return mAcceptedTimeMs;
+    }
+
+    public float getAcceptedAccuracy() {
+        return mAcceptedAccuracy;
+    }
+
+    /**
+     * @return  True if a location had been received
+     */
+    public boolean hasReceived() {
+        return mHasReceived;
+    }
+
+    /**
+     * The last location received, accepted or not.  Locations up to its time are in the
+     * checkpoint; a source replaying the track carries on after it.
+     */
+    public double getReceivedLatitude() {
+        return mReceivedLatitude;
+    }
+
+    public double getReceivedLongitude() {
+        return mReceivedLongitude;
+    }
+
+    public long getReceivedTimeMs() {
+        return mReceivedTimeMs;
+    }
+
+    /**
+     * @return  The elapsed time of the track, in ns, when the clock was read
+     */
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    /**
+     * @return  When the clock was read, from its time source
+     */
+    public long getReadAtNanos() {
+        return mReadAtNanos;
+    }
+
+    /**
+     * @return  True if the clock was paused
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return  The statistics of the track
+     */
+    public TrackStats getStats() {
+        return mStats;
+    }
+}
@@ -0,0 +1,207 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * The text of one value on the live stats display, formatted into a reusable char buffer.
+ *
+ * Each set method formats the value without allocating and reports whether the text changed, so
+ * the display only touches a view when what it shows is different.  The text is read with
+ * getChars() and length(), which suit TextView.setText(char[], int, int).
+ *
+ * TextView keeps the array it is given rather than copying it, so the text is double buffered:
+ * a value is formatted into the array the view was given the time before last, never the one
+ * it is showing.  That only holds if the view is given the text every time a set method returns
+ * true.
+ */
+public final class StatsText {
+
+    /** Powers of ten for setFixed() */
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+    };
+
+    /** The most decimal places setFixed() supports */
+    public static final int MAX_DECIMALS = POWERS_OF_TEN.length - 1;
+
+    /** Room for any long with a sign, or hh:mm:ss of any elapsed time */
+    private static final int CAPACITY = 32;
+
+    /** The text shown */
+    private char[] mText = new char[CAPACITY];
+    private int mLength = 0;
+
+    /** The text being formatted; swapped with mText if it differs */
+    private char[] mScratch = new char[CAPACITY];
+    private int mScratchLength;
+
+    /**
+     * Sets the text to an elapsed time in hh:mm:ss format.  Hours are at least two digits.
+     * @param totalSeconds  The elapsed time in seconds
+     * @return  True if the text changed
+     */
+    public boolean setElapsed(long totalSeconds) {
+
+        if (totalSeconds < 0) {
+            totalSeconds = 0;
+        }
+
+        mScratchLength = 0;
+        long hours = totalSeconds / 3600;
+        if (hours < 10) {
+            append('0');
+        }
+        appendDigits(hours);
+        append(':');
+        appendTwoDigits((int) ((totalSeconds / 60) % 60));
+        append(':');
+        appendTwoDigits((int) (totalSeconds % 60));
+
+        return commit();
+    }
+
+    /**
+     * Sets the text to an integer, as "%d" would format it.
+     * @return  True if the text changed
+     */
+    public boolean setInteger(long value) {
+
+        mScratchLength = 0;
+        if (value < 0) {
+            append('-');
+            if (value == Long.MIN_VALUE) {
+                /* Can't be negated; format the last digit separately */
+                appendDigits(-(value / 10));
+                append('8');
+                return commit();
+            }
+            value = -value;
+        }
+        appendDigits(value);
+
+        return commit();
+    }
+
+    /**
+     * Sets the text to a number with a fixed number of decimal places, right aligned in the given
+     * width, as "%{width}.{decimals}f" would format it.  Values too large for the decimals
+     * requested (over about 9e10 with 8 places) are clamped.
+     * @param decimals  Decimal places, 0 to MAX_DECIMALS
+     * @param width  Minimum width; shorter text is padded on the left with spaces
+     * @return  True if the text changed
+     */
+    public boolean setFixed(double value, int decimals, int width) {
+
+        if ((decimals < 0) || (decimals > MAX_DECIMALS)) {
+            throw new IllegalArgumentException("Unsupported decimal places " + decimals);
+        }
+
+        long scale = POWERS_OF_TEN[decimals];
+        boolean negative = value < 0.0;
+        double magnitude = Math.abs(value) * scale;
+        long limit = Long.MAX_VALUE / 10;
+        long scaled = (magnitude >= limit) ? limit : (long) (magnitude + 0.5);
+
+        long whole = scaled / scale;
+        long fraction = scaled % scale;
+
+        /* Work out the length first, so the padding can go in front */
+        int length = countDigits(whole) + ((decimals > 0) ? decimals + 1 : 0);
+        if (negative) {
+            length++;
+        }
+
+        mScratchLength = 0;
+        for (int i = length; i < width; i++) {
+            append(' ');
+        }
+        if (negative) {
+            append('-');
+        }
+        appendDigits(whole);
+        if (decimals > 0) {
+            append('.');
+            for (int d = decimals - 1; d >= 0; d--) {
+                append((char) ('0' + (fraction / POWERS_OF_TEN[d]) % 10));
+            }
+        }
+
+        return commit();
+    }
+
+    /**
+     * @return  The text.  Only the first length() chars are valid, and the array may be replaced
+     *          by the next set call.
+     */
+    public char[] getChars() {
+        return mText;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mText, 0, mLength);
+    }
+
+    /**
+     * Makes the formatted text current if it differs from the current text.
+     * @return  True if the text changed
+     */
+    private boolean commit() {
+
+        if (mScratchLength == mLength) {
+            int i = 0;
+            while ((i < mLength) && (mScratch[i] == mText[i])) {
+                i++;
+            }
+            if (i == mLength) {
+                return false;
+            }
+        }
+
+        char[] text = mText;
+        mText = mScratch;
+        mLength = mScratchLength;
+        mScratch = text;
+        return true;
+    }
+
+    private void append(char c) {
+        if (mScratchLength < CAPACITY) {
+            mScratch[mScratchLength++] = c;
+        }
+    }
+
+    private void appendTwoDigits(int value) {
+        append((char) ('0' + value / 10));
+        append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Appends a non-negative number without leading zeros
+     */
+    private void appendDigits(long value) {
+
+        int digits = countDigits(value);
+        int end = mScratchLength + digits;
+        if (end > CAPACITY) {
+            return;
+        }
+
+        for (int i = end - 1; i >= mScratchLength; i--) {
+            mScratch[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        mScratchLength = end;
+    }
+
+    private static int countDigits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,62 @@
+package android.redskysoftware.com.tracker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that any number of threads can add to cheaply, such as the number of fixes received.
+ *
+ * The count is split over STRIPES cells, each on its own cache line, and a thread adds to the
+ * cell its id hashes to, so threads counting at the same time rarely touch the same line.  get()
+ * adds the cells up, so it costs more than add() and may miss adds made while it runs.  This is
+ * LongAdder, which needs API 24, cut down to what the metrics need.
+ *
+ * Adding doesn't allocate.  Counters are created by a MetricsRegistry.
+ */
+public final class StripedCounter {
+
+    /** Number of cells */
+    private static final int STRIPE_BITS = 3;
+    static final int STRIPES = 1 << STRIPE_BITS;
+
+    /** Longs from one cell to the next, so each is on its own 64 byte cache line */
+    private static final int PAD = 8;
+
+    private final String mName;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    StripedCounter(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(stripe() * PAD, delta);
+    }
+
+    /**
+     * @return  The count
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * @return  The cell for the calling thread, from a Fibonacci hash of its id
+     */
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+    }
+}
@@ -0,0 +1,199 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * A single periodic tick shared by everything that needs to do something regularly while a
+ * track is shown, such as updating the display once a second.
+ *
+ * Ticks are scheduled against a monotonic clock: each tick is due a whole number of periods after
+ * the first, however late the one before it ran, so the ticks don't drift.  A tick that is missed
+ * entirely (the thread was busy for more than a period) is skipped rather than delivered late.
+ * Nothing is scheduled while there are no listeners, so an idle scheduler costs nothing.
+ *
+ * Ticks are delivered on the thread the Timer runs its tasks on; on the device that's the main
+ * thread (see TrackerDataModel.getTickScheduler()).  Listeners must be added and removed on that
+ * thread too.
+ */
+public class TickScheduler {
+
+    /**
+     * Receives ticks
+     */
+    public interface Listener {
+        void onTick();
+    }
+
+    /**
+     * Runs a task after a delay, on the thread ticks are delivered on
+     */
+    public interface Timer {
+        void postDelayed(Runnable task, long delayMs);
+        void cancel(Runnable task);
+    }
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    private final TrackClock.TimeSource mTimeSource;
+    private final Timer mTimer;
+    private long mPeriodNs;
+
+    /**
+     * The listeners.  The array is replaced rather than changed, so a listener can add or remove
+     * listeners from onTick().
+     */
+    private Listener[] mListeners = NO_LISTENERS;
+
+    /** The time the next tick is due */
+    private long mNextTickNs;
+
+    /** True while a tick is posted to the timer */
+    private boolean mScheduled = false;
+
+    /** The number of ticks delivered */
+    private long mTickCount = 0;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /**
+     * @param timeSource  The monotonic clock ticks are scheduled against
+     * @param timer  Runs the tick
+     * @param periodMs  The time between ticks
+     */
+    public TickScheduler(TrackClock.TimeSource timeSource, Timer timer, long periodMs) {
+
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("The tick period must be positive");
+        }
+
+        mTimeSource = timeSource;
+        mTimer = timer;
+        mPeriodNs = periodMs * 1000000L;
+    }
+
+    /**
+     * Adds a listener.  The first listener starts the ticks; its first tick is one period later.
+     */
+    public void addListener(Listener listener) {
+
+        int count = mListeners.length;
+        for (Listener l : mListeners) {
+            if (l == listener) {
+                return;
+            }
+        }
+
+        Listener[] listeners = new Listener[count + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, count);
+        listeners[count] = listener;
+        mListeners = listeners;
+
+        if (!mScheduled) {
+            mNextTickNs = mTimeSource.nanoTime() + mPeriodNs;
+            mTimer.postDelayed(mTick, mPeriodNs / 1000000L);
+            mScheduled = true;
+        }
+    }
+
+    /**
+     * Removes a listener.  Removing the last listener stops the ticks.
+     */
+    public void removeListener(Listener listener) {
+
+        int count = mListeners.length;
+        for (int i = 0; i < count; i++) {
+            if (mListeners[i] == listener) {
+
+                if (count == 1) {
+                    mListeners = NO_LISTENERS;
+                    mTimer.cancel(mTick);
+                    mScheduled = false;
+                } else {
+                    Listener[] listeners = new Listener[count - 1];
+                    System.arraycopy(mListeners, 0, listeners, 0, i);
+                    System.arraycopy(mListeners, i + 1, listeners, i, count - i - 1);
+                    mListeners = listeners;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Changes the time between ticks.  If ticks are running, the next tick is one new period
+     * from now.
+     * @param periodMs  The time between ticks
+     */
+    public void setPeriodMs(long periodMs) {
+
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("The tick period must be positive");
+        }
+
+        mPeriodNs = periodMs * 1000000L;
+
+        if (mScheduled) {
+            mTimer.cancel(mTick);
+            mNextTickNs = mTimeSource.nanoTime() + mPeriodNs;
+            mTimer.postDelayed(mTick, periodMs);
+        }
+    }
+
+    /**
+     * @return  The time between ticks, in ms
+     */
+    public long getPeriodMs() {
+        return mPeriodNs / 1000000L;
+    }
+
+    /**
+     * @return  The number of listeners
+     */
+    public int getListenerCount() {
+        return mListeners.length;
+    }
+
+    /**
+     * @return  The number of ticks delivered so far
+     */
+    public long getTickCount() {
+        return mTickCount;
+    }
+
+    private void tick() {
+
+        mScheduled = false;
+
+        Listener[] listeners = mListeners;
+        if (listeners.length == 0) {
+            return;
+        }
+
+        mTickCount++;
+        for (Listener listener : listeners) {
+            listener.onTick();
+        }
+
+        /* Stop if the listeners all went away, or were replaced and the ticks restarted */
+        if ((mListeners.length == 0) || mScheduled) {
+            return;
+        }
+
+        //
+        // Schedule the next tick a whole number of periods after the last one was due, skipping
+        // any that have already been missed.
+        //
+        long now = mTimeSource.nanoTime();
+        mNextTickNs += mPeriodNs;
+        if (mNextTickNs <= now) {
+            mNextTickNs += ((now - mNextTickNs) / mPeriodNs + 1) * mPeriodNs;
+        }
+
+        /* Round up, so the tick never runs before it's due */
+        mTimer.postDelayed(mTick, (mNextTickNs - now + 999999L) / 1000000L);
+        mScheduled = true;
+    }
+}
@@ -0,0 +1,260 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * The points of the track being recorded, held in memory so the UI and analytics can look at the
+ * track so far without rereading the file.
+ *
+ * Points are stored as a structure of arrays: latitude and longitude as int E7 degrees, time as
+ * an int ms offset from the first point and accuracy as an unsigned short of decimeters, 14 bytes
+ * a point.  The arrays are allocated in fixed-size chunks, so the buffer grows without copying
+ * and without an object per point; a 10 hour track at 1 Hz takes about 500 KB.
+ *
+ * One thread appends (the thread delivering locations).  Any number of threads can read through
+ * a View, which reads the chunks in place rather than copying them.  A view sees the points that
+ * had been appended when it was created or last refreshed.
+ */
+public class TrackBuffer {
+
+    /** Points per chunk, a power of two */
+    static final int CHUNK_SIZE = 4096;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** Bytes used per point */
+    public static final int BYTES_PER_POINT = 4 + 4 + 4 + 2;
+
+    /*
+     * The chunk directories, replaced by larger copies when they fill.  A chunk is always in
+     * place before mSize counts any point in it, so a view that reads mSize first sees
+     * directories that hold every point it counts.
+     */
+    private int[][] mLatE7 = new int[4][];
+    private int[][] mLonE7 = new int[4][];
+    private int[][] mTimeOffsetMs = new int[4][];
+    private short[][] mAccuracyDm = new short[4][];
+
+    private long mStartTimeMs = 0;
+
+    /** The number of points; written only by the appending thread, after the point itself */
+    private volatile int mSize = 0;
+
+    /**
+     * Read-only access to the points of a TrackBuffer, up to the size at the time the view was
+     * created or last refreshed.  The view reads the buffer's arrays directly.
+     */
+    public static final class View {
+
+        private final TrackBuffer mBuffer;
+
+        private int mSize;
+        private long mStartTimeMs;
+        private int[][] mLatE7;
+        private int[][] mLonE7;
+        private int[][] mTimeOffsetMs;
+        private short[][] mAccuracyDm;
+
+        private View(TrackBuffer buffer) {
+            mBuffer = buffer;
+            refresh();
+        }
+
+        /**
+         * Brings the view up to date with the points appended since it was created.
+         * @return  The number of points now in the view
+         */
+        public int refresh() {
+            TrackBuffer buffer = mBuffer;
+            int size;
+            synchronized (buffer) {
+                /* mSize is read first; see the note on the chunk directories */
+                size = buffer.mSize;
+                mStartTimeMs = buffer.mStartTimeMs;
+                mLatE7 = buffer.mLatE7;
+                mLonE7 = buffer.mLonE7;
+                mTimeOffsetMs = buffer.mTimeOffsetMs;
+                mAccuracyDm = buffer.mAccuracyDm;
+            }
+            mSize = size;
+            return size;
+        }
+
+        /**
+         * @return  The number of points in the view
+         */
+        public int size() {
+            return mSize;
+        }
+
+        public int getLatitudeE7(int index) {
+            checkIndex(index);
+            return mLatE7[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+
+        public int getLongitudeE7(int index) {
+            checkIndex(index);
+            return mLonE7[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+
+        public double getLatitude(int index) {
+            return TrackFormat.fromE7(getLatitudeE7(index));
+        }
+
+        public double getLongitude(int index) {
+            return TrackFormat.fromE7(getLongitudeE7(index));
+        }
+
+        /**
+         * @return  The time of the point, in ms since the epoch
+         */
+        public long getTimeMs(int index) {
+            checkIndex(index);
+            return mStartTimeMs + mTimeOffsetMs[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        }
+
+        /**
+         * @return  The accuracy of the point in decimeters, 0 if unknown
+         */
+        public int getAccuracyDm(int index) {
+            checkIndex(index);
+            return mAccuracyDm[index >>> CHUNK_SHIFT][index & CHUNK_MASK] & 0xFFFF;
+        }
+
+        /**
+         * @return  The accuracy of the point in meters, 0 if unknown
+         */
+        public float getAccuracy(int index) {
+            return getAccuracyDm(index) / 10.0f;
+        }
+
+        private void checkIndex(int index) {
+            if ((index < 0) || (index >= mSize)) {
+                throw new IndexOutOfBoundsException("Point " + index + " of " + mSize);
+            }
+        }
+    }
+
+    /**
+     * Adds a point.  Must only be called from one thread.
+     * @param latitude  Latitude in degrees
+     * @param longitude  Longitude in degrees
+     * @param timeMs  Time of the point, in ms since the epoch
+     * @param accuracyMeters  Accuracy in meters, 0 if unknown
+     */
+    public void append(double latitude, double longitude, long timeMs, float accuracyMeters) {
+        appendE7(TrackFormat.toE7(latitude), TrackFormat.toE7(longitude), timeMs,
+                 TrackFormat.toAccuracyDm(accuracyMeters));
+    }
+
+    /**
+     * Adds a point.  Must only be called from one thread.  Times more than about 24 days after
+     * the first point are clamped.
+     * @param accuracyDm  Accuracy in decimeters, 0 to TrackFormat.MAX_ACCURACY_DM
+     */
+    public void appendE7(int latE7, int lonE7, long timeMs, int accuracyDm) {
+
+        int size = mSize;
+        int chunk = size >>> CHUNK_SHIFT;
+        int slot = size & CHUNK_MASK;
+
+        if (size == 0) {
+            mStartTimeMs = timeMs;
+        }
+
+        if (slot == 0) {
+            addChunk(chunk);
+        }
+
+        long offset = timeMs - mStartTimeMs;
+        if (offset > Integer.MAX_VALUE) {
+            offset = Integer.MAX_VALUE;
+        } else if (offset < Integer.MIN_VALUE) {
+            offset = Integer.MIN_VALUE;
+        }
+
+        mLatE7[chunk][slot] = latE7;
+        mLonE7[chunk][slot] = lonE7;
+        mTimeOffsetMs[chunk][slot] = (int) offset;
+        mAccuracyDm[chunk][slot] = (short) accuracyDm;
+
+        /* Publish the point; the volatile write makes the array stores visible first */
+        mSize = size + 1;
+    }
+
+    /**
+     * Allocates a chunk, replacing the directories with larger copies if they are full.
+     */
+    private void addChunk(int chunk) {
+
+        if (chunk == mLatE7.length) {
+
+            int length = chunk * 2;
+            int[][] lat = new int[length][];
+            int[][] lon = new int[length][];
+            int[][] time = new int[length][];
+            short[][] accuracy = new short[length][];
+
+            System.arraycopy(mLatE7, 0, lat, 0, chunk);
+            System.arraycopy(mLonE7, 0, lon, 0, chunk);
+            System.arraycopy(mTimeOffsetMs, 0, time, 0, chunk);
+            System.arraycopy(mAccuracyDm, 0, accuracy, 0, chunk);
+
+            lat[chunk] = new int[CHUNK_SIZE];
+            lon[chunk] = new int[CHUNK_SIZE];
+            time[chunk] = new int[CHUNK_SIZE];
+            accuracy[chunk] = new short[CHUNK_SIZE];
+
+            synchronized (this) {
+                mLatE7 = lat;
+                mLonE7 = lon;
+                mTimeOffsetMs = time;
+                mAccuracyDm = accuracy;
+            }
+        } else {
+            mLatE7[chunk] = new int[CHUNK_SIZE];
+            mLonE7[chunk] = new int[CHUNK_SIZE];
+            mTimeOffsetMs[chunk] = new int[CHUNK_SIZE];
+            mAccuracyDm[chunk] = new short[CHUNK_SIZE];
+        }
+    }
+
+    /**
+     * Removes all points.  Must only be called from the appending thread.  Views created before
+     * this keep seeing the old points until they are refreshed.
+     */
+    public synchronized void clear() {
+        mLatE7 = new int[4][];
+        mLonE7 = new int[4][];
+        mTimeOffsetMs = new int[4][];
+        mAccuracyDm = new short[4][];
+        mStartTimeMs = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return  A view of the points appended so far
+     */
+    public View newView() {
+        return new View(this);
+    }
+
+    /**
+     * @return  The number of points
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return  The time of the first point, in ms since the epoch
+     */
+    public synchronized long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    /**
+     * @return  The bytes allocated for points, including the unused part of the last chunk
+     */
+    public int getAllocatedBytes() {
+        return ((mSize + CHUNK_MASK) >>> CHUNK_SHIFT) * CHUNK_SIZE * BYTES_PER_POINT;
+    }
+}
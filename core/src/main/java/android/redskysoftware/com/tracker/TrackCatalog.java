@@ -0,0 +1,535 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An index of the stored tracks, so the history can be listed without opening every track file.
+ *
+ * The catalog is a single file of fixed-size records, one per track, holding what the history
+ * needs to show and sort a track: the file name, start time, elapsed time, distance, number of
+ * points and bounding box.  The whole file is read with one sequential read; after that every
+ * value is read from memory through index-based getters, with no object per track.  Records are
+ * never moved, so a track's index stays valid for as long as the catalog is open, and a record
+ * is updated by rewriting just that record in place.
+ *
+ * <pre>
+ *   header   int magic 'TRKI', int version, int record count, int reserved
+ *   record   byte name length, 39 bytes name (US-ASCII), long start time ms,
+ *            long elapsed ms (ELAPSED_UNFINISHED while recording), float distance m,
+ *            int point count, int min lat E7, int min lon E7, int max lat E7, int max lon E7,
+ *            12 bytes reserved, int CRC-32 of the preceding 92 bytes
+ * </pre>
+ *
+ * The catalog can always be rebuilt from the track files.  If it is missing or any record fails
+ * its CRC (a write torn by the app being killed), open() rebuilds it.
+ *
+ * The catalog is updated by the data model while the history reads it.  The records in memory
+ * are guarded by the catalog's monitor, which is only ever held to read or change memory: track
+ * files are read and the catalog file written outside it, so a getter on the UI thread never
+ * waits on storage.  The writes themselves are made one at a time, in the order the changes were
+ * made, under a lock of their own.
+ */
+public class TrackCatalog {
+
+    /** The name of the catalog file in the track directory */
+    public static final String FILE_NAME = "tracks.idx";
+
+    /** 'TRKI' */
+    public static final int MAGIC = 0x54524B49;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 96;
+
+    /** The longest track file name that can be stored */
+    public static final int MAX_NAME_LENGTH = 39;
+
+    /** The elapsed time of a track that is still being recorded (or was never finished) */
+    public static final long ELAPSED_UNFINISHED = -1;
+
+    /** The most tracks the catalog can hold (see sortedByStartTime()) */
+    public static final int MAX_TRACKS = 1 << 20;
+
+    private static final int COUNT_OFFSET = 8;
+
+    /* Offsets of the fields within a record */
+    private static final int NAME_OFFSET = 0;
+    private static final int START_OFFSET = 40;
+    private static final int ELAPSED_OFFSET = 48;
+    private static final int DISTANCE_OFFSET = 56;
+    private static final int FIX_COUNT_OFFSET = 60;
+    private static final int MIN_LAT_OFFSET = 64;
+    private static final int MIN_LON_OFFSET = 68;
+    private static final int MAX_LAT_OFFSET = 72;
+    private static final int MAX_LON_OFFSET = 76;
+    private static final int CRC_OFFSET = 92;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The directory holding the tracks and the catalog */
+    private final File mDir;
+
+    private final File mFile;
+
+    /** The contents of the catalog file: the header followed by the records */
+    private ByteBuffer mData = ByteBuffer.allocate(HEADER_SIZE);
+
+    private int mCount = 0;
+
+    /** Scratch array for names */
+    private final byte[] mName = new byte[MAX_NAME_LENGTH];
+
+    /** Held while reading or writing the catalog file, and while changing the catalog */
+    private final Object mFileLock = new Object();
+
+    /** A record and the header, copied out of mData to be written; guarded by mFileLock */
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+
+    /**
+     * @param dir  The directory holding the track files
+     */
+    public TrackCatalog(File dir) {
+        mDir = dir;
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Loads the catalog, rebuilding it from the track files if it is missing or damaged.
+     * @throws IOException  if the catalog can't be read or rebuilt
+     */
+    public void open() throws IOException {
+        synchronized (mFileLock) {
+            if (!load()) {
+                rebuild();
+            }
+        }
+    }
+
+    /**
+     * Reads the catalog file with a single read.
+     * @return  True if the catalog was loaded, false if it is missing or damaged
+     * @throws IOException  if the file exists but can't be read
+     */
+    public boolean load() throws IOException {
+        synchronized (mFileLock) {
+            return loadFile();
+        }
+    }
+
+    /** Does the work of load(); the caller holds mFileLock */
+    private boolean loadFile() throws IOException {
+
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        ByteBuffer data;
+        int records;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            long length = file.length();
+            if ((length < HEADER_SIZE)
+                    || (length > HEADER_SIZE + (long) MAX_TRACKS * RECORD_SIZE)) {
+                return false;
+            }
+            records = (int) (length - HEADER_SIZE) / RECORD_SIZE;
+            data = ByteBuffer.allocate(capacityFor(records + 1));
+            file.readFully(data.array(), 0, (int) length);
+        }
+
+        if ((data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)) {
+            return false;
+        }
+
+        int count = data.getInt(COUNT_OFFSET);
+        if ((count < 0) || (count > records)) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            int crc = Crc32.compute(data, record, record + CRC_OFFSET);
+            if (crc != data.getInt(record + CRC_OFFSET)) {
+                return false;
+            }
+        }
+
+        synchronized (this) {
+            mData = data;
+            mCount = count;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the catalog by reading the footer of every track file, then replaces the catalog
+     * file with the result.  The tracks are added to the catalog in memory as they are read.
+     * @throws IOException  if the new catalog can't be written
+     */
+    public void rebuild() throws IOException {
+
+        synchronized (mFileLock) {
+
+            synchronized (this) {
+                mData = ByteBuffer.allocate(capacityFor(16));
+                mCount = 0;
+            }
+
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    /* File names are unique, so there's no need to look for an existing record */
+                    if (file.getName().endsWith(TrackFormat.FILE_EXTENSION)) {
+                        putRecord(file, false);
+                    }
+                }
+            }
+
+            writeAll();
+        }
+    }
+
+    /**
+     * Replaces the catalog file with the catalog in memory.
+     */
+    private void writeAll() throws IOException {
+
+        byte[] contents;
+        synchronized (this) {
+            mData.putInt(0, MAGIC);
+            mData.putInt(4, VERSION);
+            mData.putInt(COUNT_OFFSET, mCount);
+            contents = Arrays.copyOf(mData.array(), HEADER_SIZE + mCount * RECORD_SIZE);
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(contents);
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + mFile);
+        }
+    }
+
+    /**
+     * Adds or updates the record for a track file by reading its footer.  A file that is still
+     * being written (or can't be read) is recorded as unfinished.
+     * @param file  The track file
+     * @return  The index of the track's record, or -1 if the file isn't a track
+     * @throws IOException  if the catalog can't be written
+     */
+    public int index(File file) throws IOException {
+        synchronized (mFileLock) {
+            int index = putRecord(file, true);
+            if (index >= 0) {
+                writeRecord(index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Adds a record for a track, or rewrites the existing record with the same name, and writes
+     * it to the catalog file.
+     * @return  The index of the track's record
+     * @throws IOException  if the catalog can't be written
+     */
+    public int put(String name, long startTimeMs, long elapsedMs, float distanceMeters,
+                   int fixCount, int minLatE7, int minLonE7, int maxLatE7, int maxLonE7)
+            throws IOException {
+
+        synchronized (mFileLock) {
+            int index;
+            synchronized (this) {
+                index = setRecord(indexOf(name), name, startTimeMs, elapsedMs, distanceMeters,
+                                  fixCount, minLatE7, minLonE7, maxLatE7, maxLonE7);
+            }
+            writeRecord(index);
+            return index;
+        }
+    }
+
+    /**
+     * Rewrites the totals of an existing record in place.
+     * @param index  The index returned by put() or index()
+     * @throws IOException  if the catalog can't be written
+     */
+    public void update(int index, long elapsedMs, float distanceMeters, int fixCount,
+                       int minLatE7, int minLonE7, int maxLatE7, int maxLonE7)
+            throws IOException {
+
+        synchronized (mFileLock) {
+
+            synchronized (this) {
+                checkIndex(index);
+
+                int record = HEADER_SIZE + index * RECORD_SIZE;
+                mData.putLong(record + ELAPSED_OFFSET, elapsedMs);
+                mData.putFloat(record + DISTANCE_OFFSET, distanceMeters);
+                mData.putInt(record + FIX_COUNT_OFFSET, fixCount);
+                mData.putInt(record + MIN_LAT_OFFSET, minLatE7);
+                mData.putInt(record + MIN_LON_OFFSET, minLonE7);
+                mData.putInt(record + MAX_LAT_OFFSET, maxLatE7);
+                mData.putInt(record + MAX_LON_OFFSET, maxLonE7);
+                mData.putInt(record + CRC_OFFSET,
+                             Crc32.compute(mData, record, record + CRC_OFFSET));
+            }
+
+            writeRecord(index);
+        }
+    }
+
+    /**
+     * @return  The number of tracks in the catalog
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return  The index of the record for the named track file, or -1 if there isn't one
+     */
+    public synchronized int indexOf(String name) {
+
+        int length = name.length();
+        if (length > MAX_NAME_LENGTH) {
+            return -1;
+        }
+
+        for (int i = 0; i < mCount; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            if (mData.get(record + NAME_OFFSET) == length) {
+                int c = 0;
+                while ((c < length)
+                        && (mData.get(record + NAME_OFFSET + 1 + c) == name.charAt(c))) {
+                    c++;
+                }
+                if (c == length) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return  The indexes of all records, ordered newest track first
+     */
+    public synchronized int[] sortedByStartTime() {
+
+        //
+        // Sort the start times with the record index packed into the low bits, so the sort is of
+        // primitives and the order comes out with the keys.  That leaves the start time 43 bits
+        // above the sign bit, which hold times in ms up to the year 2248.
+        //
+        long[] keys = new long[mCount];
+        for (int i = 0; i < mCount; i++) {
+            keys[i] = (getStartTimeMs(i) << 20) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = (int) (keys[mCount - 1 - i] & (MAX_TRACKS - 1));
+        }
+        return order;
+    }
+
+    public synchronized String getName(int index) {
+        checkIndex(index);
+        int record = HEADER_SIZE + index * RECORD_SIZE;
+        int length = mData.get(record + NAME_OFFSET);
+        for (int i = 0; i < length; i++) {
+            mName[i] = mData.get(record + NAME_OFFSET + 1 + i);
+        }
+        return new String(mName, 0, length, ASCII);
+    }
+
+    /**
+     * @return  The wall clock time the track was started, in ms since the epoch
+     */
+    public synchronized long getStartTimeMs(int index) {
+        return mData.getLong(recordOffset(index) + START_OFFSET);
+    }
+
+    /**
+     * @return  The elapsed time of the track in ms, or ELAPSED_UNFINISHED
+     */
+    public synchronized long getElapsedMs(int index) {
+        return mData.getLong(recordOffset(index) + ELAPSED_OFFSET);
+    }
+
+    public synchronized float getDistanceMeters(int index) {
+        return mData.getFloat(recordOffset(index) + DISTANCE_OFFSET);
+    }
+
+    /**
+     * @return  The number of points in the track
+     */
+    public synchronized int getFixCount(int index) {
+        return mData.getInt(recordOffset(index) + FIX_COUNT_OFFSET);
+    }
+
+    public synchronized int getMinLatitudeE7(int index) {
+        return mData.getInt(recordOffset(index) + MIN_LAT_OFFSET);
+    }
+
+    public synchronized int getMinLongitudeE7(int index) {
+        return mData.getInt(recordOffset(index) + MIN_LON_OFFSET);
+    }
+
+    public synchronized int getMaxLatitudeE7(int index) {
+        return mData.getInt(recordOffset(index) + MAX_LAT_OFFSET);
+    }
+
+    public synchronized int getMaxLongitudeE7(int index) {
+        return mData.getInt(recordOffset(index) + MAX_LON_OFFSET);
+    }
+
+    /**
+     * Reads the footer of a track file into its record, in memory only.  The file is read
+     * outside the monitor.
+     * @param replace  True to rewrite the file's record if it has one, false to add one
+     * @return  The index of the record, or -1 if the file can't be read as a track
+     */
+    private int putRecord(File file, boolean replace) {
+
+        String name = file.getName();
+        if (name.length() > MAX_NAME_LENGTH) {
+            return -1;
+        }
+
+        try (TrackReader reader = TrackReader.open(file)) {
+
+            boolean finished = reader.skipToFooter();
+            boolean empty = reader.getFixCount() == 0;
+
+            synchronized (this) {
+                return setRecord(replace ? indexOf(name) : -1, name, reader.getStartTimeMs(),
+                                 finished ? reader.getElapsedMs() : ELAPSED_UNFINISHED,
+                                 reader.getDistanceMeters(), reader.getFixCount(),
+                                 (finished && !empty) ? reader.getMinLatitudeE7() : 0,
+                                 (finished && !empty) ? reader.getMinLongitudeE7() : 0,
+                                 (finished && !empty) ? reader.getMaxLatitudeE7() : 0,
+                                 (finished && !empty) ? reader.getMaxLongitudeE7() : 0);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fills in a record, in memory only.
+     * @param index  The index of the record, or -1 to add one
+     * @return  The index of the record
+     */
+    private int setRecord(int index, String name, long startTimeMs, long elapsedMs,
+                          float distanceMeters, int fixCount, int minLatE7, int minLonE7,
+                          int maxLatE7, int maxLonE7) {
+
+        int length = name.length();
+        if (length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Track name too long: " + name);
+        }
+
+        if (index < 0) {
+            if (mCount == MAX_TRACKS) {
+                throw new IllegalStateException("The catalog is full");
+            }
+            if (HEADER_SIZE + (mCount + 1) * RECORD_SIZE > mData.capacity()) {
+                ByteBuffer data = ByteBuffer.allocate(capacityFor(mCount * 2));
+                data.put(mData.array(), 0, HEADER_SIZE + mCount * RECORD_SIZE);
+                mData = data;
+            }
+            index = mCount++;
+        }
+
+        int record = HEADER_SIZE + index * RECORD_SIZE;
+        for (int i = record; i < record + RECORD_SIZE; i++) {
+            mData.put(i, (byte) 0);
+        }
+
+        mData.put(record + NAME_OFFSET, (byte) length);
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            mData.put(record + NAME_OFFSET + 1 + i, (c < 0x80) ? (byte) c : (byte) '?');
+        }
+
+        mData.putLong(record + START_OFFSET, startTimeMs);
+        mData.putLong(record + ELAPSED_OFFSET, elapsedMs);
+        mData.putFloat(record + DISTANCE_OFFSET, distanceMeters);
+        mData.putInt(record + FIX_COUNT_OFFSET, fixCount);
+        mData.putInt(record + MIN_LAT_OFFSET, minLatE7);
+        mData.putInt(record + MIN_LON_OFFSET, minLonE7);
+        mData.putInt(record + MAX_LAT_OFFSET, maxLatE7);
+        mData.putInt(record + MAX_LON_OFFSET, maxLonE7);
+        mData.putInt(record + CRC_OFFSET, Crc32.compute(mData, record, record + CRC_OFFSET));
+
+        return index;
+    }
+
+    /**
+     * Writes one record to the catalog file in place, then the header if the record is new.
+     * The record goes first so a crash in between leaves the old count, and the new record is
+     * simply not seen.  Both are copied out under the monitor and written outside it; the
+     * caller holds mFileLock.
+     */
+    private void writeRecord(int index) throws IOException {
+
+        if (!mFile.exists()) {
+            writeAll();
+            return;
+        }
+
+        int record = HEADER_SIZE + index * RECORD_SIZE;
+        ByteBuffer buffer = mWriteBuffer;
+        buffer.clear();
+
+        synchronized (this) {
+            mData.putInt(0, MAGIC);
+            mData.putInt(4, VERSION);
+            mData.putInt(COUNT_OFFSET, mCount);
+            buffer.put(mData.array(), record, RECORD_SIZE);
+            buffer.put(mData.array(), 0, HEADER_SIZE);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+
+            FileChannel channel = file.getChannel();
+
+            buffer.flip();
+            buffer.limit(RECORD_SIZE);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, record + buffer.position());
+            }
+
+            buffer.limit(RECORD_SIZE + HEADER_SIZE);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position() - RECORD_SIZE);
+            }
+        }
+    }
+
+    private int recordOffset(int index) {
+        checkIndex(index);
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private void checkIndex(int index) {
+        if ((index < 0) || (index >= mCount)) {
+            throw new IndexOutOfBoundsException("No track " + index + " of " + mCount);
+        }
+    }
+
+    private static int capacityFor(int records) {
+        return HEADER_SIZE + Math.max(records, 16) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,161 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Measures the elapsed time of a track.
+ *
+ * Elapsed time is the difference between readings of a monotonic nanosecond clock, less any time
+ * spent paused.  Nothing counts seconds, so there is no thread to run and no error builds up over
+ * a long track, and the elapsed time is available to sub-millisecond precision whenever it's
+ * asked for.
+ *
+ * On the device the clock is SystemClock.elapsedRealtimeNanos() (see TrackerLocationService),
+ * which keeps counting while the device sleeps; System.nanoTime() doesn't.
+ */
+public class TrackClock {
+
+    /**
+     * A monotonic clock
+     */
+    public interface TimeSource {
+
+        /**
+         * @return  The current time in ns from an arbitrary fixed origin
+         */
+        long nanoTime();
+    }
+
+    /** System.nanoTime(); used where SystemClock isn't available */
+    public static final TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final TimeSource mTimeSource;
+
+    /** Elapsed time up to the last pause or stop */
+    private long mAccumulatedNs = 0;
+
+    /** The time the clock was last started or resumed */
+    private long mStartedNs = 0;
+
+    private boolean mRunning = false;
+    private boolean mPaused = false;
+
+    public TrackClock(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    /**
+     * @return  The time source the clock reads
+     */
+    public TimeSource getTimeSource() {
+        return mTimeSource;
+    }
+
+    /**
+     * Starts timing from zero.
+     */
+    public synchronized void start() {
+        mAccumulatedNs = 0;
+        mStartedNs = mTimeSource.nanoTime();
+        mRunning = true;
+        mPaused = false;
+    }
+
+    /**
+     * Starts timing from a reading taken earlier, such as one saved in a SessionCheckpoint.  If
+     * the clock was running when it was read, the time since counts too, as long as this clock's
+     * time source has the same origin; a source that reads earlier than the reading did has
+     * restarted (as elapsed realtime does when the device reboots), so that time is lost.
+     * @param elapsedNanos  The elapsed time read
+     * @param readAtNanos  When it was read, from the time source
+     * @param paused  True if the clock was paused when it was read
+     */
+    public synchronized void restore(long elapsedNanos, long readAtNanos, boolean paused) {
+
+        long now = mTimeSource.nanoTime();
+
+        mAccumulatedNs = elapsedNanos;
+        mStartedNs = (now >= readAtNanos) ? readAtNanos : now;
+        mRunning = true;
+        mPaused = paused;
+    }
+
+    /**
+     * Stops counting time until resume() is called.  Does nothing if the clock isn't running or
+     * is already paused.
+     */
+    public synchronized void pause() {
+        if (mRunning && !mPaused) {
+            mAccumulatedNs += mTimeSource.nanoTime() - mStartedNs;
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Continues counting time after pause().
+     */
+    public synchronized void resume() {
+        if (mRunning && mPaused) {
+            mStartedNs = mTimeSource.nanoTime();
+            mPaused = false;
+        }
+    }
+
+    /**
+     * Stops the clock.  The elapsed time stays at its final value.
+     */
+    public synchronized void stop() {
+        if (mRunning) {
+            pause();
+            mRunning = false;
+            mPaused = false;
+        }
+    }
+
+    /**
+     * @return  True if the clock has been started and not stopped (it may be paused)
+     */
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return  The elapsed time, not counting time paused, in ns
+     */
+    public long getElapsedNanos() {
+        return getElapsedNanos(mTimeSource.nanoTime());
+    }
+
+    /**
+     * @param nowNanos  The current time, read from this clock's time source
+     * @return  The elapsed time at nowNanos, not counting time paused, in ns
+     */
+    public synchronized long getElapsedNanos(long nowNanos) {
+        long elapsed = mAccumulatedNs;
+        if (mRunning && !mPaused) {
+            elapsed += nowNanos - mStartedNs;
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return  The elapsed time, not counting time paused, in ms
+     */
+    public long getElapsedMs() {
+        return getElapsedNanos() / 1000000L;
+    }
+
+    /**
+     * @return  The elapsed time, not counting time paused, in whole seconds
+     */
+    public int getElapsedSeconds() {
+        return (int) (getElapsedNanos() / 1000000000L);
+    }
+}
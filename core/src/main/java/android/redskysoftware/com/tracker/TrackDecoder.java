@@ -0,0 +1,450 @@
+package android.redskysoftware.com.tracker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes track data written in the binary format described by TrackFormat.
+ *
+ * The decoder walks a ByteBuffer one record at a time, checking the CRC of each segment as it is
+ * entered.  Checkpoint records are consumed by next() rather than returned; the totals from the
+ * newest checkpoint are available from the getCheckpoint getters.
+ *
+ * The values of the most recently decoded record are available from the getters, so decoding a
+ * track does not create an object per fix:
+ *
+ * <pre>
+ *   TrackDecoder decoder = new TrackDecoder();
+ *   if (decoder.reset(buffer)) {
+ *       int record;
+ *       while ((record = decoder.next()) == TrackDecoder.RECORD_FIX) {
+ *           use(decoder.getLatitude(), decoder.getLongitude(), decoder.getTimeMs());
+ *       }
+ *   }
+ * </pre>
+ */
+public class TrackDecoder {
+
+    /** next() decoded a location fix */
+    public static final int RECORD_FIX = 1;
+
+    /** next() decoded the footer; there are no more records */
+    public static final int RECORD_FOOTER = 2;
+
+    /** next() reached the end of the data without finding a footer */
+    public static final int RECORD_END = 3;
+
+    /** next() found data it could not decode, or a segment whose CRC doesn't match */
+    public static final int RECORD_CORRUPT = 4;
+
+    /** Internal result meaning next() should carry on: a segment was entered or a checkpoint read */
+    private static final int CONTINUE = 0;
+
+    /** The buffer being decoded */
+    private ByteBuffer mBuffer;
+
+    private int mVersion;
+    private long mStartTimeMs;
+
+    /** Position one past the payload of the current segment, or -1 if between segments */
+    private int mSegmentEnd = -1;
+
+    /** Values of the most recently decoded fix */
+    private int mLatE7;
+    private int mLonE7;
+    private long mTimeMs;
+    private int mAccuracyDm;
+
+    /** Values of the footer, valid once next() has returned RECORD_FOOTER */
+    private long mElapsedMs;
+    private int mFixCount;
+    private float mDistanceMeters;
+    private int mMinLatE7;
+    private int mMinLonE7;
+    private int mMaxLatE7;
+    private int mMaxLonE7;
+
+    /** The statistics from the footer, if it has them; created the first time one does */
+    private boolean mHasStats = false;
+    private TrackStats mStats = null;
+
+    /** Values of the newest checkpoint */
+    private int mCheckpointFixCount;
+    private float mCheckpointDistanceMeters;
+    private long mCheckpointLastTimeMs;
+
+    /**
+     * Checks whether a buffer starts with a binary track header.  The buffer position is not
+     * changed.
+     * @param buffer  The buffer to check
+     * @return  True if the buffer holds a binary track
+     */
+    public static boolean isTrack(ByteBuffer buffer) {
+        return (buffer.remaining() >= TrackFormat.HEADER_SIZE)
+                && (buffer.getInt(buffer.position()) == TrackFormat.MAGIC);
+    }
+
+    /**
+     * Starts decoding a new track.  The buffer's position must be at the start of the header;
+     * decoding advances the position.
+     * @param buffer  The buffer holding the track
+     * @return  True if the header is valid and records can be read with next()
+     */
+    public boolean reset(ByteBuffer buffer) {
+
+        mBuffer = null;
+
+        if (!isTrack(buffer)) {
+            return false;
+        }
+
+        buffer.getInt();
+        mVersion = buffer.get() & 0xFF;
+        buffer.get();
+        buffer.getShort();
+        mStartTimeMs = buffer.getLong();
+
+        if (mVersion > TrackFormat.VERSION) {
+            return false;
+        }
+
+        start(buffer);
+        return true;
+    }
+
+    /**
+     * Starts decoding at a segment rather than at the header, such as to read the checkpoint of
+     * one segment during recovery.
+     * @param buffer  The buffer, positioned at the start of a segment
+     * @param startTimeMs  The start time from the track's header
+     */
+    public void resetAtSegment(ByteBuffer buffer, long startTimeMs) {
+        mVersion = TrackFormat.VERSION;
+        mStartTimeMs = startTimeMs;
+        start(buffer);
+    }
+
+    private void start(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mSegmentEnd = -1;
+        mLatE7 = 0;
+        mLonE7 = 0;
+        mTimeMs = mStartTimeMs;
+        mAccuracyDm = 0;
+        mFixCount = 0;
+        mCheckpointFixCount = 0;
+        mCheckpointDistanceMeters = 0.0f;
+        mCheckpointLastTimeMs = mStartTimeMs;
+        mHasStats = false;
+    }
+
+    /**
+     * Decodes the next record.
+     * @return  One of the RECORD_ constants
+     */
+    public int next() {
+
+        ByteBuffer in = mBuffer;
+        if (in == null) {
+            return RECORD_END;
+        }
+
+        while (true) {
+
+            if (mVersion != TrackFormat.VERSION_UNSEGMENTED) {
+
+                if (mSegmentEnd == in.position()) {
+                    /* Step over the trailer of the segment just finished */
+                    if (in.remaining() < TrackFormat.SEGMENT_TRAILER_SIZE) {
+                        return RECORD_CORRUPT;
+                    }
+                    in.position(in.position() + TrackFormat.SEGMENT_TRAILER_SIZE);
+                    mSegmentEnd = -1;
+                }
+
+                if (mSegmentEnd < 0) {
+                    int result = enterSegment(in);
+                    if (result != CONTINUE) {
+                        return result;
+                    }
+                }
+            } else if (!in.hasRemaining()) {
+                return RECORD_END;
+            }
+
+            int record = decodeRecord(in);
+            if (record != CONTINUE) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Enters the segment at the buffer's position, checking its framing and CRC.
+     * @return  CONTINUE if the segment was entered, otherwise RECORD_END or RECORD_CORRUPT
+     */
+    private int enterSegment(ByteBuffer in) {
+
+        int start = in.position();
+
+        if ((in.remaining() < TrackFormat.SEGMENT_HEADER_SIZE)
+                || (in.getInt(start) != TrackFormat.SEGMENT_MAGIC)) {
+            /* Either the trailer of a finished track, or the end of the data */
+            return RECORD_END;
+        }
+
+        int payloadLength = in.getInt(start + 4);
+        int payloadEnd = start + TrackFormat.SEGMENT_HEADER_SIZE + payloadLength;
+
+        if ((payloadLength < 0)
+                || (payloadEnd + TrackFormat.SEGMENT_TRAILER_SIZE > in.limit())
+                || (in.getInt(payloadEnd + 8) != TrackFormat.SEGMENT_END_MAGIC)
+                || (in.getInt(payloadEnd) != Crc32.compute(in, start, payloadEnd))) {
+            return RECORD_CORRUPT;
+        }
+
+        in.position(start + TrackFormat.SEGMENT_HEADER_SIZE);
+        mSegmentEnd = payloadEnd;
+        mLatE7 = 0;
+        mLonE7 = 0;
+        mTimeMs = mStartTimeMs;
+
+        return CONTINUE;
+    }
+
+    /**
+     * Decodes the record at the buffer's position.
+     * @return  One of the RECORD_ constants, or CONTINUE
+     */
+    private int decodeRecord(ByteBuffer in) {
+
+        int start = in.position();
+
+        try {
+            byte tag = in.get();
+
+            if (tag == TrackFormat.TAG_FIX) {
+
+                long latE7 = mLatE7 + unzigzag(getVarLong(in));
+                long lonE7 = mLonE7 + unzigzag(getVarLong(in));
+                long deltaMs = getVarLong(in);
+                long accuracyDm = getVarLong(in);
+
+                if ((latE7 != (int) latE7) || (lonE7 != (int) lonE7) || (deltaMs < 0)) {
+                    in.position(start);
+                    return RECORD_CORRUPT;
+                }
+
+                mLatE7 = (int) latE7;
+                mLonE7 = (int) lonE7;
+                mTimeMs += deltaMs;
+                mAccuracyDm = (int) accuracyDm;
+                mFixCount++;
+
+                return RECORD_FIX;
+
+            } else if (tag == TrackFormat.TAG_CHECKPOINT) {
+
+                mCheckpointFixCount = (int) getVarLong(in);
+                mCheckpointDistanceMeters = in.getFloat();
+                mMinLatE7 = (int) unzigzag(getVarLong(in));
+                mMinLonE7 = (int) unzigzag(getVarLong(in));
+                mMaxLatE7 = (int) unzigzag(getVarLong(in));
+                mMaxLonE7 = (int) unzigzag(getVarLong(in));
+                mCheckpointLastTimeMs = mStartTimeMs + getVarLong(in);
+
+                return CONTINUE;
+
+            } else if (tag == TrackFormat.TAG_FOOTER) {
+
+                int length = (int) getVarLong(in);
+                int payloadEnd = in.position() + length;
+
+                mElapsedMs = getVarLong(in);
+                mFixCount = (int) getVarLong(in);
+                mDistanceMeters = in.getFloat();
+                mMinLatE7 = (int) unzigzag(getVarLong(in));
+                mMinLonE7 = (int) unzigzag(getVarLong(in));
+                mMaxLatE7 = (int) unzigzag(getVarLong(in));
+                mMaxLonE7 = (int) unzigzag(getVarLong(in));
+
+                /* The statistics are only there if they were kept while recording */
+                if (in.position() < payloadEnd) {
+                    getStats(in);
+                }
+
+                /* Skip over any fields added by later versions */
+                in.position(payloadEnd);
+
+                return RECORD_FOOTER;
+            }
+
+        } catch (RuntimeException e) {
+            /* Ran off the end of the buffer (a torn write) or read a bad length */
+        }
+
+        in.position(start);
+        return RECORD_CORRUPT;
+    }
+
+    /**
+     * @return  The format version of the track being decoded
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return  The wall clock time the track was started, in ms since the epoch
+     */
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    public int getLatitudeE7() {
+        return mLatE7;
+    }
+
+    public int getLongitudeE7() {
+        return mLonE7;
+    }
+
+    public double getLatitude() {
+        return TrackFormat.fromE7(mLatE7);
+    }
+
+    public double getLongitude() {
+        return TrackFormat.fromE7(mLonE7);
+    }
+
+    /**
+     * @return  The time of the current fix, in ms since the epoch
+     */
+    public long getTimeMs() {
+        return mTimeMs;
+    }
+
+    /**
+     * @return  The accuracy of the current fix in meters, 0 if unknown
+     */
+    public float getAccuracy() {
+        return mAccuracyDm / 10.0f;
+    }
+
+    /**
+     * @return  The elapsed (active) time recorded in the footer, in ms
+     */
+    public long getElapsedMs() {
+        return mElapsedMs;
+    }
+
+    /**
+     * @return  The number of fixes decoded so far, or the count recorded in the footer once it
+     *          has been read
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * @return  The total distance recorded in the footer, in meters
+     */
+    public float getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /**
+     * @return  The number of fixes in the track as of the newest checkpoint
+     */
+    public int getCheckpointFixCount() {
+        return mCheckpointFixCount;
+    }
+
+    /**
+     * @return  The distance of the track as of the newest checkpoint, in meters
+     */
+    public float getCheckpointDistanceMeters() {
+        return mCheckpointDistanceMeters;
+    }
+
+    /**
+     * @return  The time of the newest fix as of the newest checkpoint, in ms since the epoch
+     */
+    public long getCheckpointLastTimeMs() {
+        return mCheckpointLastTimeMs;
+    }
+
+    /**
+     * @return  The bounding box from the footer or newest checkpoint, whichever was read last
+     */
+    public int getMinLatitudeE7() {
+        return mMinLatE7;
+    }
+
+    public int getMinLongitudeE7() {
+        return mMinLonE7;
+    }
+
+    public int getMaxLatitudeE7() {
+        return mMaxLatE7;
+    }
+
+    public int getMaxLongitudeE7() {
+        return mMaxLonE7;
+    }
+
+    /**
+     * Reads the statistics of a footer into mStats.
+     */
+    private void getStats(ByteBuffer in) {
+
+        if (mStats == null) {
+            mStats = new TrackStats();
+        }
+
+        long movingMs = getVarLong(in);
+        mStats.setTotals(mDistanceMeters, movingMs, in.getFloat());
+        for (int unit = TrackStats.KILOMETER; unit <= TrackStats.MILE; unit++) {
+            int count = (int) getVarLong(in);
+            for (int i = 0; i < count; i++) {
+                mStats.addSplit(unit, getVarLong(in));
+            }
+        }
+
+        mHasStats = true;
+    }
+
+    /**
+     * @return  True if the footer read has the track's statistics
+     */
+    public boolean hasStats() {
+        return mHasStats;
+    }
+
+    /**
+     * @return  The statistics from the footer, valid while hasStats() is true.  The same object
+     *          is refilled by the next footer decoded.
+     */
+    public TrackStats getStats() {
+        return mStats;
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     * @throws IllegalStateException  if the varint is longer than 10 bytes
+     */
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
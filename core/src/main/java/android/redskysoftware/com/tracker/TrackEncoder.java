@@ -0,0 +1,346 @@
+package android.redskysoftware.com.tracker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes track data into the binary format described by TrackFormat.
+ *
+ * Fixes are written into segments: beginSegment() opens one, writeFix() adds fixes to it, and
+ * endSegment() closes it with a checkpoint and the CRC.  A whole segment must be encoded into
+ * the same buffer, since its length and CRC are filled in when it is closed.  writeFooter() ends
+ * the track, closing any open segment.
+ *
+ * The encoder keeps the previous fix so each new fix can be delta encoded, along with the fix
+ * count and bounding box that are written into the checkpoints and footer.  Encoding writes
+ * straight into the caller's ByteBuffer and does not allocate.  Callers must make sure the buffer
+ * has room for what they write; see the MAX_ sizes in TrackFormat.
+ *
+ * An encoder is not thread safe; it should only be used by the thread writing the track.
+ */
+public class TrackEncoder {
+
+    /** Number of bytes encoded since (and including) the header, used to locate the footer */
+    private long mOffset;
+
+    /** Wall clock time the track was started */
+    private long mStartTimeMs;
+
+    /** The previous fix in the segment, used as the base for the deltas of the next fix */
+    private int mPrevLatE7;
+    private int mPrevLonE7;
+    private long mPrevTimeMs;
+
+    /** Time of the newest fix in the track */
+    private long mLastTimeMs;
+
+    /** Number of fixes encoded */
+    private int mFixCount;
+
+    /** Bounding box of the fixes encoded so far */
+    private int mMinLatE7;
+    private int mMinLonE7;
+    private int mMaxLatE7;
+    private int mMaxLonE7;
+
+    /** Position in the buffer of the open segment, or -1 if no segment is open */
+    private int mSegmentStart = -1;
+
+    /** Value of mOffset when the open segment was started */
+    private long mSegmentOffset;
+
+    /**
+     * Writes the file header and resets the encoder state for a new track.
+     * @param out  The buffer to write to
+     * @param startTimeMs  The wall clock time the track was started, in ms since the epoch
+     */
+    public void writeHeader(ByteBuffer out, long startTimeMs) {
+
+        int start = out.position();
+
+        out.putInt(TrackFormat.MAGIC);
+        out.put((byte) TrackFormat.VERSION);
+        out.put((byte) 0);
+        out.putShort((short) 0);
+        out.putLong(startTimeMs);
+
+        restore(out.position() - start, startTimeMs, 0, startTimeMs, Integer.MAX_VALUE,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Sets the encoder up to continue a track that has already been partly written, such as
+     * one being finished after a crash.
+     * @param offset  The size of the track file so far
+     * @param startTimeMs  The start time from the header
+     * @param fixCount  The number of fixes already in the track
+     * @param lastTimeMs  The time of the newest fix in the track
+     * @param minLatE7  The bounding box of the track so far
+     */
+    public void restore(long offset, long startTimeMs, int fixCount, long lastTimeMs,
+                        int minLatE7, int minLonE7, int maxLatE7, int maxLonE7) {
+
+        mOffset = offset;
+        mStartTimeMs = startTimeMs;
+        mPrevLatE7 = 0;
+        mPrevLonE7 = 0;
+        mPrevTimeMs = startTimeMs;
+        mLastTimeMs = lastTimeMs;
+        mFixCount = fixCount;
+        mMinLatE7 = minLatE7;
+        mMinLonE7 = minLonE7;
+        mMaxLatE7 = maxLatE7;
+        mMaxLonE7 = maxLonE7;
+        mSegmentStart = -1;
+    }
+
+    /**
+     * Opens a new segment.  The delta base is reset so the segment can be decoded on its own.
+     * @param out  The buffer to write to; must have room for the whole segment
+     */
+    public void beginSegment(ByteBuffer out) {
+
+        mSegmentStart = out.position();
+        mSegmentOffset = mOffset;
+
+        out.putInt(TrackFormat.SEGMENT_MAGIC);
+        out.putInt(0);
+
+        mPrevLatE7 = 0;
+        mPrevLonE7 = 0;
+        mPrevTimeMs = mStartTimeMs;
+        mOffset += TrackFormat.SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * @return  True if a segment is open
+     */
+    public boolean isSegmentOpen() {
+        return mSegmentStart >= 0;
+    }
+
+    /**
+     * Closes the open segment with a checkpoint holding the track's totals so far.
+     * @param out  The buffer the segment was begun in
+     * @param distanceMeters  The total distance of the track so far, in meters
+     */
+    public void endSegment(ByteBuffer out, float distanceMeters) {
+
+        int start = out.position();
+        boolean empty = mFixCount == 0;
+
+        out.put(TrackFormat.TAG_CHECKPOINT);
+        putVarLong(out, mFixCount);
+        out.putFloat(distanceMeters);
+        putVarLong(out, zigzag(empty ? 0 : mMinLatE7));
+        putVarLong(out, zigzag(empty ? 0 : mMinLonE7));
+        putVarLong(out, zigzag(empty ? 0 : mMaxLatE7));
+        putVarLong(out, zigzag(empty ? 0 : mMaxLonE7));
+        putVarLong(out, Math.max(0, mLastTimeMs - mStartTimeMs));
+
+        mOffset += out.position() - start;
+        closeSegment(out);
+    }
+
+    /**
+     * Writes a location fix record into the open segment.
+     * @param out  The buffer to write to
+     * @param latitude  Latitude in degrees
+     * @param longitude  Longitude in degrees
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     */
+    public void writeFix(ByteBuffer out, double latitude, double longitude, long timeMs,
+                         float accuracyMeters) {
+        writeFixE7(out, TrackFormat.toE7(latitude), TrackFormat.toE7(longitude), timeMs,
+                   TrackFormat.toAccuracyDm(accuracyMeters));
+    }
+
+    /**
+     * Writes a location fix record from already fixed-point values into the open segment.
+     * @param out  The buffer to write to
+     * @param latE7  Latitude in 1e-7 degrees
+     * @param lonE7  Longitude in 1e-7 degrees
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyDm  Accuracy of the fix in decimeters, 0 if unknown
+     */
+    public void writeFixE7(ByteBuffer out, int latE7, int lonE7, long timeMs, int accuracyDm) {
+
+        int start = out.position();
+
+        /* Time is not allowed to run backwards in the file; clamp to the previous fix */
+        long deltaMs = timeMs - mPrevTimeMs;
+        if (deltaMs < 0) {
+            deltaMs = 0;
+        } else {
+            mPrevTimeMs = timeMs;
+        }
+        if (mPrevTimeMs > mLastTimeMs) {
+            mLastTimeMs = mPrevTimeMs;
+        }
+
+        out.put(TrackFormat.TAG_FIX);
+        putVarLong(out, zigzag((long) latE7 - mPrevLatE7));
+        putVarLong(out, zigzag((long) lonE7 - mPrevLonE7));
+        putVarLong(out, deltaMs);
+        putVarLong(out, accuracyDm);
+
+        mPrevLatE7 = latE7;
+        mPrevLonE7 = lonE7;
+        mFixCount++;
+
+        if (latE7 < mMinLatE7) mMinLatE7 = latE7;
+        if (latE7 > mMaxLatE7) mMaxLatE7 = latE7;
+        if (lonE7 < mMinLonE7) mMinLonE7 = lonE7;
+        if (lonE7 > mMaxLonE7) mMaxLonE7 = lonE7;
+
+        mOffset += out.position() - start;
+    }
+
+    /**
+     * Writes the footer record, without statistics, closing the segment it is in, and the
+     * trailer that ends the file.  If no segment is open, one is opened to hold the footer.
+     * @param out  The buffer to write to
+     * @param elapsedMs  The elapsed (active) time of the track in ms
+     * @param distanceMeters  The total distance of the track in meters
+     */
+    public void writeFooter(ByteBuffer out, long elapsedMs, float distanceMeters) {
+        writeFooter(out, elapsedMs, distanceMeters, null);
+    }
+
+    /**
+     * Writes the footer record, closing the segment it is in, and the trailer that ends the file.
+     * If no segment is open, one is opened to hold the footer.  The buffer needs room for
+     * MAX_FOOTER_STATS_SIZE more than a footer without statistics.
+     * @param out  The buffer to write to
+     * @param elapsedMs  The elapsed (active) time of the track in ms
+     * @param distanceMeters  The total distance of the track in meters
+     * @param stats  The statistics of the track, or null to leave them out
+     */
+    public void writeFooter(ByteBuffer out, long elapsedMs, float distanceMeters,
+                            TrackStats stats) {
+
+        if (!isSegmentOpen()) {
+            beginSegment(out);
+        }
+
+        long footerSegmentOffset = mSegmentOffset;
+        int start = out.position();
+
+        /* An empty track has no bounding box; store it as all zeros */
+        boolean empty = mFixCount == 0;
+
+        out.put(TrackFormat.TAG_FOOTER);
+
+        /* Reserve two bytes for the payload length and fill them in once it is written */
+        int lengthPos = out.position();
+        out.putShort((short) 0);
+
+        int payloadStart = out.position();
+        putVarLong(out, Math.max(0, elapsedMs));
+        putVarLong(out, mFixCount);
+        out.putFloat(distanceMeters);
+        putVarLong(out, zigzag(empty ? 0 : mMinLatE7));
+        putVarLong(out, zigzag(empty ? 0 : mMinLonE7));
+        putVarLong(out, zigzag(empty ? 0 : mMaxLatE7));
+        putVarLong(out, zigzag(empty ? 0 : mMaxLonE7));
+
+        if (stats != null) {
+            putVarLong(out, stats.getMovingMs());
+            out.putFloat(stats.getMaxSpeed());
+            for (int unit = TrackStats.KILOMETER; unit <= TrackStats.MILE; unit++) {
+                int count = stats.getSplitCount(unit);
+                putVarLong(out, count);
+                for (int i = 0; i < count; i++) {
+                    putVarLong(out, stats.getSplitMs(unit, i));
+                }
+            }
+        }
+
+        /* Even with the most splits, the payload is well under the 16383 two varint bytes hold */
+        int length = out.position() - payloadStart;
+        out.put(lengthPos, (byte) (0x80 | (length & 0x7F)));
+        out.put(lengthPos + 1, (byte) (length >>> 7));
+
+        mOffset += out.position() - start;
+        closeSegment(out);
+
+        out.putInt((int) footerSegmentOffset);
+        out.putInt(TrackFormat.END_MAGIC);
+        mOffset += TrackFormat.TRAILER_SIZE;
+    }
+
+    /**
+     * @return  The number of bytes encoded since (and including) the header
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return  The number of fixes encoded since the header was written
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * @return  The time of the newest fix encoded, in ms since the epoch
+     */
+    public long getLastTimeMs() {
+        return mLastTimeMs;
+    }
+
+    /**
+     * The bounding box of the fixes encoded, in 1e-7 degrees; min greater than max if there are
+     * none
+     */
+    public int getMinLatitudeE7() {
+        return mMinLatE7;
+    }
+
+    public int getMinLongitudeE7() {
+        return mMinLonE7;
+    }
+
+    public int getMaxLatitudeE7() {
+        return mMaxLatE7;
+    }
+
+    public int getMaxLongitudeE7() {
+        return mMaxLonE7;
+    }
+
+    /**
+     * Fills in the open segment's length and writes its trailer.
+     */
+    private void closeSegment(ByteBuffer out) {
+
+        int payloadLength = out.position() - mSegmentStart - TrackFormat.SEGMENT_HEADER_SIZE;
+        out.putInt(mSegmentStart + 4, payloadLength);
+
+        out.putInt(Crc32.compute(out, mSegmentStart, out.position()));
+        out.putInt(payloadLength);
+        out.putInt(TrackFormat.SEGMENT_END_MAGIC);
+
+        mOffset += TrackFormat.SEGMENT_TRAILER_SIZE;
+        mSegmentStart = -1;
+    }
+
+    /**
+     * Maps a signed value onto an unsigned one so small negative numbers stay small.
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint (7 bits per byte, low bits first).
+     */
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
@@ -0,0 +1,191 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exports stored tracks as GPX 1.1 or TCX 2 files, so they can be used outside the app.
+ *
+ * A track is streamed: its fixes are read one at a time by a TrackReader and written straight out
+ * as XML through an XmlOutput, which formats the coordinates (with all seven stored decimal
+ * places, so they read back exactly), times and distances itself.  No document is built and
+ * nothing is allocated per fix, so a track of any length is exported in the same small amount of
+ * memory, and an exporter reuses its buffer for every track it exports.
+ *
+ * GPX has a point per fix with its position and time.  TCX has a single lap holding the track's
+ * elapsed time, distance and (if the footer has its statistics) maximum speed, and a point per
+ * fix with its position, time and the distance along the track's stored points to it.  TCX needs
+ * the lap's totals before its points, so it reads the footer first and then the fixes; a track
+ * that was never finished is measured on the way to finding it has no footer.
+ *
+ * An exporter is not thread safe.
+ */
+public class TrackExporter {
+
+    public static final int FORMAT_GPX = 0;
+    public static final int FORMAT_TCX = 1;
+
+    /** Size of the buffer the XML is written through */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The application named as the creator of the files */
+    private static final String CREATOR = "Tracker";
+
+    private final XmlOutput mXml = new XmlOutput(BUFFER_SIZE);
+
+    /** Measures the steps between points for the TCX distances */
+    private final DistanceKernel mKernel = new DistanceKernel(DistanceKernel.EXACT);
+
+    /**
+     * @param format  FORMAT_GPX or FORMAT_TCX
+     * @return  The file extension for exports in the format, including the '.'
+     */
+    public static String getFileExtension(int format) {
+        return (format == FORMAT_TCX) ? ".tcx" : ".gpx";
+    }
+
+    /**
+     * Exports a track.  The stream is flushed but not closed.
+     * @param track  The track file
+     * @param format  FORMAT_GPX or FORMAT_TCX
+     * @param name  The name to give the track in the export
+     * @param out  Where to write the export
+     * @return  The number of points exported
+     * @throws IOException  if the track can't be read or the export can't be written
+     */
+    public int export(File track, int format, String name, OutputStream out) throws IOException {
+
+        if ((format != FORMAT_GPX) && (format != FORMAT_TCX)) {
+            throw new IllegalArgumentException("Unknown export format " + format);
+        }
+
+        try (TrackReader reader = TrackReader.open(track)) {
+
+            mXml.start(out);
+            int count = (format == FORMAT_TCX) ? writeTcx(reader, name) : writeGpx(reader, name);
+            mXml.flush();
+
+            if (reader.isCorrupt()) {
+                throw new IOException("Track " + track.getName() + " is corrupt after " + count
+                                      + " points");
+            }
+
+            return count;
+        }
+    }
+
+    private int writeGpx(TrackReader reader, String name) throws IOException {
+
+        mXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<gpx version=\"1.1\" creator=\"").append(CREATOR)
+            .append("\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n")
+            .append(" <metadata><time>").appendTimestamp(reader.getStartTimeMs())
+            .append("</time></metadata>\n")
+            .append(" <trk>\n  <name>").appendEscaped(name).append("</name>\n  <trkseg>\n");
+
+        int count = 0;
+        while (reader.next()) {
+            mXml.append("   <trkpt lat=\"").appendE7(reader.getLatitudeE7())
+                .append("\" lon=\"").appendE7(reader.getLongitudeE7())
+                .append("\"><time>").appendTimestamp(reader.getTimeMs())
+                .append("</time></trkpt>\n");
+            count++;
+        }
+
+        mXml.append("  </trkseg>\n </trk>\n</gpx>\n");
+        return count;
+    }
+
+    private int writeTcx(TrackReader reader, String name) throws IOException {
+
+        long startTimeMs = reader.getStartTimeMs();
+
+        //
+        // The lap's totals come first, so read the footer before the fixes.  A track without a
+        // trailer to jump to it through is read to the end, and measured on the way: if it was
+        // never finished it has no totals, so its distance is the one measured and its time is
+        // taken up to its last fix.
+        //
+        double measured = reader.jumpToFooter() ? 0.0 : measure(reader);
+        boolean finished = reader.hasFooter();
+        long elapsedMs = finished ? reader.getElapsedMs()
+                                  : Math.max(0, reader.getTimeMs() - startTimeMs);
+        float distanceMeters = finished ? reader.getDistanceMeters() : (float) measured;
+        float maxSpeed = reader.hasStats() ? reader.getStats().getMaxSpeed() : 0.0f;
+        reader.rewind();
+
+        mXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<TrainingCenterDatabase xmlns=\"")
+            .append("http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\">\n")
+            .append(" <Activities>\n  <Activity Sport=\"Other\">\n   <Id>")
+            .appendTimestamp(startTimeMs).append("</Id>\n   <Lap StartTime=\"")
+            .appendTimestamp(startTimeMs).append("\">\n    <TotalTimeSeconds>")
+            .appendFixed(elapsedMs / 1000.0, 3).append("</TotalTimeSeconds>\n")
+            .append("    <DistanceMeters>").appendFixed(distanceMeters, 2)
+            .append("</DistanceMeters>\n");
+        if (maxSpeed > 0.0f) {
+            mXml.append("    <MaximumSpeed>").appendFixed(maxSpeed, 2)
+                .append("</MaximumSpeed>\n");
+        }
+        mXml.append("    <Calories>0</Calories>\n    <Intensity>Active</Intensity>\n")
+            .append("    <TriggerMethod>Manual</TriggerMethod>\n    <Track>\n");
+
+        int count = 0;
+        double distance = 0.0;
+        double lastLatitude = 0.0;
+        double lastLongitude = 0.0;
+
+        while (reader.next()) {
+
+            double latitude = reader.getLatitude();
+            double longitude = reader.getLongitude();
+            if (count > 0) {
+                distance += mKernel.distanceMeters(lastLatitude, lastLongitude,
+                                                   latitude, longitude);
+            }
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+
+            mXml.append("     <Trackpoint><Time>").appendTimestamp(reader.getTimeMs())
+                .append("</Time><Position><LatitudeDegrees>").appendE7(reader.getLatitudeE7())
+                .append("</LatitudeDegrees><LongitudeDegrees>").appendE7(reader.getLongitudeE7())
+                .append("</LongitudeDegrees></Position><DistanceMeters>").appendFixed(distance, 2)
+                .append("</DistanceMeters></Trackpoint>\n");
+            count++;
+        }
+
+        /* An activity has no name, so the name goes in its notes */
+        mXml.append("    </Track>\n   </Lap>\n   <Notes>").appendEscaped(name)
+            .append("</Notes>\n  </Activity>\n </Activities>\n</TrainingCenterDatabase>\n");
+
+        return count;
+    }
+
+    /**
+     * Reads a track through to the end, adding up the steps between its points the same way the
+     * TCX points' distances are.
+     * @return  The distance along the points, in meters
+     */
+    private double measure(TrackReader reader) {
+
+        int count = 0;
+        double distance = 0.0;
+        double lastLatitude = 0.0;
+        double lastLongitude = 0.0;
+
+        while (reader.next()) {
+            double latitude = reader.getLatitude();
+            double longitude = reader.getLongitude();
+            if (count > 0) {
+                distance += mKernel.distanceMeters(lastLatitude, lastLongitude,
+                                                   latitude, longitude);
+            }
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            count++;
+        }
+
+        return distance;
+    }
+}
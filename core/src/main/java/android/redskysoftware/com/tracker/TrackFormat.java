@@ -0,0 +1,158 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Constants describing the binary track file format written by the TrackEncoder and read by the
+ * TrackDecoder.
+ *
+ * A track file is a journal of segments, laid out as follows (multi-byte fixed fields are
+ * big-endian):
+ *
+ * <pre>
+ *   Header   (16 bytes)  int MAGIC, byte VERSION, byte flags, short reserved, long startTimeMs
+ *   Segment  (variable)  one per commit, repeated
+ *   Trailer  (8 bytes)   int footerSegmentOffset, int END_MAGIC
+ * </pre>
+ *
+ * A segment frames a batch of records so that a crash can only ever damage the segment being
+ * written:
+ *
+ * <pre>
+ *   int SEGMENT_MAGIC, int payloadLength, payload, int crc, int payloadLength, int SEGMENT_END_MAGIC
+ * </pre>
+ *
+ * The CRC-32 covers the segment magic, the first length and the payload.  Because the length is
+ * repeated at the end, segments can be walked backwards from the end of the file.
+ *
+ * The payload is a sequence of records, each starting with a one byte tag:
+ *
+ * <pre>
+ *   TAG_FIX         zigzag varint dLatE7, zigzag varint dLonE7, varint dTimeMs, varint accuracyDm
+ *   TAG_CHECKPOINT  varint fixCount, float distance, zigzag varint bbox[4], varint lastTimeMs
+ *   TAG_FOOTER      varint payloadLength, payload
+ * </pre>
+ *
+ * The footer payload is:
+ *
+ * <pre>
+ *   varint elapsedMs, varint fixCount, float distance, zigzag varint bbox[4]
+ *   optional TrackStats: varint movingMs, float maxSpeed,
+ *                        per unit (km, mile): varint splitCount, varint splitMs[splitCount]
+ * </pre>
+ *
+ * Coordinates are stored as fixed-point integers in units of 1e-7 degrees (about 1 cm) and are
+ * delta encoded against the previous fix, so a typical fix at walking pace takes 7 or 8 bytes.
+ * Timestamps are delta encoded in milliseconds against the previous fix.  Accuracy is stored in
+ * decimeters, 0 meaning unknown.  The delta base is reset at the start of every segment (to 0
+ * and the start time in the header) so each segment can be decoded on its own.
+ *
+ * Every segment but the last ends with a checkpoint holding the totals for the track up to the
+ * end of the segment: the fix count, the distance in meters, the bounding box and the time of
+ * the last fix relative to the start time.  After a crash the track can be finished from the
+ * checkpoint of the last intact segment without reading the rest of the file.
+ *
+ * The last segment ends with the footer, which holds the elapsed time in ms, the number of
+ * fixes, the total distance in meters (raw float bits) and the bounding box of the track,
+ * followed by its statistics if they were kept while it was recorded.  Its length is stored up
+ * front, always as two varint bytes, so readers can skip fields added by later versions and can
+ * tell whether the statistics are there.
+ *
+ * Version 1 files have the same header, records and trailer but no segments or checkpoints.
+ */
+public final class TrackFormat {
+
+    /** "TRKB", the first four bytes of every binary track file */
+    public static final int MAGIC = 0x54524B42;
+
+    /** "TRKE", the last four bytes of a finished track file */
+    public static final int END_MAGIC = 0x54524B45;
+
+    /** "TRKS", the first four bytes of every segment */
+    public static final int SEGMENT_MAGIC = 0x54524B53;
+
+    /** "TRKC", the last four bytes of every complete segment */
+    public static final int SEGMENT_END_MAGIC = 0x54524B43;
+
+    /** The format version written by this version of the app */
+    public static final int VERSION = 2;
+
+    /** The first format version, which has no segments */
+    public static final int VERSION_UNSEGMENTED = 1;
+
+    /** Size of the file header in bytes */
+    public static final int HEADER_SIZE = 16;
+
+    /** Size of the file trailer in bytes */
+    public static final int TRAILER_SIZE = 8;
+
+    /** Size of a segment's framing: the magic and length before and the fields after it */
+    public static final int SEGMENT_HEADER_SIZE = 8;
+    public static final int SEGMENT_TRAILER_SIZE = 12;
+    public static final int SEGMENT_OVERHEAD = SEGMENT_HEADER_SIZE + SEGMENT_TRAILER_SIZE;
+
+    /** Tag of a location fix record */
+    public static final byte TAG_FIX = 'F';
+
+    /** Tag of the checkpoint record that ends a segment */
+    public static final byte TAG_CHECKPOINT = 'C';
+
+    /** Tag of the footer record */
+    public static final byte TAG_FOOTER = 'E';
+
+    /** The largest number of bytes a single encoded fix record can take */
+    public static final int MAX_FIX_SIZE = 1 + 10 + 10 + 10 + 5;
+
+    /** The largest number of bytes a checkpoint record can take */
+    public static final int MAX_CHECKPOINT_SIZE = 1 + 5 + 4 + 4 * 5 + 10;
+
+    /**
+     * The largest number of bytes needed to end the track: the footer record, the framing of a
+     * segment to hold it, and the trailer
+     */
+    public static final int MAX_FOOTER_SIZE = 1 + 2 + 10 + 5 + 4 + 4 * 5 + SEGMENT_OVERHEAD
+                                              + TRAILER_SIZE;
+
+    /** The most the statistics can add to a footer */
+    public static final int MAX_FOOTER_STATS_SIZE = 10 + 4 + 2 * (5 + TrackStats.MAX_SPLITS * 10);
+
+    /** Scale between degrees and the fixed-point coordinates stored in the file */
+    public static final double E7 = 1e7;
+
+    /** The largest accuracy that can be stored, in decimeters */
+    public static final int MAX_ACCURACY_DM = 0xFFFF;
+
+    /** File extension of binary track files */
+    public static final String FILE_EXTENSION = ".trk";
+
+    /** File extension of the text track files written by earlier versions of the app */
+    public static final String LEGACY_FILE_EXTENSION = ".txt";
+
+    private TrackFormat() {
+    }
+
+    /**
+     * @param degrees  A latitude or longitude in degrees
+     * @return  The coordinate in fixed-point 1e-7 degree units
+     */
+    public static int toE7(double degrees) {
+        return (int) Math.round(degrees * E7);
+    }
+
+    /**
+     * @param e7  A coordinate in fixed-point 1e-7 degree units
+     * @return  The coordinate in degrees
+     */
+    public static double fromE7(int e7) {
+        return e7 / E7;
+    }
+
+    /**
+     * @param accuracyMeters  An accuracy radius in meters, 0 or less if unknown
+     * @return  The accuracy in decimeters, clamped to the range that can be stored
+     */
+    public static int toAccuracyDm(float accuracyMeters) {
+        if (!(accuracyMeters > 0.0f)) {
+            return 0;
+        }
+        return Math.min(MAX_ACCURACY_DM, Math.round(accuracyMeters * 10.0f));
+    }
+}
@@ -0,0 +1,402 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Recovers track files that were left unfinished, such as when the process died in the middle of
+ * a track.
+ *
+ * A finished track ends with the trailer's END_MAGIC.  An unfinished one ends with some number of
+ * intact segments, possibly followed by the torn remains of the segment that was being written.
+ * Recovery looks for the last intact segment by searching backwards from the end of the file
+ * (the torn tail can be no longer than one segment), cuts off everything after it, and finishes
+ * the track with a footer built from that segment's checkpoint.  Only the tail of the file is
+ * read, so recovering a track takes the same time however long the track is.
+ *
+ * A track with a SessionCheckpoint can instead be carried on: reopen() cuts it back to the
+ * checkpoint and hands it to a TrackWriter to resume.  The checkpoint only holds the last split
+ * of each unit, so reopen() also walks the segments up to it to time the earlier ones again.
+ */
+public class TrackJournal {
+
+    /** The track was already finished; nothing was changed */
+    public static final int RESULT_COMPLETE = 0;
+
+    /** The track was unfinished and has been finished */
+    public static final int RESULT_RECOVERED = 1;
+
+    /** The file isn't a track that can be recovered */
+    public static final int RESULT_UNRECOVERABLE = 2;
+
+    /**
+     * How far back from the end of the file to search for the last intact segment.  Segments are
+     * never bigger than the TrackWriter's buffer, so this leaves plenty of room.
+     */
+    private static final int TAIL_SCAN_SIZE = 256 * 1024;
+
+    private final TrackDecoder mDecoder = new TrackDecoder();
+    private final TrackEncoder mEncoder = new TrackEncoder();
+    private final ByteBuffer mHeader = ByteBuffer.allocate(TrackFormat.HEADER_SIZE);
+    private final ByteBuffer mFooter = ByteBuffer.allocate(TrackFormat.MAX_FOOTER_SIZE);
+    private ByteBuffer mTail;
+
+    /** The statistics of a reopened track at the end of each segment */
+    private final TrackStats mReplay = new TrackStats();
+
+    /**
+     * Checks whether a track file has been finished by reading its last four bytes.
+     * @param file  The track file
+     * @return  True if the track ends with a trailer
+     */
+    public static boolean isComplete(File file) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if (size < TrackFormat.HEADER_SIZE + TrackFormat.TRAILER_SIZE) {
+                return false;
+            }
+            raf.seek(size - 4);
+            return raf.readInt() == TrackFormat.END_MAGIC;
+        }
+    }
+
+    /**
+     * Opens an unfinished track file to carry it on from a SessionCheckpoint, cutting off
+     * whatever was written after the checkpoint.  The checkpoints of the segments before it are
+     * read to time the checkpoint's earlier splits (see TrackStats.rebuildSplits()).
+     * @param file  The track file named in the checkpoint
+     * @param checkpoint  The checkpoint to carry on from
+     * @return  A channel on the file, positioned at the checkpoint's offset for a TrackWriter to
+     *          resume(), or null if the track can't be carried on (it has been finished, isn't
+     *          the checkpoint's track, or is shorter than the checkpoint says)
+     * @throws IOException  if the file can't be read or cut back
+     */
+    public FileChannel reopen(File file, SessionCheckpoint checkpoint) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        boolean reopened = false;
+
+        try {
+            long size = channel.size();
+            long offset = checkpoint.getFileOffset();
+
+            mHeader.clear();
+            if ((offset < TrackFormat.HEADER_SIZE) || (size < offset)
+                    || (readFully(channel, mHeader, 0) < 0)) {
+                return null;
+            }
+            mHeader.flip();
+            if (!mDecoder.reset(mHeader)
+                    || (mDecoder.getVersion() == TrackFormat.VERSION_UNSEGMENTED)
+                    || (mDecoder.getStartTimeMs() != checkpoint.getStartTimeMs())
+                    || isFinished(channel, size)) {
+                return null;
+            }
+
+            channel.truncate(offset);
+            rebuildSplits(channel, checkpoint);
+            channel.position(offset);
+            reopened = true;
+            return channel;
+        } finally {
+            if (!reopened) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Finishes a track file if it was left unfinished.
+     * @param file  The track file
+     * @return  One of the RESULT_ constants
+     * @throws IOException  if the file can't be read or repaired
+     */
+    public int recover(File file) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return recover(raf.getChannel());
+        }
+    }
+
+    /**
+     * Finishes a track if it was left unfinished.
+     * @param channel  A channel open for reading and writing on the track file
+     * @return  One of the RESULT_ constants
+     * @throws IOException  if the file can't be read or repaired
+     */
+    public int recover(FileChannel channel) throws IOException {
+
+        long size = channel.size();
+
+        mHeader.clear();
+        if ((size < TrackFormat.HEADER_SIZE) || (readFully(channel, mHeader, 0) < 0)) {
+            return RESULT_UNRECOVERABLE;
+        }
+        mHeader.flip();
+        if (!mDecoder.reset(mHeader)) {
+            return RESULT_UNRECOVERABLE;
+        }
+        long startTimeMs = mDecoder.getStartTimeMs();
+
+        if (isFinished(channel, size)) {
+            return RESULT_COMPLETE;
+        }
+        if (mDecoder.getVersion() == TrackFormat.VERSION_UNSEGMENTED) {
+            /* Without segments there are no checkpoints to recover from */
+            return RESULT_UNRECOVERABLE;
+        }
+
+        /* Read the tail of the file and look for the last intact segment in it */
+        long tailStart = Math.max(TrackFormat.HEADER_SIZE, size - TAIL_SCAN_SIZE);
+        int tailSize = (int) (size - tailStart);
+        if ((mTail == null) || (mTail.capacity() < tailSize)) {
+            mTail = ByteBuffer.allocate(Math.max(tailSize, 4096));
+        }
+        ByteBuffer tail = mTail;
+        tail.clear();
+        tail.limit(tailSize);
+        readFully(channel, tail, tailStart);
+        tail.flip();
+
+        int segmentStart = findLastSegment(tail);
+        if ((segmentStart < 0) && (tailStart > TrackFormat.HEADER_SIZE)) {
+            /*
+             * Nothing intact in the tail.  That shouldn't happen since the torn part is never
+             * longer than one segment, but fall back to walking the segments from the start.
+             */
+            tailStart = TrackFormat.HEADER_SIZE;
+            tailSize = (int) (size - tailStart);
+            tail = channel.map(FileChannel.MapMode.READ_ONLY, tailStart, tailSize);
+            segmentStart = findLastSegmentForward(tail);
+        }
+
+        int fixCount = 0;
+        float distanceMeters = 0.0f;
+        long lastTimeMs = startTimeMs;
+        int minLatE7 = Integer.MAX_VALUE;
+        int minLonE7 = Integer.MAX_VALUE;
+        int maxLatE7 = Integer.MIN_VALUE;
+        int maxLonE7 = Integer.MIN_VALUE;
+        long validEnd = TrackFormat.HEADER_SIZE;
+
+        if (segmentStart >= 0) {
+
+            /* Decode the segment to get at its checkpoint */
+            tail.position(segmentStart);
+            mDecoder.resetAtSegment(tail, startTimeMs);
+
+            int record;
+            while ((record = mDecoder.next()) == TrackDecoder.RECORD_FIX) {
+                /* Only the checkpoint at the end of the segment is needed */
+            }
+
+            if (record == TrackDecoder.RECORD_FOOTER) {
+                /* The footer was written but the trailer after it was torn */
+                fixCount = mDecoder.getFixCount();
+                distanceMeters = mDecoder.getDistanceMeters();
+            } else {
+                fixCount = mDecoder.getCheckpointFixCount();
+                distanceMeters = mDecoder.getCheckpointDistanceMeters();
+                lastTimeMs = mDecoder.getCheckpointLastTimeMs();
+            }
+
+            if (fixCount > 0) {
+                minLatE7 = mDecoder.getMinLatitudeE7();
+                minLonE7 = mDecoder.getMinLongitudeE7();
+                maxLatE7 = mDecoder.getMaxLatitudeE7();
+                maxLonE7 = mDecoder.getMaxLongitudeE7();
+            }
+
+            int payloadLength = tail.getInt(segmentStart + 4);
+            validEnd = tailStart + segmentStart + TrackFormat.SEGMENT_OVERHEAD + payloadLength;
+
+            if (record == TrackDecoder.RECORD_FOOTER) {
+                return finish(channel, validEnd, tailStart + segmentStart);
+            }
+        }
+
+        /* Cut off the torn tail and finish the track from the checkpoint */
+        channel.truncate(validEnd);
+
+        mEncoder.restore(validEnd, startTimeMs, fixCount, lastTimeMs,
+                         minLatE7, minLonE7, maxLatE7, maxLonE7);
+        mFooter.clear();
+        mEncoder.writeFooter(mFooter, lastTimeMs - startTimeMs, distanceMeters);
+        mFooter.flip();
+
+        writeFully(channel, mFooter, validEnd);
+        channel.force(false);
+
+        return RESULT_RECOVERED;
+    }
+
+    /**
+     * Adds the end of each segment before a checkpoint's offset to mReplay, and rebuilds the
+     * checkpoint's splits from it.  Stops at the first segment that isn't intact.
+     */
+    private void rebuildSplits(FileChannel channel, SessionCheckpoint checkpoint)
+            throws IOException {
+
+        long startTimeMs = checkpoint.getStartTimeMs();
+        ByteBuffer segments = channel.map(FileChannel.MapMode.READ_ONLY, TrackFormat.HEADER_SIZE,
+                                          checkpoint.getFileOffset() - TrackFormat.HEADER_SIZE);
+
+        TrackStats replay = mReplay;
+        replay.reset();
+        replay.add(startTimeMs, 0.0);
+
+        int start = 0;
+        while (start + TrackFormat.SEGMENT_OVERHEAD <= segments.capacity()) {
+
+            int end = start + TrackFormat.SEGMENT_OVERHEAD + segments.getInt(start + 4);
+            if ((end < start) || (end > segments.capacity())) {
+                break;
+            }
+
+            /* Decode the segment to get at its checkpoint */
+            segments.limit(end).position(start);
+            mDecoder.resetAtSegment(segments, startTimeMs);
+            int record;
+            while ((record = mDecoder.next()) == TrackDecoder.RECORD_FIX) {
+                /* Only the checkpoint at the end of the segment is needed */
+            }
+            if (record != TrackDecoder.RECORD_END) {
+                break;
+            }
+
+            replay.add(mDecoder.getCheckpointLastTimeMs(),
+                       mDecoder.getCheckpointDistanceMeters());
+            segments.limit(segments.capacity());
+            start = end;
+        }
+
+        checkpoint.getStats().rebuildSplits(replay);
+    }
+
+    /**
+     * Checks whether the file ends with a trailer.
+     */
+    private boolean isFinished(FileChannel channel, long size) throws IOException {
+
+        if (size < TrackFormat.HEADER_SIZE + TrackFormat.TRAILER_SIZE) {
+            return false;
+        }
+
+        ByteBuffer trailer = mFooter;
+        trailer.clear();
+        trailer.limit(TrackFormat.TRAILER_SIZE);
+        readFully(channel, trailer, size - TrackFormat.TRAILER_SIZE);
+
+        return trailer.getInt(4) == TrackFormat.END_MAGIC;
+    }
+
+    /**
+     * Ends a track whose footer segment is intact but whose trailer is missing.
+     */
+    private int finish(FileChannel channel, long footerSegmentEnd, long footerSegmentStart)
+            throws IOException {
+
+        channel.truncate(footerSegmentEnd);
+
+        mFooter.clear();
+        mFooter.putInt((int) footerSegmentStart);
+        mFooter.putInt(TrackFormat.END_MAGIC);
+        mFooter.flip();
+
+        writeFully(channel, mFooter, footerSegmentEnd);
+        channel.force(false);
+
+        return RESULT_RECOVERED;
+    }
+
+    /**
+     * Searches backwards from the end of the buffer for the last intact segment.
+     * @return  The position of the segment in the buffer, or -1 if there is none
+     */
+    static int findLastSegment(ByteBuffer buffer) {
+
+        for (int end = buffer.limit(); end >= TrackFormat.SEGMENT_OVERHEAD; end--) {
+            int start = checkSegmentEndingAt(buffer, end);
+            if (start >= 0) {
+                return start;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Walks the segments forwards from the start of the buffer.
+     * @return  The position of the last intact segment, or -1 if there is none
+     */
+    static int findLastSegmentForward(ByteBuffer buffer) {
+
+        int last = -1;
+        int start = 0;
+
+        while (start + TrackFormat.SEGMENT_OVERHEAD <= buffer.limit()) {
+            if (buffer.getInt(start) != TrackFormat.SEGMENT_MAGIC) {
+                break;
+            }
+            int end = start + TrackFormat.SEGMENT_OVERHEAD + buffer.getInt(start + 4);
+            if ((end < start) || (checkSegmentEndingAt(buffer, end) != start)) {
+                break;
+            }
+            last = start;
+            start = end;
+        }
+
+        return last;
+    }
+
+    /**
+     * Checks whether an intact segment ends at the given position.
+     * @return  The position the segment starts at, or -1 if no intact segment ends there
+     */
+    private static int checkSegmentEndingAt(ByteBuffer buffer, int end) {
+
+        if ((end < TrackFormat.SEGMENT_OVERHEAD) || (end > buffer.limit())
+                || (buffer.getInt(end - 4) != TrackFormat.SEGMENT_END_MAGIC)) {
+            return -1;
+        }
+
+        int payloadLength = buffer.getInt(end - 8);
+        int payloadEnd = end - TrackFormat.SEGMENT_TRAILER_SIZE;
+        int start = payloadEnd - payloadLength - TrackFormat.SEGMENT_HEADER_SIZE;
+
+        if ((payloadLength < 0) || (start < 0)
+                || (buffer.getInt(start) != TrackFormat.SEGMENT_MAGIC)
+                || (buffer.getInt(start + 4) != payloadLength)
+                || (buffer.getInt(payloadEnd) != Crc32.compute(buffer, start, payloadEnd))) {
+            return -1;
+        }
+
+        return start;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return -1;
+            }
+            position += n;
+        }
+        return buffer.position();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the fixes of a stored track.
+ *
+ * The file is memory-mapped and decoded one fix at a time as next() is called, so reading a track
+ * of any length uses the same small amount of heap and creates no object per fix.  The reader is
+ * a cursor rather than an Iterator for the same reason: the values of the current fix are read
+ * from its getters.
+ *
+ * <pre>
+ *   TrackReader reader = TrackReader.open(file);
+ *   try {
+ *       while (reader.next()) {
+ *           draw(reader.getLatitude(), reader.getLongitude());
+ *       }
+ *   } finally {
+ *       reader.close();
+ *   }
+ * </pre>
+ *
+ * Both binary tracks (see TrackFormat) and the text tracks written by earlier versions of the
+ * app are supported.  Text tracks have no per-fix times or accuracies; their fixes all report the
+ * start time from the file name and an accuracy of 0.
+ */
+public class TrackReader implements Closeable {
+
+    /** The mapped file */
+    private MappedByteBuffer mBuffer;
+
+    /** True if the file is a legacy text track */
+    private final boolean mLegacy;
+
+    private final TrackDecoder mDecoder = new TrackDecoder();
+    private final LegacyTrackParser mParser = new LegacyTrackParser();
+
+    private long mStartTimeMs;
+
+    /** True once next() has reached the end of the fixes */
+    private boolean mDone = false;
+
+    /** True if the end of the fixes was a footer (or a legacy end line) */
+    private boolean mHasFooter = false;
+
+    /** True if decoding stopped at data that couldn't be decoded */
+    private boolean mCorrupt = false;
+
+    /** Number of fixes returned by next() */
+    private int mFixCount = 0;
+
+    /**
+     * Opens a track file for reading.
+     * @param file  The track file
+     * @return  The reader, positioned before the first fix
+     * @throws IOException  if the file can't be read or isn't a track
+     */
+    public static TrackReader open(File file) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (TrackDecoder.isTrack(buffer)) {
+            return new TrackReader(buffer, false, 0);
+        } else if (LegacyTrackConverter.isLegacyTrack(file)) {
+            return new TrackReader(buffer, true, LegacyTrackParser.parseStartTime(file.getName()));
+        }
+
+        throw new IOException(file.getName() + " is not a track");
+    }
+
+    /**
+     * @return  True if the file is a track file this class can read
+     */
+    public static boolean isTrackFile(File file) {
+        String name = file.getName();
+        return name.endsWith(TrackFormat.FILE_EXTENSION)
+                || LegacyTrackConverter.isLegacyTrack(file);
+    }
+
+    private TrackReader(MappedByteBuffer buffer, boolean legacy, long legacyStartTimeMs)
+            throws IOException {
+
+        mBuffer = buffer;
+        mLegacy = legacy;
+
+        if (legacy) {
+            mStartTimeMs = legacyStartTimeMs;
+        } else {
+            if (!mDecoder.reset(buffer.duplicate())) {
+                throw new IOException("Unsupported track version");
+            }
+            mStartTimeMs = mDecoder.getStartTimeMs();
+        }
+
+        rewind();
+    }
+
+    /**
+     * Moves the reader back to before the first fix.
+     */
+    public void rewind() {
+
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(0);
+
+        if (mLegacy) {
+            mParser.reset(buffer);
+        } else {
+            mDecoder.reset(buffer);
+        }
+
+        mDone = false;
+        mHasFooter = false;
+        mCorrupt = false;
+        mFixCount = 0;
+    }
+
+    /**
+     * Advances to the next fix.
+     * @return  True if there is a fix, false at the end of the track
+     */
+    public boolean next() {
+
+        if (mDone) {
+            return false;
+        }
+
+        int record = mLegacy ? mParser.next() : mDecoder.next();
+
+        if (record == TrackDecoder.RECORD_FIX) {
+            mFixCount++;
+            return true;
+        }
+
+        mDone = true;
+        mHasFooter = record == TrackDecoder.RECORD_FOOTER;
+        mCorrupt = record == TrackDecoder.RECORD_CORRUPT;
+        return false;
+    }
+
+    /**
+     * Skips to the end of the track and reads the footer.  For a finished binary track this jumps
+     * straight to the footer through the trailer, without reading the fixes.  Other tracks are
+     * read through to the end.
+     * @return  True if the track has a footer
+     */
+    public boolean skipToFooter() {
+
+        if (jumpToFooter()) {
+            return true;
+        }
+
+        while (next()) {
+            /* Read through to the end */
+        }
+
+        return mHasFooter;
+    }
+
+    /**
+     * Jumps straight to the footer of a finished binary track through the trailer, without
+     * reading the fixes.  Call it before reading any fixes.
+     * @return  True if the footer was read; if not the reader is still at the first fix, so the
+     *          track can be read through to the end instead
+     */
+    public boolean jumpToFooter() {
+
+        if (!mLegacy && (mDecoder.getVersion() != TrackFormat.VERSION_UNSEGMENTED)) {
+
+            int limit = mBuffer.limit();
+            if ((limit >= TrackFormat.HEADER_SIZE + TrackFormat.TRAILER_SIZE)
+                    && (mBuffer.getInt(limit - 4) == TrackFormat.END_MAGIC)) {
+
+                int footerSegment = mBuffer.getInt(limit - TrackFormat.TRAILER_SIZE);
+                if ((footerSegment >= TrackFormat.HEADER_SIZE) && (footerSegment < limit)) {
+
+                    ByteBuffer buffer = mBuffer.duplicate();
+                    buffer.position(footerSegment);
+                    mDecoder.resetAtSegment(buffer, mStartTimeMs);
+
+                    int record;
+                    while ((record = mDecoder.next()) == TrackDecoder.RECORD_FIX) {
+                        /* Fixes that share the footer's segment */
+                    }
+
+                    if (record == TrackDecoder.RECORD_FOOTER) {
+                        mDone = true;
+                        mHasFooter = true;
+                        mCorrupt = false;
+                        return true;
+                    }
+
+                    /* The trailer didn't lead to a footer */
+                    rewind();
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return  True if this is a text track written by an earlier version of the app
+     */
+    public boolean isLegacy() {
+        return mLegacy;
+    }
+
+    /**
+     * @return  The wall clock time the track was started, in ms since the epoch
+     */
+    public long getStartTimeMs() {
+        return mStartTimeMs;
+    }
+
+    public double getLatitude() {
+        return mLegacy ? mParser.getLatitude() : mDecoder.getLatitude();
+    }
+
+    public double getLongitude() {
+        return mLegacy ? mParser.getLongitude() : mDecoder.getLongitude();
+    }
+
+    public int getLatitudeE7() {
+        return mLegacy ? TrackFormat.toE7(mParser.getLatitude()) : mDecoder.getLatitudeE7();
+    }
+
+    public int getLongitudeE7() {
+        return mLegacy ? TrackFormat.toE7(mParser.getLongitude()) : mDecoder.getLongitudeE7();
+    }
+
+    /**
+     * @return  The time of the current fix, in ms since the epoch
+     */
+    public long getTimeMs() {
+        return mLegacy ? mStartTimeMs : mDecoder.getTimeMs();
+    }
+
+    /**
+     * @return  The accuracy of the current fix in meters, 0 if unknown
+     */
+    public float getAccuracy() {
+        return mLegacy ? 0.0f : mDecoder.getAccuracy();
+    }
+
+    /**
+     * @return  The number of fixes read so far, or the number of fixes in the track once the
+     *          footer of a binary track has been read
+     */
+    public int getFixCount() {
+        return (mHasFooter && !mLegacy) ? mDecoder.getFixCount() : mFixCount;
+    }
+
+    /**
+     * @return  True once next() has returned false and the track ended with its footer
+     */
+    public boolean hasFooter() {
+        return mHasFooter;
+    }
+
+    /**
+     * @return  True once next() has returned false because of data that couldn't be decoded
+     */
+    public boolean isCorrupt() {
+        return mCorrupt;
+    }
+
+    /**
+     * @return  The elapsed time from the footer in ms, valid once hasFooter() is true
+     */
+    public long getElapsedMs() {
+        return mLegacy ? mParser.getElapsedSeconds() * 1000L : mDecoder.getElapsedMs();
+    }
+
+    /**
+     * @return  The total distance from the footer in meters, valid once hasFooter() is true
+     */
+    public float getDistanceMeters() {
+        return mLegacy ? mParser.getDistanceMeters() : mDecoder.getDistanceMeters();
+    }
+
+    /**
+     * @return  True if the footer has the statistics kept while the track was recorded, valid
+     *          once hasFooter() is true
+     */
+    public boolean hasStats() {
+        return mHasFooter && !mLegacy && mDecoder.hasStats();
+    }
+
+    /**
+     * @return  The statistics from the footer, valid if hasStats() is true
+     */
+    public TrackStats getStats() {
+        return mDecoder.getStats();
+    }
+
+    /**
+     * @return  The bounding box from the footer of a binary track, valid once hasFooter() is true
+     */
+    public int getMinLatitudeE7() {
+        return mDecoder.getMinLatitudeE7();
+    }
+
+    public int getMinLongitudeE7() {
+        return mDecoder.getMinLongitudeE7();
+    }
+
+    public int getMaxLatitudeE7() {
+        return mDecoder.getMaxLatitudeE7();
+    }
+
+    public int getMaxLongitudeE7() {
+        return mDecoder.getMaxLongitudeE7();
+    }
+
+    /**
+     * Releases the mapping.  The reader can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+        mDone = true;
+    }
+}
@@ -0,0 +1,229 @@
+package android.redskysoftware.com.tracker;
+
+/**
+ * Drops the fixes of a track that add nothing to its shape as they arrive, before they are
+ * stored, keeping every fix that has been dropped within a tolerance of the line stored in its
+ * place.
+ *
+ * This is the opening window form of Douglas-Peucker.  The last fix kept is the anchor, and the
+ * fixes since it make up the window.  Each new fix is taken as the far end of a line from the
+ * anchor: if every fix in the window is within the tolerance of that line, the window grows to
+ * take the new fix in.  If not, the fix before the new one is kept and becomes the next anchor.
+ * The fix before was the end of a line the whole window fitted, so the fixes dropped are all
+ * within the tolerance of the track kept.  The window is also closed when it reaches
+ * WINDOW_CAPACITY fixes, which bounds the work per fix and how much of the track can be held back
+ * at any time.
+ *
+ * Distances from the lines are measured on a plane through the anchor, which is good to a few
+ * centimeters over the length of a window.  The fixes kept carry the track's total distance as of
+ * them, as measured over every fix, so the total distance of the track is exact however much of
+ * it is dropped; the lengths of the lines kept are not added up anywhere.
+ *
+ * Fixes are added from one thread.  Nothing is allocated per fix.
+ */
+public class TrackSimplifier {
+
+    /**
+     * The tolerance the app simplifies tracks to, in meters.  This is about the accuracy of a
+     * good fix, so the track keeps any detail the fixes themselves can show.
+     */
+    public static final double DEFAULT_TOLERANCE_METERS = 5.0;
+
+    /** The most fixes held back waiting for the next fix kept */
+    static final int WINDOW_CAPACITY = 128;
+
+    /** Meters per degree of latitude on a sphere of the earth's mean radius */
+    private static final double METERS_PER_DEGREE =
+            DistanceKernel.MEAN_RADIUS_METERS * Math.PI / 180.0;
+
+    private final double mToleranceMeters;
+    private final double mToleranceSquared;
+
+    /** The last fix kept, and meters per degree of longitude at it */
+    private boolean mHasAnchor = false;
+    private double mAnchorLatitude;
+    private double mAnchorLongitude;
+    private double mMetersPerDegreeLongitude;
+
+    /** The fixes since the anchor, east and north of it in meters */
+    private final double[] mX = new double[WINDOW_CAPACITY];
+    private final double[] mY = new double[WINDOW_CAPACITY];
+    private int mWindowSize = 0;
+
+    /** The newest fix in the window, which is the one kept when the window closes */
+    private double mLastLatitude;
+    private double mLastLongitude;
+    private long mLastTimeMs;
+    private float mLastAccuracy;
+    private float mLastDistance;
+
+    /** The number of fixes added this track, and of those kept */
+    private long mAdded = 0;
+    private long mKept = 0;
+
+    /**
+     * @param toleranceMeters  How far from the track kept a dropped fix may be, in meters.  0
+     *                         keeps every fix.
+     */
+    public TrackSimplifier(double toleranceMeters) {
+        mToleranceMeters = toleranceMeters;
+        mToleranceSquared = toleranceMeters * toleranceMeters;
+    }
+
+    /**
+     * Forgets the track so far, for a new track.  Any fixes held back are dropped; call flush()
+     * first to keep the end of the track.
+     */
+    public void reset() {
+        mHasAnchor = false;
+        mWindowSize = 0;
+        mAdded = 0;
+        mKept = 0;
+    }
+
+    /**
+     * Adds the fixes of a batch in order.
+     * @param fixes  The fixes to add
+     * @param kept  Where the fixes kept are added, in order
+     */
+    public void add(FixBatch fixes, FixBatch kept) {
+        for (int i = 0; i < fixes.size(); i++) {
+            add(fixes.getLatitude(i), fixes.getLongitude(i), fixes.getTimeMs(i),
+                fixes.getAccuracy(i), fixes.getDistanceMeters(i), kept);
+        }
+    }
+
+    /**
+     * Adds a fix.  The fix itself is held back until the fix after it shows whether it is needed,
+     * so the fixes kept lag one or more behind.
+     * @param timeMs  Time of the fix, in ms since the epoch
+     * @param accuracyMeters  Accuracy of the fix in meters, 0 if unknown
+     * @param totalDistanceMeters  Total distance of the track as of the fix, in meters
+     * @param kept  Where any fix kept is added
+     */
+    public void add(double latitude, double longitude, long timeMs, float accuracyMeters,
+                    float totalDistanceMeters, FixBatch kept) {
+
+        mAdded++;
+
+        if (!mHasAnchor || (mToleranceMeters <= 0.0)) {
+            keep(latitude, longitude, timeMs, accuracyMeters, totalDistanceMeters, kept);
+            setAnchor(latitude, longitude);
+            return;
+        }
+
+        double x = toX(longitude);
+        double y = (latitude - mAnchorLatitude) * METERS_PER_DEGREE;
+
+        if ((mWindowSize == WINDOW_CAPACITY) || !windowFits(x, y)) {
+
+            /* Keep the fix before this one and start a new window from it */
+            keep(mLastLatitude, mLastLongitude, mLastTimeMs, mLastAccuracy, mLastDistance, kept);
+            setAnchor(mLastLatitude, mLastLongitude);
+            x = toX(longitude);
+            y = (latitude - mAnchorLatitude) * METERS_PER_DEGREE;
+        }
+
+        mX[mWindowSize] = x;
+        mY[mWindowSize] = y;
+        mWindowSize++;
+
+        mLastLatitude = latitude;
+        mLastLongitude = longitude;
+        mLastTimeMs = timeMs;
+        mLastAccuracy = accuracyMeters;
+        mLastDistance = totalDistanceMeters;
+    }
+
+    /**
+     * Keeps the newest fix if it is being held back, for the end of the track.
+     * @param kept  Where the fix is added
+     */
+    public void flush(FixBatch kept) {
+        if (mWindowSize > 0) {
+            keep(mLastLatitude, mLastLongitude, mLastTimeMs, mLastAccuracy, mLastDistance, kept);
+            setAnchor(mLastLatitude, mLastLongitude);
+        }
+    }
+
+    /**
+     * @return  The tolerance, in meters
+     */
+    public double getToleranceMeters() {
+        return mToleranceMeters;
+    }
+
+    /**
+     * @return  The number of fixes added this track
+     */
+    public long getAddedCount() {
+        return mAdded;
+    }
+
+    /**
+     * @return  The number of fixes kept this track
+     */
+    public long getKeptCount() {
+        return mKept;
+    }
+
+    /**
+     * @return  True if every fix in the window is within the tolerance of the line from the
+     *          anchor to (x, y)
+     */
+    private boolean windowFits(double x, double y) {
+
+        double lengthSquared = x * x + y * y;
+
+        for (int i = 0; i < mWindowSize; i++) {
+
+            double px = mX[i];
+            double py = mY[i];
+
+            /* The nearest point of the line, not of the infinite line, so doubling back counts */
+            double t = (lengthSquared > 0.0) ? (px * x + py * y) / lengthSquared : 0.0;
+            if (t < 0.0) {
+                t = 0.0;
+            } else if (t > 1.0) {
+                t = 1.0;
+            }
+
+            double dx = px - t * x;
+            double dy = py - t * y;
+            if (dx * dx + dy * dy > mToleranceSquared) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void keep(double latitude, double longitude, long timeMs, float accuracyMeters,
+                      float totalDistanceMeters, FixBatch kept) {
+        kept.add(latitude, longitude, timeMs, accuracyMeters, totalDistanceMeters);
+        mKept++;
+    }
+
+    private void setAnchor(double latitude, double longitude) {
+        mHasAnchor = true;
+        mAnchorLatitude = latitude;
+        mAnchorLongitude = longitude;
+        mMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        mWindowSize = 0;
+    }
+
+    /**
+     * @return  How far east of the anchor a longitude is, in meters
+     */
+    private double toX(double longitude) {
+
+        double delta = longitude - mAnchorLongitude;
+        if (delta > 180.0) {
+            delta -= 360.0;
+        } else if (delta < -180.0) {
+            delta += 360.0;
+        }
+
+        return delta * mMetersPerDegreeLongitude;
+    }
+}
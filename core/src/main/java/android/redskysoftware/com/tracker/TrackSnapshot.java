@@ -0,0 +1,272 @@
+package android.redskysoftware.com.tracker;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable picture of the current track: distance, elapsed time, position, speed, fix count
+ * and the live statistics from TrackStats, all as of the same moment.
+ *
+ * The location pipeline publishes a new snapshot each time a location is received or the track
+ * clock is started, paused, resumed or stopped (see Publisher).  Readers get the latest snapshot
+ * with a single wait-free read and can use its values together knowing they are consistent.
+ *
+ * Elapsed time keeps changing between snapshots, so a snapshot holds the elapsed time when it
+ * was published along with the monotonic time it was published at, and getElapsedNanos() adds the
+ * time since if the clock is running.
+ */
+public final class TrackSnapshot {
+
+    /** The snapshot before any track has been started */
+    public static final TrackSnapshot EMPTY =
+            new TrackSnapshot(0, 0, false, 0.0, 0.0, 0.0f, 0.0f, 0, 0.0f, 0.0f, 0, 0, false);
+
+    private static final float FEET_PER_METER = 3.28f;
+
+    private final long mSequence;
+    private final int mFixCount;
+    private final boolean mHasPosition;
+    private final double mLatitude;
+    private final double mLongitude;
+    private final float mDistanceMeters;
+    private final float mSpeedMetersPerSecond;
+    private final long mMovingMs;
+    private final float mMaxSpeed;
+    private final float mCurrentSpeed;
+    private final long mElapsedNanos;
+    private final long mTimestampNanos;
+    private final boolean mClockRunning;
+
+    private TrackSnapshot(long sequence, int fixCount, boolean hasPosition, double latitude,
+                          double longitude, float distanceMeters, float speedMetersPerSecond,
+                          long movingMs, float maxSpeed, float currentSpeed, long elapsedNanos,
+                          long timestampNanos, boolean clockRunning) {
+        mSequence = sequence;
+        mFixCount = fixCount;
+        mHasPosition = hasPosition;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mDistanceMeters = distanceMeters;
+        mSpeedMetersPerSecond = speedMetersPerSecond;
+        mMovingMs = movingMs;
+        mMaxSpeed = maxSpeed;
+        mCurrentSpeed = currentSpeed;
+        mElapsedNanos = elapsedNanos;
+        mTimestampNanos = timestampNanos;
+        mClockRunning = clockRunning;
+    }
+
+    /**
+     * Publishes snapshots for readers on other threads.
+     *
+     * get() is a single volatile read and never waits.  The publish methods build the next
+     * snapshot from the current one, so they are synchronized among themselves; they are called
+     * once per fix or clock change, never in a loop.
+     */
+    public static final class Publisher {
+
+        private final AtomicReference<TrackSnapshot> mSnapshot =
+                new AtomicReference<>(EMPTY);
+
+        /**
+         * @return  The latest snapshot
+         */
+        public TrackSnapshot get() {
+            return mSnapshot.get();
+        }
+
+        /**
+         * Starts a new track: no fixes, and the clock as it is now.
+         * @param clock  The track clock
+         */
+        public synchronized void reset(TrackClock clock) {
+            TrackSnapshot s = mSnapshot.get();
+            publish(s.mSequence + 1, 0, false, 0.0, 0.0, 0.0f, 0.0f, 0, 0.0f, 0.0f, clock);
+        }
+
+        /**
+         * Publishes a new fix, with the statistics as they were.
+         * @param clock  The track clock
+         */
+        public synchronized void publishFix(double latitude, double longitude,
+                                            float distanceMeters, float speedMetersPerSecond,
+                                            TrackClock clock) {
+            TrackSnapshot s = mSnapshot.get();
+            publish(s.mSequence + 1, s.mFixCount + 1, true, latitude, longitude, distanceMeters,
+                    speedMetersPerSecond, s.mMovingMs, s.mMaxSpeed, s.mCurrentSpeed, clock);
+        }
+
+        /**
+         * Publishes a new fix and the statistics as of it.
+         * @param stats  The track's statistics
+         * @param clock  The track clock
+         */
+        public synchronized void publishFix(double latitude, double longitude,
+                                            float distanceMeters, float speedMetersPerSecond,
+                                            TrackStats stats, TrackClock clock) {
+            TrackSnapshot s = mSnapshot.get();
+            publish(s.mSequence + 1, s.mFixCount + 1, true, latitude, longitude, distanceMeters,
+                    speedMetersPerSecond, stats.getMovingMs(), stats.getMaxSpeed(),
+                    stats.getCurrentSpeed(), clock);
+        }
+
+        /**
+         * Publishes new statistics for a location that didn't go into the track.
+         * @param stats  The track's statistics
+         * @param clock  The track clock
+         */
+        public synchronized void publishStats(TrackStats stats, TrackClock clock) {
+            TrackSnapshot s = mSnapshot.get();
+            publish(s.mSequence + 1, s.mFixCount, s.mHasPosition, s.mLatitude, s.mLongitude,
+                    s.mDistanceMeters, s.mSpeedMetersPerSecond, stats.getMovingMs(),
+                    stats.getMaxSpeed(), stats.getCurrentSpeed(), clock);
+        }
+
+        /**
+         * Publishes a change to the track clock (paused, resumed or stopped).
+         * @param clock  The track clock
+         */
+        public synchronized void publishClock(TrackClock clock) {
+            TrackSnapshot s = mSnapshot.get();
+            publish(s.mSequence + 1, s.mFixCount, s.mHasPosition, s.mLatitude, s.mLongitude,
+                    s.mDistanceMeters, s.mSpeedMetersPerSecond, s.mMovingMs, s.mMaxSpeed,
+                    s.mCurrentSpeed, clock);
+        }
+
+        /**
+         * Reads the clock and publishes the new snapshot.  The clock is read here, under the
+         * publisher's lock, so the elapsed time can't go backwards between snapshots.
+         */
+        private void publish(long sequence, int fixCount, boolean hasPosition, double latitude,
+                             double longitude, float distanceMeters, float speedMetersPerSecond,
+                             long movingMs, float maxSpeed, float currentSpeed,
+                             TrackClock clock) {
+
+            long now = clock.getTimeSource().nanoTime();
+            boolean running = clock.isRunning() && !clock.isPaused();
+
+            mSnapshot.set(new TrackSnapshot(sequence, fixCount, hasPosition, latitude,
+                                            longitude, distanceMeters, speedMetersPerSecond,
+                                            movingMs, maxSpeed, currentSpeed,
+                                            clock.getElapsedNanos(now), now, running));
+        }
+    }
+
+    /**
+     * @return  The number of snapshots published before this one; later snapshots have larger
+     *          numbers
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return  The number of fixes accepted into the track
+     */
+    public int getFixCount() {
+        return mFixCount;
+    }
+
+    /**
+     * @return  True if the track has a position (at least one fix)
+     */
+    public boolean hasPosition() {
+        return mHasPosition;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public float getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    public float getDistanceFeet() {
+        return mDistanceMeters * FEET_PER_METER;
+    }
+
+    /**
+     * @return  The speed as of the last fix, in meters per second
+     */
+    public float getSpeed() {
+        return mSpeedMetersPerSecond;
+    }
+
+    /**
+     * @return  The time spent moving, in ms; see TrackStats
+     */
+    public long getMovingMs() {
+        return mMovingMs;
+    }
+
+    /**
+     * @return  The highest speed over a window, in meters per second; see TrackStats
+     */
+    public float getMaxSpeed() {
+        return mMaxSpeed;
+    }
+
+    /**
+     * @return  The speed over the last TrackStats.WINDOW_MS, in meters per second
+     */
+    public float getCurrentSpeed() {
+        return mCurrentSpeed;
+    }
+
+    /**
+     * @return  The average speed while moving, in meters per second
+     */
+    public float getAverageSpeed() {
+        return TrackStats.averageSpeed(mDistanceMeters, mMovingMs);
+    }
+
+    /**
+     * @param unit  TrackStats.KILOMETER or MILE
+     * @return  The time a unit takes at the current speed, in seconds, or 0 if not moving
+     */
+    public long getCurrentPaceSeconds(int unit) {
+        return TrackStats.paceSeconds(mCurrentSpeed, unit);
+    }
+
+    /**
+     * @param unit  TrackStats.KILOMETER or MILE
+     * @return  The time a unit has taken on average while moving, in seconds, or 0 if the
+     *          track hasn't moved
+     */
+    public long getAveragePaceSeconds(int unit) {
+        return TrackStats.paceSeconds(getAverageSpeed(), unit);
+    }
+
+    /**
+     * @return  True if the track clock was counting when the snapshot was published
+     */
+    public boolean isClockRunning() {
+        return mClockRunning;
+    }
+
+    /**
+     * @param nowNanos  The current time from the same monotonic clock the publisher uses
+     * @return  The elapsed time of the track at nowNanos
+     */
+    public long getElapsedNanos(long nowNanos) {
+        return mClockRunning ? mElapsedNanos + (nowNanos - mTimestampNanos) : mElapsedNanos;
+    }
+
+    /**
+     * @param nowNanos  The current time from the same monotonic clock the publisher uses
+     * @return  The elapsed time of the track at nowNanos, in ms
+     */
+    public long getElapsedMs(long nowNanos) {
+        return getElapsedNanos(nowNanos) / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackSnapshot[seq=" + mSequence + ", fixes=" + mFixCount + ", distance="
+                + mDistanceMeters + ", elapsedNs=" + mElapsedNanos + "]";
+    }
+}
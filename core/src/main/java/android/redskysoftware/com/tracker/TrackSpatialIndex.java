@@ -0,0 +1,999 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A spatial index of the stored tracks, so the tracks that pass near a place can be found without
+ * opening any track file.
+ *
+ * The world is divided into the cells of a geohash of CELL_BITS bits (precision 7, cells about
+ * 150 m on a side at the equator and narrower toward the poles).  Every line between two points
+ * of a track is traced through the cells it crosses, and each run of a track through a cell is
+ * an entry: the cell, the track's id and the range of points whose lines are in the cell.
+ *
+ * Entries are held in memory in primitive arrays sorted by cell.  Geohash cells that share a
+ * prefix are next to each other in that order, so a query covers its bounding box with as few
+ * prefixes as it can (a quadtree walk, descending only where a prefix's cell straddles the edge
+ * of the box) and reads each prefix's entries with one binary search.  Queries cost time in
+ * proportion to the edge of the box and the entries found, not to the number of tracks or
+ * points stored.  Answers are to the resolution of a cell: a track is found if it crosses a cell
+ * that reaches the place asked about, so it may be up to a cell away.  The point ranges of the
+ * entries (see query()) say which points to read to check exactly.
+ *
+ * <pre>
+ *   header   int magic 'TRKG', int version, int cell bits, int reserved
+ *   block    byte name length, name (US-ASCII), int entry count,
+ *            entries of long cell, int first point, int last point,
+ *            int CRC-32 of the preceding bytes of the block
+ * </pre>
+ *
+ * The file is only ever appended to: a track is indexed by writing one block to the end, and a
+ * track indexed again is replaced by its later block.  Once more than half the file is blocks
+ * that have been replaced, it is rewritten without them.  The whole file is read with one read.
+ * Like the catalog it can always be rebuilt from the track files, and open() rebuilds it if it
+ * is missing or a block fails its CRC.  All methods are synchronized, since the data model adds
+ * tracks while the UI queries.
+ */
+public class TrackSpatialIndex {
+
+    /** The name of the index file in the track directory */
+    public static final String FILE_NAME = "tracks.geo";
+
+    /** 'TRKG' */
+    public static final int MAGIC = 0x54524B47;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+
+    /** Bits of a cell: longitude and latitude bits interleaved, longitude first */
+    public static final int CELL_BITS = 35;
+    static final int LONGITUDE_BITS = 18;
+    static final int LATITUDE_BITS = 17;
+
+    /** The most entries the index can hold */
+    public static final int MAX_ENTRIES = 1 << 28;
+
+    /** Bytes of an entry in the file */
+    static final int ENTRY_SIZE = 8 + 4 + 4;
+
+    /** Lines crossing more cells than this (jumps in a track) are only indexed at their ends */
+    static final int MAX_CELLS_PER_LINE = 4096;
+
+    private static final int LONGITUDE_CELLS = 1 << LONGITUDE_BITS;
+    private static final int LATITUDE_CELLS = 1 << LATITUDE_BITS;
+
+    private static final double CELLS_PER_DEGREE_LONGITUDE = LONGITUDE_CELLS / 360.0;
+    private static final double CELLS_PER_DEGREE_LATITUDE = LATITUDE_CELLS / 180.0;
+
+    /** Meters per degree of latitude on a sphere of the earth's mean radius */
+    private static final double METERS_PER_DEGREE =
+            DistanceKernel.MEAN_RADIUS_METERS * Math.PI / 180.0;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Told about the entries a query finds.
+     */
+    public interface Visitor {
+
+        /**
+         * @param track  The id of the track
+         * @param firstPoint  The index of the first point of the run through the cell
+         * @param lastPoint  The index of the last point of the run through the cell
+         */
+        void onEntry(int track, int firstPoint, int lastPoint);
+    }
+
+    /**
+     * Works out the entries of a track from its points as they are stored, so the track can be
+     * indexed when it is finished without reading it back.  Nothing is allocated per point,
+     * except when the entry arrays grow.
+     */
+    public static final class Builder {
+
+        private long[] mCells = new long[64];
+        private int[] mFirst = new int[64];
+        private int[] mLast = new int[64];
+        private int mSize = 0;
+
+        /** The number of points added */
+        private int mPoints = 0;
+
+        /** The previous point, in cells, and its longitude */
+        private double mU;
+        private double mV;
+        private double mLongitude;
+
+        /** The run being built: its cell and first point */
+        private int mRunX;
+        private int mRunY;
+        private int mRunFirst;
+
+        private boolean mEnded = false;
+
+        /**
+         * Forgets all points, for a new track.
+         */
+        public void reset() {
+            mSize = 0;
+            mPoints = 0;
+            mEnded = false;
+        }
+
+        /**
+         * Adds the next point of the track.
+         * @param latitude  Latitude in degrees
+         * @param longitude  Longitude in degrees
+         */
+        public void addPoint(double latitude, double longitude) {
+
+            if (mEnded) {
+                throw new IllegalStateException("The track has been indexed");
+            }
+
+            double u = toU(longitude);
+            double v = toV(latitude);
+            int x = toCell(u, LONGITUDE_CELLS);
+            int y = toCell(v, LATITUDE_CELLS);
+            int point = mPoints;
+
+            if (point == 0) {
+                mRunX = x;
+                mRunY = y;
+                mRunFirst = 0;
+            } else {
+                int steps = Math.abs(x - mRunX) + Math.abs(y - mRunY);
+                if ((steps > MAX_CELLS_PER_LINE) || (Math.abs(longitude - mLongitude) > 180.0)) {
+                    /* Too far to trace, or across the antimeridian */
+                    if (steps > 0) {
+                        enterCell(x, y, point);
+                    }
+                } else if (steps > 0) {
+                    traceLine(u, v, x, y, steps, point);
+                }
+            }
+
+            mU = u;
+            mV = v;
+            mLongitude = longitude;
+            mPoints = point + 1;
+        }
+
+        /**
+         * @return  The number of points added
+         */
+        public int getPointCount() {
+            return mPoints;
+        }
+
+        /**
+         * Walks the cells the line from the previous point crosses, in order, and starts a run
+         * in each (Amanatides and Woo).
+         * @param x  The cell of the new point
+         * @param steps  The number of cells to step through to get there
+         */
+        private void traceLine(double u, double v, int x, int y, int steps, int point) {
+
+            int cx = mRunX;
+            int cy = mRunY;
+            double du = u - mU;
+            double dv = v - mV;
+            int stepX = (du > 0.0) ? 1 : -1;
+            int stepY = (dv > 0.0) ? 1 : -1;
+
+            double nextX = (du != 0.0)
+                    ? ((stepX > 0) ? cx + 1 - mU : mU - cx) / Math.abs(du)
+                    : Double.POSITIVE_INFINITY;
+            double nextY = (dv != 0.0)
+                    ? ((stepY > 0) ? cy + 1 - mV : mV - cy) / Math.abs(dv)
+                    : Double.POSITIVE_INFINITY;
+            double deltaX = (du != 0.0) ? 1.0 / Math.abs(du) : Double.POSITIVE_INFINITY;
+            double deltaY = (dv != 0.0) ? 1.0 / Math.abs(dv) : Double.POSITIVE_INFINITY;
+
+            for (int i = 0; i < steps; i++) {
+                /* Once one axis is at the end cell only the other moves, whatever the rounding */
+                if ((cy == y) || ((cx != x) && (nextX < nextY))) {
+                    cx += stepX;
+                    nextX += deltaX;
+                } else {
+                    cy += stepY;
+                    nextY += deltaY;
+                }
+                enterCell(cx, cy, point);
+            }
+        }
+
+        /**
+         * Ends the run in the current cell, which lasts until the line to this point leaves it,
+         * and starts one in the next cell with that line.
+         */
+        private void enterCell(int x, int y, int point) {
+            addEntry(cellOf(mRunX, mRunY), mRunFirst, point);
+            mRunX = x;
+            mRunY = y;
+            mRunFirst = point - 1;
+        }
+
+        /**
+         * Ends the last run, once all the points have been added.
+         */
+        void end() {
+            if (!mEnded && (mPoints > 0)) {
+                addEntry(cellOf(mRunX, mRunY), mRunFirst, mPoints - 1);
+            }
+            mEnded = true;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        private void addEntry(long cell, int first, int last) {
+
+            if (mSize == mCells.length) {
+                mCells = Arrays.copyOf(mCells, mSize * 2);
+                mFirst = Arrays.copyOf(mFirst, mSize * 2);
+                mLast = Arrays.copyOf(mLast, mSize * 2);
+            }
+
+            mCells[mSize] = cell;
+            mFirst[mSize] = first;
+            mLast[mSize] = last;
+            mSize++;
+        }
+    }
+
+    /** The directory holding the tracks and the index */
+    private final File mDir;
+
+    private final File mFile;
+
+    /** The names of the tracks by id, and the ids by name */
+    private String[] mNames = new String[16];
+    private int mTrackCount = 0;
+    private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+
+    /*
+     * The entries.  The first mSortedCount are sorted by cell; entries added since are after
+     * them, and are sorted in before the next query.
+     */
+    private long[] mCells = new long[256];
+    private int[] mTracks = new int[256];
+    private int[] mFirst = new int[256];
+    private int[] mLast = new int[256];
+    private int mCount = 0;
+    private int mSortedCount = 0;
+
+    /** The bytes of the index file, and of the blocks in it that haven't been replaced */
+    private long mFileBytes = 0;
+    private long mLiveBytes = HEADER_SIZE;
+
+    /** Scratch space for the entries a query finds */
+    private int[] mHits = new int[256];
+    private int mHitCount = 0;
+
+    /** The cells, as ranges, a query is looking in */
+    private int mMinX;
+    private int mMaxX;
+    private int mMinY;
+    private int mMaxY;
+
+    /**
+     * @param dir  The directory holding the track files
+     */
+    public TrackSpatialIndex(File dir) {
+        mDir = dir;
+        mFile = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Loads the index, rebuilding it from the track files if it is missing or damaged.
+     * @throws IOException  if the index can't be read or rebuilt
+     */
+    public synchronized void open() throws IOException {
+        if (!load()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Reads the index file with a single read.
+     * @return  True if the index was loaded, false if it is missing or damaged
+     * @throws IOException  if the file exists but can't be read
+     */
+    public synchronized boolean load() throws IOException {
+
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            long length = file.length();
+            if ((length < HEADER_SIZE) || (length > Integer.MAX_VALUE)) {
+                return false;
+            }
+            data = ByteBuffer.allocate((int) length);
+            file.readFully(data.array());
+        }
+
+        if ((data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)
+                || (data.getInt(8) != CELL_BITS)) {
+            return false;
+        }
+
+        //
+        // Check every block, and find the last block of each track, since a track indexed again
+        // is replaced by its later block.
+        //
+        HashMap<String, Integer> blocks = new HashMap<String, Integer>();
+        long entries = 0;
+        int position = HEADER_SIZE;
+        while (position < data.limit()) {
+
+            int count = blockEntryCount(data, position);
+            if (count < 0) {
+                return false;
+            }
+            int nameLength = data.get(position) & 0xFF;
+            String name = new String(data.array(), position + 1, nameLength, ASCII);
+            Integer previous = blocks.put(name, position);
+            if (previous != null) {
+                entries -= blockEntryCount(data, previous);
+            }
+            entries += count;
+
+            position += blockSize(nameLength, count);
+        }
+
+        if (entries > MAX_ENTRIES) {
+            return false;
+        }
+        clear((int) entries);
+
+        /* Tracks keep the ids they were given when first indexed */
+        position = HEADER_SIZE;
+        while (position < data.limit()) {
+            int nameLength = data.get(position) & 0xFF;
+            String name = new String(data.array(), position + 1, nameLength, ASCII);
+            int id = indexOf(name);
+            if (id < 0) {
+                id = newTrack(name);
+            }
+            if (blocks.get(name) == position) {
+                readEntries(data, position, id);
+                mLiveBytes += blockSize(nameLength, data.getInt(position + 1 + nameLength));
+            }
+            position += blockSize(nameLength, data.getInt(position + 1 + nameLength));
+        }
+        mFileBytes = data.limit();
+
+        return true;
+    }
+
+    /**
+     * Rebuilds the index by reading every track file, then replaces the index file with the
+     * result.
+     * @throws IOException  if the new index can't be written
+     */
+    public synchronized void rebuild() throws IOException {
+
+        clear(256);
+
+        Builder builder = new Builder();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TrackFormat.FILE_EXTENSION)
+                        && readTrack(file, builder)) {
+                    putTrack(file.getName(), builder);
+                }
+            }
+        }
+
+        writeAll();
+    }
+
+    /**
+     * Adds or replaces the entries of a track file by reading its points.
+     * @param file  The track file
+     * @return  The track's id, or -1 if the file can't be read as a track
+     * @throws IOException  if the index can't be written
+     */
+    public synchronized int index(File file) throws IOException {
+
+        Builder builder = new Builder();
+        if (!readTrack(file, builder)) {
+            return -1;
+        }
+        return add(file.getName(), builder);
+    }
+
+    /**
+     * Adds a track, or replaces the entries of the track with the same name, and appends it to
+     * the index file.
+     * @param name  The name of the track file
+     * @param builder  The track's points.  It can't take any more until it is reset.
+     * @return  The track's id
+     * @throws IOException  if the index can't be written
+     */
+    public synchronized int add(String name, Builder builder) throws IOException {
+
+        int id = putTrack(name, builder);
+
+        if (!mFile.exists()) {
+            writeAll();
+        } else {
+            ByteBuffer block = ByteBuffer.allocate(blockSize(name.length(), builder.size()));
+            putBlock(block, name, builder.mCells, builder.mFirst, builder.mLast, 0,
+                     builder.size());
+            try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+                out.write(block.array(), 0, block.position());
+            }
+            mFileBytes += block.position();
+
+            /* Drop the replaced blocks once they are most of the file */
+            if (mFileBytes - mLiveBytes > mFileBytes / 2) {
+                writeAll();
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * @return  The number of tracks in the index.  Their ids run from 0 to one less than this.
+     */
+    public synchronized int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * @return  The number of entries in the index
+     */
+    public synchronized int getEntryCount() {
+        return mCount;
+    }
+
+    /**
+     * @return  The name of the track file with the given id
+     */
+    public synchronized String getName(int track) {
+        if ((track < 0) || (track >= mTrackCount)) {
+            throw new IndexOutOfBoundsException("Track " + track + " of " + mTrackCount);
+        }
+        return mNames[track];
+    }
+
+    /**
+     * @return  The id of the named track file, or -1 if it isn't indexed
+     */
+    public synchronized int indexOf(String name) {
+        Integer id = mIds.get(name);
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Finds the entries of the tracks that cross a bounding box.  The box doesn't wrap across the
+     * antimeridian.
+     * @param visitor  Told about each entry found, in cell order
+     */
+    public synchronized void query(double minLatitude, double minLongitude, double maxLatitude,
+                                   double maxLongitude, Visitor visitor) {
+
+        find(minLatitude, minLongitude, maxLatitude, maxLongitude);
+
+        for (int i = 0; i < mHitCount; i++) {
+            int entry = mHits[i];
+            visitor.onEntry(mTracks[entry], mFirst[entry], mLast[entry]);
+        }
+    }
+
+    /**
+     * @return  The ids of the tracks that cross a bounding box, in order.  The box doesn't wrap
+     *          across the antimeridian.
+     */
+    public synchronized int[] tracksInBox(double minLatitude, double minLongitude,
+                                          double maxLatitude, double maxLongitude) {
+
+        find(minLatitude, minLongitude, maxLatitude, maxLongitude);
+        return distinctTracks(mHitCount);
+    }
+
+    /**
+     * @param radiusMeters  How far from the place a track may pass
+     * @return  The ids of the tracks that pass within the radius of a place, in order
+     */
+    public synchronized int[] tracksNear(double latitude, double longitude, double radiusMeters) {
+
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(89.0, Math.abs(latitude) + latitudeDelta)));
+        double longitudeDelta = Math.min(180.0, radiusMeters / (METERS_PER_DEGREE * cos));
+
+        find(latitude - latitudeDelta, longitude - longitudeDelta,
+             latitude + latitudeDelta, longitude + longitudeDelta);
+
+        /* Keep the entries whose cells really come within the radius, not just the box */
+        int kept = 0;
+        for (int i = 0; i < mHitCount; i++) {
+
+            long cell = mCells[mHits[i]];
+            double cellLongitude = cellX(cell) / CELLS_PER_DEGREE_LONGITUDE - 180.0;
+            double cellLatitude = cellY(cell) / CELLS_PER_DEGREE_LATITUDE - 90.0;
+
+            double nearestLongitude = clamp(longitude, cellLongitude,
+                                            cellLongitude + 1.0 / CELLS_PER_DEGREE_LONGITUDE);
+            double nearestLatitude = clamp(latitude, cellLatitude,
+                                           cellLatitude + 1.0 / CELLS_PER_DEGREE_LATITUDE);
+
+            if (DistanceKernel.haversineMeters(latitude, longitude, nearestLatitude,
+                                               nearestLongitude) <= radiusMeters) {
+                mHits[kept++] = mHits[i];
+            }
+        }
+
+        return distinctTracks(kept);
+    }
+
+    /**
+     * Finds the entries in the cells a bounding box covers, into mHits.
+     */
+    private void find(double minLatitude, double minLongitude, double maxLatitude,
+                      double maxLongitude) {
+
+        sortEntries();
+
+        mMinX = toCell(toU(minLongitude), LONGITUDE_CELLS);
+        mMaxX = toCell(toU(maxLongitude), LONGITUDE_CELLS);
+        mMinY = toCell(toV(minLatitude), LATITUDE_CELLS);
+        mMaxY = toCell(toV(maxLatitude), LATITUDE_CELLS);
+        mHitCount = 0;
+
+        if ((mMinX <= mMaxX) && (mMinY <= mMaxY)) {
+            cover(0L, 0, 0, LONGITUDE_CELLS, 0, LATITUDE_CELLS);
+        }
+    }
+
+    /**
+     * Finds the entries of the part of a geohash prefix's cell that is in the query's cells.
+     * @param prefix  The geohash prefix
+     * @param bits  The number of bits in the prefix
+     * @param x0  The first longitude cell under the prefix; x1 is one past the last
+     * @param y0  The first latitude cell under the prefix; y1 is one past the last
+     */
+    private void cover(long prefix, int bits, int x0, int x1, int y0, int y1) {
+
+        if ((x1 <= mMinX) || (x0 > mMaxX) || (y1 <= mMinY) || (y0 > mMaxY)) {
+            return;
+        }
+
+        if ((x0 >= mMinX) && (x1 - 1 <= mMaxX) && (y0 >= mMinY) && (y1 - 1 <= mMaxY)) {
+            int shift = CELL_BITS - bits;
+            collect(prefix << shift, (prefix + 1) << shift);
+            return;
+        }
+
+        /* A single cell is always in or out, so this never goes past the last bit */
+        prefix <<= 1;
+        if ((bits & 1) == 0) {
+            int middle = (x0 + x1) >>> 1;
+            cover(prefix, bits + 1, x0, middle, y0, y1);
+            cover(prefix | 1, bits + 1, middle, x1, y0, y1);
+        } else {
+            int middle = (y0 + y1) >>> 1;
+            cover(prefix, bits + 1, x0, x1, y0, middle);
+            cover(prefix | 1, bits + 1, x0, x1, middle, y1);
+        }
+    }
+
+    /**
+     * Adds the entries with cells from start up to (but not including) end to mHits.
+     */
+    private void collect(long start, long end) {
+
+        /* The first entry at or after start */
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mCells[middle] < start) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        for (int i = low; (i < mCount) && (mCells[i] < end); i++) {
+            if (mHitCount == mHits.length) {
+                mHits = Arrays.copyOf(mHits, mHitCount * 2);
+            }
+            mHits[mHitCount++] = i;
+        }
+    }
+
+    /**
+     * @return  The distinct tracks of the first count entries in mHits, in order
+     */
+    private int[] distinctTracks(int count) {
+
+        int[] tracks = new int[count];
+        for (int i = 0; i < count; i++) {
+            tracks[i] = mTracks[mHits[i]];
+        }
+        Arrays.sort(tracks);
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if ((distinct == 0) || (tracks[i] != tracks[distinct - 1])) {
+                tracks[distinct++] = tracks[i];
+            }
+        }
+
+        return Arrays.copyOf(tracks, distinct);
+    }
+
+    /**
+     * Sorts the entries added since the last query by cell, and merges them in.
+     */
+    private void sortEntries() {
+
+        int added = mCount - mSortedCount;
+        if (added == 0) {
+            return;
+        }
+
+        //
+        // Sort the new entries' cells with their position packed into the low bits, so the sort
+        // is of primitives.  Cells are 35 bits and positions under 28.
+        //
+        long[] keys = new long[added];
+        for (int i = 0; i < added; i++) {
+            keys[i] = (mCells[mSortedCount + i] << 28) | i;
+        }
+        Arrays.sort(keys);
+
+        long[] cells = new long[mCells.length];
+        int[] tracks = new int[mCells.length];
+        int[] first = new int[mCells.length];
+        int[] last = new int[mCells.length];
+
+        int sorted = 0;
+        int next = 0;
+        for (int i = 0; i < mCount; i++) {
+
+            int entry;
+            if ((next < added) && ((sorted == mSortedCount)
+                    || ((keys[next] >>> 28) < mCells[sorted]))) {
+                entry = mSortedCount + (int) (keys[next++] & ((1 << 28) - 1));
+            } else {
+                entry = sorted++;
+            }
+
+            cells[i] = mCells[entry];
+            tracks[i] = mTracks[entry];
+            first[i] = mFirst[entry];
+            last[i] = mLast[entry];
+        }
+
+        mCells = cells;
+        mTracks = tracks;
+        mFirst = first;
+        mLast = last;
+        mSortedCount = mCount;
+    }
+
+    /**
+     * Adds or replaces a track's entries, in memory only.
+     * @return  The track's id
+     */
+    private int putTrack(String name, Builder builder) {
+
+        if (name.length() > 255) {
+            throw new IllegalArgumentException("Track name too long: " + name);
+        }
+
+        builder.end();
+
+        int id = indexOf(name);
+        if (id >= 0) {
+            mLiveBytes -= blockSize(name.length(), removeEntries(id));
+        } else {
+            id = newTrack(name);
+        }
+
+        int size = builder.size();
+        if ((long) mCount + size > MAX_ENTRIES) {
+            throw new IllegalStateException("The spatial index is full");
+        }
+        ensureCapacity(mCount + size);
+
+        System.arraycopy(builder.mCells, 0, mCells, mCount, size);
+        System.arraycopy(builder.mFirst, 0, mFirst, mCount, size);
+        System.arraycopy(builder.mLast, 0, mLast, mCount, size);
+        Arrays.fill(mTracks, mCount, mCount + size, id);
+        mCount += size;
+        mLiveBytes += blockSize(name.length(), size);
+
+        return id;
+    }
+
+    /**
+     * Gives a track the next id.
+     * @return  The id
+     */
+    private int newTrack(String name) {
+
+        if (mTrackCount == mNames.length) {
+            mNames = Arrays.copyOf(mNames, mTrackCount * 2);
+        }
+        int id = mTrackCount++;
+        mNames[id] = name;
+        mIds.put(name, id);
+
+        return id;
+    }
+
+    /**
+     * Removes the entries of a track that is being indexed again, keeping the rest in order.
+     * @return  The number of entries removed
+     */
+    private int removeEntries(int track) {
+
+        int kept = 0;
+        int keptSorted = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mTracks[i] != track) {
+                mCells[kept] = mCells[i];
+                mTracks[kept] = mTracks[i];
+                mFirst[kept] = mFirst[i];
+                mLast[kept] = mLast[i];
+                kept++;
+                if (i < mSortedCount) {
+                    keptSorted++;
+                }
+            }
+        }
+
+        int removed = mCount - kept;
+        mCount = kept;
+        mSortedCount = keptSorted;
+
+        return removed;
+    }
+
+    /**
+     * Empties the index, in memory only.
+     * @param capacity  The entries to make room for
+     */
+    private void clear(int capacity) {
+
+        mNames = new String[16];
+        mTrackCount = 0;
+        mIds.clear();
+
+        capacity = Math.max(capacity, 256);
+        mCells = new long[capacity];
+        mTracks = new int[capacity];
+        mFirst = new int[capacity];
+        mLast = new int[capacity];
+        mCount = 0;
+        mSortedCount = 0;
+        mLiveBytes = HEADER_SIZE;
+    }
+
+    private void ensureCapacity(int capacity) {
+
+        if (capacity > mCells.length) {
+            int length = Math.max(capacity, mCells.length * 2);
+            mCells = Arrays.copyOf(mCells, length);
+            mTracks = Arrays.copyOf(mTracks, length);
+            mFirst = Arrays.copyOf(mFirst, length);
+            mLast = Arrays.copyOf(mLast, length);
+        }
+    }
+
+    /**
+     * Reads the points of a track file into a builder.
+     * @return  True if the file could be read as a track
+     */
+    private static boolean readTrack(File file, Builder builder) {
+
+        builder.reset();
+
+        try (TrackReader reader = TrackReader.open(file)) {
+            while (reader.next()) {
+                builder.addPoint(reader.getLatitude(), reader.getLongitude());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the index file with the index in memory, a block per track.
+     */
+    private void writeAll() throws IOException {
+
+        /* Group the entries by track */
+        int[] starts = new int[mTrackCount + 1];
+        for (int i = 0; i < mCount; i++) {
+            starts[mTracks[i] + 1]++;
+        }
+        int size = HEADER_SIZE;
+        for (int track = 0; track < mTrackCount; track++) {
+            size += blockSize(mNames[track].length(), starts[track + 1]);
+            starts[track + 1] += starts[track];
+        }
+
+        long[] cells = new long[mCount];
+        int[] first = new int[mCount];
+        int[] last = new int[mCount];
+        int[] next = Arrays.copyOf(starts, mTrackCount);
+        for (int i = 0; i < mCount; i++) {
+            int position = next[mTracks[i]]++;
+            cells[position] = mCells[i];
+            first[position] = mFirst[i];
+            last[position] = mLast[i];
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(size);
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putInt(CELL_BITS);
+        data.putInt(0);
+        for (int track = 0; track < mTrackCount; track++) {
+            putBlock(data, mNames[track], cells, first, last, starts[track], starts[track + 1]);
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(data.array(), 0, data.position());
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile + " to " + mFile);
+        }
+        mFileBytes = size;
+    }
+
+    /**
+     * Puts a block for a track at the buffer's position.
+     * @param start  The index of the track's first entry in the arrays; end is one past its last
+     */
+    private static void putBlock(ByteBuffer data, String name, long[] cells, int[] first,
+                                 int[] last, int start, int end) {
+
+        int block = data.position();
+
+        data.put((byte) name.length());
+        data.put(name.getBytes(ASCII));
+        data.putInt(end - start);
+        for (int i = start; i < end; i++) {
+            data.putLong(cells[i]);
+            data.putInt(first[i]);
+            data.putInt(last[i]);
+        }
+        data.putInt(Crc32.compute(data, block, data.position()));
+    }
+
+    /**
+     * Checks a block in the file.
+     * @param block  The offset of the block
+     * @return  The number of entries in the block, or -1 if the block is cut short or fails its
+     *          CRC
+     */
+    private static int blockEntryCount(ByteBuffer data, int block) {
+
+        int nameLength = data.get(block) & 0xFF;
+        if (block + 1 + nameLength + 4 > data.limit()) {
+            return -1;
+        }
+
+        int count = data.getInt(block + 1 + nameLength);
+        if ((count < 0) || (count > (data.limit() - block) / ENTRY_SIZE)
+                || (block + blockSize(nameLength, count) > data.limit())) {
+            return -1;
+        }
+
+        int crcOffset = block + blockSize(nameLength, count) - 4;
+        if (Crc32.compute(data, block, crcOffset) != data.getInt(crcOffset)) {
+            return -1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Adds the entries in a checked block to a track, in memory only.
+     */
+    private void readEntries(ByteBuffer data, int block, int id) {
+
+        int nameLength = data.get(block) & 0xFF;
+        int count = data.getInt(block + 1 + nameLength);
+
+        ensureCapacity(mCount + count);
+        int position = block + 1 + nameLength + 4;
+        for (int i = 0; i < count; i++) {
+            mCells[mCount] = data.getLong(position);
+            mFirst[mCount] = data.getInt(position + 8);
+            mLast[mCount] = data.getInt(position + 12);
+            mTracks[mCount] = id;
+            mCount++;
+            position += ENTRY_SIZE;
+        }
+    }
+
+    private static int blockSize(int nameLength, int entries) {
+        return 1 + nameLength + 4 + entries * ENTRY_SIZE + 4;
+    }
+
+    /**
+     * @return  A longitude in cells east of the antimeridian
+     */
+    private static double toU(double longitude) {
+        return (longitude + 180.0) * CELLS_PER_DEGREE_LONGITUDE;
+    }
+
+    /**
+     * @return  A latitude in cells north of the south pole
+     */
+    private static double toV(double latitude) {
+        return (latitude + 90.0) * CELLS_PER_DEGREE_LATITUDE;
+    }
+
+    private static int toCell(double position, int cells) {
+        int cell = (int) Math.floor(position);
+        return (cell < 0) ? 0 : (cell >= cells) ? cells - 1 : cell;
+    }
+
+    /**
+     * @return  The geohash of a cell: its longitude and latitude bits interleaved
+     */
+    static long cellOf(int x, int y) {
+
+        long cell = 0;
+        for (int bit = 0; bit < CELL_BITS; bit++) {
+            int value = ((bit & 1) == 0)
+                    ? (x >>> (LONGITUDE_BITS - 1 - (bit >> 1))) & 1
+                    : (y >>> (LATITUDE_BITS - 1 - (bit >> 1))) & 1;
+            cell = (cell << 1) | value;
+        }
+        return cell;
+    }
+
+    /**
+     * @return  The longitude cell of a geohash
+     */
+    static int cellX(long cell) {
+
+        int x = 0;
+        for (int bit = 0; bit < CELL_BITS; bit += 2) {
+            x = (x << 1) | (int) ((cell >>> (CELL_BITS - 1 - bit)) & 1);
+        }
+        return x;
+    }
+
+    /**
+     * @return  The latitude cell of a geohash
+     */
+    static int cellY(long cell) {
+
+        int y = 0;
+        for (int bit = 1; bit < CELL_BITS; bit += 2) {
+            y = (y << 1) | (int) ((cell >>> (CELL_BITS - 1 - bit)) & 1);
+        }
+        return y;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return (value < min) ? min : (value > max) ? max : value;
+    }
+}
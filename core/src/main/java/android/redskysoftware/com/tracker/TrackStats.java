@@ -0,0 +1,416 @@
+package android.redskysoftware.com.tracker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Works out the statistics of a track as it is recorded: moving time, splits per kilometer and
+ * per mile, current, average and maximum speed, and paces from them.
+ *
+ * Each location is added with its time and the track's total distance as of it, and every value
+ * is brought up to date in constant time without allocating.  Locations that add no distance
+ * (those the FixFilter doesn't accept) should be added as well, so the time spent standing still
+ * is seen.
+ *
+ * The time between two locations counts as moving time if the distance between them was covered
+ * at MOVING_SPEED or faster.  Splits are timed in moving time, each ending at the moment the
+ * distance crossed a whole kilometer or mile (worked out between the two locations either side
+ * of it); the first MAX_SPLITS of each are kept.
+ *
+ * The current speed is the distance over the last WINDOW_MS or so, from a fixed ring of the
+ * locations in that time.  The ring holds WINDOW_CAPACITY locations; if they come faster than
+ * that, the window is shortened to what the ring holds.  The maximum speed is the highest current
+ * speed over a window of at least MIN_WINDOW_MS, so a single noisy location doesn't set it.
+ *
+ * The statistics are written in the footer of a finished track (see TrackEncoder), and read back
+ * from it into a TrackStats by the TrackDecoder; a TrackStats read back has no window, so its
+ * current speed is 0.
+ *
+ * For a SessionCheckpoint, the totals are saved in a fixed STATE_SIZE bytes and restored, along
+ * with the number of splits of each unit and the end of the last one.  The window isn't saved,
+ * so the current speed is worked out afresh once the track carries on.  The earlier splits are
+ * timed again by rebuildSplits() from the checkpoints of the track's segments.
+ *
+ * A TrackStats is not thread safe.
+ */
+public final class TrackStats {
+
+    /** Units splits and paces can be in */
+    public static final int KILOMETER = 0;
+    public static final int MILE = 1;
+
+    /** The most splits kept in each unit */
+    public static final int MAX_SPLITS = 500;
+
+    /** The slowest speed counted as moving, in meters per second */
+    public static final float MOVING_SPEED = 0.5f;
+
+    /** How far back the current speed looks, in ms */
+    public static final long WINDOW_MS = 30000;
+
+    /** The shortest window the maximum speed is taken over, in ms */
+    static final long MIN_WINDOW_MS = 10000;
+
+    /** The most locations the window holds */
+    static final int WINDOW_CAPACITY = 64;
+
+    /**
+     * Bytes taken by the saved state: the totals, and the number of splits of each unit with the
+     * moving time at the end of the last
+     */
+    static final int STATE_SIZE = 1 + 8 + 8 + 8 + 4 + 4 + 2 * (4 + 8);
+
+    /** Meters in each unit */
+    private static final double[] UNIT_METERS = { 1000.0, 1609.344 };
+
+    private boolean mHasLocation = false;
+    private long mLastTimeMs;
+    private double mDistanceMeters = 0.0;
+    private long mMovingMs = 0;
+    private float mMaxSpeed = 0.0f;
+    private float mCurrentSpeed = 0.0f;
+
+    /** The window, oldest location first from mWindowStart */
+    private final long[] mWindowTimeMs = new long[WINDOW_CAPACITY];
+    private final double[] mWindowDistance = new double[WINDOW_CAPACITY];
+    private int mWindowStart = 0;
+    private int mWindowSize = 0;
+
+    /** The moving time at the end of each split, by unit */
+    private final long[][] mSplitEndMs = new long[UNIT_METERS.length][MAX_SPLITS];
+    private final int[] mSplitCount = new int[UNIT_METERS.length];
+
+    /**
+     * Forgets the track so far, for a new track.
+     */
+    public void reset() {
+        mHasLocation = false;
+        mDistanceMeters = 0.0;
+        mMovingMs = 0;
+        mMaxSpeed = 0.0f;
+        mCurrentSpeed = 0.0f;
+        mWindowStart = 0;
+        mWindowSize = 0;
+        for (int unit = 0; unit < mSplitCount.length; unit++) {
+            mSplitCount[unit] = 0;
+        }
+    }
+
+    /**
+     * Copies another track's statistics into this one.
+     * @param other  The statistics to copy
+     */
+    public void set(TrackStats other) {
+
+        mHasLocation = other.mHasLocation;
+        mLastTimeMs = other.mLastTimeMs;
+        mDistanceMeters = other.mDistanceMeters;
+        mMovingMs = other.mMovingMs;
+        mMaxSpeed = other.mMaxSpeed;
+        mCurrentSpeed = other.mCurrentSpeed;
+
+        System.arraycopy(other.mWindowTimeMs, 0, mWindowTimeMs, 0, WINDOW_CAPACITY);
+        System.arraycopy(other.mWindowDistance, 0, mWindowDistance, 0, WINDOW_CAPACITY);
+        mWindowStart = other.mWindowStart;
+        mWindowSize = other.mWindowSize;
+
+        for (int unit = 0; unit < mSplitCount.length; unit++) {
+            System.arraycopy(other.mSplitEndMs[unit], 0, mSplitEndMs[unit], 0,
+                             other.mSplitCount[unit]);
+            mSplitCount[unit] = other.mSplitCount[unit];
+        }
+    }
+
+    /**
+     * Adds a location.
+     * @param timeMs  Time of the location, in ms since the epoch
+     * @param totalDistanceMeters  Total distance of the track as of the location, in meters
+     */
+    public void add(long timeMs, double totalDistanceMeters) {
+
+        if (!mHasLocation) {
+            mHasLocation = true;
+            mLastTimeMs = timeMs;
+            mDistanceMeters = totalDistanceMeters;
+            addToWindow(timeMs, totalDistanceMeters);
+            return;
+        }
+
+        /* A location out of order adds its distance but no time */
+        long deltaMs = Math.max(0, timeMs - mLastTimeMs);
+        double step = totalDistanceMeters - mDistanceMeters;
+
+        long movingMs = ((deltaMs > 0) && (step * 1000.0 >= MOVING_SPEED * deltaMs)) ? deltaMs : 0;
+
+        if (step > 0.0) {
+            for (int unit = 0; unit < mSplitCount.length; unit++) {
+                addSplits(unit, step, movingMs, totalDistanceMeters);
+            }
+        }
+
+        mMovingMs += movingMs;
+        mDistanceMeters = totalDistanceMeters;
+        if (deltaMs > 0) {
+            mLastTimeMs = timeMs;
+        }
+
+        addToWindow(mLastTimeMs, totalDistanceMeters);
+    }
+
+    /**
+     * Ends any splits of a unit the step from the last location crossed into.
+     * @param step  The distance since the last location
+     * @param movingMs  The moving time since the last location
+     * @param totalDistanceMeters  The distance as of the new location
+     */
+    private void addSplits(int unit, double step, long movingMs, double totalDistanceMeters) {
+
+        double unitMeters = UNIT_METERS[unit];
+        int count = mSplitCount[unit];
+
+        /* A step only crosses more than one boundary after a long gap */
+        while ((count < MAX_SPLITS) && (totalDistanceMeters >= (count + 1) * unitMeters)) {
+            double fraction = ((count + 1) * unitMeters - mDistanceMeters) / step;
+            mSplitEndMs[unit][count] = mMovingMs + Math.round(movingMs * fraction);
+            count++;
+        }
+
+        mSplitCount[unit] = count;
+    }
+
+    /**
+     * Adds a location to the window, drops the ones it has moved past and works out the current
+     * speed from what's left.
+     */
+    private void addToWindow(long timeMs, double distanceMeters) {
+
+        if (mWindowSize == WINDOW_CAPACITY) {
+            mWindowStart = (mWindowStart + 1) % WINDOW_CAPACITY;
+            mWindowSize--;
+        }
+
+        int end = (mWindowStart + mWindowSize) % WINDOW_CAPACITY;
+        mWindowTimeMs[end] = timeMs;
+        mWindowDistance[end] = distanceMeters;
+        mWindowSize++;
+
+        //
+        // Keep the newest location at least WINDOW_MS old, so the window spans the whole time
+        // even when locations are far apart.  Each location is dropped once, so this is constant
+        // time over the track.
+        //
+        long windowStartMs = timeMs - WINDOW_MS;
+        while ((mWindowSize > 2)
+                && (mWindowTimeMs[(mWindowStart + 1) % WINDOW_CAPACITY] <= windowStartMs)) {
+            mWindowStart = (mWindowStart + 1) % WINDOW_CAPACITY;
+            mWindowSize--;
+        }
+
+        long spanMs = timeMs - mWindowTimeMs[mWindowStart];
+        if (spanMs > 0) {
+            mCurrentSpeed = (float) ((distanceMeters - mWindowDistance[mWindowStart]) * 1000.0
+                                     / spanMs);
+            if ((spanMs >= MIN_WINDOW_MS) && (mCurrentSpeed > mMaxSpeed)) {
+                mMaxSpeed = mCurrentSpeed;
+            }
+        }
+    }
+
+    /**
+     * Sets the totals of a track read from its footer.  Splits are added afterwards.
+     */
+    void setTotals(double distanceMeters, long movingMs, float maxSpeed) {
+        reset();
+        mDistanceMeters = distanceMeters;
+        mMovingMs = movingMs;
+        mMaxSpeed = maxSpeed;
+    }
+
+    /**
+     * Adds a split of a track read from its footer.
+     * @param splitMs  The moving time of the split
+     */
+    void addSplit(int unit, long splitMs) {
+        int count = mSplitCount[unit];
+        if (count < MAX_SPLITS) {
+            mSplitEndMs[unit][count] = ((count > 0) ? mSplitEndMs[unit][count - 1] : 0) + splitMs;
+            mSplitCount[unit] = count + 1;
+        }
+    }
+
+    /**
+     * Saves the totals and the end of the last split of each unit, taking exactly STATE_SIZE
+     * bytes.
+     * @param out  The buffer to save into
+     */
+    void save(ByteBuffer out) {
+
+        out.put((byte) (mHasLocation ? 1 : 0));
+        out.putLong(mLastTimeMs);
+        out.putDouble(mDistanceMeters);
+        out.putLong(mMovingMs);
+        out.putFloat(mMaxSpeed);
+        out.putFloat(mCurrentSpeed);
+
+        for (int unit = 0; unit < mSplitCount.length; unit++) {
+            int count = mSplitCount[unit];
+            out.putInt(count);
+            out.putLong((count > 0) ? mSplitEndMs[unit][count - 1] : 0);
+        }
+    }
+
+    /**
+     * Restores the state saved by save().  Until rebuildSplits() is called, the earlier splits
+     * of each unit share the moving time up to the end of the last one evenly.
+     * @param in  The buffer to restore from, positioned where save() started
+     */
+    void restore(ByteBuffer in) {
+
+        reset();
+
+        mHasLocation = in.get() != 0;
+        mLastTimeMs = in.getLong();
+        mDistanceMeters = in.getDouble();
+        mMovingMs = in.getLong();
+        mMaxSpeed = in.getFloat();
+        mCurrentSpeed = in.getFloat();
+
+        for (int unit = 0; unit < mSplitCount.length; unit++) {
+            int count = Math.max(0, Math.min(MAX_SPLITS, in.getInt()));
+            long lastEndMs = in.getLong();
+            mSplitCount[unit] = count;
+            if (count > 0) {
+                mSplitEndMs[unit][count - 1] = lastEndMs;
+                spreadSplits(unit, 0);
+            }
+        }
+    }
+
+    /**
+     * Times the splits before the last of each unit again, after restore(), from the statistics
+     * of the same track at a coarser grain: the end of each of its segments, added in order.
+     * The replay's moving time is scaled so its splits end where this one's last split does,
+     * which keeps their sum, and the splits ended once the track carries on, exact.
+     * @param replay  Statistics with a location added for the end of each segment; the last
+     *                location of this track is added to it
+     */
+    void rebuildSplits(TrackStats replay) {
+
+        if (mHasLocation) {
+            replay.add(mLastTimeMs, mDistanceMeters);
+        }
+
+        for (int unit = 0; unit < mSplitCount.length; unit++) {
+
+            int count = mSplitCount[unit];
+            int rebuilt = Math.min(count, replay.mSplitCount[unit]);
+            long[] ends = mSplitEndMs[unit];
+            long[] replayed = replay.mSplitEndMs[unit];
+
+            /* The replay can fall a little short of the last split if the distances differ */
+            long reference = (rebuilt == count) ? replayed[count - 1] : replay.mMovingMs;
+            if ((count == 0) || (reference <= 0)) {
+                continue;
+            }
+
+            long lastEndMs = ends[count - 1];
+            for (int i = 0; i < rebuilt; i++) {
+                ends[i] = Math.min(lastEndMs,
+                                   Math.round((double) replayed[i] * lastEndMs / reference));
+            }
+            spreadSplits(unit, rebuilt);
+        }
+    }
+
+    /**
+     * Spaces the ends of a unit's splits evenly from a given one up to the end of the last.
+     * @param from  The first split to space; the ones before it are left as they are
+     */
+    private void spreadSplits(int unit, int from) {
+
+        long[] ends = mSplitEndMs[unit];
+        int count = mSplitCount[unit];
+        long startMs = (from > 0) ? ends[from - 1] : 0;
+        long lastEndMs = ends[count - 1];
+
+        for (int i = from; i < count - 1; i++) {
+            ends[i] = startMs + (lastEndMs - startMs) * (i - from + 1) / (count - from);
+        }
+    }
+
+    /**
+     * @return  The total distance of the track, in meters
+     */
+    public double getDistanceMeters() {
+        return mDistanceMeters;
+    }
+
+    /**
+     * @return  The time spent moving, in ms
+     */
+    public long getMovingMs() {
+        return mMovingMs;
+    }
+
+    /**
+     * @return  The highest speed over a window, in meters per second
+     */
+    public float getMaxSpeed() {
+        return mMaxSpeed;
+    }
+
+    /**
+     * @return  The speed over the window as of the last location, in meters per second
+     */
+    public float getCurrentSpeed() {
+        return mCurrentSpeed;
+    }
+
+    /**
+     * @return  The average speed while moving, in meters per second
+     */
+    public float getAverageSpeed() {
+        return averageSpeed(mDistanceMeters, mMovingMs);
+    }
+
+    /**
+     * @param unit  KILOMETER or MILE
+     * @return  The number of whole units covered, up to MAX_SPLITS
+     */
+    public int getSplitCount(int unit) {
+        return mSplitCount[unit];
+    }
+
+    /**
+     * @param unit  KILOMETER or MILE
+     * @param index  Which split, from 0 to getSplitCount() - 1
+     * @return  The moving time of the split, in ms
+     */
+    public long getSplitMs(int unit, int index) {
+        if ((index < 0) || (index >= mSplitCount[unit])) {
+            throw new IndexOutOfBoundsException("No split " + index);
+        }
+        long[] ends = mSplitEndMs[unit];
+        return (index > 0) ? ends[index] - ends[index - 1] : ends[0];
+    }
+
+    /**
+     * @return  The average speed while moving a distance, in meters per second, or 0 if there was
+     *          no moving time
+     */
+    public static float averageSpeed(double distanceMeters, long movingMs) {
+        return (movingMs > 0) ? (float) (distanceMeters * 1000.0 / movingMs) : 0.0f;
+    }
+
+    /**
+     * @param speedMetersPerSecond  A speed
+     * @param unit  KILOMETER or MILE
+     * @return  The time a unit takes at the speed, in seconds, or 0 if the speed is below
+     *          MOVING_SPEED
+     */
+    public static long paceSeconds(float speedMetersPerSecond, int unit) {
+        if (!(speedMetersPerSecond >= MOVING_SPEED)) {
+            return 0;
+        }
+        return Math.round(UNIT_METERS[unit] / speedMetersPerSecond);
+    }
+}
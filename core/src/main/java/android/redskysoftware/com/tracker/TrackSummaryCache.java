@@ -0,0 +1,527 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the decoded summaries of tracks, with a polyline of their points cut down for drawing,
+ * so a track that has been opened before can be shown again without reading the track file.
+ *
+ * There are two levels.  In memory is an LRU of the summaries most recently asked for, bounded
+ * by the bytes their arrays take rather than by their number, since one long track's polyline
+ * can be the size of many short ones.  Behind it is a file per track in a cache directory, read
+ * with one read.  A summary is keyed by its track file and holds the file's size and
+ * modification time, so a track that has changed since (one still being recorded, or recovered)
+ * is decoded again in place of the stale summary at either level.
+ *
+ * <pre>
+ *   file     int magic 'TRKV', int version, long track file size, long modified ms,
+ *            long start time ms, long elapsed ms, float distance m, int fix count,
+ *            int min lat E7, int min lon E7, int max lat E7, int max lon E7,
+ *            int point count, then per point int lat E7, int lon E7,
+ *            int CRC-32 of the preceding bytes
+ * </pre>
+ *
+ * A track is decoded in one pass of a TrackReader.  The polyline keeps the points of a
+ * TrackSimplifier at POLYLINE_TOLERANCE_METERS and, if that leaves more than MAX_POINTS, every
+ * so many of them, always keeping the first and last.  The cache directory is trimmed to its
+ * byte limit by dropping the files least recently used.
+ *
+ * Hits in memory and on disk, misses (tracks decoded) and evictions from memory are counted in
+ * StripedCounters, set with setMetrics().  All methods are synchronized.
+ */
+public class TrackSummaryCache {
+
+    /** The extension of the cache files */
+    public static final String FILE_EXTENSION = ".tsum";
+
+    /** 'TRKV' */
+    public static final int MAGIC = 0x54524B56;
+    public static final int VERSION = 1;
+
+    /** The size of a cache file without its points */
+    public static final int HEADER_SIZE = 68;
+
+    /** The most points in a polyline */
+    public static final int MAX_POINTS = 2000;
+
+    /** How far a point dropped from a polyline may be from it, in meters */
+    public static final double POLYLINE_TOLERANCE_METERS = 10.0;
+
+    /** The bytes a summary takes in memory besides its points, for the memory limit */
+    static final int ENTRY_OVERHEAD = 160;
+
+    private static final int POINTS_OFFSET = 64;
+
+    /** The directory the cache files are kept in */
+    private final File mDir;
+
+    private final long mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+
+    /** The summaries in memory by track file path, least recently used first */
+    private final LinkedHashMap<String, Summary> mSummaries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The bytes the summaries in memory take */
+    private long mMemoryBytes = 0;
+
+    private StripedCounter mHits = null;
+    private StripedCounter mDiskHits = null;
+    private StripedCounter mMisses = null;
+    private StripedCounter mEvictions = null;
+
+    /** Scratch for decoding a track */
+    private final TrackSimplifier mSimplifier = new TrackSimplifier(POLYLINE_TOLERANCE_METERS);
+    private final FixBatch mKept = new FixBatch();
+    private int[] mLatE7 = new int[256];
+    private int[] mLonE7 = new int[256];
+
+    /**
+     * @param dir  The directory to keep the cache files in; created if it doesn't exist
+     * @param maxMemoryBytes  The most the summaries in memory may take.  The summary most
+     *                        recently asked for is always kept, however big it is.
+     * @param maxDiskBytes  The most the cache files may take
+     */
+    public TrackSummaryCache(File dir, long maxMemoryBytes, long maxDiskBytes) {
+        mDir = dir;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Sets the counters hits, misses and evictions are counted in.
+     * @param hits  Summaries found in memory, or null
+     * @param diskHits  Summaries read from a cache file, or null
+     * @param misses  Summaries decoded from the track file, or null
+     * @param evictions  Summaries dropped from memory to keep to its limit, or null
+     */
+    public synchronized void setMetrics(StripedCounter hits, StripedCounter diskHits,
+                                        StripedCounter misses, StripedCounter evictions) {
+        mHits = hits;
+        mDiskHits = diskHits;
+        mMisses = misses;
+        mEvictions = evictions;
+    }
+
+    /**
+     * Returns the summary of a track, from memory, its cache file or, failing both, by decoding
+     * the track file.
+     * @param track  The track file
+     * @return  The summary.  It doesn't change, and may be kept and read on any thread.
+     * @throws IOException  if the track has to be decoded and can't be read
+     */
+    public synchronized Summary get(File track) throws IOException {
+
+        long size = track.length();
+        long modifiedMs = track.lastModified();
+        String key = track.getPath();
+
+        Summary summary = mSummaries.get(key);
+        if (summary != null) {
+            if ((summary.mFileSize == size) && (summary.mModifiedMs == modifiedMs)) {
+                count(mHits);
+                return summary;
+            }
+            mSummaries.remove(key);
+            mMemoryBytes -= summary.getByteSize();
+        }
+
+        File file = cacheFile(track);
+        summary = read(file, size, modifiedMs);
+        if (summary != null) {
+            count(mDiskHits);
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            count(mMisses);
+            summary = decode(track, size, modifiedMs);
+            write(file, summary);
+        }
+
+        put(key, summary);
+        return summary;
+    }
+
+    /**
+     * Forgets a track, in memory and on disk, such as when it is deleted.
+     * @param track  The track file
+     */
+    public synchronized void remove(File track) {
+        Summary summary = mSummaries.remove(track.getPath());
+        if (summary != null) {
+            mMemoryBytes -= summary.getByteSize();
+        }
+        cacheFile(track).delete();
+    }
+
+    /**
+     * @return  The bytes the summaries in memory take
+     */
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    /**
+     * @return  The number of summaries in memory
+     */
+    public synchronized int size() {
+        return mSummaries.size();
+    }
+
+    private static void count(StripedCounter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private File cacheFile(File track) {
+        return new File(mDir, track.getName() + FILE_EXTENSION);
+    }
+
+    /**
+     * Adds a summary to memory, then evicts the least recently used until the rest fit.
+     */
+    private void put(String key, Summary summary) {
+
+        mSummaries.put(key, summary);
+        mMemoryBytes += summary.getByteSize();
+
+        Iterator<Map.Entry<String, Summary>> eldest = mSummaries.entrySet().iterator();
+        while ((mMemoryBytes > mMaxMemoryBytes) && (mSummaries.size() > 1)) {
+            Summary evicted = eldest.next().getValue();
+            eldest.remove();
+            mMemoryBytes -= evicted.getByteSize();
+            count(mEvictions);
+        }
+    }
+
+    /**
+     * Reads a cache file with one read.
+     * @return  The summary, or null if there is no cache file, it is damaged or it is of the
+     *          track file as it was before it last changed
+     */
+    private static Summary read(File file, long size, long modifiedMs) {
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        ByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if ((length < HEADER_SIZE + 4) || (length > HEADER_SIZE + MAX_POINTS * 8 + 4)) {
+                return null;
+            }
+            data = ByteBuffer.allocate((int) length);
+            raf.readFully(data.array());
+        } catch (IOException e) {
+            return null;
+        }
+
+        int points = data.getInt(POINTS_OFFSET);
+        int end = HEADER_SIZE + points * 8;
+        if ((data.getInt(0) != MAGIC) || (data.getInt(4) != VERSION)
+                || (data.getLong(8) != size) || (data.getLong(16) != modifiedMs)
+                || (points < 0) || (points > MAX_POINTS) || (end + 4 != data.capacity())
+                || (Crc32.compute(data, 0, end) != data.getInt(end))) {
+            return null;
+        }
+
+        Summary summary = new Summary(size, modifiedMs, points);
+        data.position(24);
+        summary.mStartTimeMs = data.getLong();
+        summary.mElapsedMs = data.getLong();
+        summary.mDistanceMeters = data.getFloat();
+        summary.mFixCount = data.getInt();
+        summary.mMinLatE7 = data.getInt();
+        summary.mMinLonE7 = data.getInt();
+        summary.mMaxLatE7 = data.getInt();
+        summary.mMaxLonE7 = data.getInt();
+
+        data.position(HEADER_SIZE);
+        for (int i = 0; i < points; i++) {
+            summary.mLatE7[i] = data.getInt();
+            summary.mLonE7[i] = data.getInt();
+        }
+        return summary;
+    }
+
+    /**
+     * Writes a summary's cache file, then trims the cache directory to its limit.  A summary
+     * that can't be written is still returned; it is just decoded again next time.
+     */
+    private void write(File file, Summary summary) {
+
+        int points = summary.getPointCount();
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + points * 8 + 4);
+        data.putInt(MAGIC);
+        data.putInt(VERSION);
+        data.putLong(summary.mFileSize);
+        data.putLong(summary.mModifiedMs);
+        data.putLong(summary.mStartTimeMs);
+        data.putLong(summary.mElapsedMs);
+        data.putFloat(summary.mDistanceMeters);
+        data.putInt(summary.mFixCount);
+        data.putInt(summary.mMinLatE7);
+        data.putInt(summary.mMinLonE7);
+        data.putInt(summary.mMaxLatE7);
+        data.putInt(summary.mMaxLonE7);
+        data.putInt(points);
+        for (int i = 0; i < points; i++) {
+            data.putInt(summary.mLatE7[i]);
+            data.putInt(summary.mLonE7[i]);
+        }
+        data.putInt(Crc32.compute(data, 0, data.position()));
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(data.array(), 0, data.position());
+        } catch (IOException e) {
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return;
+        }
+
+        trimDisk();
+    }
+
+    /**
+     * Deletes the cache files least recently used until the rest are within the disk limit.
+     */
+    private void trimDisk() {
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        //
+        // Sort by the time each was last used with the index packed into the low bits, so the
+        // sort is of primitives.  The times are file times in ms, well under 44 bits.
+        //
+        long total = 0;
+        long[] keys = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            total += files[i].length();
+            keys[i] = (files[i].lastModified() << 20) | i;
+        }
+        if ((total <= mMaxDiskBytes) || (files.length >= (1 << 20))) {
+            return;
+        }
+        Arrays.sort(keys);
+
+        for (int i = 0; (i < keys.length - 1) && (total > mMaxDiskBytes); i++) {
+            File oldest = files[(int) (keys[i] & ((1 << 20) - 1))];
+            long length = oldest.length();
+            if (oldest.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Decodes a track file into a summary, in one pass.
+     */
+    private Summary decode(File track, long size, long modifiedMs) throws IOException {
+
+        try (TrackReader reader = TrackReader.open(track)) {
+
+            mSimplifier.reset();
+            mKept.clear();
+
+            int count = 0;
+            int minLatE7 = Integer.MAX_VALUE;
+            int minLonE7 = Integer.MAX_VALUE;
+            int maxLatE7 = Integer.MIN_VALUE;
+            int maxLonE7 = Integer.MIN_VALUE;
+            double distanceMeters = 0.0;
+            double lat = 0.0;
+            double lon = 0.0;
+            long firstMs = 0;
+            long lastMs = 0;
+
+            while (reader.next()) {
+
+                int latE7 = reader.getLatitudeE7();
+                int lonE7 = reader.getLongitudeE7();
+                minLatE7 = Math.min(minLatE7, latE7);
+                maxLatE7 = Math.max(maxLatE7, latE7);
+                minLonE7 = Math.min(minLonE7, lonE7);
+                maxLonE7 = Math.max(maxLonE7, lonE7);
+
+                if (reader.getFixCount() == 1) {
+                    firstMs = reader.getTimeMs();
+                } else {
+                    distanceMeters += DistanceKernel.haversineMeters(
+                            lat, lon, reader.getLatitude(), reader.getLongitude());
+                }
+                lat = reader.getLatitude();
+                lon = reader.getLongitude();
+                lastMs = reader.getTimeMs();
+
+                mSimplifier.add(lat, lon, lastMs, 0.0f, (float) distanceMeters, mKept);
+                count = keep(count);
+            }
+            mSimplifier.flush(mKept);
+            count = keep(count);
+
+            boolean finished = reader.hasFooter();
+            int points = Math.min(count, MAX_POINTS);
+            Summary summary = new Summary(size, modifiedMs, points);
+            summary.mStartTimeMs = reader.getStartTimeMs();
+            summary.mElapsedMs = finished ? reader.getElapsedMs() : Math.max(0, lastMs - firstMs);
+            summary.mDistanceMeters = finished ? reader.getDistanceMeters()
+                                               : (float) distanceMeters;
+            summary.mFixCount = reader.getFixCount();
+
+            if (summary.mFixCount > 0) {
+                summary.mMinLatE7 = minLatE7;
+                summary.mMinLonE7 = minLonE7;
+                summary.mMaxLatE7 = maxLatE7;
+                summary.mMaxLonE7 = maxLonE7;
+            }
+
+            /* Too many points even simplified; keep evenly spaced ones, first and last included */
+            for (int i = 0; i < points; i++) {
+                int from = (points == count) ? i
+                         : (int) ((long) i * (count - 1) / (points - 1));
+                summary.mLatE7[i] = mLatE7[from];
+                summary.mLonE7[i] = mLonE7[from];
+            }
+
+            return summary;
+        }
+    }
+
+    /**
+     * Moves the points the simplifier has kept into the scratch polyline.
+     * @return  The number of points in it
+     */
+    private int keep(int count) {
+
+        int size = mKept.size();
+        if (count + size > mLatE7.length) {
+            int capacity = Math.max(mLatE7.length * 2, count + size);
+            mLatE7 = Arrays.copyOf(mLatE7, capacity);
+            mLonE7 = Arrays.copyOf(mLonE7, capacity);
+        }
+
+        for (int i = 0; i < size; i++) {
+            mLatE7[count] = TrackFormat.toE7(mKept.getLatitude(i));
+            mLonE7[count] = TrackFormat.toE7(mKept.getLongitude(i));
+            count++;
+        }
+        mKept.clear();
+        return count;
+    }
+
+    /**
+     * The summary of a track and its polyline, in primitive arrays.  A summary doesn't change
+     * once it has been made.
+     */
+    public static final class Summary {
+
+        private final long mFileSize;
+        private final long mModifiedMs;
+
+        private long mStartTimeMs;
+        private long mElapsedMs;
+        private float mDistanceMeters;
+        private int mFixCount;
+
+        private int mMinLatE7;
+        private int mMinLonE7;
+        private int mMaxLatE7;
+        private int mMaxLonE7;
+
+        private final int[] mLatE7;
+        private final int[] mLonE7;
+
+        Summary(long fileSize, long modifiedMs, int points) {
+            mFileSize = fileSize;
+            mModifiedMs = modifiedMs;
+            mLatE7 = new int[points];
+            mLonE7 = new int[points];
+        }
+
+        /**
+         * @return  The wall clock time the track was started, in ms since the epoch
+         */
+        public long getStartTimeMs() {
+            return mStartTimeMs;
+        }
+
+        /**
+         * @return  The elapsed time from the footer, or the time from the first fix to the last
+         *          for a track that isn't finished
+         */
+        public long getElapsedMs() {
+            return mElapsedMs;
+        }
+
+        public float getDistanceMeters() {
+            return mDistanceMeters;
+        }
+
+        /**
+         * @return  The number of fixes in the track, not in the polyline
+         */
+        public int getFixCount() {
+            return mFixCount;
+        }
+
+        /**
+         * The bounding box of every fix, in 1e-7 degrees; all 0 if the track has no fixes
+         */
+        public int getMinLatitudeE7() {
+            return mMinLatE7;
+        }
+
+        public int getMinLongitudeE7() {
+            return mMinLonE7;
+        }
+
+        public int getMaxLatitudeE7() {
+            return mMaxLatE7;
+        }
+
+        public int getMaxLongitudeE7() {
+            return mMaxLonE7;
+        }
+
+        /**
+         * @return  The number of points in the polyline, at most MAX_POINTS
+         */
+        public int getPointCount() {
+            return mLatE7.length;
+        }
+
+        public int getLatitudeE7(int index) {
+            return mLatE7[index];
+        }
+
+        public int getLongitudeE7(int index) {
+            return mLonE7[index];
+        }
+
+        /**
+         * @return  The bytes the summary takes in memory, as counted against the memory limit
+         */
+        public int getByteSize() {
+            return ENTRY_OVERHEAD + mLatE7.length * 8;
+        }
+    }
+}
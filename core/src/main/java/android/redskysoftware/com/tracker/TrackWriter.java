@@ -0,0 +1,760 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a track to storage on a background thread.
+ *
+ * Fixes are handed to append(), which only copies them into a FixRingBuffer and returns, so the
+ * thread delivering locations never waits on storage.  The writer thread drains the ring in
+ * batches, encodes the fixes into a reusable direct ByteBuffer and writes each batch to the
+ * channel with a single write.  When batches are committed is decided by the FlushPolicy.
+ *
+ * The ring is bounded, so if storage stalls it fills, and the overflow policy decides what
+ * happens to the fixes that don't fit:
+ *
+ *   OVERFLOW_DROP_NEWEST drops them (the default).
+ *   OVERFLOW_DROP_OLDEST drops the oldest fix waiting to make room, so the newest are kept.
+ *   OVERFLOW_MERGE merges them into one last point, held back until there's room: each fix
+ *   replaces the one before it, so the track's distance and end stay exact and only the detail
+ *   in between is lost.
+ *   OVERFLOW_BLOCK makes append() wait for room.  Nothing is lost, but the thread delivering
+ *   locations waits on storage.
+ *
+ * Memory stays bounded whatever the policy.  The numbers of fixes waiting, dropped, merged and
+ * held up are all counted.
+ *
+ * Each write is one complete journal segment (see TrackFormat), ending with a checkpoint of the
+ * track's totals, so if the process dies the track can be recovered by TrackJournal up to the
+ * last segment written.
+ *
+ * append() must always be called from the same thread.  finish() ends the track: the writer
+ * thread writes out everything still buffered, adds the footer, forces the file and closes the
+ * channel.
+ *
+ * The time each write and force takes can be recorded in LatencyHistograms, set with
+ * setLatencyHistograms() before the writer is started.
+ *
+ * The writer also stores SessionCheckpoints, so a track can be carried on after the process dies
+ * rather than only recovered.  checkpoint() copies the caller's checkpoint and marks where the
+ * ring buffer is up to; the writer thread writes and commits every fix before the mark, fills in
+ * the file's offset and totals and stores the checkpoint, so the checkpoint and the file always
+ * agree.  A writer started with resume() rather than start() carries on a track from the offset
+ * in its checkpoint.
+ */
+public class TrackWriter {
+
+    /** Default number of fixes the ring buffer can hold */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Size of the buffer fixes are encoded into before being written.  This is also the largest
+     * a segment can be.
+     */
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    /** Room a segment needs at its end for the checkpoint and trailer */
+    private static final int SEGMENT_END_SIZE = TrackFormat.MAX_CHECKPOINT_SIZE
+                                                + TrackFormat.SEGMENT_TRAILER_SIZE;
+
+    /** Name of the writer thread */
+    private static final String THREAD_NAME = "TrackWriter";
+
+    /** What append() does with a fix when the ring buffer is full; see the class comment */
+    public static final int OVERFLOW_DROP_NEWEST = 0;
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    public static final int OVERFLOW_MERGE = 2;
+    public static final int OVERFLOW_BLOCK = 3;
+
+    /** Longest a blocked append() sleeps before looking for room again, in case a wake is lost */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** The channel the track is written to */
+    private final WritableByteChannel mChannel;
+
+    private final FlushPolicy mPolicy;
+    private final FixRingBuffer mRing;
+    private final TrackEncoder mEncoder = new TrackEncoder();
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /** Number of buffered fixes at which append() wakes the writer thread */
+    private final int mWakeThreshold;
+
+    private final Thread mThread;
+
+    /** Wall clock time the track was started, written in the header */
+    private long mStartTimeMs;
+
+    /** Total distance as of the newest fix encoded, written in the segment checkpoints */
+    private float mEncodedDistanceMeters = 0.0f;
+
+    /** Where checkpoints are stored, or null if they aren't */
+    private FileChannel mCheckpointChannel = null;
+
+    /** The checkpoint to carry on from, or null to start a new track */
+    private SessionCheckpoint mResumeFrom = null;
+
+    /**
+     * The checkpoint handed over by checkpoint(), and the ring buffer's write index when it was.
+     * The producer only touches them while mCheckpointPending is false, and the writer thread
+     * only while it is true.
+     */
+    private final SessionCheckpoint mCheckpoint = new SessionCheckpoint();
+    private long mCheckpointIndex;
+    private volatile boolean mCheckpointPending = false;
+
+    /** Number of checkpoints stored */
+    private volatile long mCheckpointCount = 0;
+
+    /** Footer values handed over by finish() */
+    private volatile boolean mFinishing = false;
+    private volatile long mElapsedMs;
+    private volatile float mDistanceMeters;
+    private volatile boolean mHasStats = false;
+    private final TrackStats mStats = new TrackStats();
+
+    private int mOverflowPolicy = OVERFLOW_DROP_NEWEST;
+
+    /**
+     * The last point fixes are merged into while the ring buffer is full, under OVERFLOW_MERGE.
+     * Only the producer touches it, until finish() hands it to the writer thread.
+     */
+    private boolean mHasPending = false;
+    private int mPendingLatE7;
+    private int mPendingLonE7;
+    private long mPendingTimeMs;
+    private int mPendingAccuracyDm;
+    private float mPendingDistanceMeters;
+
+    /** The producer while it waits for room under OVERFLOW_BLOCK, for the writer to wake */
+    private volatile Thread mWaiter = null;
+
+    /** Number of fixes appended that will be written, less those since dropped */
+    private volatile long mStoredFixes = 0;
+
+    /** Number of fixes dropped because the ring buffer was full */
+    private volatile long mDroppedFixes = 0;
+
+    /** Number of fixes merged into the last point because the ring buffer was full */
+    private volatile long mMergedFixes = 0;
+
+    /** Number of fixes append() waited for room for, and the total time it waited */
+    private volatile long mBlockedFixes = 0;
+    private volatile long mBlockedNanos = 0;
+
+    /** Number of times a batch has been written to the channel */
+    private volatile long mWriteCount = 0;
+
+    /** Number of commits */
+    private volatile long mCommitCount = 0;
+
+    /** The first error hit while writing, or null */
+    private volatile IOException mError = null;
+
+    /** Where the time each write and force takes is recorded, or null */
+    private LatencyHistogram mWriteLatency = null;
+    private LatencyHistogram mForceLatency = null;
+
+    /**
+     * @param channel  The channel to write the track to.  If it is a FileChannel, commits can be
+     *                 forced to the storage device.
+     * @param policy  When to commit buffered fixes
+     * @param capacity  The most fixes that can be waiting to be written
+     */
+    public TrackWriter(WritableByteChannel channel, FlushPolicy policy, int capacity) {
+
+        mChannel = channel;
+        mPolicy = policy;
+        mRing = new FixRingBuffer(capacity);
+
+        int threshold = mRing.capacity() / 2;
+        if ((policy.getCommitEveryFixes() > 0) && (policy.getCommitEveryFixes() < threshold)) {
+            threshold = policy.getCommitEveryFixes();
+        }
+        mWakeThreshold = threshold;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeTrack();
+            }
+        }, THREAD_NAME);
+    }
+
+    /**
+     * Sets where the time the writer thread takes to write each segment, and to force commits to
+     * storage, is recorded.  Must be called before start().
+     * @param write  The histogram for writes, or null
+     * @param force  The histogram for forces, or null
+     */
+    public void setLatencyHistograms(LatencyHistogram write, LatencyHistogram force) {
+        mWriteLatency = write;
+        mForceLatency = force;
+    }
+
+    /**
+     * Sets what append() does with fixes that don't fit in the ring buffer.  Only for the thread
+     * that appends, before the first append.
+     * @param policy  OVERFLOW_DROP_NEWEST, OVERFLOW_DROP_OLDEST, OVERFLOW_MERGE or OVERFLOW_BLOCK
+     */
+    public void setOverflowPolicy(int policy) {
+
+        if ((policy < OVERFLOW_DROP_NEWEST) || (policy > OVERFLOW_BLOCK)) {
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+        }
+
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Sets the file checkpoints are stored in.  Must be called before the writer is started; the
+     * writer closes it when the track is finished.
+     * @param channel  The checkpoint file, empty for a new track
+     */
+    public void setCheckpointChannel(FileChannel channel) {
+        mCheckpointChannel = channel;
+    }
+
+    /**
+     * Starts the writer thread.  The header is written before any fixes.
+     * @param startTimeMs  The wall clock time the track was started, in ms since the epoch
+     */
+    public void start(long startTimeMs) {
+        mStartTimeMs = startTimeMs;
+        mThread.start();
+    }
+
+    /**
+     * Starts the writer thread carrying on a track from a checkpoint.  The channel must be the
+     * track file cut back to the checkpoint's offset and positioned at its end (see
+     * TrackJournal.reopen()); nothing already in it is read or written again.
+     * @param checkpoint  The checkpoint to carry on from
+     */
+    public void resume(SessionCheckpoint checkpoint) {
+
+        mResumeFrom = checkpoint;
+        mStartTimeMs = checkpoint.getStartTimeMs();
+        mEncodedDistanceMeters = checkpoint.getStoredDistanceMeters();
+        mStoredFixes = checkpoint.getFixCount();
+
+        /* Carry on the sequence, so the next checkpoint goes in the older slot */
+        mCheckpoint.set(checkpoint);
+        mCheckpoint.setSequence(checkpoint.getSequence());
+
+        mThread.start();
+    }
+
+    /**
+     * Queues a fix to be written.  Only blocks under OVERFLOW_BLOCK.
+     * @param distanceMeters  The total distance of the track as of this fix
+     * @return  True if the fix was taken (queued, or merged into the last point), false if it
+     *          was dropped because the writer has fallen a full buffer behind
+     */
+    public boolean append(double latitude, double longitude, long timeMs, float accuracyMeters,
+                          float distanceMeters) {
+
+        boolean taken = offer(TrackFormat.toE7(latitude),
+                              TrackFormat.toE7(longitude),
+                              timeMs,
+                              TrackFormat.toAccuracyDm(accuracyMeters),
+                              distanceMeters);
+
+        if (mRing.size() >= mWakeThreshold) {
+            LockSupport.unpark(mThread);
+        }
+
+        return taken;
+    }
+
+    /**
+     * Queues a batch of fixes to be written, waking the writer thread at most once unless the
+     * ring buffer fills.  Only blocks under OVERFLOW_BLOCK.
+     * @param batch  The fixes, in order
+     * @return  The number of fixes taken (queued, or merged into the last point).  They are
+     *          always the first in the batch: under OVERFLOW_DROP_NEWEST, once the ring buffer
+     *          is full the rest of the batch is dropped.
+     */
+    public int append(FixBatch batch) {
+
+        int size = batch.size();
+        int taken = 0;
+
+        while ((taken < size)
+                && offer(TrackFormat.toE7(batch.getLatitude(taken)),
+                         TrackFormat.toE7(batch.getLongitude(taken)),
+                         batch.getTimeMs(taken),
+                         TrackFormat.toAccuracyDm(batch.getAccuracy(taken)),
+                         batch.getDistanceMeters(taken))) {
+            taken++;
+        }
+
+        if (taken < size) {
+            mDroppedFixes += size - taken - 1;
+        }
+
+        if (mRing.size() >= mWakeThreshold) {
+            LockSupport.unpark(mThread);
+        }
+
+        return taken;
+    }
+
+    /**
+     * Queues a fix, dealing with a full ring buffer as the overflow policy says.
+     * @return  True if the fix was taken, false if it was dropped (and counted)
+     */
+    private boolean offer(int latE7, int lonE7, long timeMs, int accuracyDm,
+                          float distanceMeters) {
+
+        /* A merged last point goes in ahead of anything newer, as soon as there's room */
+        if (mHasPending && offerPending()) {
+            mHasPending = false;
+        }
+
+        if (!mHasPending && mRing.offer(latE7, lonE7, timeMs, accuracyDm, distanceMeters)) {
+            mStoredFixes++;
+            return true;
+        }
+
+        switch (mOverflowPolicy) {
+
+            case OVERFLOW_DROP_OLDEST:
+                while (!mRing.offer(latE7, lonE7, timeMs, accuracyDm, distanceMeters)) {
+                    if (mRing.dropOldest()) {
+                        mDroppedFixes++;
+                        mStoredFixes--;
+                    }
+                }
+                mStoredFixes++;
+                return true;
+
+            case OVERFLOW_MERGE:
+                if (mHasPending) {
+                    mMergedFixes++;
+                } else {
+                    mHasPending = true;
+                    mStoredFixes++;
+                }
+                mPendingLatE7 = latE7;
+                mPendingLonE7 = lonE7;
+                mPendingTimeMs = timeMs;
+                mPendingAccuracyDm = accuracyDm;
+                mPendingDistanceMeters = distanceMeters;
+                return true;
+
+            case OVERFLOW_BLOCK:
+                return offerBlocking(latE7, lonE7, timeMs, accuracyDm, distanceMeters);
+
+            default:
+                mDroppedFixes++;
+                return false;
+        }
+    }
+
+    private boolean offerPending() {
+        return mRing.offer(mPendingLatE7, mPendingLonE7, mPendingTimeMs, mPendingAccuracyDm,
+                           mPendingDistanceMeters);
+    }
+
+    /**
+     * Waits for room for a fix.  If the writer thread isn't running (it hasn't been started, or
+     * an error stopped it) nothing will make room, so the fix is dropped instead.
+     * @return  True if the fix was queued, false if it was dropped
+     */
+    private boolean offerBlocking(int latE7, int lonE7, long timeMs, int accuracyDm,
+                                  float distanceMeters) {
+
+        long start = System.nanoTime();
+        mWaiter = Thread.currentThread();
+        try {
+            while (!mRing.offer(latE7, lonE7, timeMs, accuracyDm, distanceMeters)) {
+                if (!mThread.isAlive()) {
+                    mDroppedFixes++;
+                    return false;
+                }
+                LockSupport.unpark(mThread);
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+        } finally {
+            mWaiter = null;
+            mBlockedNanos += System.nanoTime() - start;
+        }
+
+        mBlockedFixes++;
+        mStoredFixes++;
+        return true;
+    }
+
+    /**
+     * Stores a checkpoint once every fix appended so far has been committed.  Returns
+     * immediately; the checkpoint is copied, so the caller can reuse it straight away.  If the
+     * last checkpoint hasn't been stored yet, or a merged last point is waiting for room, this one
+     * is skipped.  Only for the thread that appends.
+     * @param checkpoint  The track's state as of the last fix appended; the writer fills in the
+     *                    file's offset and totals
+     * @return  True if the checkpoint will be stored, false if it was skipped
+     */
+    public boolean checkpoint(SessionCheckpoint checkpoint) {
+
+        if ((mCheckpointChannel == null) || mCheckpointPending) {
+            return false;
+        }
+        if (mHasPending) {
+            if (!offerPending()) {
+                return false;
+            }
+            mHasPending = false;
+        }
+
+        mCheckpoint.set(checkpoint);
+        mCheckpointIndex = mRing.getWriteIndex();
+        mCheckpointPending = true;
+        LockSupport.unpark(mThread);
+
+        return true;
+    }
+
+    /**
+     * Ends the track, without statistics.  Returns immediately; the writer thread writes the
+     * remaining fixes and the footer and then closes the channel.
+     * @param elapsedMs  The elapsed (active) time of the track in ms
+     * @param distanceMeters  The total distance of the track in meters
+     */
+    public void finish(long elapsedMs, float distanceMeters) {
+        finish(elapsedMs, distanceMeters, null);
+    }
+
+    /**
+     * Ends the track.  Returns immediately; the writer thread writes the remaining fixes and the
+     * footer and then closes the channel.
+     * @param elapsedMs  The elapsed (active) time of the track in ms
+     * @param distanceMeters  The total distance of the track in meters
+     * @param stats  The statistics of the track for the footer, or null.  They are copied, so
+     *               the caller can reuse them straight away.
+     */
+    public void finish(long elapsedMs, float distanceMeters, TrackStats stats) {
+
+        /* If there's no room for a merged last point, the writer thread takes it from here */
+        if (mHasPending && offerPending()) {
+            mHasPending = false;
+        }
+
+        if (stats != null) {
+            mStats.set(stats);
+        }
+        mHasStats = stats != null;
+        mElapsedMs = elapsedMs;
+        mDistanceMeters = distanceMeters;
+        mFinishing = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Waits for the writer thread to finish writing the track after finish() has been called.
+     * @return  True if the writer finished within the timeout
+     */
+    public boolean awaitFinished(long timeoutMs) throws InterruptedException {
+        mThread.join(timeoutMs);
+        return !mThread.isAlive();
+    }
+
+    /**
+     * @return  The number of checkpoints stored
+     */
+    public long getCheckpointCount() {
+        return mCheckpointCount;
+    }
+
+    /**
+     * @return  The number of fixes waiting to be written
+     */
+    public int getQueuedFixes() {
+        return mRing.size();
+    }
+
+    /**
+     * @return  The number of fixes appended that will be written (or have been), leaving out
+     *          those dropped and merged.  Once the track is finished this is the number of fixes
+     *          in it.
+     */
+    public long getStoredFixes() {
+        return mStoredFixes;
+    }
+
+    /**
+     * @return  The number of fixes dropped because the ring buffer was full
+     */
+    public long getDroppedFixes() {
+        return mDroppedFixes;
+    }
+
+    /**
+     * @return  The number of fixes merged into a later one because the ring buffer was full
+     */
+    public long getMergedFixes() {
+        return mMergedFixes;
+    }
+
+    /**
+     * @return  The number of fixes append() waited for room for, under OVERFLOW_BLOCK
+     */
+    public long getBlockedFixes() {
+        return mBlockedFixes;
+    }
+
+    /**
+     * @return  The total time append() has waited for room, in ns
+     */
+    public long getBlockedNanos() {
+        return mBlockedNanos;
+    }
+
+    /**
+     * @return  The number of writes made to the channel
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return  The number of commits made
+     */
+    public long getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * @return  The first error hit writing the track, or null if there has been none
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * The body of the writer thread.
+     */
+    private void writeTrack() {
+
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(mPolicy.getCommitIntervalMs());
+        long lastCommitNanos = System.nanoTime();
+        int uncommittedFixes = 0;
+
+        try {
+            mBuffer.clear();
+            if (mResumeFrom != null) {
+                /* Carry on from the end of the file as of the checkpoint */
+                SessionCheckpoint from = mResumeFrom;
+                mEncoder.restore(from.getFileOffset(), mStartTimeMs, from.getFixCount(),
+                                 from.getLastFixTimeMs(), from.getMinLatitudeE7(),
+                                 from.getMinLongitudeE7(), from.getMaxLatitudeE7(),
+                                 from.getMaxLongitudeE7());
+            } else {
+                /* Get the header out straight away so an early crash leaves a valid journal */
+                mEncoder.writeHeader(mBuffer, mStartTimeMs);
+                writeBuffer();
+            }
+
+            while (true) {
+
+                boolean finishing = mFinishing;
+
+                if (mCheckpointPending) {
+                    drain(mCheckpointIndex);
+                    if (mEncoder.isSegmentOpen()) {
+                        mEncoder.endSegment(mBuffer, mEncodedDistanceMeters);
+                        commit();
+                        lastCommitNanos = System.nanoTime();
+                        uncommittedFixes = 0;
+                    }
+                    storeCheckpoint();
+                }
+
+                uncommittedFixes += drain(Long.MAX_VALUE);
+
+                /* finish() leaves a merged last point here if the ring had no room for it */
+                if (finishing && mHasPending) {
+                    encodeFix(mPendingLatE7, mPendingLonE7, mPendingTimeMs, mPendingAccuracyDm,
+                              mPendingDistanceMeters);
+                    mHasPending = false;
+                    uncommittedFixes++;
+                }
+
+                long now = System.nanoTime();
+                boolean commit = finishing
+                        || ((mPolicy.getCommitEveryFixes() > 0)
+                            && (uncommittedFixes >= mPolicy.getCommitEveryFixes()))
+                        || ((intervalNanos > 0) && (uncommittedFixes > 0)
+                            && (now - lastCommitNanos >= intervalNanos));
+
+                if (commit) {
+                    if (finishing) {
+                        if (mBuffer.remaining() < TrackFormat.MAX_FOOTER_SIZE
+                                                  + TrackFormat.MAX_FOOTER_STATS_SIZE) {
+                            writeSegment();
+                        }
+                        mEncoder.writeFooter(mBuffer, mElapsedMs, mDistanceMeters,
+                                             mHasStats ? mStats : null);
+                    } else if (mEncoder.isSegmentOpen()) {
+                        mEncoder.endSegment(mBuffer, mEncodedDistanceMeters);
+                    }
+                    commit();
+                    lastCommitNanos = now;
+                    uncommittedFixes = 0;
+                }
+
+                if (finishing) {
+                    break;
+                }
+
+                /* Sleep until append() wakes us, finish() is called or the interval is up */
+                if (intervalNanos > 0) {
+                    long wait = lastCommitNanos + intervalNanos - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            try {
+                mChannel.close();
+                if (mCheckpointChannel != null) {
+                    mCheckpointChannel.close();
+                }
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills in the file's state as of the last commit and stores the checkpoint handed over by
+     * checkpoint().
+     */
+    private void storeCheckpoint() throws IOException {
+
+        mCheckpoint.setFile(mEncoder.getOffset(), mEncoder.getFixCount(),
+                            mEncoder.getLastTimeMs(), mEncoder.getMinLatitudeE7(),
+                            mEncoder.getMinLongitudeE7(), mEncoder.getMaxLatitudeE7(),
+                            mEncoder.getMaxLongitudeE7(), mEncodedDistanceMeters);
+        mCheckpoint.write(mCheckpointChannel, mPolicy.isForce());
+
+        mCheckpointCount++;
+        mCheckpointPending = false;
+    }
+
+    /**
+     * Encodes the fixes waiting in the ring buffer into the open segment, writing the segment out
+     * and starting another when the buffer fills.
+     * @param limit  The ring buffer index to stop at
+     * @return  The number of fixes drained
+     */
+    private int drain(long limit) throws IOException {
+
+        long write = Math.min(mRing.getWriteIndex(), limit);
+        long i = mRing.getReadIndex();
+        int count = 0;
+
+        while (i < write) {
+
+            int latE7 = mRing.getLatitudeE7(i);
+            int lonE7 = mRing.getLongitudeE7(i);
+            long timeMs = mRing.getTimeMs(i);
+            int accuracyDm = mRing.getAccuracyDm(i);
+            float distanceMeters = mRing.getDistanceMeters(i);
+
+            /* If the producer dropped the fix to make room, what was read may not be it */
+            if (!mRing.claim(i)) {
+                i = mRing.getReadIndex();
+                continue;
+            }
+
+            encodeFix(latE7, lonE7, timeMs, accuracyDm, distanceMeters);
+            count++;
+            i++;
+        }
+
+        /* There's room now, if append() is waiting for it */
+        Thread waiter = mWaiter;
+        if ((count > 0) && (waiter != null)) {
+            LockSupport.unpark(waiter);
+        }
+
+        return count;
+    }
+
+    /**
+     * Encodes a fix into the open segment, writing the segment out and starting another when the
+     * buffer fills.
+     */
+    private void encodeFix(int latE7, int lonE7, long timeMs, int accuracyDm,
+                           float distanceMeters) throws IOException {
+
+        if (mBuffer.remaining() < TrackFormat.MAX_FIX_SIZE + SEGMENT_END_SIZE) {
+            writeSegment();
+        }
+        if (!mEncoder.isSegmentOpen()) {
+            mEncoder.beginSegment(mBuffer);
+        }
+
+        mEncoder.writeFixE7(mBuffer, latE7, lonE7, timeMs, accuracyDm);
+        mEncodedDistanceMeters = distanceMeters;
+    }
+
+    /**
+     * Closes the open segment, if any, and writes the buffer out without committing it.
+     */
+    private void writeSegment() throws IOException {
+        if (mEncoder.isSegmentOpen()) {
+            mEncoder.endSegment(mBuffer, mEncodedDistanceMeters);
+        }
+        writeBuffer();
+    }
+
+    /**
+     * Writes the contents of mBuffer to the channel.
+     */
+    private void writeBuffer() throws IOException {
+
+        mBuffer.flip();
+        if (mBuffer.hasRemaining()) {
+            long start = System.nanoTime();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            if (mWriteLatency != null) {
+                mWriteLatency.record(System.nanoTime() - start);
+            }
+            mWriteCount++;
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Writes everything encoded so far and, if the policy says so, forces it to storage.
+     */
+    private void commit() throws IOException {
+
+        writeBuffer();
+
+        if (mPolicy.isForce() && (mChannel instanceof FileChannel)) {
+            long start = System.nanoTime();
+            ((FileChannel) mChannel).force(false);
+            if (mForceLatency != null) {
+                mForceLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        mCommitCount++;
+    }
+}
@@ -0,0 +1,260 @@
+package android.redskysoftware.com.tracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes XML text to an OutputStream through a reusable byte buffer, formatting numbers and times
+ * itself so nothing is allocated per value.
+ *
+ * Everything written is ASCII: markup and the literals passed to append() must be, and text
+ * passed to appendEscaped() has its markup characters escaped and anything outside ASCII written
+ * as a character reference, so the output is valid UTF-8 whatever it holds.
+ *
+ * An XmlOutput is not thread safe.  It can be reused for any number of streams, one at a time.
+ */
+final class XmlOutput {
+
+    /** Powers of ten for appendFixed() */
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+    };
+
+    private static final long MS_PER_DAY = 86400000L;
+
+    private final byte[] mBuffer;
+    private int mLength = 0;
+
+    private OutputStream mOut = null;
+
+    /**
+     * @param bufferSize  The most bytes held before they are written to the stream
+     */
+    XmlOutput(int bufferSize) {
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Starts writing to a stream.  Anything not yet flushed to the previous stream is dropped.
+     */
+    void start(OutputStream out) {
+        mOut = out;
+        mLength = 0;
+    }
+
+    /**
+     * Writes everything buffered to the stream, and flushes the stream.
+     */
+    void flush() throws IOException {
+        drain();
+        mOut.flush();
+    }
+
+    /**
+     * Appends ASCII text as it is, such as markup.
+     */
+    XmlOutput append(String ascii) throws IOException {
+        int length = ascii.length();
+        for (int i = 0; i < length; i++) {
+            put(ascii.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Appends text, escaped to be used as element content or an attribute value.
+     */
+    XmlOutput appendEscaped(CharSequence text) throws IOException {
+
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+
+            char c = text.charAt(i);
+            if (c == '&') {
+                append("&amp;");
+            } else if (c == '<') {
+                append("&lt;");
+            } else if (c == '>') {
+                append("&gt;");
+            } else if (c == '"') {
+                append("&quot;");
+            } else if ((c >= 0x20) && (c < 0x7F)) {
+                put(c);
+            } else if ((c == '\t') || (c == '\n') || (c == '\r')) {
+                put(c);
+            } else if (c >= 0x80) {
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && (i + 1 < length)
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, text.charAt(++i));
+                }
+                append("&#");
+                appendLong(codePoint);
+                put(';');
+            }
+
+            /* Other control characters can't appear in XML at all, so they are dropped */
+        }
+        return this;
+    }
+
+    /**
+     * Appends an integer, as "%d" would format it.
+     */
+    XmlOutput appendLong(long value) throws IOException {
+
+        if (value < 0) {
+            put('-');
+            if (value == Long.MIN_VALUE) {
+                /* Can't be negated; format the last digit separately */
+                appendDigits(-(value / 10));
+                put('8');
+                return this;
+            }
+            value = -value;
+        }
+        appendDigits(value);
+        return this;
+    }
+
+    /**
+     * Appends a coordinate stored in units of 1e-7 degrees, with all seven decimal places, so
+     * it reads back exactly.
+     */
+    XmlOutput appendE7(int valueE7) throws IOException {
+
+        long value = valueE7;
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        appendDigits(value / 10000000L);
+        put('.');
+        appendPadded(value % 10000000L, 7);
+        return this;
+    }
+
+    /**
+     * Appends a number with a fixed number of decimal places, as "%.{decimals}f" would format
+     * it, except that a value within a rounding error of halfway between two may round to the
+     * other one.  Values too large for the decimals requested (over about 9e10 with 8 places) are
+     * clamped, and NaN is written as 0.
+     * @param decimals  Decimal places, 0 to 8
+     */
+    XmlOutput appendFixed(double value, int decimals) throws IOException {
+
+        long scale = POWERS_OF_TEN[decimals];
+        double magnitude = Math.abs(value) * scale;
+        long limit = Long.MAX_VALUE / 10;
+        long scaled = (magnitude >= limit) ? limit : (long) (magnitude + 0.5);
+
+        if ((value < 0.0) && (scaled != 0)) {
+            put('-');
+        }
+        appendDigits(scaled / scale);
+        if (decimals > 0) {
+            put('.');
+            appendPadded(scaled % scale, decimals);
+        }
+        return this;
+    }
+
+    /**
+     * Appends a time as an ISO 8601 UTC timestamp with milliseconds, such as
+     * 2019-05-30T00:20:00.000Z, for any time from the year 0 to 9999.
+     * @param timeMs  The time, in ms since the epoch
+     */
+    XmlOutput appendTimestamp(long timeMs) throws IOException {
+
+        long days = floorDiv(timeMs, MS_PER_DAY);
+        long msOfDay = timeMs - days * MS_PER_DAY;
+
+        //
+        // Civil date from days since the epoch, in a calendar of 400 year eras that start on
+        // March 1st so the leap day is the last day of the year (after Howard Hinnant's
+        // civil_from_days algorithm).
+        //
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = (monthIndex < 10) ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+
+        appendPadded(year, 4);
+        put('-');
+        appendPadded(month, 2);
+        put('-');
+        appendPadded(day, 2);
+        put('T');
+        appendPadded(msOfDay / 3600000L, 2);
+        put(':');
+        appendPadded((msOfDay / 60000L) % 60, 2);
+        put(':');
+        appendPadded((msOfDay / 1000L) % 60, 2);
+        put('.');
+        appendPadded(msOfDay % 1000L, 3);
+        put('Z');
+        return this;
+    }
+
+    /**
+     * @return  a / b rounded down, for times before the epoch (Math.floorDiv() needs API 24)
+     */
+    private static long floorDiv(long a, long b) {
+        long quotient = a / b;
+        return ((a % b != 0) && ((a < 0) != (b < 0))) ? quotient - 1 : quotient;
+    }
+
+    /**
+     * Appends a non-negative number with at least the given number of digits.
+     */
+    private void appendPadded(long value, int digits) throws IOException {
+        for (long limit = POWERS_OF_TEN[digits - 1]; (limit > 1) && (value < limit); limit /= 10) {
+            put('0');
+        }
+        appendDigits(value);
+    }
+
+    /**
+     * Appends the digits of a non-negative number.
+     */
+    private void appendDigits(long value) throws IOException {
+
+        if (mLength + 20 > mBuffer.length) {
+            drain();
+        }
+
+        /* Write the digits backwards into place */
+        int count = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            count++;
+        }
+        int pos = mLength + count;
+        do {
+            mBuffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        mLength += count;
+    }
+
+    private void put(char c) throws IOException {
+        if (mLength == mBuffer.length) {
+            drain();
+        }
+        mBuffer[mLength++] = (byte) c;
+    }
+
+    /**
+     * Writes everything buffered to the stream.
+     */
+    private void drain() throws IOException {
+        if (mLength > 0) {
+            mOut.write(mBuffer, 0, mLength);
+            mLength = 0;
+        }
+    }
+}
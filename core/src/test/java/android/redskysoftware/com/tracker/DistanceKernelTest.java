@@ -0,0 +1,113 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the error bounds documented in DistanceKernel against the exact mode.
+ */
+public class DistanceKernelTest {
+
+    private static final int PAIRS = 100000;
+
+    /**
+     * @return  The largest relative error of the kernel against EXACT over the pairs
+     */
+    private static double maxError(DistanceKernel kernel, double[] pairs) {
+
+        double max = 0.0;
+        for (int i = 0; i < pairs.length; i += 4) {
+            double exact = Geodesy.distanceMeters(pairs[i], pairs[i + 1],
+                                                  pairs[i + 2], pairs[i + 3]);
+            if (exact > 0.0) {
+                double distance = kernel.distanceMeters(pairs[i], pairs[i + 1],
+                                                        pairs[i + 2], pairs[i + 3]);
+                max = Math.max(max, Math.abs(distance - exact) / exact);
+            }
+        }
+        return max;
+    }
+
+    @Test
+    public void haversineIsWithinItsBoundEverywhere() throws Exception {
+
+        Random random = new Random(1);
+        double[] pairs = new double[PAIRS * 4];
+
+        for (int i = 0; i < pairs.length; i += 4) {
+
+            pairs[i] = random.nextDouble() * 178.0 - 89.0;
+            pairs[i + 1] = random.nextDouble() * 360.0 - 180.0;
+
+            /* From meters to a third of the way round the earth */
+            double span = Math.pow(10.0, random.nextDouble() * 7.0 - 5.0);
+            pairs[i + 2] = Math.max(-89.0, Math.min(89.0,
+                                    pairs[i] + (random.nextDouble() - 0.5) * span));
+            pairs[i + 3] = pairs[i + 1] + (random.nextDouble() - 0.5) * span;
+        }
+
+        double error = maxError(new DistanceKernel(DistanceKernel.HAVERSINE), pairs);
+        assertTrue("error " + error, error < 0.006);
+    }
+
+    @Test
+    public void equirectangularIsWithinItsBoundForTrackSteps() throws Exception {
+
+        Random random = new Random(2);
+        double[] pairs = new double[PAIRS * 4];
+
+        //
+        // Walk a track that wanders across the latitudes, so lines are measured both with the
+        // cached scales and after they are worked out again, with steps up to the longest line
+        // the mode is documented for.
+        //
+        double latitude = -70.0;
+        double longitude = 179.0;
+        for (int i = 0; i < pairs.length; i += 4) {
+
+            double step = Math.pow(10.0, random.nextDouble() * 4.0);
+            double bearing = random.nextDouble() * 2.0 * Math.PI;
+            double metersPerDegree = DistanceKernel.MEAN_RADIUS_METERS * Math.PI / 180.0;
+
+            pairs[i] = latitude;
+            pairs[i + 1] = longitude;
+
+            latitude += step * Math.cos(bearing) / metersPerDegree;
+            latitude = Math.max(-70.0, Math.min(70.0, latitude + 140.0 / PAIRS));
+            longitude += step * Math.sin(bearing)
+                    / (metersPerDegree * Math.cos(Math.toRadians(latitude)));
+            if (longitude > 180.0) {
+                longitude -= 360.0;
+            }
+
+            pairs[i + 2] = latitude;
+            pairs[i + 3] = longitude;
+        }
+
+        DistanceKernel kernel = new DistanceKernel(DistanceKernel.EQUIRECTANGULAR);
+        double error = maxError(kernel, pairs);
+        assertTrue("error " + error, error < 0.001);
+
+        /* Across the antimeridian is a short line, not most of the way round */
+        assertEquals(Geodesy.distanceMeters(10.0, 179.999, 10.0, -179.999),
+                     kernel.distanceMeters(10.0, 179.999, 10.0, -179.999), 0.01);
+    }
+
+    @Test
+    public void exactModeIsGeodesy() throws Exception {
+
+        DistanceKernel kernel = new DistanceKernel(DistanceKernel.EXACT);
+        assertEquals(Geodesy.distanceMeters(-37.95103342, 144.42486789,
+                                            -37.65282114, 143.92649554),
+                     kernel.distanceMeters(-37.95103342, 144.42486789,
+                                           -37.65282114, 143.92649554), 0.0);
+
+        for (int mode = DistanceKernel.EXACT; mode <= DistanceKernel.EQUIRECTANGULAR; mode++) {
+            assertEquals(0.0, new DistanceKernel(mode).distanceMeters(45.0, -93.0, 45.0, -93.0),
+                         0.0);
+        }
+    }
+}
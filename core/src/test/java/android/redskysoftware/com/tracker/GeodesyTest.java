@@ -0,0 +1,36 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Geodesy.
+ */
+public class GeodesyTest {
+
+    @Test
+    public void matchesVincentyReferenceDistance() throws Exception {
+
+        /* Flinders Peak to Buninyong, the example in Vincenty's paper */
+        double distance = Geodesy.distanceMeters(-37.95103342, 144.42486789,
+                                                 -37.65282114, 143.92649554);
+        assertEquals(54972.271, distance, 0.001);
+    }
+
+    @Test
+    public void measuresShortAndDegenerateLines() throws Exception {
+
+        assertEquals(0.0, Geodesy.distanceMeters(45.0, -93.0, 45.0, -93.0), 0.0);
+
+        /* A degree of longitude along the equator is the semi-major axis times pi / 180 */
+        assertEquals(6378137.0 * Math.PI / 180.0, Geodesy.distanceMeters(0.0, 10.0, 0.0, 11.0),
+                     0.001);
+
+        /* Symmetric, and about 1.11 m for 1e-5 degrees of latitude */
+        double north = Geodesy.distanceMeters(45.0, -93.0, 45.00001, -93.0);
+        double south = Geodesy.distanceMeters(45.00001, -93.0, 45.0, -93.0);
+        assertEquals(north, south, 1e-9);
+        assertEquals(1.111, north, 0.001);
+    }
+}
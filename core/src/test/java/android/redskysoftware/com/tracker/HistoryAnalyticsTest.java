@@ -0,0 +1,232 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for HistoryAnalytics, the totals over every stored track.
+ */
+public class HistoryAnalyticsTest {
+
+    /** Thursday 30 May 2019, 23:00 UTC */
+    private static final long START_MS = 1559257200000L;
+
+    private static final long DAY_MS = 86400000L;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("tracks", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Writes a finished track heading north at a steady speed, a fix a second.
+     * @param withStats  True to put the statistics in the footer, as tracks are recorded now;
+     *                   false for a track written before there were statistics
+     */
+    private File writeTrack(String name, long startMs, int fixes, double speed,
+                            boolean withStats) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE
+                                                + fixes * TrackFormat.MAX_FIX_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        TrackStats stats = new TrackStats();
+
+        encoder.writeHeader(buffer, startMs);
+        encoder.beginSegment(buffer);
+
+        /* The distance is measured between the points as stored, as the reader measures it */
+        double distance = 0.0;
+        double previous = 45.0;
+        for (int i = 0; i < fixes; i++) {
+            double latitude = TrackFormat.fromE7(TrackFormat.toE7(45.0 + i * speed / 111132.0));
+            distance += DistanceKernel.haversineMeters(previous, -93.0, latitude, -93.0);
+            previous = latitude;
+            encoder.writeFix(buffer, latitude, -93.0, startMs + i * 1000L, 3.0f);
+            stats.add(startMs + i * 1000L, distance);
+        }
+
+        encoder.endSegment(buffer, (float) distance);
+        encoder.writeFooter(buffer, fixes * 1000L, (float) distance, withStats ? stats : null);
+
+        File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        return file;
+    }
+
+    /**
+     * Writes tracks a day apart, at speeds that cycle so the fastest is known.
+     */
+    private void writeTracks(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            writeTrack("track" + i + ".trk", START_MS + i * DAY_MS, 300 + (i % 7) * 300,
+                       3.0 + (i % 5), (i & 1) == 0);
+        }
+    }
+
+    @Test
+    public void mergesTheSameTotalsOnAnyNumberOfThreads() throws Exception {
+
+        writeTracks(100);
+
+        ForkJoinPool serial = new ForkJoinPool(1);
+        ForkJoinPool parallel = new ForkJoinPool(4);
+        try {
+            HistoryAnalytics.Totals one =
+                    new HistoryAnalytics(mDir, UTC, Locale.US).analyze(serial);
+            new File(mDir, HistoryAnalytics.FILE_NAME).delete();
+            HistoryAnalytics.Totals four =
+                    new HistoryAnalytics(mDir, UTC, Locale.US).analyze(parallel);
+
+            assertEquals(100, one.getTrackCount());
+            assertEquals(one.getTrackCount(), four.getTrackCount());
+            assertEquals(one.getDistanceMeters(), four.getDistanceMeters(), 0.01);
+            assertEquals(one.getElapsedMs(), four.getElapsedMs());
+            assertEquals(one.getMovingMs(), four.getMovingMs());
+
+            assertEquals(one.getWeeks().size(), four.getWeeks().size());
+            int weekTracks = 0;
+            for (int i = 0; i < one.getWeeks().size(); i++) {
+                assertEquals(one.getWeeks().getStartMs(i), four.getWeeks().getStartMs(i));
+                assertEquals(one.getWeeks().getTrackCount(i), four.getWeeks().getTrackCount(i));
+                weekTracks += four.getWeeks().getTrackCount(i);
+            }
+            assertEquals(100, weekTracks);
+            assertEquals(5, four.getMonths().size());
+
+            int histogramTracks = 0;
+            for (int bin = 0; bin < HistoryAnalytics.HISTOGRAM_BINS; bin++) {
+                assertEquals(one.getHistogramCount(bin), four.getHistogramCount(bin));
+                histogramTracks += four.getHistogramCount(bin);
+            }
+            assertEquals(100, histogramTracks);
+
+            /* 7 m/s is the fastest; track4 is the first at that speed long enough for 5 km */
+            int kilometer = HistoryAnalytics.RECORD_FASTEST_KILOMETER;
+            int fiveKilometers = HistoryAnalytics.RECORD_FASTEST_5_KILOMETERS;
+            assertEquals("track4.trk", four.getRecordTrack(kilometer));
+            assertEquals(1000.0 / 7.0, four.getRecordMs(kilometer) / 1000.0, 1.0);
+            assertEquals("track4.trk", four.getRecordTrack(fiveKilometers));
+            assertEquals(5000.0 / 7.0, four.getRecordMs(fiveKilometers) / 1000.0, 1.0);
+            assertEquals(one.getRecordMs(kilometer), four.getRecordMs(kilometer));
+
+            /* The longest is 2100 s at 7 m/s, first reached by track34 */
+            assertEquals("track34.trk", four.getLongestTrack());
+            assertEquals(one.getLongestTrack(), four.getLongestTrack());
+        } finally {
+            serial.shutdown();
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void rereadsOnlyNewOrChangedTracks() throws Exception {
+
+        writeTracks(40);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            HistoryAnalytics analytics = new HistoryAnalytics(mDir, UTC, Locale.US);
+            HistoryAnalytics.Totals first = analytics.analyze(pool);
+            assertEquals(40, analytics.getReadCount());
+
+            /* A new instance, as after the app restarts, reads the cache file */
+            analytics = new HistoryAnalytics(mDir, UTC, Locale.US);
+            HistoryAnalytics.Totals again = analytics.analyze(pool);
+            assertEquals(0, analytics.getReadCount());
+            assertEquals(first.getDistanceMeters(), again.getDistanceMeters(), 0.01);
+            assertEquals(first.getMovingMs(), again.getMovingMs());
+            assertEquals(first.getRecordMs(HistoryAnalytics.RECORD_FASTEST_5_KILOMETERS),
+                         again.getRecordMs(HistoryAnalytics.RECORD_FASTEST_5_KILOMETERS));
+
+            writeTrack("track40.trk", START_MS + 40 * DAY_MS, 600, 10.0, true);
+            HistoryAnalytics.Totals added = analytics.analyze(pool);
+            assertEquals(1, analytics.getReadCount());
+            assertEquals(41, added.getTrackCount());
+            assertEquals("track40.trk",
+                         added.getRecordTrack(HistoryAnalytics.RECORD_FASTEST_KILOMETER));
+
+            /* A track rewritten with a different length is read again */
+            writeTrack("track40.trk", START_MS + 40 * DAY_MS, 300, 2.0, true);
+            HistoryAnalytics.Totals changed = analytics.analyze(pool);
+            assertEquals(1, analytics.getReadCount());
+            assertEquals(first.getRecordTrack(HistoryAnalytics.RECORD_FASTEST_KILOMETER),
+                         changed.getRecordTrack(HistoryAnalytics.RECORD_FASTEST_KILOMETER));
+
+            assertTrue(new File(mDir, "track40.trk").delete());
+            HistoryAnalytics.Totals deleted = analytics.analyze(pool);
+            assertEquals(0, analytics.getReadCount());
+            assertEquals(40, deleted.getTrackCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void totalsCalendarWeeksAndMonths() throws Exception {
+
+        /* Thursday and Sunday 11 pm UTC, the Sunday after, and Saturday 1 June */
+        writeTrack("a.trk", START_MS, 600, 5.0, true);
+        writeTrack("b.trk", START_MS - 4 * DAY_MS, 600, 5.0, true);
+        writeTrack("c.trk", START_MS + 3 * DAY_MS, 600, 5.0, true);
+        writeTrack("d.trk", START_MS + 2 * DAY_MS, 600, 5.0, false);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            HistoryAnalytics.Totals totals =
+                    new HistoryAnalytics(mDir, UTC, Locale.US).analyze(pool);
+
+            Calendar calendar = Calendar.getInstance(UTC, Locale.US);
+            HistoryAnalytics.Periods weeks = totals.getWeeks();
+            assertEquals(2, weeks.size());
+            int sunday26 = weeks.indexOf(HistoryAnalytics.startOfWeek(calendar, START_MS));
+            assertEquals(START_MS - 4 * DAY_MS - 23 * 3600000L, weeks.getStartMs(sunday26));
+            assertEquals(3, weeks.getTrackCount(sunday26));
+            assertEquals(3 * 600000L, weeks.getElapsedMs(sunday26));
+            assertEquals(3 * 599 * 5.0, weeks.getDistanceMeters(sunday26), 50.0);
+            assertEquals(1, weeks.getTrackCount(1 - sunday26));
+
+            HistoryAnalytics.Periods months = totals.getMonths();
+            assertEquals(2, months.size());
+            assertEquals(2, months.getTrackCount(0));
+            assertEquals(2, months.getTrackCount(1));
+            assertEquals(HistoryAnalytics.startOfMonth(calendar, START_MS + 2 * DAY_MS),
+                         months.getStartMs(1));
+
+            /* Tracks with and without statistics in the footer give the same moving time */
+            assertEquals(4 * 599000L, totals.getMovingMs());
+            assertEquals(4, totals.getHistogramCount(2));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
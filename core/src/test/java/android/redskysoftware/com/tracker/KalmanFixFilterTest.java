@@ -0,0 +1,208 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for KalmanFixFilter, and a replayed comparison of its accuracy against
+ * AccuracyThresholdFilter.
+ */
+public class KalmanFixFilterTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private static final int FIXES = 600;
+
+    /** Meters per degree of latitude near 45 degrees north, and of longitude there */
+    private static final double METERS_PER_DEGREE_LATITUDE = 111132.0;
+    private static final double METERS_PER_DEGREE_LONGITUDE = 78847.0;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("kalman", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes ten minutes of fixes, one a second, along a route of the given speed that turns a
+     * quarter circle every two minutes.  Each fix has Gaussian noise to match its accuracy (the
+     * accuracy being the 68% radius), and every outlierInterval'th fix is 300 m off.
+     * @return  The true distance of the route, in meters
+     */
+    private double writeTrack(double speed, float accuracy, int outlierInterval, long seed)
+            throws Exception {
+
+        Random random = new Random(seed);
+        double sigma = accuracy / 1.5;
+        double east = 0.0;
+        double north = 0.0;
+        double heading = 0.0;
+        double distance = 0.0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            encoder.writeHeader(buffer, START_MS);
+            encoder.beginSegment(buffer);
+
+            for (int i = 0; i < FIXES; i++) {
+
+                if (i > 0) {
+                    if ((i % 120) == 0) {
+                        heading += Math.PI / 2.0;
+                    }
+                    east += speed * Math.cos(heading);
+                    north += speed * Math.sin(heading);
+                    distance += speed;
+                }
+
+                double fixEast = east + random.nextGaussian() * sigma;
+                double fixNorth = north + random.nextGaussian() * sigma;
+                if ((outlierInterval > 0) && ((i % outlierInterval) == outlierInterval / 2)) {
+                    fixEast += 300.0;
+                }
+
+                encoder.writeFix(buffer, 45.0 + fixNorth / METERS_PER_DEGREE_LATITUDE,
+                                 -93.0 + fixEast / METERS_PER_DEGREE_LONGITUDE,
+                                 START_MS + i * 1000L, accuracy);
+            }
+
+            encoder.endSegment(buffer, 0.0f);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        return distance;
+    }
+
+    /**
+     * Replays the track through a pipeline with the given filter.
+     * @return  The distance of the track the pipeline measured
+     */
+    private double replay(FixFilter filter) throws Exception {
+
+        ReplayLocationSource source =
+                new ReplayLocationSource(mFile, ReplayLocationSource.AS_FAST_AS_POSSIBLE);
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        pipeline.setFilter(filter);
+
+        /* Replay on this thread rather than starting the source */
+        pipeline.start(new LocationSource() {
+            @Override
+            public boolean start(SamplingController.Profile profile, Listener listener) {
+                return true;
+            }
+
+            @Override
+            public void setProfile(SamplingController.Profile profile) {
+            }
+
+            @Override
+            public void setMaxWaitMs(long maxWaitMs) {
+            }
+
+            @Override
+            public void stop() {
+            }
+        }, null);
+        source.replay(pipeline);
+
+        return pipeline.getDistanceMeters();
+    }
+
+    @Test
+    public void measuresDistanceBetterThanTheAccuracyThreshold() throws Exception {
+
+        String[] names = { "stationary", "slow walk", "walk", "drive", "walk, outliers" };
+        double[] speeds = { 0.0, 0.7, 1.4, 15.0, 1.4 };
+        float[] accuracies = { 8.0f, 5.0f, 5.0f, 5.0f, 5.0f };
+        int[] outliers = { 0, 0, 0, 0, 50 };
+
+        for (int i = 0; i < names.length; i++) {
+
+            double truth = writeTrack(speeds[i], accuracies[i], outliers[i], i + 1);
+
+            double threshold = replay(new AccuracyThresholdFilter());
+            double kalman = replay(new KalmanFixFilter());
+
+            assertTrue(names[i], Math.abs(kalman - truth) < Math.abs(threshold - truth));
+
+            /* Within 10% on the move, and well under the noise standing still */
+            assertEquals(names[i], truth, kalman, Math.max(truth * 0.1, 100.0));
+        }
+    }
+
+    @Test
+    public void rejectsOutliersAndRecoversFromARealJump() throws Exception {
+
+        KalmanFixFilter filter = new KalmanFixFilter();
+
+        /* Standing still, only the first fix is accepted */
+        assertTrue(filter.accept(45.0, -93.0, START_MS, 5.0f));
+        for (int i = 1; i < 30; i++) {
+            assertFalse(filter.accept(45.0, -93.0, START_MS + i * 1000L, 5.0f));
+        }
+
+        /* 1 km away a second later is an outlier, and the position stays put */
+        assertFalse(filter.accept(45.009, -93.0, START_MS + 30000L, 5.0f));
+        assertEquals(1, filter.getOutlierCount());
+        assertEquals(45.0, filter.getLatitude(), 1e-6);
+
+        /* Once it keeps happening, the filter starts again from there and counts the step */
+        boolean accepted = false;
+        for (int i = 1; i < KalmanFixFilter.MAX_CONSECUTIVE_OUTLIERS; i++) {
+            accepted = filter.accept(45.009, -93.0, START_MS + 30000L + i * 1000L, 5.0f);
+        }
+        assertTrue(accepted);
+        assertEquals(45.009, filter.getLatitude(), 1e-9);
+        assertEquals(Geodesy.distanceMeters(45.0, -93.0, 45.009, -93.0),
+                     filter.getStepMeters(), 1e-6);
+    }
+
+    @Test
+    public void doesNotAllocatePerFix() throws Exception {
+
+        KalmanFixFilter filter = new KalmanFixFilter();
+        Random random = new Random(3);
+
+        double[] noise = new double[4096];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextGaussian() * 3e-5;
+        }
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        /* Warm up, then cross more than one origin's worth of ground */
+        long before = 0;
+        for (int i = -100000; i < 200000; i++) {
+            if (i == 0) {
+                before = bean.getThreadAllocatedBytes(threadId);
+            }
+            int n = i & 4095;
+            filter.accept(45.0 + i * 1e-4 + noise[n], -93.0 + noise[(n + 1) & 4095],
+                          START_MS + i * 1000L, 4.0f);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+}
@@ -0,0 +1,327 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for LocationPipeline, fed by ReplayLocationSource.
+ */
+public class LocationPipelineTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mTrack;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        mTrack = File.createTempFile("replay", TrackFormat.FILE_EXTENSION);
+        mOutput = File.createTempFile("output", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mTrack.delete();
+        mOutput.delete();
+    }
+
+    /**
+     * Writes a track of a walk heading roughly north east, a fix a second with a few meters of
+     * jitter, so some fixes fall within their accuracy of the last one and are rejected.
+     */
+    private void writeTrack(int fixes) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        Random random = new Random(1);
+
+        try (FileOutputStream out = new FileOutputStream(mTrack)) {
+
+            encoder.writeHeader(buffer, START_MS);
+
+            for (int i = 0; i < fixes; i++) {
+                if (!encoder.isSegmentOpen()) {
+                    encoder.beginSegment(buffer);
+                }
+                double north = (i % 20000) * 1.4 + random.nextGaussian() * 2.0;
+                double east = (i % 20000) * 0.5 + random.nextGaussian() * 2.0;
+                encoder.writeFix(buffer, 45.0 + north / 111132.0, -93.0 + east / 78847.0,
+                                 START_MS + i * 1000L, 4.0f);
+                if ((i % 60) == 59) {
+                    encoder.endSegment(buffer, i);
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+
+            if (encoder.isSegmentOpen()) {
+                encoder.endSegment(buffer, fixes);
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    /** Records what the pipeline passes on, as a running hash of every value */
+    private static class RecordingCallback implements DistanceChangedCallback {
+        int mCount = 0;
+        long mHash = 17;
+        float mDistance = 0.0f;
+
+        @Override
+        public void onDistanceChanged(double latitude, double longitude, long timeMs,
+                                      float accuracyMeters, float totalDistanceMeters) {
+            mCount++;
+            mHash = mHash * 31 + Double.doubleToLongBits(latitude);
+            mHash = mHash * 31 + Double.doubleToLongBits(longitude);
+            mHash = mHash * 31 + timeMs;
+            mHash = mHash * 31 + Float.floatToIntBits(totalDistanceMeters);
+            mDistance = totalDistanceMeters;
+        }
+    }
+
+    @Test
+    public void replaysEveryFixThroughTheFilter() throws Exception {
+
+        writeTrack(5000);
+
+        /* Work out what the accuracy filter should accept, from the stored fixes */
+        int accepted = 0;
+        double distance = 0.0;
+        try (TrackReader reader = TrackReader.open(mTrack)) {
+            double lat = 0.0;
+            double lon = 0.0;
+            while (reader.next()) {
+                if (accepted == 0) {
+                    accepted++;
+                } else {
+                    double delta = Geodesy.distanceMeters(lat, lon, reader.getLatitude(),
+                                                          reader.getLongitude());
+                    if (delta < reader.getAccuracy()) {
+                        continue;
+                    }
+                    accepted++;
+                    distance += delta;
+                }
+                lat = reader.getLatitude();
+                lon = reader.getLongitude();
+            }
+        }
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        ReplayLocationSource source =
+                new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE);
+        RecordingCallback callback = new RecordingCallback();
+
+        /* Started but not run, so the replay happens on this thread */
+        pipeline.start(new NullSource(), callback);
+        assertEquals(5000, source.replay(pipeline));
+
+        assertEquals(5000, pipeline.getReceivedCount());
+        assertTrue("some fixes rejected", accepted < 5000);
+        assertEquals(accepted, pipeline.getAcceptedCount());
+        assertEquals(accepted, callback.mCount);
+        assertEquals(accepted, pipeline.getSnapshot().getFixCount());
+        assertEquals(accepted, pipeline.getTrackBuffer().size());
+        assertEquals(distance, pipeline.getDistanceMeters(), 1e-6);
+        assertEquals((float) distance, pipeline.getSnapshot().getDistanceMeters(), 0.0f);
+    }
+
+    @Test
+    public void replaysAreDeterministic() throws Exception {
+
+        writeTrack(3000);
+
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+
+        for (RecordingCallback callback : new RecordingCallback[] { first, second }) {
+            LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+            ReplayLocationSource source =
+                    new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE);
+            pipeline.start(new NullSource(), callback);
+            source.replay(pipeline);
+        }
+
+        assertTrue(first.mCount > 0);
+        assertEquals(first.mCount, second.mCount);
+        assertEquals(first.mHash, second.mHash);
+        assertEquals(first.mDistance, second.mDistance, 0.0f);
+    }
+
+    @Test
+    public void measuresEachTrackInItsDistanceMode() throws Exception {
+
+        writeTrack(3000);
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        double[] distances = new double[3];
+
+        for (int mode = DistanceKernel.EXACT; mode <= DistanceKernel.EQUIRECTANGULAR; mode++) {
+
+            /* The mode only changes when the next track starts */
+            pipeline.setDistanceMode(mode);
+            assertEquals(Math.max(mode - 1, 0), pipeline.getDistanceMode());
+
+            pipeline.start(new NullSource(), null);
+            assertEquals(mode, pipeline.getDistanceMode());
+            new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE)
+                    .replay(pipeline);
+            distances[mode] = pipeline.getDistanceMeters();
+        }
+
+        double exact = distances[DistanceKernel.EXACT];
+        assertEquals(exact, distances[DistanceKernel.HAVERSINE], exact * 0.006);
+        assertEquals(exact, distances[DistanceKernel.EQUIRECTANGULAR], exact * 0.001);
+    }
+
+    @Test
+    public void batchedDeliveryLosesNothing() throws Exception {
+
+        writeTrack(3000);
+
+        /* Every fix one at a time, for reference */
+        RecordingCallback single = new RecordingCallback();
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        pipeline.start(new NullSource(), single);
+        new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE)
+                .replay(pipeline);
+
+        /* Batches of up to a minute of fixes, unpacked in order */
+        final RecordingCallback unpacked = new RecordingCallback();
+        final int[] batches = new int[1];
+        ReplayLocationSource source =
+                new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE);
+        source.setMaxWaitMs(60000);
+
+        pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        pipeline.startBatched(new NullSource(), new DistanceBatchCallback() {
+            @Override
+            public void onDistanceBatch(FixBatch batch) {
+                batches[0]++;
+                assertTrue(batch.size() > 0);
+                for (int i = 0; i < batch.size(); i++) {
+                    unpacked.onDistanceChanged(batch.getLatitude(i), batch.getLongitude(i),
+                                               batch.getTimeMs(i), batch.getAccuracy(i),
+                                               batch.getDistanceMeters(i));
+                }
+            }
+        });
+        source.replay(pipeline);
+
+        assertEquals(single.mCount, unpacked.mCount);
+        assertEquals(single.mHash, unpacked.mHash);
+        assertEquals(50, batches[0]);
+    }
+
+    @Test
+    public void runsTheFullPipelineAtHighRate() throws Exception {
+
+        final int fixes = 500000;
+        writeTrack(fixes);
+
+        try (FileOutputStream out = new FileOutputStream(mOutput)) {
+
+            final TrackWriter writer = new TrackWriter(out.getChannel(), FlushPolicy.DEFAULT,
+                                                       1 << 20);
+            writer.start(START_MS);
+
+            LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+            ReplayLocationSource source =
+                    new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE);
+
+            /* Persist accepted fixes the way TrackerDataModel does */
+            pipeline.start(new NullSource(), new DistanceChangedCallback() {
+                @Override
+                public void onDistanceChanged(double latitude, double longitude, long timeMs,
+                                              float accuracyMeters, float totalDistanceMeters) {
+                    writer.append(latitude, longitude, timeMs, accuracyMeters,
+                                  totalDistanceMeters);
+                }
+            });
+
+            long start = System.nanoTime();
+            source.replay(pipeline);
+            long elapsedNs = System.nanoTime() - start;
+
+            writer.finish(0, (float) pipeline.getDistanceMeters());
+            assertTrue(writer.awaitFinished(10000));
+            assertNull(writer.getError());
+
+            double perSecond = fixes * 1.0e9 / elapsedNs;
+            assertTrue("fixes per second " + perSecond, perSecond > 100000);
+
+            try (TrackReader reader = TrackReader.open(mOutput)) {
+                reader.skipToFooter();
+                assertEquals(pipeline.getAcceptedCount() - writer.getDroppedFixes(),
+                             reader.getFixCount());
+            }
+        }
+    }
+
+    @Test
+    public void replaysAtAMultipleOfRealTime() throws Exception {
+
+        writeTrack(21);
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+
+        /* 20 seconds of fixes at 40 times real time takes half a second */
+        ReplayLocationSource source = new ReplayLocationSource(mTrack, 40.0);
+
+        long start = System.nanoTime();
+        assertTrue(pipeline.start(source, null));
+        assertTrue(source.awaitFinished(5000));
+        long elapsedMs = (System.nanoTime() - start) / 1000000L;
+
+        assertNull(source.getError());
+        assertEquals(21, source.getDeliveredCount());
+        assertEquals(21, pipeline.getReceivedCount());
+        assertTrue("replay took " + elapsedMs + " ms", elapsedMs >= 490);
+    }
+
+    @Test
+    public void stopEndsAReplay() throws Exception {
+
+        writeTrack(100);
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        ReplayLocationSource source =
+                new ReplayLocationSource(mTrack, ReplayLocationSource.REAL_TIME);
+
+        assertTrue(pipeline.start(source, null));
+        Thread.sleep(200);
+        pipeline.stop();
+        assertTrue(source.awaitFinished(1000));
+
+        assertTrue(source.getDeliveredCount() < 100);
+        assertFalse(pipeline.getClock().isRunning());
+    }
+
+    /** A source that delivers nothing, for replays run on the test thread */
+    static class NullSource implements LocationSource {
+        @Override
+        public boolean start(SamplingController.Profile profile, Listener listener) {
+            return true;
+        }
+
+        @Override
+        public void setProfile(SamplingController.Profile profile) {
+        }
+
+        @Override
+        public void setMaxWaitMs(long maxWaitMs) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MetricsRegistry and the StripedCounters and LatencyHistograms it creates.
+ */
+public class MetricsRegistryTest {
+
+    /** A clock the test moves by hand */
+    private static class ManualTime implements TrackClock.TimeSource {
+
+        long mNanos = 1000;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    @Test
+    public void countsExactlyFromManyThreads() throws Exception {
+
+        MetricsRegistry registry = new MetricsRegistry(TrackClock.SYSTEM);
+        final StripedCounter counter = registry.counter("test.count");
+        final int threads = 8;
+        final int adds = 200000;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        counter.increment();
+                    }
+                    counter.add(2);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads * (adds + 2L), counter.get());
+    }
+
+    @Test
+    public void bucketsTimesAndFindsPercentiles() {
+
+        LatencyHistogram histogram = new MetricsRegistry(TrackClock.SYSTEM).histogram("test.time");
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+        assertEquals(0, histogram.getMeanNanos());
+
+        /* 90 times of 3 us, 9 of 100 us and one of 5 ms */
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3000);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(100000);
+        }
+        histogram.record(5000000);
+        histogram.record(-1);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(90, histogram.getBucketCount(2));
+        assertEquals(9, histogram.getBucketCount(7));
+        assertEquals(1, histogram.getBucketCount(13));
+        assertEquals(5000000, histogram.getMaxNanos());
+        assertEquals((90 * 3000L + 9 * 100000L + 5000000L) / 101, histogram.getMeanNanos());
+
+        assertEquals(4, histogram.getPercentileMicros(0.5));
+        assertEquals(4, histogram.getPercentileMicros(0.9));
+        assertEquals(128, histogram.getPercentileMicros(0.99));
+        assertEquals(8192, histogram.getPercentileMicros(1.0));
+
+        /* Beyond the last bucket the percentile is the longest time */
+        histogram.record(3600L * 1000000000L);
+        assertEquals(3600L * 1000000L, histogram.getPercentileMicros(1.0));
+    }
+
+    @Test
+    public void recordsWithoutAllocating() {
+
+        MetricsRegistry registry = new MetricsRegistry(TrackClock.SYSTEM);
+        StripedCounter counter = registry.counter("test.count");
+        LatencyHistogram histogram = registry.histogram("test.time");
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        /* Warm up so the measurement doesn't count class loading or compiling */
+        for (int i = 0; i < 100000; i++) {
+            counter.increment();
+            histogram.record(i * 1000L);
+        }
+
+        long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            counter.increment();
+            histogram.record(i * 1000L);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+
+    @Test
+    public void dumpsEveryMetricAndTheLastError() {
+
+        ManualTime time = new ManualTime();
+        MetricsRegistry registry = new MetricsRegistry(time);
+        StripedCounter fixes = registry.counter("fixes.received");
+        StripedCounter errors = registry.counter("errors.io");
+        registry.histogram("file.write").record(2000);
+
+        for (int i = 0; i < 120; i++) {
+            fixes.increment();
+        }
+        time.mNanos += 60000000000L;
+        registry.recordError(errors, new IOException("disk full"));
+        time.mNanos += 60000000000L;
+
+        assertEquals(1, errors.get());
+        assertEquals("disk full", registry.getLastError().getMessage());
+
+        StringWriter text = new StringWriter();
+        registry.dump(new PrintWriter(text));
+        String dump = text.toString();
+
+        assertTrue(dump, dump.contains("Metrics over 2.0 min"));
+        assertTrue(dump, dump.matches("(?s).*fixes\\.received +120 +60\\.0\n.*"));
+        assertTrue(dump, dump.matches("(?s).*file\\.write +1 +2 +4 +4 +4 +2\n.*"));
+        assertTrue(dump, dump.contains("last error (errors.io, 1.0 min ago)"));
+        assertTrue(dump, dump.contains("disk full"));
+    }
+}
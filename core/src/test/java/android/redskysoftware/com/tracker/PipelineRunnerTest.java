@@ -0,0 +1,282 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PipelineRunner, with the test thread in the place of the main thread and a
+ * single thread executor in the place of the pipeline's HandlerThread.
+ */
+public class PipelineRunnerTest {
+
+    private ExecutorService mExecutor;
+    private volatile Thread mPipelineThread;
+
+    /** Every thread any part of the pipeline ran on */
+    private final Set<Thread> mThreads = Collections.synchronizedSet(new HashSet<Thread>());
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                mPipelineThread = new Thread(task, "LocationPipeline");
+                return mPipelineThread;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Delivers locations on the thread that started it, as the fused provider delivers on the
+     * looper of the thread that called start().  The locations are a walk north at 5 m/s.
+     */
+    private class LooperSource implements LocationSource {
+
+        private final boolean mCanStart;
+        private LocationSource.Listener mListener;
+        private int mDelivered = 0;
+
+        LooperSource(boolean canStart) {
+            mCanStart = canStart;
+        }
+
+        @Override
+        public boolean start(SamplingController.Profile profile, LocationSource.Listener listener) {
+            mThreads.add(Thread.currentThread());
+            mListener = listener;
+            return mCanStart;
+        }
+
+        @Override
+        public void setProfile(SamplingController.Profile profile) {
+            mThreads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void setMaxWaitMs(long maxWaitMs) {
+            mThreads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void stop() {
+            mThreads.add(Thread.currentThread());
+            mListener = null;
+        }
+
+        /**
+         * Has the provider deliver a batch of locations, from any thread.
+         */
+        void deliver(final int count) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener == null) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++, mDelivered++) {
+                        mListener.onLocation(45.0 + mDelivered * 5.0 / 111132.0, -93.0,
+                                             1559170800000L + mDelivered * 1000L, 4.0f, 5.0f);
+                    }
+                    mListener.onBatchEnd();
+                }
+            });
+        }
+    }
+
+    /** The default filter, noting the threads it runs on */
+    private class RecordingFilter implements FixFilter {
+
+        private final FixFilter mFilter = new AccuracyThresholdFilter();
+
+        @Override
+        public void setDistanceKernel(DistanceKernel kernel) {
+            mThreads.add(Thread.currentThread());
+            mFilter.setDistanceKernel(kernel);
+        }
+
+        @Override
+        public void reset() {
+            mThreads.add(Thread.currentThread());
+            mFilter.reset();
+        }
+
+        @Override
+        public void resume(double latitude, double longitude, long timeMs,
+                           float accuracyMeters) {
+            mThreads.add(Thread.currentThread());
+            mFilter.resume(latitude, longitude, timeMs, accuracyMeters);
+        }
+
+        @Override
+        public boolean accept(double latitude, double longitude, long timeMs,
+                              float accuracyMeters) {
+            mThreads.add(Thread.currentThread());
+            return mFilter.accept(latitude, longitude, timeMs, accuracyMeters);
+        }
+
+        @Override
+        public double getLatitude() {
+            return mFilter.getLatitude();
+        }
+
+        @Override
+        public double getLongitude() {
+            return mFilter.getLongitude();
+        }
+
+        @Override
+        public double getStepMeters() {
+            return mFilter.getStepMeters();
+        }
+
+        @Override
+        public float getSpeed() {
+            return mFilter.getSpeed();
+        }
+    }
+
+    /** Counts the locations passed on, noting the threads it runs on */
+    private class RecordingCallback implements DistanceBatchCallback {
+
+        int mCount = 0;
+
+        @Override
+        public void onDistanceBatch(FixBatch batch) {
+            mThreads.add(Thread.currentThread());
+            mCount += batch.size();
+        }
+    }
+
+    /**
+     * Waits for everything posted to the pipeline thread so far to run.
+     */
+    private void drain(PipelineRunner runner) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        runner.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void runsNoPipelineWorkOnTheCallingThread() throws Exception {
+
+        LocationPipeline pipeline =
+                new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        PipelineRunner runner = new PipelineRunner(pipeline, mExecutor);
+        LooperSource source = new LooperSource(true);
+        final RecordingCallback callback = new RecordingCallback();
+
+        runner.setFilter(new RecordingFilter());
+        runner.setDistanceMode(DistanceKernel.HAVERSINE);
+        runner.startBatched(source, callback);
+        for (int i = 0; i < 50; i++) {
+            source.deliver(20);
+            if (i == 10) {
+                runner.setMaxWaitMs(120000);
+                runner.pauseClock();
+                runner.resumeClock();
+            }
+        }
+        runner.stop();
+
+        /* A task posted after stop() runs after the last delivery, as finishing a track does */
+        final int[] stored = new int[1];
+        runner.post(new Runnable() {
+            @Override
+            public void run() {
+                stored[0] = callback.mCount;
+            }
+        });
+        source.deliver(20);
+        drain(runner);
+
+        assertFalse(runner.hasStartFailed());
+        assertEquals(Collections.singleton(mPipelineThread), mThreads);
+        assertFalse(mThreads.contains(Thread.currentThread()));
+
+        /* The track is read on this thread through what the pipeline publishes */
+        TrackBuffer.View view = runner.getTrackBuffer().newView();
+        assertEquals(1000, view.size());
+        assertEquals(1000, stored[0]);
+        assertEquals(1000, callback.mCount);
+        assertEquals(999 * 5.0, runner.getSnapshot().getDistanceMeters(), 10.0);
+        assertEquals(DistanceKernel.HAVERSINE, pipeline.getDistanceMode());
+    }
+
+    @Test
+    public void neverWaitsOnAStalledPipelineThread() throws Exception {
+
+        PipelineRunner runner =
+                new PipelineRunner(new LocationPipeline(new TrackClock(TrackClock.SYSTEM)),
+                                   mExecutor);
+        LooperSource source = new LooperSource(true);
+        runner.startBatched(source, new RecordingCallback());
+        source.deliver(10);
+        drain(runner);
+
+        /* Stall the pipeline thread, as a slow disk would */
+        final CountDownLatch stall = new CountDownLatch(1);
+        runner.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            source.deliver(10);
+            runner.pauseClock();
+            runner.resumeClock();
+            runner.setMaxWaitMs(i);
+            assertEquals(10, runner.getTrackBuffer().newView().size());
+            assertTrue(runner.getSnapshot().getDistanceMeters() > 0.0f);
+        }
+        long nanos = System.nanoTime() - start;
+        assertTrue("took " + nanos + " ns", nanos < TimeUnit.SECONDS.toNanos(1));
+
+        stall.countDown();
+        drain(runner);
+        assertEquals(1010, runner.getTrackBuffer().newView().size());
+    }
+
+    @Test
+    public void reportsASourceThatCantStart() throws Exception {
+
+        PipelineRunner runner =
+                new PipelineRunner(new LocationPipeline(new TrackClock(TrackClock.SYSTEM)),
+                                   mExecutor);
+        runner.startBatched(new LooperSource(false), null);
+        drain(runner);
+        assertTrue(runner.hasStartFailed());
+
+        runner.startBatched(new LooperSource(true), null);
+        drain(runner);
+        assertFalse(runner.hasStartFailed());
+    }
+}
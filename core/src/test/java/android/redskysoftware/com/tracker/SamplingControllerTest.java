@@ -0,0 +1,175 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SamplingController, driven by a simulated location provider.
+ */
+public class SamplingControllerTest {
+
+    /**
+     * A location provider moving along a line.  The world advances a second at a time, and a
+     * fix is delivered when the controller's profile allows one: the interval has passed and the
+     * position has moved the smallest displacement since the last fix.
+     */
+    private static class SimulatedProvider {
+        final SamplingController mController;
+        final Random mRandom = new Random(42);
+        long mTimeMs = 0;
+        double mPosition = 0.0;
+        long mLastFixMs = Long.MIN_VALUE / 2;
+        double mLastFixPosition = 0.0;
+        int mFixes = 0;
+
+        /** If above 0, fixes come without a speed and this far out, as balanced power ones do */
+        float mAccuracy = 0.0f;
+
+        SimulatedProvider(SamplingController controller) {
+            mController = controller;
+        }
+
+        /**
+         * Moves at a speed for a number of seconds.  Reported speeds have some noise, as they
+         * do from a real receiver.
+         */
+        void move(int seconds, double speed) {
+            for (int i = 0; i < seconds; i++) {
+                mTimeMs += 1000;
+                mPosition += speed;
+
+                SamplingController.Profile profile = mController.getProfile();
+                if ((mTimeMs - mLastFixMs >= profile.getIntervalMs())
+                        && (Math.abs(mPosition - mLastFixPosition)
+                            >= profile.getSmallestDisplacementMeters())) {
+                    if (mAccuracy > 0.0f) {
+                        report(mAccuracy / 1.515);
+                    } else {
+                        float reported =
+                                (float) Math.max(0.0, speed + mRandom.nextGaussian() * 0.2);
+                        mController.onFix(mTimeMs, reported);
+                    }
+                    mLastFixMs = mTimeMs;
+                    mLastFixPosition = mPosition;
+                    mFixes++;
+                }
+            }
+        }
+
+        /**
+         * Reports the position north of a starting point without a speed, with noise in each
+         * direction that puts it within the accuracy about two times in three.
+         */
+        void report(double sigma) {
+            double north = mPosition + mRandom.nextGaussian() * sigma;
+            double east = mRandom.nextGaussian() * sigma;
+            mController.onFix(45.0 + north / 111132.0, -93.0 + east / 78847.0, mTimeMs,
+                              mAccuracy, Float.NaN);
+        }
+    }
+
+    @Test
+    public void classifiesAStopAndGoTrack() throws Exception {
+
+        SamplingController controller = new SamplingController();
+        SimulatedProvider provider = new SimulatedProvider(controller);
+
+        provider.move(600, 1.4);
+        assertEquals(SamplingController.STATE_WALKING, controller.getState());
+
+        provider.move(600, 0.0);
+        assertEquals(SamplingController.STATE_STATIONARY, controller.getState());
+
+        provider.move(600, 15.0);
+        assertEquals(SamplingController.STATE_FAST, controller.getState());
+
+        provider.move(600, 0.0);
+        assertEquals(SamplingController.STATE_STATIONARY, controller.getState());
+
+        provider.move(300, 1.4);
+        assertEquals(SamplingController.STATE_WALKING, controller.getState());
+
+        assertEquals(4, controller.getTransitionCount());
+    }
+
+    @Test
+    public void needsFewerCallbacksThanAFixedInterval() throws Exception {
+
+        SamplingController controller = new SamplingController();
+        SimulatedProvider provider = new SimulatedProvider(controller);
+
+        provider.move(600, 1.4);
+        provider.move(1200, 0.0);
+        provider.move(600, 15.0);
+        provider.move(1200, 0.0);
+        provider.move(600, 1.4);
+
+        /* A fixed one second interval gets a callback every second */
+        int fixed = 600 + 1200 + 600 + 1200 + 600;
+        assertTrue("callbacks " + provider.mFixes, provider.mFixes < fixed / 3);
+    }
+
+    @Test
+    public void startsTrackingPromptlyAfterAStop() throws Exception {
+
+        SamplingController controller = new SamplingController();
+        SimulatedProvider provider = new SimulatedProvider(controller);
+
+        provider.move(120, 0.0);
+        assertEquals(SamplingController.STATE_STATIONARY, controller.getState());
+
+        provider.move(30, 15.0);
+        assertEquals(SamplingController.STATE_FAST, controller.getState());
+    }
+
+    @Test
+    public void seesTheUserMoveOffOnFixesWithoutASpeed() throws Exception {
+
+        SamplingController controller = new SamplingController();
+        SimulatedProvider provider = new SimulatedProvider(controller);
+        provider.mAccuracy = 40.0f;
+
+        /* Noise within the accuracy isn't taken for movement */
+        provider.move(600, 0.0);
+        assertEquals(SamplingController.STATE_STATIONARY, controller.getState());
+        assertEquals(1, controller.getTransitionCount());
+
+        /* A walk covers much less than the accuracy between fixes, but is seen all the same */
+        provider.move(240, 1.4);
+        assertEquals(SamplingController.STATE_WALKING, controller.getState());
+    }
+
+    @Test
+    public void doesNotFlapNearAThreshold() throws Exception {
+
+        SamplingController controller = new SamplingController();
+        Random random = new Random(7);
+
+        /* Dawdling, with speeds either side of the walking threshold */
+        for (int t = 1; t <= 1800; t++) {
+            float speed = (float) Math.max(0.0, 0.8 + random.nextGaussian() * 0.5);
+            controller.onFix(t * 1000L, speed);
+        }
+        assertTrue("transitions " + controller.getTransitionCount(),
+                   controller.getTransitionCount() <= 1);
+
+        /* Standing still, with an occasional wild speed from a bad fix */
+        controller.reset();
+        for (int t = 1; t <= 1800; t++) {
+            float speed = (t % 60 == 0) ? 3.0f : 0.0f;
+            controller.onFix(t * 1000L, speed);
+        }
+        assertEquals(SamplingController.STATE_STATIONARY, controller.getState());
+        assertEquals(1, controller.getTransitionCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAProfileForEachState() throws Exception {
+        new SamplingController(new SamplingController.Profile[] {
+                SamplingController.DEFAULT_PROFILES[0]
+        });
+    }
+}
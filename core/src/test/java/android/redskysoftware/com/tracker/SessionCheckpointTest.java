@@ -0,0 +1,398 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SessionCheckpoint, and for carrying a track on from one after the process dies.
+ */
+public class SessionCheckpointTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private static final String NAME = "2019.5.30.0.0.trk";
+
+    /** Number of fixes in the replayed track */
+    private static final int FIXES = 3000;
+
+    /** Fixes per delivery, and deliveries per checkpoint */
+    private static final int BATCH = 10;
+    private static final int CHECKPOINT_EVERY = 6;
+
+    private File mDir;
+
+    /** The replayed track */
+    private final double[] mLatitude = new double[FIXES];
+    private final double[] mLongitude = new double[FIXES];
+    private final long[] mTimeMs = new long[FIXES];
+    private final float[] mAccuracy = new float[FIXES];
+
+    @Before
+    public void setUp() throws Exception {
+
+        mDir = Files.createTempDirectory("session").toFile();
+
+        //
+        // Mostly a jog north at 3 m/s, with a stop, a sprint, a two minute gap in the fixes and
+        // now and then a poor fix off to the side that the filter turns down.
+        //
+        double latitude = 45.0;
+        long timeMs = START_MS;
+        for (int i = 0; i < FIXES; i++) {
+            double speed = ((i >= 800) && (i < 900)) ? 0.0 : (((i >= 1500) && (i < 1800)) ? 6.0
+                                                                                        : 3.0);
+            latitude += speed / 111132.0;
+            timeMs += (i == 2000) ? 120000L : 1000L;
+
+            boolean poor = (i % 37) == 0;
+            mLatitude[i] = latitude;
+            mLongitude[i] = -93.0 + (poor ? 30.0 / 78710.0 : 0.0);
+            mTimeMs[i] = timeMs;
+            mAccuracy[i] = poor ? 50.0f : 4.0f;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /** A clock the test moves forward with the fixes */
+    private static class ManualTime implements TrackClock.TimeSource {
+
+        long mNanos = START_MS * 1000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advanceTo(long timeMs) {
+            mNanos = Math.max(mNanos, timeMs * 1000000L);
+        }
+    }
+
+    /** Hands the test's fixes to the pipeline */
+    private static class ManualSource implements LocationSource {
+
+        LocationSource.Listener mListener;
+
+        @Override
+        public boolean start(SamplingController.Profile profile, LocationSource.Listener listener) {
+            mListener = listener;
+            return true;
+        }
+
+        @Override
+        public void setProfile(SamplingController.Profile profile) {
+        }
+
+        @Override
+        public void setMaxWaitMs(long maxWaitMs) {
+        }
+
+        @Override
+        public void stop() {
+            mListener = null;
+        }
+    }
+
+    /**
+     * A track being recorded the way the data model records it: the pipeline's accepted fixes go
+     * to a TrackWriter, and a checkpoint is handed to the writer every few deliveries.
+     */
+    private class Session implements DistanceBatchCallback {
+
+        final ManualTime mTime;
+        final ManualSource mSource = new ManualSource();
+        final LocationPipeline mPipeline;
+        final TrackWriter mWriter;
+        final SessionCheckpoint mCheckpoint = new SessionCheckpoint();
+        int mDeliveries = 0;
+        int mCheckpoints = 0;
+
+        /**
+         * Starts a new track, or carries one on if from isn't null.
+         */
+        Session(ManualTime time, File track, File checkpoint, SessionCheckpoint from)
+                throws Exception {
+
+            mTime = time;
+            mPipeline = new LocationPipeline(new TrackClock(time));
+            mPipeline.setFilter(new AccuracyThresholdFilter());
+            mCheckpoint.setTrack(NAME, START_MS);
+
+            FileChannel trackChannel = (from != null)
+                    ? new TrackJournal().reopen(track, from)
+                    : new FileOutputStream(track).getChannel();
+            assertNotNull(trackChannel);
+
+            mWriter = new TrackWriter(trackChannel, FlushPolicy.everyFixes(25), 256);
+            mWriter.setOverflowPolicy(TrackWriter.OVERFLOW_BLOCK);
+            mWriter.setCheckpointChannel(new RandomAccessFile(checkpoint, "rw").getChannel());
+
+            if (from != null) {
+                mWriter.resume(from);
+                assertTrue(mPipeline.resumeBatched(mSource, this, from));
+            } else {
+                mWriter.start(START_MS);
+                assertTrue(mPipeline.startBatched(mSource, this));
+            }
+        }
+
+        @Override
+        public void onDistanceBatch(FixBatch batch) {
+            assertEquals(batch.size(), mWriter.append(batch));
+        }
+
+        /**
+         * Delivers the replayed track's fixes from one index up to another.
+         */
+        void deliver(int from, int to) {
+
+            for (int start = from; start < to; start += BATCH) {
+
+                for (int i = start; i < Math.min(to, start + BATCH); i++) {
+                    mTime.advanceTo(mTimeMs[i]);
+                    mSource.mListener.onLocation(mLatitude[i], mLongitude[i], mTimeMs[i],
+                                                 mAccuracy[i], Float.NaN);
+                }
+                mSource.mListener.onBatchEnd();
+
+                if (++mDeliveries % CHECKPOINT_EVERY == 0) {
+                    mPipeline.saveState(mCheckpoint);
+                    if (mWriter.checkpoint(mCheckpoint)) {
+                        mCheckpoints++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for the writer to store every checkpoint handed to it.
+         */
+        void awaitCheckpoints() throws Exception {
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((mWriter.getCheckpointCount() < mCheckpoints)
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(1);
+            }
+            assertEquals(mCheckpoints, mWriter.getCheckpointCount());
+        }
+
+        void finish() throws Exception {
+            mPipeline.stop();
+            mWriter.finish(mPipeline.getClock().getElapsedMs(),
+                           (float) mPipeline.getDistanceMeters(), mPipeline.getStats());
+            assertTrue(mWriter.awaitFinished(5000));
+            assertNull(mWriter.getError());
+        }
+    }
+
+    @Test
+    public void readsTheNewestIntactSlot() throws Exception {
+
+        File file = new File(mDir, SessionCheckpoint.FILE_NAME);
+        SessionCheckpoint checkpoint = new SessionCheckpoint();
+        checkpoint.setTrack(NAME, START_MS);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+
+            checkpoint.setDistance(DistanceKernel.EXACT, 100.0, 10, 9);
+            checkpoint.write(channel, false);
+            checkpoint.setDistance(DistanceKernel.EXACT, 200.0, 20, 19);
+            checkpoint.write(channel, false);
+
+            /* The file never grows past its two slots */
+            checkpoint.write(channel, false);
+            assertEquals(SessionCheckpoint.SLOT_SIZE + SessionCheckpoint.RECORD_SIZE,
+                         channel.size());
+
+            SessionCheckpoint read = new SessionCheckpoint();
+            assertTrue(read.read(channel));
+            assertEquals(3, read.getSequence());
+            assertEquals(NAME, read.getTrackName());
+            assertEquals(START_MS, read.getStartTimeMs());
+            assertEquals(200.0, read.getDistanceMeters(), 0.0);
+            assertEquals(19, read.getAcceptedCount());
+
+            /* A torn write of the newest slot leaves the one before */
+            channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), SessionCheckpoint.SLOT_SIZE + 100);
+            assertTrue(read.read(channel));
+            assertEquals(2, read.getSequence());
+            assertEquals(200.0, read.getDistanceMeters(), 0.0);
+
+            channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), 100);
+            assertFalse(new SessionCheckpoint().read(channel));
+        }
+    }
+
+    @Test
+    public void resumesAfterTheProcessDiesWithTheSameTotals() throws Exception {
+
+        /* The track recorded straight through */
+        File track = new File(mDir, "straight.trk");
+        Session straight = new Session(new ManualTime(), track,
+                                       new File(mDir, "straight.chk"), null);
+        straight.deliver(0, FIXES);
+        straight.finish();
+
+        //
+        // The same track with the process killed part way: checkpoints are stored, more fixes
+        // are written after the last one, and the files are taken as they are at that moment,
+        // with a torn write on the end of the track.
+        //
+        File killedTrack = new File(mDir, "killed.trk");
+        File killedCheckpoint = new File(mDir, "killed.chk");
+        ManualTime time = new ManualTime();
+        Session killed = new Session(time, killedTrack, killedCheckpoint, null);
+        killed.deliver(0, 1710);
+        killed.awaitCheckpoints();
+        killed.deliver(1710, 1750);
+        Thread.sleep(20);
+
+        File resumedCheckpoint = new File(mDir, SessionCheckpoint.FILE_NAME);
+        File resumedTrack = new File(mDir, NAME);
+        Files.copy(killedCheckpoint.toPath(), resumedCheckpoint.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(killedTrack.toPath(), resumedTrack.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        try (FileOutputStream out = new FileOutputStream(resumedTrack, true)) {
+            out.write(new byte[] { 0x54, 0x52, 0x4B, 0x53, 0, 0, 1 });
+        }
+        killed.finish();
+
+        /* Restart from the checkpoint, replaying the track from after it */
+        SessionCheckpoint from = new SessionCheckpoint();
+        try (RandomAccessFile raf = new RandomAccessFile(resumedCheckpoint, "r")) {
+            assertTrue(from.read(raf.getChannel()));
+        }
+        assertEquals(NAME, from.getTrackName());
+        assertTrue(from.getReceivedCount() >= 1680);
+        assertTrue(from.getReceivedCount() < 1750);
+
+        Session resumed = new Session(time, resumedTrack, resumedCheckpoint, from);
+        int next = 0;
+        while (mTimeMs[next] <= from.getReceivedTimeMs()) {
+            next++;
+        }
+        assertEquals(from.getReceivedCount(), next);
+        resumed.deliver(next, FIXES);
+        resumed.finish();
+
+        /* The totals come out the same */
+        LocationPipeline expected = straight.mPipeline;
+        LocationPipeline actual = resumed.mPipeline;
+        assertEquals(expected.getDistanceMeters(), actual.getDistanceMeters(), 0.0);
+        assertEquals(expected.getReceivedCount(), actual.getReceivedCount());
+        assertEquals(expected.getAcceptedCount(), actual.getAcceptedCount());
+        assertEquals(expected.getClock().getElapsedNanos(), actual.getClock().getElapsedNanos());
+        assertResumedStatsEqual(expected.getStats(), actual.getStats(), from.getStats());
+        assertTrue(expected.getStats().getSplitCount(TrackStats.KILOMETER) >= 8);
+        assertEquals(straight.mWriter.getStoredFixes(), resumed.mWriter.getStoredFixes());
+
+        /* And so do the files, fix for fix */
+        try (TrackReader straightReader = TrackReader.open(track);
+             TrackReader resumedReader = TrackReader.open(resumedTrack)) {
+
+            while (straightReader.next()) {
+                assertTrue(resumedReader.next());
+                assertEquals(straightReader.getLatitudeE7(), resumedReader.getLatitudeE7());
+                assertEquals(straightReader.getLongitudeE7(), resumedReader.getLongitudeE7());
+                assertEquals(straightReader.getTimeMs(), resumedReader.getTimeMs());
+                assertEquals(straightReader.getAccuracy(), resumedReader.getAccuracy(), 0.0f);
+            }
+            assertFalse(resumedReader.next());
+
+            assertTrue(straightReader.hasFooter());
+            assertTrue(resumedReader.hasFooter());
+            assertEquals(straightReader.getFixCount(), resumedReader.getFixCount());
+            assertEquals(straightReader.getElapsedMs(), resumedReader.getElapsedMs());
+            assertEquals(straightReader.getDistanceMeters(), resumedReader.getDistanceMeters(),
+                         0.0f);
+            assertEquals(straightReader.getMinLatitudeE7(), resumedReader.getMinLatitudeE7());
+            assertEquals(straightReader.getMaxLatitudeE7(), resumedReader.getMaxLatitudeE7());
+            assertEquals(straightReader.getMinLongitudeE7(), resumedReader.getMinLongitudeE7());
+            assertEquals(straightReader.getMaxLongitudeE7(), resumedReader.getMaxLongitudeE7());
+            assertResumedStatsEqual(straightReader.getStats(), resumedReader.getStats(),
+                                    from.getStats());
+        }
+    }
+
+    @Test
+    public void wontCarryOnAFinishedTrack() throws Exception {
+
+        File track = new File(mDir, NAME);
+        File checkpoint = new File(mDir, SessionCheckpoint.FILE_NAME);
+        Session session = new Session(new ManualTime(), track, checkpoint, null);
+        session.deliver(0, 200);
+        session.awaitCheckpoints();
+        session.finish();
+
+        SessionCheckpoint from = new SessionCheckpoint();
+        try (RandomAccessFile raf = new RandomAccessFile(checkpoint, "r")) {
+            assertTrue(from.read(raf.getChannel()));
+        }
+        long size = track.length();
+        assertNull(new TrackJournal().reopen(track, from));
+        assertEquals(size, track.length());
+    }
+
+    /**
+     * Checks the statistics of a resumed track against the same track recorded straight through.
+     * The totals and the splits ended after the checkpoint come out the same; the speeds are
+     * worked out afresh from the window after resuming, so come out the same but for rounding.
+     * The splits before the checkpoint are timed again from the track's segments, and only add
+     * up the same: here the filter turns down every other fix of the jog, which the statistics
+     * count as standing still, but none of the sprint, which the segments can't show.
+     * @param from  The statistics in the checkpoint resumed from
+     */
+    private static void assertResumedStatsEqual(TrackStats expected, TrackStats actual,
+                                                TrackStats from) {
+
+        assertEquals(expected.getDistanceMeters(), actual.getDistanceMeters(), 0.0);
+        assertEquals(expected.getMovingMs(), actual.getMovingMs());
+        assertEquals(expected.getMaxSpeed(), actual.getMaxSpeed(), 1e-4f);
+        assertEquals(expected.getCurrentSpeed(), actual.getCurrentSpeed(), 1e-4f);
+
+        for (int unit = TrackStats.KILOMETER; unit <= TrackStats.MILE; unit++) {
+
+            int count = expected.getSplitCount(unit);
+            int resumedAt = from.getSplitCount(unit);
+            assertEquals(count, actual.getSplitCount(unit));
+            assertTrue(resumedAt > 1);
+
+            long expectedMs = 0;
+            long actualMs = 0;
+            for (int i = 0; i < count; i++) {
+                long splitMs = expected.getSplitMs(unit, i);
+                if (i < resumedAt) {
+                    assertTrue(actual.getSplitMs(unit, i) > 0);
+                    expectedMs += splitMs;
+                    actualMs += actual.getSplitMs(unit, i);
+                } else {
+                    assertEquals(splitMs, actual.getSplitMs(unit, i));
+                }
+            }
+            assertEquals(expectedMs, actualMs);
+        }
+    }
+}
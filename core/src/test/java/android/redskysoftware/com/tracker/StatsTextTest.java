@@ -0,0 +1,112 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for formatting live stats with StatsText.
+ */
+public class StatsTextTest {
+
+    @Test
+    public void formatsLikeTheStringsItReplaces() {
+
+        StatsText text = new StatsText();
+
+        long[] elapsed = {0, 9, 59, 60, 3599, 3600, 36000, 359999, 360000};
+        for (long seconds : elapsed) {
+            text.setElapsed(seconds);
+            assertEquals(String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60,
+                                       seconds % 60), text.toString());
+        }
+
+        long[] integers = {0, 7, -7, 1234567, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : integers) {
+            text.setInteger(value);
+            assertEquals(String.format("%d", value), text.toString());
+        }
+
+        double[] coordinates = {0.0, 45.123456, -93.654321, 1.0e-4, -0.5, 179.999994, -179.9999,
+                                12.3, 123456.789012};
+        for (double value : coordinates) {
+            text.setFixed(value, 5, 8);
+            assertEquals(String.format("%8.5f", value), text.toString());
+        }
+
+        text.setFixed(2.75, 1, 0);
+        assertEquals("2.8", text.toString());
+        text.setFixed(-3.0, 0, 4);
+        assertEquals("  -3", text.toString());
+    }
+
+    @Test
+    public void reportsOnlyChanges() {
+
+        StatsText text = new StatsText();
+        assertTrue(text.setElapsed(61));
+        assertFalse(text.setElapsed(61));
+        assertTrue(text.setElapsed(62));
+
+        assertTrue(text.setFixed(45.000001, 5, 8));
+        assertFalse(text.setFixed(45.000002, 5, 8));
+        assertEquals("45.00000", text.toString());
+    }
+
+    @Test
+    public void refreshDoesNotAllocate() {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        StatsText elapsed = new StatsText();
+        StatsText distance = new StatsText();
+        StatsText latitude = new StatsText();
+        StatsText longitude = new StatsText();
+        char[] shown = new char[64];
+
+        /* Warm up so class loading and compilation aren't counted */
+        int changes = refresh(elapsed, distance, latitude, longitude, shown, 0, 100000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        changes += refresh(elapsed, distance, latitude, longitude, shown, 100000, 100000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(changes > 0);
+
+        /* Allow for the bytes getThreadAllocatedBytes itself allocates */
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+
+    /**
+     * Runs the same refresh ActiveTrackActivity does, 4 times a second for the given number of
+     * refreshes, copying changed text where the view would take it.
+     */
+    private static int refresh(StatsText elapsed, StatsText distance, StatsText latitude,
+                               StatsText longitude, char[] shown, int first, int count) {
+
+        int changes = 0;
+        for (int i = first; i < first + count; i++) {
+            if (elapsed.setElapsed(i / 4)) {
+                System.arraycopy(elapsed.getChars(), 0, shown, 0, elapsed.length());
+                changes++;
+            }
+            if (distance.setInteger((long) (i * 1.37f))) {
+                System.arraycopy(distance.getChars(), 0, shown, 0, distance.length());
+                changes++;
+            }
+            if (latitude.setFixed(45.0 + i * 1e-6, 5, 8)) {
+                System.arraycopy(latitude.getChars(), 0, shown, 0, latitude.length());
+                changes++;
+            }
+            if (longitude.setFixed(-93.0 - i * 1e-6, 5, 8)) {
+                System.arraycopy(longitude.getChars(), 0, shown, 0, longitude.length());
+                changes++;
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,105 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the in-memory TrackBuffer.
+ */
+public class TrackBufferTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    @Test
+    public void storesPointsAcrossChunks() {
+
+        TrackBuffer buffer = new TrackBuffer();
+        int points = TrackBuffer.CHUNK_SIZE * 5 + 17;
+
+        for (int i = 0; i < points; i++) {
+            buffer.append(45.0 + i * 1e-6, -93.0 - i * 1e-6, START_MS + i * 1000L, i % 100);
+        }
+
+        TrackBuffer.View view = buffer.newView();
+        assertEquals(points, view.size());
+        for (int i = 0; i < points; i++) {
+            assertEquals(45.0 + i * 1e-6, view.getLatitude(i), 1e-7);
+            assertEquals(-93.0 - i * 1e-6, view.getLongitude(i), 1e-7);
+            assertEquals(START_MS + i * 1000L, view.getTimeMs(i));
+            assertEquals(i % 100, view.getAccuracy(i), 0.05f);
+        }
+    }
+
+    @Test
+    public void viewSeesNewPointsOnlyWhenRefreshed() {
+
+        TrackBuffer buffer = new TrackBuffer();
+        buffer.append(45.0, -93.0, START_MS, 3.0f);
+
+        TrackBuffer.View view = buffer.newView();
+        buffer.append(45.1, -93.1, START_MS + 1000, 3.0f);
+        assertEquals(1, view.size());
+
+        assertEquals(2, view.refresh());
+        assertEquals(45.1, view.getLatitude(1), 1e-7);
+
+        /* Clearing starts a new track; the old view keeps the old points until refreshed */
+        buffer.clear();
+        assertEquals(2, view.size());
+        assertEquals(START_MS + 1000, view.getTimeMs(1));
+        assertEquals(0, view.refresh());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void viewRejectsPointsBeyondItsSize() {
+        TrackBuffer buffer = new TrackBuffer();
+        buffer.append(45.0, -93.0, START_MS, 3.0f);
+        buffer.newView().getLatitudeE7(1);
+    }
+
+    @Test
+    public void tenHourTrackFitsInHalfAMegabyte() {
+
+        TrackBuffer buffer = new TrackBuffer();
+        int points = 10 * 3600;
+
+        for (int i = 0; i < points; i++) {
+            buffer.append(45.0, -93.0, START_MS + i * 1000L, 5.0f);
+        }
+
+        assertEquals(points, buffer.size());
+        assertTrue("allocated " + buffer.getAllocatedBytes(),
+                   buffer.getAllocatedBytes() < 512 * 1024 + TrackBuffer.CHUNK_SIZE * 14);
+        assertEquals(START_MS + (points - 1) * 1000L, buffer.newView().getTimeMs(points - 1));
+    }
+
+    @Test
+    public void readerSeesConsistentPointsWhileAppending() throws Exception {
+
+        final TrackBuffer buffer = new TrackBuffer();
+        final int points = 200000;
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < points; i++) {
+                    buffer.appendE7(i, -i, START_MS + i, i & 0xFFFF);
+                }
+            }
+        });
+        writer.start();
+
+        TrackBuffer.View view = buffer.newView();
+        int checked = 0;
+        while (checked < points) {
+            int size = view.refresh();
+            for (; checked < size; checked++) {
+                assertEquals(checked, view.getLatitudeE7(checked));
+                assertEquals(-checked, view.getLongitudeE7(checked));
+                assertEquals(START_MS + checked, view.getTimeMs(checked));
+                assertEquals(checked & 0xFFFF, view.getAccuracyDm(checked));
+            }
+        }
+        writer.join();
+    }
+}
@@ -0,0 +1,166 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TrackCatalog index of stored tracks.
+ */
+public class TrackCatalogTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("tracks", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Writes a finished track with the given number of fixes, one 1e-5 degree step apart.
+     */
+    private void writeTrack(String name, long startMs, int fixes) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        encoder.writeHeader(buffer, startMs);
+        encoder.beginSegment(buffer);
+        for (int i = 0; i < fixes; i++) {
+            encoder.writeFix(buffer, 45.0 + i * 1e-5, -93.0, startMs + i * 1000L, 3.0f);
+        }
+        encoder.endSegment(buffer, fixes);
+        encoder.writeFooter(buffer, fixes * 1000L, fixes);
+
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, name))) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    private File catalogFile() {
+        return new File(mDir, TrackCatalog.FILE_NAME);
+    }
+
+    @Test
+    public void rebuildsFromTrackFiles() throws Exception {
+
+        writeTrack("2019.5.30.8.0.trk", START_MS, 10);
+        writeTrack("2019.5.31.9.0.trk", START_MS + 86400000L, 20);
+
+        TrackCatalog catalog = new TrackCatalog(mDir);
+        catalog.open();
+        assertTrue(catalogFile().exists());
+        assertEquals(2, catalog.size());
+
+        int index = catalog.indexOf("2019.5.31.9.0.trk");
+        assertTrue(index >= 0);
+        assertEquals(START_MS + 86400000L, catalog.getStartTimeMs(index));
+        assertEquals(20000L, catalog.getElapsedMs(index));
+        assertEquals(20.0f, catalog.getDistanceMeters(index), 0.0f);
+        assertEquals(20, catalog.getFixCount(index));
+        assertEquals(TrackFormat.toE7(45.0), catalog.getMinLatitudeE7(index));
+        assertEquals(TrackFormat.toE7(45.0 + 19 * 1e-5), catalog.getMaxLatitudeE7(index));
+        assertEquals(TrackFormat.toE7(-93.0), catalog.getMinLongitudeE7(index));
+
+        /* A second catalog loads the file rather than rebuilding */
+        TrackCatalog loaded = new TrackCatalog(mDir);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.size());
+        assertEquals("2019.5.30.8.0.trk", loaded.getName(loaded.indexOf("2019.5.30.8.0.trk")));
+    }
+
+    @Test
+    public void updatesRecordInPlace() throws Exception {
+
+        TrackCatalog catalog = new TrackCatalog(mDir);
+        catalog.open();
+
+        int index = catalog.put("2019.5.31.9.0.trk", START_MS, TrackCatalog.ELAPSED_UNFINISHED,
+                                0.0f, 0, 0, 0, 0, 0);
+        long length = catalogFile().length();
+        assertEquals(TrackCatalog.HEADER_SIZE + TrackCatalog.RECORD_SIZE, length);
+
+        catalog.update(index, 3600000L, 5000.0f, 3600, 1, 2, 3, 4);
+        assertEquals(length, catalogFile().length());
+
+        /* Putting the same name again replaces the record rather than adding one */
+        assertEquals(index, catalog.put("2019.5.31.9.0.trk", START_MS, 3600000L, 5000.0f, 3600,
+                                        1, 2, 3, 4));
+        assertEquals(1, catalog.size());
+
+        TrackCatalog loaded = new TrackCatalog(mDir);
+        assertTrue(loaded.load());
+        assertEquals(3600000L, loaded.getElapsedMs(0));
+        assertEquals(5000.0f, loaded.getDistanceMeters(0), 0.0f);
+        assertEquals(3600, loaded.getFixCount(0));
+        assertEquals(4, loaded.getMaxLongitudeE7(0));
+    }
+
+    @Test
+    public void damagedCatalogIsRebuilt() throws Exception {
+
+        writeTrack("2019.5.30.8.0.trk", START_MS, 5);
+
+        TrackCatalog catalog = new TrackCatalog(mDir);
+        catalog.open();
+
+        try (RandomAccessFile file = new RandomAccessFile(catalogFile(), "rw")) {
+            file.seek(TrackCatalog.HEADER_SIZE + 50);
+            file.write(0x55);
+        }
+
+        TrackCatalog damaged = new TrackCatalog(mDir);
+        assertFalse(damaged.load());
+        damaged.open();
+        assertEquals(1, damaged.size());
+        assertEquals(5, damaged.getFixCount(0));
+    }
+
+    @Test
+    public void listsThousandsOfTracksNewestFirst() throws Exception {
+
+        int tracks = 5000;
+        TrackCatalog catalog = new TrackCatalog(mDir);
+        catalog.open();
+
+        /* Start times out of order */
+        for (int i = 0; i < tracks; i++) {
+            long start = START_MS + ((i * 7919L) % tracks) * 60000L;
+            catalog.put("track" + i + TrackFormat.FILE_EXTENSION, start, 1000L, i, i, 0, 0, 0, 0);
+        }
+
+        long begin = System.nanoTime();
+        TrackCatalog loaded = new TrackCatalog(mDir);
+        assertTrue(loaded.load());
+        int[] order = loaded.sortedByStartTime();
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+
+        assertEquals(tracks, order.length);
+        for (int i = 1; i < tracks; i++) {
+            assertTrue(loaded.getStartTimeMs(order[i - 1]) > loaded.getStartTimeMs(order[i]));
+        }
+        assertTrue("listing took " + elapsedMs + " ms", elapsedMs < 500);
+    }
+}
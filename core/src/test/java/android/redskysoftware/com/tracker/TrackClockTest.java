@@ -0,0 +1,162 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrackClock and the TickScheduler driven by the same kind of clock.
+ */
+public class TrackClockTest {
+
+    /** A clock the test moves by hand */
+    private static class FakeTime implements TrackClock.TimeSource {
+        long mNanos = 5000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advanceMs(long ms) {
+            mNanos += ms * 1000000L;
+        }
+    }
+
+    /** A timer the test runs by hand, holding at most the one task the scheduler posts */
+    private static class FakeTimer implements TickScheduler.Timer {
+        final FakeTime mTime;
+        Runnable mTask;
+        long mDueNs;
+        int mPosts = 0;
+
+        FakeTimer(FakeTime time) {
+            mTime = time;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            assertNull("more than one tick posted", mTask);
+            mTask = task;
+            mDueNs = mTime.mNanos + delayMs * 1000000L;
+            mPosts++;
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            if (mTask == task) {
+                mTask = null;
+            }
+        }
+
+        /** Runs the posted task lateMs after it was due */
+        void runLate(long lateMs) {
+            Runnable task = mTask;
+            mTask = null;
+            mTime.mNanos = mDueNs + lateMs * 1000000L;
+            task.run();
+        }
+    }
+
+    @Test
+    public void measuresElapsedTimeExcludingPauses() {
+
+        FakeTime time = new FakeTime();
+        TrackClock clock = new TrackClock(time);
+        assertEquals(0, clock.getElapsedNanos());
+
+        clock.start();
+        time.advanceMs(1500);
+        assertEquals(1500, clock.getElapsedMs());
+        assertEquals(1, clock.getElapsedSeconds());
+
+        clock.pause();
+        time.advanceMs(60000);
+        assertTrue(clock.isPaused());
+        assertEquals(1500, clock.getElapsedMs());
+
+        clock.resume();
+        time.advanceMs(250);
+        assertEquals(1750, clock.getElapsedMs());
+
+        clock.stop();
+        time.advanceMs(10000);
+        assertFalse(clock.isRunning());
+        assertEquals(1750, clock.getElapsedMs());
+    }
+
+    @Test
+    public void hasNoDriftOverLongTracks() {
+
+        FakeTime time = new FakeTime();
+        TrackClock clock = new TrackClock(time);
+        clock.start();
+
+        /* Ten hours in uneven steps, as a sleeping thread would see them */
+        for (int i = 0; i < 36000; i++) {
+            time.mNanos += ((i & 1) == 0) ? 999999000L : 1000001000L;
+        }
+        assertEquals(36000, clock.getElapsedSeconds());
+        assertEquals(36000L * 1000000000L, clock.getElapsedNanos());
+    }
+
+    @Test
+    public void ticksStayAlignedWhenDeliveredLate() {
+
+        FakeTime time = new FakeTime();
+        FakeTimer timer = new FakeTimer(time);
+        TickScheduler scheduler = new TickScheduler(time, timer, 1000);
+
+        final int[] ticks = new int[1];
+        TickScheduler.Listener listener = new TickScheduler.Listener() {
+            @Override
+            public void onTick() {
+                ticks[0]++;
+            }
+        };
+
+        long firstDueNs = time.mNanos + 1000000000L;
+        scheduler.addListener(listener);
+
+        /* Every tick runs 30 ms late, but the next one is still due on the second */
+        for (int i = 0; i < 3600; i++) {
+            assertEquals(firstDueNs + i * 1000000000L, timer.mDueNs);
+            timer.runLate(30);
+        }
+        assertEquals(3600, ticks[0]);
+
+        /* A stall of several periods skips the missed ticks instead of bunching them */
+        timer.runLate(3500);
+        assertEquals(3601, ticks[0]);
+        assertEquals(firstDueNs + 3604 * 1000000000L, timer.mDueNs);
+    }
+
+    @Test
+    public void idleSchedulerPostsNothing() {
+
+        FakeTime time = new FakeTime();
+        FakeTimer timer = new FakeTimer(time);
+        TickScheduler scheduler = new TickScheduler(time, timer, 1000);
+
+        TickScheduler.Listener a = new TickScheduler.Listener() {
+            @Override
+            public void onTick() {
+            }
+        };
+        TickScheduler.Listener b = new TickScheduler.Listener() {
+            @Override
+            public void onTick() {
+            }
+        };
+
+        scheduler.addListener(a);
+        scheduler.addListener(b);
+        assertEquals(1, timer.mPosts);
+
+        scheduler.removeListener(a);
+        assertNotNull(timer.mTask);
+        scheduler.removeListener(b);
+        assertNull(timer.mTask);
+        assertEquals(0, scheduler.getListenerCount());
+    }
+}
@@ -0,0 +1,233 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the binary track format: TrackEncoder, TrackDecoder and the legacy converter.
+ */
+public class TrackEncoderTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    /**
+     * Encodes a walk of fixes about a meter and a second apart into a buffer, footer included.
+     * A segment is closed every 60 fixes, as the TrackWriter does with the default policy.
+     */
+    private static ByteBuffer encodeWalk(int fixes) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackFormat.HEADER_SIZE
+                + fixes * (TrackFormat.MAX_FIX_SIZE + TrackFormat.MAX_CHECKPOINT_SIZE
+                           + TrackFormat.SEGMENT_OVERHEAD)
+                + TrackFormat.MAX_FOOTER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        encoder.writeHeader(buffer, START_MS);
+        for (int i = 0; i < fixes; i++) {
+            if (!encoder.isSegmentOpen()) {
+                encoder.beginSegment(buffer);
+            }
+            encoder.writeFix(buffer, 44.9778 + i * 0.00001, -93.2650 - i * 0.000005,
+                             START_MS + 1000L * i, 4.5f);
+            if ((i % 60) == 59) {
+                encoder.endSegment(buffer, i * 1.2f);
+            }
+        }
+        encoder.writeFooter(buffer, fixes * 1000L, fixes * 1.2f);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void roundTrip() {
+
+        ByteBuffer buffer = encodeWalk(1000);
+        TrackDecoder decoder = new TrackDecoder();
+
+        assertTrue(decoder.reset(buffer));
+        assertEquals(START_MS, decoder.getStartTimeMs());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+            assertEquals(44.9778 + i * 0.00001, decoder.getLatitude(), 1e-7);
+            assertEquals(-93.2650 - i * 0.000005, decoder.getLongitude(), 1e-7);
+            assertEquals(START_MS + 1000L * i, decoder.getTimeMs());
+            assertEquals(4.5f, decoder.getAccuracy(), 0.0f);
+        }
+
+        assertEquals(TrackDecoder.RECORD_FOOTER, decoder.next());
+        assertEquals(1000, decoder.getFixCount());
+        assertEquals(1000000L, decoder.getElapsedMs());
+        assertEquals(1200.0f, decoder.getDistanceMeters(), 0.01f);
+        assertEquals(TrackFormat.toE7(44.9778), decoder.getMinLatitudeE7());
+        assertEquals(TrackFormat.toE7(-93.2650), decoder.getMaxLongitudeE7());
+
+        assertEquals(TrackDecoder.RECORD_END, decoder.next());
+
+        /* The trailer points back at the segment holding the footer */
+        int footerOffset = buffer.getInt(buffer.limit() - TrackFormat.TRAILER_SIZE);
+        assertEquals(TrackFormat.SEGMENT_MAGIC, buffer.getInt(footerOffset));
+        assertEquals(TrackFormat.END_MAGIC, buffer.getInt(buffer.limit() - 4));
+    }
+
+    @Test
+    public void checkpointsHoldRunningTotals() {
+
+        ByteBuffer buffer = encodeWalk(200);
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(buffer));
+
+        /* The checkpoint ending the second segment is read on the way to the 121st fix */
+        for (int i = 0; i < 121; i++) {
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+        }
+        assertEquals(120, decoder.getCheckpointFixCount());
+        assertEquals(119 * 1.2f, decoder.getCheckpointDistanceMeters(), 1e-4f);
+        assertEquals(START_MS + 119000L, decoder.getCheckpointLastTimeMs());
+    }
+
+    @Test
+    public void tornSegmentIsReportedAsCorrupt() {
+
+        ByteBuffer buffer = encodeWalk(90);
+
+        /* Cut the file in the middle of the second segment */
+        buffer.limit(buffer.limit() - 60);
+
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(buffer));
+        for (int i = 0; i < 60; i++) {
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+        }
+        assertEquals(TrackDecoder.RECORD_CORRUPT, decoder.next());
+    }
+
+    @Test
+    public void damagedSegmentFailsCrc() {
+
+        ByteBuffer buffer = encodeWalk(10);
+        int pos = TrackFormat.HEADER_SIZE + TrackFormat.SEGMENT_HEADER_SIZE + 3;
+        buffer.put(pos, (byte) (buffer.get(pos) ^ 0x01));
+
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(buffer));
+        assertEquals(TrackDecoder.RECORD_CORRUPT, decoder.next());
+    }
+
+    @Test
+    public void crcMatchesJavaUtilZip() {
+
+        ByteBuffer buffer = encodeWalk(50);
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(buffer.array(), 10, 200);
+        assertEquals((int) crc.getValue(), Crc32.compute(buffer, 10, 210));
+    }
+
+    @Test
+    public void encodedTrackIsSeveralTimesSmallerThanText() {
+
+        int fixes = 3600;
+        int binarySize = encodeWalk(fixes).remaining();
+
+        int textSize = 0;
+        for (int i = 0; i < fixes; i++) {
+            textSize += String.format(Locale.US, "L,%f,%f,%f\n", 44.9778f + i * 0.00001f,
+                                      -93.2650f - i * 0.000005f, i * 1.2f).length();
+        }
+
+        assertTrue("binary " + binarySize + " text " + textSize, binarySize * 4 < textSize);
+    }
+
+    @Test
+    public void encodingDoesNotAllocate() {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer buffer = ByteBuffer.allocate(TrackFormat.MAX_FIX_SIZE * 100000);
+        TrackEncoder encoder = new TrackEncoder();
+        encoder.writeHeader(buffer, START_MS);
+        encoder.beginSegment(buffer);
+
+        /* Warm up so class loading and compilation aren't counted */
+        for (int i = 0; i < 50000; i++) {
+            encoder.writeFix(buffer, 45.0 + i * 1e-6, -93.0, START_MS + i, 3.0f);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 50000; i++) {
+            encoder.writeFix(buffer, 45.05 + i * 1e-6, -93.0, START_MS + i, 3.0f);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        /* Allow for the bytes getThreadAllocatedBytes itself allocates */
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+
+    @Test
+    public void convertsLegacyTextTrack() throws Exception {
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "trackerTest" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+
+        try {
+            File legacy = new File(dir, "2019.5.31.14.7.txt");
+            try (FileOutputStream out = new FileOutputStream(legacy)) {
+                out.write(("L,44.977800,-93.265000,0.000000\n"
+                        + "L,44.977900,-93.265100,13.500000\n"
+                        + "L,44,978000,-93,265200,27,250000\n"
+                        + "E,125\n").getBytes("US-ASCII"));
+            }
+
+            assertTrue(LegacyTrackConverter.isLegacyTrack(legacy));
+            File converted = LegacyTrackConverter.getConvertedFile(legacy);
+            assertEquals("2019.5.31.14.7.trk", converted.getName());
+
+            new LegacyTrackConverter().convert(legacy, converted);
+
+            ByteBuffer buffer;
+            try (RandomAccessFile file = new RandomAccessFile(converted, "r")) {
+                byte[] bytes = new byte[(int) file.length()];
+                file.readFully(bytes);
+                buffer = ByteBuffer.wrap(bytes);
+            }
+
+            TrackDecoder decoder = new TrackDecoder();
+            assertTrue(decoder.reset(buffer));
+            assertEquals(LegacyTrackParser.parseStartTime(legacy.getName()),
+                         decoder.getStartTimeMs());
+
+            /* Legacy names have the day one too high; this track was started on May 30 */
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(2019, Calendar.MAY, 30, 14, 7);
+            assertEquals(calendar.getTimeInMillis(), decoder.getStartTimeMs());
+
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+            assertEquals(44.978, decoder.getLatitude(), 1e-7);
+            assertEquals(-93.2652, decoder.getLongitude(), 1e-7);
+
+            assertEquals(TrackDecoder.RECORD_FOOTER, decoder.next());
+            assertEquals(3, decoder.getFixCount());
+            assertEquals(125000L, decoder.getElapsedMs());
+            assertEquals(27.25f, decoder.getDistanceMeters(), 1e-4f);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
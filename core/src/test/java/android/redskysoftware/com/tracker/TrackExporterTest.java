@@ -0,0 +1,286 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrackExporter and the XmlOutput it writes through, reading the exports back
+ * with an XML parser and checking them against the TrackReader.
+ */
+public class TrackExporterTest {
+
+    /** Just before the leap day of 2020, so the times cross it */
+    private static final long START_MS = 1582934000000L;
+
+    private static final String NAME = "Lake & <river> run, caf\u00e9 \ud83c\udfc3";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("export", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes a finished track of fixes wandering either side of the equator and the prime
+     * meridian, with times in odd milliseconds.
+     */
+    private void writeTrack(int fixes, TrackStats stats) throws Exception {
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.DEFAULT, 1024);
+        writer.start(START_MS);
+
+        Random random = new Random(7);
+        double latitude = 0.0005;
+        double longitude = -0.0005;
+        long timeMs = START_MS;
+
+        for (int i = 0; i < fixes; i++) {
+            latitude += (random.nextDouble() - 0.5) * 1e-4;
+            longitude += (random.nextDouble() - 0.5) * 1e-4;
+            timeMs += 1000 + random.nextInt(7);
+            while (!writer.append(latitude, longitude, timeMs, 5.0f, i)) {
+                Thread.sleep(1);
+            }
+        }
+        writer.finish(timeMs - START_MS, fixes, stats);
+
+        assertTrue(writer.awaitFinished(30000));
+        assertNull(writer.getError());
+    }
+
+    /**
+     * Collects the text of the elements and the attributes of the points in an export.
+     */
+    private static class Points extends DefaultHandler {
+
+        final List<String> mLatitudes = new ArrayList<>();
+        final List<String> mLongitudes = new ArrayList<>();
+        final List<String> mTimes = new ArrayList<>();
+        final List<String> mDistances = new ArrayList<>();
+        String mName;
+        String mTotalTime;
+        String mLapDistance;
+        String mMaxSpeed;
+
+        private final StringBuilder mText = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String local, String qName, Attributes attributes) {
+            mText.setLength(0);
+            if (qName.equals("trkpt")) {
+                mLatitudes.add(attributes.getValue("lat"));
+                mLongitudes.add(attributes.getValue("lon"));
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            mText.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String local, String qName) {
+            String text = mText.toString();
+            if (qName.equals("time") || qName.equals("Time")) {
+                mTimes.add(text);
+            } else if (qName.equals("LatitudeDegrees")) {
+                mLatitudes.add(text);
+            } else if (qName.equals("LongitudeDegrees")) {
+                mLongitudes.add(text);
+            } else if (qName.equals("DistanceMeters")) {
+                if (mTotalTime != null && mLapDistance == null) {
+                    mLapDistance = text;
+                } else {
+                    mDistances.add(text);
+                }
+            } else if (qName.equals("name") || qName.equals("Notes")) {
+                mName = text;
+            } else if (qName.equals("TotalTimeSeconds")) {
+                mTotalTime = text;
+            } else if (qName.equals("MaximumSpeed")) {
+                mMaxSpeed = text;
+            }
+            mText.setLength(0);
+        }
+    }
+
+    /**
+     * Parses a timestamp as the exports write them, in UTC with milliseconds.
+     */
+    private static long parseTimestamp(String text) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format.parse(text).getTime();
+    }
+
+    private Points export(int format) throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int count = new TrackExporter().export(mFile, format, NAME, out);
+
+        Points points = new Points();
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(new ByteArrayInputStream(out.toByteArray()), points);
+        assertEquals(count, points.mLatitudes.size());
+        return points;
+    }
+
+    @Test
+    public void roundTripsGpxAgainstTheReader() throws Exception {
+
+        writeTrack(3000, null);
+        Points points = export(TrackExporter.FORMAT_GPX);
+
+        assertEquals(NAME, points.mName);
+
+        /* The metadata time comes first, then one per point */
+        assertEquals(START_MS, parseTimestamp(points.mTimes.get(0)));
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+            int i = 0;
+            while (reader.next()) {
+                assertEquals(reader.getLatitudeE7(),
+                             Math.round(Double.parseDouble(points.mLatitudes.get(i)) * 1e7));
+                assertEquals(reader.getLongitudeE7(),
+                             Math.round(Double.parseDouble(points.mLongitudes.get(i)) * 1e7));
+                assertEquals(reader.getTimeMs(),
+                             parseTimestamp(points.mTimes.get(i + 1)));
+                i++;
+            }
+            assertEquals(3000, i);
+        }
+    }
+
+    @Test
+    public void roundTripsTcxAgainstTheReader() throws Exception {
+
+        TrackStats stats = new TrackStats();
+        stats.add(START_MS, 0.0);
+        stats.add(START_MS + 20000, 100.0);
+
+        writeTrack(2000, stats);
+        Points points = export(TrackExporter.FORMAT_TCX);
+
+        assertEquals(NAME, points.mName);
+        assertEquals("5.00", points.mMaxSpeed);
+        assertEquals(2000.0, Double.parseDouble(points.mLapDistance), 0.0);
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+
+            assertTrue(reader.skipToFooter());
+            assertEquals(reader.getElapsedMs() / 1000.0,
+                         Double.parseDouble(points.mTotalTime), 1e-9);
+            reader.rewind();
+
+            DistanceKernel kernel = new DistanceKernel(DistanceKernel.EXACT);
+            double distance = 0.0;
+            double lastLatitude = 0.0;
+            double lastLongitude = 0.0;
+
+            int i = 0;
+            while (reader.next()) {
+                if (i > 0) {
+                    distance += kernel.distanceMeters(lastLatitude, lastLongitude,
+                                                      reader.getLatitude(), reader.getLongitude());
+                }
+                lastLatitude = reader.getLatitude();
+                lastLongitude = reader.getLongitude();
+
+                assertEquals(reader.getLatitudeE7(),
+                             Math.round(Double.parseDouble(points.mLatitudes.get(i)) * 1e7));
+                assertEquals(reader.getLongitudeE7(),
+                             Math.round(Double.parseDouble(points.mLongitudes.get(i)) * 1e7));
+                assertEquals(reader.getTimeMs(), parseTimestamp(points.mTimes.get(i)));
+                assertEquals(distance, Double.parseDouble(points.mDistances.get(i)), 0.005);
+                i++;
+            }
+            assertEquals(2000, i);
+        }
+    }
+
+    @Test
+    public void measuresTheLapOfAnUnfinishedTrack() throws Exception {
+
+        /* A track cut short, with no footer to take the totals from */
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        encoder.writeHeader(buffer, START_MS);
+        encoder.beginSegment(buffer);
+        for (int i = 0; i < 100; i++) {
+            encoder.writeFix(buffer, 0.0005 + i * 1e-5, -0.0005, START_MS + i * 1001L, 5.0f);
+        }
+        encoder.endSegment(buffer, 100.0f);
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        Points points = export(TrackExporter.FORMAT_TCX);
+
+        assertEquals(100, points.mDistances.size());
+        assertEquals(points.mDistances.get(99), points.mLapDistance);
+        assertEquals(110.0, Double.parseDouble(points.mLapDistance), 1.0);
+        assertEquals("99.099", points.mTotalTime);
+    }
+
+    @Test
+    public void formatsTimesAndNumbersLikeTheLibraries() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlOutput xml = new XmlOutput(64);
+        Random random = new Random(11);
+
+        for (int i = 0; i < 10000; i++) {
+
+            /* Any time from 1900 to 2100 */
+            long timeMs = (long) ((random.nextDouble() - 0.35) * 6.3e12);
+            out.reset();
+            xml.start(out);
+            xml.appendTimestamp(timeMs);
+            xml.flush();
+            assertEquals(timeMs, parseTimestamp(out.toString("US-ASCII")));
+
+            int e7 = (int) ((random.nextDouble() - 0.5) * 3.6e9);
+            out.reset();
+            xml.start(out);
+            xml.appendE7(e7).append(" ").appendLong(e7).append(" ").appendFixed(e7 / 1e4, 2);
+            xml.flush();
+            String[] text = out.toString("US-ASCII").split(" ");
+            assertEquals(String.format(Locale.US, "%.7f", e7 / 1e7), text[0]);
+            assertEquals(Integer.toString(e7), text[1]);
+
+            /* A value a rounding error from a half can round either way */
+            String fixed = String.format(Locale.US, "%.2f", e7 / 1e4);
+            if (!fixed.equals(text[2])) {
+                assertEquals(Double.parseDouble(fixed), Double.parseDouble(text[2]), 0.0100001);
+            }
+        }
+    }
+}
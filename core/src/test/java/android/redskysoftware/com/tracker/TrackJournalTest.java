@@ -0,0 +1,152 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for recovering unfinished tracks with TrackJournal.
+ */
+public class TrackJournalTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("track", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes a track the way the TrackWriter would, one segment per 60 fixes, but never finishes
+     * it.  Optionally leaves part of one more segment at the end, as a crash mid-write would.
+     */
+    private void writeUnfinishedTrack(int segments, boolean torn) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        int fix = 0;
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            encoder.writeHeader(buffer, START_MS);
+
+            for (int s = 0; s <= segments; s++) {
+                encoder.beginSegment(buffer);
+                for (int i = 0; i < 60; i++, fix++) {
+                    encoder.writeFix(buffer, 45.0 + fix * 1e-5, -93.0 + fix * 1e-5,
+                                     START_MS + fix * 1000L, 3.0f);
+                }
+                encoder.endSegment(buffer, fix * 1.5f);
+
+                int length = buffer.position();
+                if (s == segments) {
+                    if (!torn) {
+                        break;
+                    }
+                    length /= 2;
+                }
+                out.write(buffer.array(), 0, length);
+                buffer.clear();
+            }
+        }
+    }
+
+    private TrackDecoder decodeFooter() throws Exception {
+
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            buffer = ByteBuffer.wrap(bytes);
+        }
+
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(buffer));
+
+        int record;
+        while ((record = decoder.next()) == TrackDecoder.RECORD_FIX) {
+        }
+        assertEquals(TrackDecoder.RECORD_FOOTER, record);
+        assertEquals(TrackDecoder.RECORD_END, decoder.next());
+        return decoder;
+    }
+
+    @Test
+    public void finishesTrackWithTornTail() throws Exception {
+
+        writeUnfinishedTrack(10, true);
+        assertFalse(TrackJournal.isComplete(mFile));
+
+        assertEquals(TrackJournal.RESULT_RECOVERED, new TrackJournal().recover(mFile));
+        assertTrue(TrackJournal.isComplete(mFile));
+
+        /* Everything up to the last intact segment is kept, the torn segment is dropped */
+        TrackDecoder decoder = decodeFooter();
+        assertEquals(600, decoder.getFixCount());
+        assertEquals(900.0f, decoder.getDistanceMeters(), 0.0f);
+        assertEquals(599000L, decoder.getElapsedMs());
+        assertEquals(TrackFormat.toE7(45.0), decoder.getMinLatitudeE7());
+        assertEquals(TrackFormat.toE7(-93.0 + 599 * 1e-5), decoder.getMaxLongitudeE7());
+    }
+
+    @Test
+    public void finishesTrackCutAtSegmentBoundary() throws Exception {
+
+        writeUnfinishedTrack(3, false);
+
+        assertEquals(TrackJournal.RESULT_RECOVERED, new TrackJournal().recover(mFile));
+        assertEquals(180, decodeFooter().getFixCount());
+    }
+
+    @Test
+    public void finishesTrackWithOnlyHeader() throws Exception {
+
+        writeUnfinishedTrack(0, true);
+
+        assertEquals(TrackJournal.RESULT_RECOVERED, new TrackJournal().recover(mFile));
+        assertEquals(0, decodeFooter().getFixCount());
+    }
+
+    @Test
+    public void leavesFinishedTrackAlone() throws Exception {
+
+        writeUnfinishedTrack(2, true);
+        TrackJournal journal = new TrackJournal();
+        assertEquals(TrackJournal.RESULT_RECOVERED, journal.recover(mFile));
+
+        long length = mFile.length();
+        assertEquals(TrackJournal.RESULT_COMPLETE, journal.recover(mFile));
+        assertEquals(length, mFile.length());
+    }
+
+    @Test
+    public void recoveryTimeDoesNotDependOnTrackLength() throws Exception {
+
+        /* About 100 hours of 1 Hz fixes */
+        writeUnfinishedTrack(6000, true);
+        assertTrue(mFile.length() > 3 * 1024 * 1024);
+
+        TrackJournal journal = new TrackJournal();
+        long start = System.nanoTime();
+        assertEquals(TrackJournal.RESULT_RECOVERED, journal.recover(mFile));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        /* Only the tail is read, so this is a few ms even on a slow machine */
+        assertTrue("recovery took " + elapsedMs + " ms", elapsedMs < 250);
+        assertEquals(360000, decodeFooter().getFixCount());
+    }
+}
@@ -0,0 +1,171 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for streaming stored tracks with TrackReader.
+ */
+public class TrackReaderTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("track", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes a finished track of the given number of fixes, one segment per 60 fixes.
+     */
+    private void writeTrack(int fixes) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+
+            encoder.writeHeader(buffer, START_MS);
+
+            for (int i = 0; i < fixes; i++) {
+                if (!encoder.isSegmentOpen()) {
+                    encoder.beginSegment(buffer);
+                }
+                encoder.writeFix(buffer, 45.0 + (i % 1000) * 1e-5, -93.0 - (i % 1000) * 1e-5,
+                                 START_MS + i * 1000L, 4.0f);
+                if ((i % 60) == 59) {
+                    encoder.endSegment(buffer, i);
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+
+            if (buffer.remaining() < TrackFormat.MAX_FOOTER_SIZE) {
+                encoder.endSegment(buffer, fixes);
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            encoder.writeFooter(buffer, fixes * 1000L, fixes);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void readsEveryFix() throws Exception {
+
+        writeTrack(1000);
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+            assertFalse(reader.isLegacy());
+            assertEquals(START_MS, reader.getStartTimeMs());
+
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(reader.next());
+                assertEquals(45.0 + i * 1e-5, reader.getLatitude(), 1e-7);
+                assertEquals(-93.0 - i * 1e-5, reader.getLongitude(), 1e-7);
+                assertEquals(START_MS + i * 1000L, reader.getTimeMs());
+                assertEquals(4.0f, reader.getAccuracy(), 0.05f);
+            }
+            assertFalse(reader.next());
+            assertTrue(reader.hasFooter());
+            assertFalse(reader.isCorrupt());
+            assertEquals(1000, reader.getFixCount());
+            assertEquals(1000000L, reader.getElapsedMs());
+
+            /* A second pass sees the same fixes */
+            reader.rewind();
+            assertTrue(reader.next());
+            assertEquals(START_MS, reader.getTimeMs());
+        }
+    }
+
+    @Test
+    public void skipsToFooter() throws Exception {
+
+        writeTrack(130);
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+            assertTrue(reader.skipToFooter());
+            assertEquals(130, reader.getFixCount());
+            assertEquals(130.0f, reader.getDistanceMeters(), 0.0f);
+            assertEquals(TrackFormat.toE7(45.0), reader.getMinLatitudeE7());
+            assertEquals(TrackFormat.toE7(45.0 + 129 * 1e-5), reader.getMaxLatitudeE7());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void readsLegacyTextTrack() throws Exception {
+
+        File legacy = new File(mFile.getParentFile(), "2019.5.31.8.15.txt");
+        try (FileOutputStream out = new FileOutputStream(legacy)) {
+            out.write("L,45.0,-93.0,0.0\nL,45.001,-93.001,136.5\nE,95\n".getBytes("UTF-8"));
+        }
+
+        try (TrackReader reader = TrackReader.open(legacy)) {
+            assertTrue(reader.isLegacy());
+            assertTrue(reader.next());
+            assertEquals(45.0, reader.getLatitude(), 1e-9);
+            assertTrue(reader.next());
+            assertEquals(-93.001, reader.getLongitude(), 1e-9);
+            assertFalse(reader.next());
+            assertTrue(reader.hasFooter());
+            assertEquals(2, reader.getFixCount());
+            assertEquals(95000L, reader.getElapsedMs());
+            assertEquals(136.5f, reader.getDistanceMeters(), 0.0f);
+        } finally {
+            legacy.delete();
+        }
+    }
+
+    @Test
+    public void streamsLongTrackWithoutAllocating() throws Exception {
+
+        /* About 11.5 days of 1 Hz fixes */
+        int fixes = 1000000;
+        writeTrack(fixes);
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+
+            /* Warm up, then measure a full pass */
+            while (reader.next()) {
+            }
+            reader.rewind();
+
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            long sum = 0;
+            while (reader.next()) {
+                sum += reader.getLatitudeE7();
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            allocated = allocatedBytes() - allocated;
+
+            assertEquals(fixes, reader.getFixCount());
+            assertTrue(sum != 0);
+            assertTrue("read took " + elapsedMs + " ms", elapsedMs < 2000);
+            assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        }
+    }
+}
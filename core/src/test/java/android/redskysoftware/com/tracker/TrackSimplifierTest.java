@@ -0,0 +1,213 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrackSimplifier, including the error bound on a replayed track.
+ */
+public class TrackSimplifierTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private static final double METERS_PER_DEGREE = DistanceKernel.MEAN_RADIUS_METERS * Math.PI
+                                                    / 180.0;
+
+    private File mTrack;
+    private File mFull;
+    private File mSimplified;
+
+    @Before
+    public void setUp() throws Exception {
+        mTrack = File.createTempFile("replay", TrackFormat.FILE_EXTENSION);
+        mFull = File.createTempFile("full", TrackFormat.FILE_EXTENSION);
+        mSimplified = File.createTempFile("simplified", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mTrack.delete();
+        mFull.delete();
+        mSimplified.delete();
+    }
+
+    /**
+     * Writes an hour of walking a fix a second: long straight streets with turns at the corners,
+     * a stretch of winding path, and a stop.  Each fix has a few meters of noise.
+     */
+    private void writeTrack() throws Exception {
+
+        Random random = new Random(4);
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+        double east = 0.0;
+        double north = 0.0;
+        double heading = 0.0;
+
+        try (FileOutputStream out = new FileOutputStream(mTrack)) {
+
+            encoder.writeHeader(buffer, START_MS);
+
+            for (int i = 0; i < 3600; i++) {
+
+                if (i < 1800) {
+                    if ((i % 300) == 0) {
+                        heading += Math.PI / 2.0;
+                    }
+                } else if (i < 2700) {
+                    heading += Math.sin(i / 40.0) * 0.05;
+                }
+                double speed = (i < 3000) ? 1.4 : 0.0;
+                east += speed * Math.cos(heading);
+                north += speed * Math.sin(heading);
+
+                if (!encoder.isSegmentOpen()) {
+                    encoder.beginSegment(buffer);
+                }
+                encoder.writeFix(buffer,
+                                 45.0 + (north + random.nextGaussian() * 3.0) / 111132.0,
+                                 -93.0 + (east + random.nextGaussian() * 3.0) / 78847.0,
+                                 START_MS + i * 1000L, 5.0f);
+                if ((i % 60) == 59) {
+                    encoder.endSegment(buffer, 0.0f);
+                    out.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    /**
+     * @return  How far a point is from the line between two others, in meters, on a plane
+     *          through the first end of the line
+     */
+    private static double offLine(FixBatch line, int from, FixBatch points, int point) {
+
+        double latitude = line.getLatitude(from);
+        double longitude = line.getLongitude(from);
+        double scale = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+
+        double x = (line.getLongitude(from + 1) - longitude) * scale;
+        double y = (line.getLatitude(from + 1) - latitude) * METERS_PER_DEGREE;
+        double px = (points.getLongitude(point) - longitude) * scale;
+        double py = (points.getLatitude(point) - latitude) * METERS_PER_DEGREE;
+
+        double lengthSquared = x * x + y * y;
+        double t = (lengthSquared > 0.0) ? (px * x + py * y) / lengthSquared : 0.0;
+        t = Math.max(0.0, Math.min(1.0, t));
+
+        return Math.hypot(px - t * x, py - t * y);
+    }
+
+    /**
+     * Writes fixes to a track file the way the data model does.
+     */
+    private static void store(FixBatch fixes, File file) throws Exception {
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(file).getChannel(),
+                                             FlushPolicy.onStop(), fixes.size() + 1);
+        assertEquals(fixes.size(), writer.append(fixes));
+        writer.start(START_MS);
+        writer.finish(3600000, fixes.getDistanceMeters(fixes.size() - 1));
+        assertTrue(writer.awaitFinished(5000));
+    }
+
+    @Test
+    public void keepsAReplayedTrackWithinTheTolerance() throws Exception {
+
+        writeTrack();
+
+        final FixBatch accepted = new FixBatch();
+        final FixBatch kept = new FixBatch();
+        final TrackSimplifier simplifier =
+                new TrackSimplifier(TrackSimplifier.DEFAULT_TOLERANCE_METERS);
+
+        LocationPipeline pipeline = new LocationPipeline(new TrackClock(TrackClock.SYSTEM));
+        pipeline.setFilter(new KalmanFixFilter());
+        pipeline.start(new LocationPipelineTest.NullSource(), new DistanceChangedCallback() {
+            @Override
+            public void onDistanceChanged(double latitude, double longitude, long timeMs,
+                                          float accuracyMeters, float totalDistanceMeters) {
+                accepted.add(latitude, longitude, timeMs, accuracyMeters, totalDistanceMeters);
+                simplifier.add(latitude, longitude, timeMs, accuracyMeters, totalDistanceMeters,
+                               kept);
+            }
+        });
+        new ReplayLocationSource(mTrack, ReplayLocationSource.AS_FAST_AS_POSSIBLE)
+                .replay(pipeline);
+        simplifier.flush(kept);
+
+        /* Both ends are kept, and the last carries the exact total */
+        int size = accepted.size();
+        assertEquals(accepted.getTimeMs(0), kept.getTimeMs(0));
+        assertEquals(accepted.getTimeMs(size - 1), kept.getTimeMs(kept.size() - 1));
+        assertEquals((float) pipeline.getDistanceMeters(),
+                     kept.getDistanceMeters(kept.size() - 1), 0.0f);
+        assertEquals(size, simplifier.getAddedCount());
+        assertEquals(kept.size(), simplifier.getKeptCount());
+
+        /* Every fix dropped is within the tolerance of the line kept across it */
+        int line = 0;
+        double worst = 0.0;
+        for (int i = 0; i < size; i++) {
+            while (kept.getTimeMs(line + 1) < accepted.getTimeMs(i)) {
+                line++;
+            }
+            worst = Math.max(worst, offLine(kept, line, accepted, i));
+        }
+        assertTrue("worst " + worst, worst <= TrackSimplifier.DEFAULT_TOLERANCE_METERS + 0.05);
+
+        store(accepted, mFull);
+        store(kept, mSimplified);
+        assertTrue("kept " + kept.size() + " of " + size, kept.size() * 4 < size);
+        assertTrue(mSimplified.length() + " bytes of " + mFull.length(),
+                   mSimplified.length() * 3 < mFull.length());
+    }
+
+    @Test
+    public void keepsCornersAndDoublingBack() throws Exception {
+
+        TrackSimplifier simplifier = new TrackSimplifier(0.5);
+        FixBatch fixes = new FixBatch();
+        FixBatch kept = new FixBatch();
+
+        /* 100 m east, 100 m north, then 50 m back south along the same street */
+        for (int i = 0; i <= 250; i++) {
+            double east = Math.min(i, 100);
+            double north = (i <= 100) ? 0.0 : (i <= 200) ? i - 100 : 300 - i;
+            fixes.add(45.0 + north / METERS_PER_DEGREE,
+                      -93.0 + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(45.0))),
+                      START_MS + i * 1000L, 3.0f, i);
+        }
+
+        simplifier.add(fixes, kept);
+        assertEquals(3, kept.size());
+        simplifier.flush(kept);
+
+        assertEquals(4, kept.size());
+        long[] times = { 0, 100, 200, 250 };
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(START_MS + times[i] * 1000L, kept.getTimeMs(i));
+            assertEquals(times[i], kept.getDistanceMeters(i), 0.0f);
+        }
+
+        /* Nothing is held back twice, and a zero tolerance keeps everything */
+        simplifier.flush(kept);
+        assertEquals(4, kept.size());
+
+        kept.clear();
+        simplifier = new TrackSimplifier(0.0);
+        simplifier.add(fixes, kept);
+        simplifier.flush(kept);
+        assertEquals(fixes.size(), kept.size());
+    }
+}
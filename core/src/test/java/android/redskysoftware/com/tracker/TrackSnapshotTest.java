@@ -0,0 +1,183 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for publishing TrackSnapshots, including a stress test of concurrent publishers
+ * and readers.
+ */
+public class TrackSnapshotTest {
+
+    /** A clock the test moves by hand */
+    private static class FakeTime implements TrackClock.TimeSource {
+        volatile long mNanos = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    @Test
+    public void snapshotHoldsValuesFromTheSameMoment() {
+
+        FakeTime time = new FakeTime();
+        TrackClock clock = new TrackClock(time);
+        TrackSnapshot.Publisher publisher = new TrackSnapshot.Publisher();
+        assertSame(TrackSnapshot.EMPTY, publisher.get());
+
+        clock.start();
+        publisher.reset(clock);
+        time.mNanos += 2000000000L;
+        publisher.publishFix(45.0, -93.0, 10.0f, 5.0f, clock);
+
+        TrackSnapshot snapshot = publisher.get();
+        assertEquals(2, snapshot.getSequence());
+        assertEquals(1, snapshot.getFixCount());
+        assertTrue(snapshot.hasPosition());
+        assertEquals(45.0, snapshot.getLatitude(), 0.0);
+        assertEquals(10.0f, snapshot.getDistanceMeters(), 0.0f);
+        assertEquals(5.0f, snapshot.getSpeed(), 0.0f);
+
+        /* Elapsed time keeps counting from the snapshot while the clock runs */
+        time.mNanos += 500000000L;
+        assertEquals(2500, snapshot.getElapsedMs(time.nanoTime()));
+
+        /* ...and stops when it is paused */
+        clock.pause();
+        publisher.publishClock(clock);
+        TrackSnapshot paused = publisher.get();
+        time.mNanos += 60000000000L;
+        assertFalse(paused.isClockRunning());
+        assertEquals(2500, paused.getElapsedMs(time.nanoTime()));
+        assertEquals(1, paused.getFixCount());
+
+        /* The earlier snapshot is unchanged */
+        assertEquals(2, snapshot.getSequence());
+    }
+
+    @Test
+    public void readersAlwaysSeeConsistentSnapshots() throws Exception {
+
+        final FakeTime time = new FakeTime();
+        final TrackClock clock = new TrackClock(time);
+        final TrackSnapshot.Publisher publisher = new TrackSnapshot.Publisher();
+        final int fixes = 200000;
+        final int readers = 4;
+
+        clock.start();
+        publisher.reset(clock);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        //
+        // Fix n is published with latitude n * 1e-6, longitude -latitude, distance n and speed
+        // n % 100, so any mix of values from different fixes is detectable.
+        //
+        Thread fixWriter = new Thread(new Runnable() {
+            public void run() {
+                await(start);
+                for (int n = 1; n <= fixes; n++) {
+                    time.mNanos += 1000000L;
+                    publisher.publishFix(n * 1e-6, -n * 1e-6, n, n % 100, clock);
+                }
+            }
+        });
+
+        /* A second publisher pausing and resuming the clock concurrently */
+        Thread clockWriter = new Thread(new Runnable() {
+            public void run() {
+                await(start);
+                while (!done.get()) {
+                    clock.pause();
+                    publisher.publishClock(clock);
+                    clock.resume();
+                    publisher.publishClock(clock);
+                }
+            }
+        });
+
+        Thread[] readerThreads = new Thread[readers];
+        final long[] reads = new long[readers];
+        for (int r = 0; r < readers; r++) {
+            final int id = r;
+            readerThreads[r] = new Thread(new Runnable() {
+                public void run() {
+                    await(start);
+                    long lastSequence = -1;
+                    long lastElapsed = -1;
+                    int lastFixCount = 0;
+                    while (!done.get()) {
+                        TrackSnapshot s = publisher.get();
+                        reads[id]++;
+
+                        int n = s.getFixCount();
+                        String error = null;
+                        if (s.getSequence() < lastSequence) {
+                            error = "sequence went backwards";
+                        } else if (n < lastFixCount) {
+                            error = "fix count went backwards";
+                        } else if ((n > 0) && ((Math.abs(s.getLatitude() - n * 1e-6) > 1e-12)
+                                || (s.getLongitude() != -s.getLatitude())
+                                || (s.getDistanceMeters() != n))) {
+                            error = "mixed values in " + s;
+                        } else if ((n > 0) && (s.getSpeed() != n % 100)) {
+                            error = "wrong speed in " + s;
+                        } else if ((s.getSequence() > lastSequence)
+                                && (s.getElapsedNanos(0) < lastElapsed)
+                                && !s.isClockRunning()) {
+                            error = "elapsed went backwards in " + s;
+                        }
+
+                        if (error != null) {
+                            failure.compareAndSet(null, error);
+                            return;
+                        }
+
+                        if (!s.isClockRunning()) {
+                            lastElapsed = s.getElapsedNanos(0);
+                        }
+                        lastSequence = s.getSequence();
+                        lastFixCount = n;
+                    }
+                }
+            });
+        }
+
+        fixWriter.start();
+        clockWriter.start();
+        for (Thread t : readerThreads) {
+            t.start();
+        }
+
+        start.countDown();
+        fixWriter.join();
+        done.set(true);
+        clockWriter.join();
+        for (Thread t : readerThreads) {
+            t.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+        assertEquals(fixes, publisher.get().getFixCount());
+        for (long r : reads) {
+            assertTrue(r > 0);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
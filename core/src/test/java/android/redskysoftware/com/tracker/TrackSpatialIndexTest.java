@@ -0,0 +1,260 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TrackSpatialIndex of stored tracks.
+ */
+public class TrackSpatialIndexTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    /** Meters per degree of latitude, and of longitude at 45 degrees */
+    private static final double METERS_PER_DEGREE_LATITUDE = 111195.0;
+    private static final double METERS_PER_DEGREE_LONGITUDE = 78626.0;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("tracks", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Writes a finished track of the given points, as meters east and north of 45 N 93 W.
+     */
+    private void writeTrack(String name, double... eastNorth) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        encoder.writeHeader(buffer, START_MS);
+        encoder.beginSegment(buffer);
+        for (int i = 0; i < eastNorth.length; i += 2) {
+            encoder.writeFix(buffer, latitude(eastNorth[i + 1]), longitude(eastNorth[i]),
+                             START_MS + i * 1000L, 3.0f);
+        }
+        encoder.endSegment(buffer, 0.0f);
+        encoder.writeFooter(buffer, eastNorth.length * 1000L, 0.0f);
+
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, name))) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+    }
+
+    private static double latitude(double north) {
+        return 45.0 + north / METERS_PER_DEGREE_LATITUDE;
+    }
+
+    private static double longitude(double east) {
+        return -93.0 + east / METERS_PER_DEGREE_LONGITUDE;
+    }
+
+    private static String[] names(TrackSpatialIndex index, int[] tracks) {
+        String[] names = new String[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            names[i] = index.getName(tracks[i]);
+        }
+        java.util.Arrays.sort(names);
+        return names;
+    }
+
+    private File indexFile() {
+        return new File(mDir, TrackSpatialIndex.FILE_NAME);
+    }
+
+    @Test
+    public void findsTracksAlongTheirLinesNotJustAtTheirPoints() throws Exception {
+
+        /* Two straight lines of just their ends, crossing at the origin, and one far away */
+        writeTrack("east.trk", -3000.0, 0.0, 3000.0, 0.0);
+        writeTrack("north.trk", 0.0, -3000.0, 0.0, 3000.0);
+        writeTrack("away.trk", 20000.0, 20000.0, 20100.0, 20000.0);
+
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+        assertTrue(indexFile().exists());
+        assertEquals(3, index.getTrackCount());
+
+        assertArrayEquals(new String[] { "east.trk", "north.trk" },
+                          names(index, index.tracksNear(latitude(0.0), longitude(0.0), 200.0)));
+        assertArrayEquals(new String[] { "east.trk" },
+                          names(index, index.tracksNear(latitude(100.0), longitude(1500.0),
+                                                        200.0)));
+        assertArrayEquals(new String[] { "north.trk" },
+                          names(index, index.tracksNear(latitude(-2000.0), longitude(-150.0),
+                                                        200.0)));
+        assertEquals(0, index.tracksNear(latitude(1500.0), longitude(1500.0), 200.0).length);
+        assertArrayEquals(new String[] { "away.trk" },
+                          names(index, index.tracksInBox(latitude(19000.0), longitude(19000.0),
+                                                         latitude(21000.0), longitude(21000.0))));
+
+        /* The entries found say which points to read */
+        final int east = index.indexOf("east.trk");
+        final int[] ranges = new int[1];
+        index.query(latitude(-100.0), longitude(1000.0), latitude(100.0), longitude(1100.0),
+                    new TrackSpatialIndex.Visitor() {
+                        @Override
+                        public void onEntry(int track, int firstPoint, int lastPoint) {
+                            assertEquals(east, track);
+                            assertEquals(0, firstPoint);
+                            assertEquals(1, lastPoint);
+                            ranges[0]++;
+                        }
+                    });
+        assertTrue(ranges[0] > 0);
+    }
+
+    @Test
+    public void addsTracksByAppendingAndLoadsThemBack() throws Exception {
+
+        writeTrack("first.trk", 0.0, 0.0, 500.0, 0.0);
+
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+        long length = indexFile().length();
+
+        /* A track added as it is recorded, without a file to read */
+        TrackSpatialIndex.Builder builder = new TrackSpatialIndex.Builder();
+        for (int i = 0; i <= 100; i++) {
+            builder.addPoint(latitude(5000.0 + i * 10.0), longitude(5000.0));
+        }
+        int id = index.add("second.trk", builder);
+        assertEquals(1, id);
+        assertTrue(indexFile().length() > length);
+
+        /* Indexing a track again replaces its entries */
+        writeTrack("first.trk", 0.0, 10000.0, 500.0, 10000.0);
+        assertEquals(0, index.index(new File(mDir, "first.trk")));
+        assertEquals(0, index.tracksNear(latitude(0.0), longitude(250.0), 100.0).length);
+
+        TrackSpatialIndex loaded = new TrackSpatialIndex(mDir);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.getTrackCount());
+        assertEquals(index.getEntryCount(), loaded.getEntryCount());
+        assertEquals("first.trk", loaded.getName(0));
+        assertArrayEquals(new int[] { 1 },
+                          loaded.tracksNear(latitude(5500.0), longitude(5000.0), 50.0));
+        assertArrayEquals(new int[] { 0 },
+                          loaded.tracksNear(latitude(10000.0), longitude(250.0), 50.0));
+        assertEquals(0, loaded.tracksNear(latitude(0.0), longitude(250.0), 100.0).length);
+    }
+
+    @Test
+    public void rewritesTheFileOnceMostOfItIsReplacedBlocks() throws Exception {
+
+        writeTrack("first.trk", 0.0, 0.0, 500.0, 0.0);
+        writeTrack("second.trk", 0.0, 5000.0, 500.0, 5000.0);
+
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+        long length = indexFile().length();
+
+        /* Indexing the same track over and over doesn't grow the file without bound */
+        long longest = 0;
+        for (int i = 0; i < 20; i++) {
+            index.index(new File(mDir, "first.trk"));
+            longest = Math.max(longest, indexFile().length());
+        }
+        assertTrue(longest <= length * 2);
+
+        TrackSpatialIndex loaded = new TrackSpatialIndex(mDir);
+        assertTrue(loaded.load());
+        assertEquals(2, loaded.getTrackCount());
+        assertEquals(index.getEntryCount(), loaded.getEntryCount());
+        assertEquals(0, loaded.indexOf("first.trk"));
+        assertArrayEquals(new int[] { 0 },
+                          loaded.tracksNear(latitude(0.0), longitude(250.0), 50.0));
+
+        /* A loaded index knows how much of its file is replaced blocks too */
+        for (int i = 0; i < 20; i++) {
+            loaded.index(new File(mDir, "second.trk"));
+        }
+        assertTrue(indexFile().length() <= length * 2);
+    }
+
+    @Test
+    public void damagedIndexIsRebuilt() throws Exception {
+
+        writeTrack("first.trk", 0.0, 0.0, 500.0, 0.0);
+
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+
+        try (RandomAccessFile file = new RandomAccessFile(indexFile(), "rw")) {
+            file.seek(TrackSpatialIndex.HEADER_SIZE + 20);
+            file.write(0x55);
+        }
+
+        TrackSpatialIndex damaged = new TrackSpatialIndex(mDir);
+        assertFalse(damaged.load());
+        damaged.open();
+        assertEquals(1, damaged.getTrackCount());
+        assertEquals(1, damaged.tracksNear(latitude(0.0), longitude(250.0), 50.0).length);
+    }
+
+    @Test
+    public void findsTheTracksPassingByAmongMany() throws Exception {
+
+        int tracks = 2000;
+        Random random = new Random(5);
+        TrackSpatialIndex index = new TrackSpatialIndex(mDir);
+        index.open();
+
+        //
+        // Walks of about 5 km, a point every 50 m, scattered over a city 100 km across.  One
+        // in every hundred passes by the same place.  SpatialIndexBenchmark times this at scale.
+        //
+        TrackSpatialIndex.Builder builder = new TrackSpatialIndex.Builder();
+        for (int track = 0; track < tracks; track++) {
+
+            builder.reset();
+            boolean passing = (track % 100) == 0;
+            double east = passing ? -2000.0 : random.nextDouble() * 100000.0 - 50000.0;
+            double north = passing ? 0.0 : random.nextDouble() * 100000.0 - 50000.0;
+            double heading = passing ? 0.0 : random.nextDouble() * 2.0 * Math.PI;
+
+            for (int i = 0; i < 100; i++) {
+                builder.addPoint(latitude(north), longitude(east));
+                heading += passing ? 0.0 : random.nextGaussian() * 0.1;
+                east += 50.0 * Math.cos(heading);
+                north += 50.0 * Math.sin(heading);
+            }
+            index.add("track" + track + TrackFormat.FILE_EXTENSION, builder);
+        }
+
+        TrackSpatialIndex loaded = new TrackSpatialIndex(mDir);
+        assertTrue(loaded.load());
+        assertEquals(tracks, loaded.getTrackCount());
+
+        int[] near = loaded.tracksNear(latitude(0.0), longitude(0.0), 200.0);
+        for (int track = 0; track < tracks; track += 100) {
+            assertTrue(java.util.Arrays.binarySearch(near, loaded.indexOf(
+                    "track" + track + TrackFormat.FILE_EXTENSION)) >= 0);
+        }
+        assertTrue(near.length < 40);
+    }
+}
@@ -0,0 +1,242 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrackStats, and for storing the statistics in the track footer.
+ */
+public class TrackStatsTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("stats", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Adds a location a second: a walk at 1.25 m/s for 1500 s, a 300 s stop and a run at 4 m/s
+     * for 1000 s, for 5875 m in all.
+     */
+    private static void addWalkStopRun(TrackStats stats) {
+
+        double distance = 0.0;
+        long timeMs = START_MS;
+
+        stats.add(timeMs, distance);
+        for (int i = 0; i < 1500; i++) {
+            timeMs += 1000;
+            distance += 1.25;
+            stats.add(timeMs, distance);
+        }
+        for (int i = 0; i < 300; i++) {
+            timeMs += 1000;
+            stats.add(timeMs, distance);
+        }
+        for (int i = 0; i < 1000; i++) {
+            timeMs += 1000;
+            distance += 4.0;
+            stats.add(timeMs, distance);
+        }
+    }
+
+    @Test
+    public void timesSplitsAndPaceInMovingTime() {
+
+        TrackStats stats = new TrackStats();
+        addWalkStopRun(stats);
+
+        assertEquals(5875.0, stats.getDistanceMeters(), 1e-9);
+        assertEquals(2500000, stats.getMovingMs());
+        assertEquals(2.35f, stats.getAverageSpeed(), 1e-4f);
+        assertEquals(4.0f, stats.getCurrentSpeed(), 1e-4f);
+        assertEquals(4.0f, stats.getMaxSpeed(), 1e-4f);
+        assertEquals(250, TrackStats.paceSeconds(stats.getCurrentSpeed(), TrackStats.KILOMETER));
+
+        /* The second kilometer is 700 s of walking and 125 m of running; the stop doesn't count */
+        assertEquals(5, stats.getSplitCount(TrackStats.KILOMETER));
+        assertEquals(800000, stats.getSplitMs(TrackStats.KILOMETER, 0));
+        assertEquals(731250, stats.getSplitMs(TrackStats.KILOMETER, 1));
+        for (int i = 2; i < 5; i++) {
+            assertEquals(250000, stats.getSplitMs(TrackStats.KILOMETER, i));
+        }
+
+        assertEquals(3, stats.getSplitCount(TrackStats.MILE));
+        assertEquals(1287475, stats.getSplitMs(TrackStats.MILE, 0), 1);
+        assertEquals(402336, stats.getSplitMs(TrackStats.MILE, 2), 1);
+
+        /* Standing still, the current speed drops to nothing once the window has passed */
+        TrackStats still = new TrackStats();
+        for (int i = 0; i <= 60; i++) {
+            still.add(START_MS + i * 1000L, Math.min(i, 20) * 1.25);
+        }
+        assertEquals(20000, still.getMovingMs());
+        assertEquals(0.0f, still.getCurrentSpeed(), 0.0f);
+        assertEquals(0, TrackStats.paceSeconds(still.getCurrentSpeed(), TrackStats.MILE));
+
+        stats.reset();
+        assertEquals(0, stats.getMovingMs());
+        assertEquals(0, stats.getSplitCount(TrackStats.KILOMETER));
+    }
+
+    @Test
+    public void rebuildsTheSplitsOfARestoredTrack() {
+
+        TrackStats stats = new TrackStats();
+        addWalkStopRun(stats);
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackStats.STATE_SIZE);
+        stats.save(buffer);
+        assertEquals(TrackStats.STATE_SIZE, buffer.position());
+        buffer.flip();
+
+        TrackStats restored = new TrackStats();
+        restored.restore(buffer);
+        assertEquals(stats.getDistanceMeters(), restored.getDistanceMeters(), 0.0);
+        assertEquals(stats.getMovingMs(), restored.getMovingMs());
+        assertEquals(stats.getMaxSpeed(), restored.getMaxSpeed(), 0.0f);
+        assertEquals(stats.getCurrentSpeed(), restored.getCurrentSpeed(), 0.0f);
+
+        /* Until they are rebuilt, the splits share the time up to the end of the last evenly */
+        assertEquals(5, restored.getSplitCount(TrackStats.KILOMETER));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(456250, restored.getSplitMs(TrackStats.KILOMETER, i));
+        }
+
+        /* The same track every 25 s, as at the ends of the segments of its file */
+        TrackStats replay = new TrackStats();
+        for (int s = 0; s <= 2800; s += 25) {
+            replay.add(START_MS + s * 1000L,
+                       1.25 * Math.min(s, 1500) + 4.0 * Math.max(0, s - 1800));
+        }
+        restored.rebuildSplits(replay);
+
+        for (int unit = TrackStats.KILOMETER; unit <= TrackStats.MILE; unit++) {
+            assertEquals(stats.getSplitCount(unit), restored.getSplitCount(unit));
+            for (int i = 0; i < stats.getSplitCount(unit); i++) {
+                assertEquals(stats.getSplitMs(unit, i), restored.getSplitMs(unit, i), 1);
+            }
+        }
+
+        /* Carrying on, the splits still to come are timed exactly */
+        long timeMs = START_MS + 2800000;
+        double distance = 5875.0;
+        for (int i = 0; i < 1000; i++) {
+            timeMs += 1000;
+            distance += 4.0;
+            stats.add(timeMs, distance);
+            restored.add(timeMs, distance);
+        }
+        assertEquals(9, restored.getSplitCount(TrackStats.KILOMETER));
+        for (int i = 5; i < 9; i++) {
+            assertEquals(stats.getSplitMs(TrackStats.KILOMETER, i),
+                         restored.getSplitMs(TrackStats.KILOMETER, i));
+        }
+        assertEquals(stats.getMovingMs(), restored.getMovingMs());
+        assertEquals(stats.getCurrentSpeed(), restored.getCurrentSpeed(), 1e-4f);
+    }
+
+    @Test
+    public void storesTheStatisticsInTheFooter() throws Exception {
+
+        TrackStats stats = new TrackStats();
+        addWalkStopRun(stats);
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.DEFAULT, 64);
+        writer.start(START_MS);
+        for (int i = 0; i < 10; i++) {
+            writer.append(45.0 + i * 1e-4, -93.0, START_MS + i * 1000L, 5.0f, i * 11.1f);
+        }
+        writer.finish(2800000, 5875.0f, stats);
+
+        /* The writer has its own copy, so the caller can carry on with the original */
+        stats.reset();
+
+        assertTrue(writer.awaitFinished(5000));
+        assertNull(writer.getError());
+
+        TrackStats expected = new TrackStats();
+        addWalkStopRun(expected);
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+
+            assertTrue(reader.skipToFooter());
+            assertEquals(10, reader.getFixCount());
+            assertEquals(2800000, reader.getElapsedMs());
+            assertTrue(reader.hasStats());
+
+            TrackStats stored = reader.getStats();
+            assertEquals(expected.getMovingMs(), stored.getMovingMs());
+            assertEquals(expected.getMaxSpeed(), stored.getMaxSpeed(), 0.0f);
+            assertEquals(expected.getAverageSpeed(), stored.getAverageSpeed(), 1e-6f);
+            for (int unit = TrackStats.KILOMETER; unit <= TrackStats.MILE; unit++) {
+                assertEquals(expected.getSplitCount(unit), stored.getSplitCount(unit));
+                for (int i = 0; i < expected.getSplitCount(unit); i++) {
+                    assertEquals(expected.getSplitMs(unit, i), stored.getSplitMs(unit, i));
+                }
+            }
+        }
+
+        /* A footer written without statistics says so */
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        TrackEncoder encoder = new TrackEncoder();
+        encoder.writeHeader(buffer, START_MS);
+        encoder.beginSegment(buffer);
+        encoder.writeFix(buffer, 45.0, -93.0, START_MS, 5.0f);
+        encoder.writeFooter(buffer, 1000, 0.0f);
+        buffer.flip();
+
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(buffer));
+        assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+        assertEquals(TrackDecoder.RECORD_FOOTER, decoder.next());
+        assertEquals(1000, decoder.getElapsedMs());
+        assertFalse(decoder.hasStats());
+    }
+
+    @Test
+    public void doesNotAllocatePerLocation() {
+
+        TrackStats stats = new TrackStats();
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        /* Warm up, then go past every split kept, stopping now and then */
+        long before = 0;
+        double distance = 0.0;
+        for (int i = -100000; i < 400000; i++) {
+            if (i == 0) {
+                stats.reset();
+                distance = 0.0;
+                before = bean.getThreadAllocatedBytes(threadId);
+            }
+            if ((i & 1023) < 900) {
+                distance += 3.0;
+            }
+            stats.add(START_MS + i * 1000L, distance);
+        }
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated, allocated < 1024);
+        assertEquals(TrackStats.MAX_SPLITS, stats.getSplitCount(TrackStats.KILOMETER));
+    }
+}
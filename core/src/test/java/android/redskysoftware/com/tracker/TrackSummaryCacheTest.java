@@ -0,0 +1,189 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrackSummaryCache, the two level cache of decoded tracks.
+ */
+public class TrackSummaryCacheTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mDir;
+    private File mCacheDir;
+
+    private final StripedCounter mHits = new StripedCounter("hits");
+    private final StripedCounter mDiskHits = new StripedCounter("diskHits");
+    private final StripedCounter mMisses = new StripedCounter("misses");
+    private final StripedCounter mEvictions = new StripedCounter("evictions");
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("tracks", "");
+        mDir.delete();
+        mDir.mkdir();
+        mCacheDir = new File(mDir, "cache");
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a finished track that zigzags north, so the polyline has corners to keep: 20 fixes
+     * east then 20 west, 5 m apart.
+     */
+    private File writeTrack(String name, int fixes) throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(TrackWriter.BUFFER_SIZE
+                                                + fixes * TrackFormat.MAX_FIX_SIZE);
+        TrackEncoder encoder = new TrackEncoder();
+
+        encoder.writeHeader(buffer, START_MS);
+        encoder.beginSegment(buffer);
+        for (int i = 0; i < fixes; i++) {
+            int leg = i / 20;
+            int step = ((leg & 1) == 0) ? i % 20 : 20 - i % 20;
+            encoder.writeFix(buffer, 45.0 + leg * 5e-4, -93.0 + step * 6.4e-5,
+                             START_MS + i * 1000L, 3.0f);
+        }
+        encoder.endSegment(buffer, fixes * 5.0f);
+        encoder.writeFooter(buffer, fixes * 1000L, fixes * 5.0f);
+
+        File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        return file;
+    }
+
+    private TrackSummaryCache newCache(long maxMemoryBytes) {
+        TrackSummaryCache cache =
+                new TrackSummaryCache(mCacheDir, maxMemoryBytes, Long.MAX_VALUE);
+        cache.setMetrics(mHits, mDiskHits, mMisses, mEvictions);
+        return cache;
+    }
+
+    @Test
+    public void servesReopensFromMemoryThenDisk() throws Exception {
+
+        File track = writeTrack("long.trk", 100000);
+
+        TrackSummaryCache cache = newCache(1 << 20);
+        TrackSummaryCache.Summary decoded = cache.get(track);
+        assertEquals(1, mMisses.get());
+
+        assertEquals(100000, decoded.getFixCount());
+        assertEquals(START_MS, decoded.getStartTimeMs());
+        assertEquals(100000000L, decoded.getElapsedMs());
+        assertEquals(TrackFormat.toE7(45.0), decoded.getMinLatitudeE7());
+        assertEquals(TrackFormat.toE7(45.0 + 4999 * 5e-4), decoded.getMaxLatitudeE7());
+        assertEquals(TrackFormat.toE7(-93.0), decoded.getMinLongitudeE7());
+
+        /* The corners are more than the polyline holds, so every so many are kept, ends too */
+        int points = decoded.getPointCount();
+        assertEquals(TrackSummaryCache.MAX_POINTS, points);
+        assertEquals(TrackFormat.toE7(45.0), decoded.getLatitudeE7(0));
+        assertEquals(TrackFormat.toE7(-93.0), decoded.getLongitudeE7(0));
+        assertEquals(TrackFormat.toE7(45.0 + 4999 * 5e-4), decoded.getLatitudeE7(points - 1));
+        assertEquals(TrackFormat.toE7(-93.0 + 1 * 6.4e-5), decoded.getLongitudeE7(points - 1));
+
+        assertSame(decoded, cache.get(track));
+        assertEquals(1, mHits.get());
+
+        /* A new cache, as after the app restarts, reads the cache file instead of the track */
+        TrackSummaryCache.Summary read = newCache(1 << 20).get(track);
+        assertEquals(1, mDiskHits.get());
+        assertEquals(1, mMisses.get());
+        assertEquals(decoded.getFixCount(), read.getFixCount());
+        assertEquals(decoded.getElapsedMs(), read.getElapsedMs());
+        assertEquals(decoded.getDistanceMeters(), read.getDistanceMeters(), 0.0f);
+        assertEquals(decoded.getMaxLongitudeE7(), read.getMaxLongitudeE7());
+        assertEquals(points, read.getPointCount());
+        for (int i = 0; i < points; i++) {
+            assertEquals(decoded.getLatitudeE7(i), read.getLatitudeE7(i));
+            assertEquals(decoded.getLongitudeE7(i), read.getLongitudeE7(i));
+        }
+    }
+
+    @Test
+    public void decodesAgainWhenTheTrackOrItsCacheFileChanges() throws Exception {
+
+        File track = writeTrack("short.trk", 100);
+        TrackSummaryCache cache = newCache(1 << 20);
+
+        TrackSummaryCache.Summary summary = cache.get(track);
+        assertEquals(100, summary.getFixCount());
+
+        /* The polyline keeps just the corners of a short track */
+        assertTrue(summary.getPointCount() < 20);
+
+        writeTrack("short.trk", 150);
+        assertEquals(150, cache.get(track).getFixCount());
+        assertEquals(2, mMisses.get());
+        assertEquals(0, mHits.get());
+
+        /* A damaged cache file is ignored */
+        File cacheFile = new File(mCacheDir, "short.trk" + TrackSummaryCache.FILE_EXTENSION);
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.seek(TrackSummaryCache.HEADER_SIZE);
+            raf.writeInt(12345);
+        }
+        assertEquals(150, newCache(1 << 20).get(track).getFixCount());
+        assertEquals(3, mMisses.get());
+        assertEquals(0, mDiskHits.get());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedToKeepToItsBytes() throws Exception {
+
+        File a = writeTrack("a.trk", 1000);
+        File b = writeTrack("b.trk", 1000);
+        File c = writeTrack("c.trk", 1000);
+
+        TrackSummaryCache probe = newCache(1 << 20);
+        int entryBytes = probe.get(a).getByteSize();
+
+        /* Room for two */
+        TrackSummaryCache cache = newCache(entryBytes * 2 + entryBytes / 2);
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, mEvictions.get());
+        assertTrue(cache.getMemoryBytes() <= entryBytes * 2 + entryBytes / 2);
+
+        long hits = mHits.get();
+        long diskHits = mDiskHits.get();
+        cache.get(a);
+        assertEquals(hits + 1, mHits.get());
+        cache.get(b);
+        assertEquals(diskHits + 1, mDiskHits.get());
+        assertEquals(3, mMisses.get());
+
+        cache.remove(b);
+        assertFalse(new File(mCacheDir, "b.trk" + TrackSummaryCache.FILE_EXTENSION).exists());
+    }
+}
@@ -0,0 +1,309 @@
+package android.redskysoftware.com.tracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TrackWriter write-behind pipeline.
+ */
+public class TrackWriterTest {
+
+    private static final long START_MS = 1559170800000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("track", TrackFormat.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private ByteBuffer readFile() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    @Test
+    public void writesEveryFixInBatches() throws Exception {
+
+        int fixes = 5000;
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.everyFixes(100), 256);
+        writer.start(START_MS);
+
+        for (int i = 0; i < fixes; i++) {
+            while (!writer.append(45.0 + i * 1e-5, -93.0, START_MS + i * 1000L, 5.0f, i * 1.1f)) {
+                /* The producer outran the writer thread; give it a moment to catch up */
+                Thread.sleep(1);
+            }
+        }
+        writer.finish(fixes * 1000L, 5500.0f);
+
+        assertTrue(writer.awaitFinished(5000));
+        assertNull(writer.getError());
+
+        /* Group commit: far fewer writes than fixes */
+        assertTrue("writes " + writer.getWriteCount(), writer.getWriteCount() <= fixes / 50);
+
+        TrackDecoder decoder = new TrackDecoder();
+        assertTrue(decoder.reset(readFile()));
+        for (int i = 0; i < fixes; i++) {
+            assertEquals(TrackDecoder.RECORD_FIX, decoder.next());
+            assertEquals(45.0 + i * 1e-5, decoder.getLatitude(), 1e-7);
+            assertEquals(START_MS + i * 1000L, decoder.getTimeMs());
+        }
+        assertEquals(TrackDecoder.RECORD_FOOTER, decoder.next());
+        assertEquals(fixes, decoder.getFixCount());
+        assertEquals(5500.0f, decoder.getDistanceMeters(), 0.0f);
+    }
+
+    @Test
+    public void commitsOnInterval() throws Exception {
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.everyMillis(20), 64);
+        writer.start(START_MS);
+        writer.append(45.0, -93.0, START_MS, 5.0f, 0.0f);
+
+        /* No fix count trigger, so only the interval can have committed the fix */
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((writer.getCommitCount() == 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, writer.getCommitCount());
+        assertTrue(mFile.length() > TrackFormat.HEADER_SIZE);
+
+        writer.finish(1000, 0.0f);
+        assertTrue(writer.awaitFinished(5000));
+    }
+
+    @Test
+    public void fullBufferDropsInsteadOfBlocking() throws Exception {
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.onStop(), 4);
+
+        /* The writer thread isn't started, so nothing drains the ring */
+        for (int i = 0; i < 4; i++) {
+            assertTrue(writer.append(45.0, -93.0, START_MS + i, 5.0f, 0.0f));
+        }
+        assertFalse(writer.append(45.0, -93.0, START_MS + 4, 5.0f, 0.0f));
+        assertEquals(1, writer.getDroppedFixes());
+        assertEquals(4, writer.getQueuedFixes());
+
+        writer.start(START_MS);
+        writer.finish(0, 0.0f);
+        assertTrue(writer.awaitFinished(5000));
+        assertEquals(0, writer.getQueuedFixes());
+    }
+
+    @Test
+    public void batchQueuesAPrefixWhenFull() throws Exception {
+
+        TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                             FlushPolicy.onStop(), 8);
+
+        FixBatch batch = new FixBatch();
+        for (int i = 0; i < 6; i++) {
+            batch.add(45.0 + i * 1e-4, -93.0, START_MS + i * 1000L, 5.0f, i * 11.0f);
+        }
+
+        /* The writer thread isn't started, so the second batch only partly fits */
+        assertEquals(6, writer.append(batch));
+        assertEquals(2, writer.append(batch));
+        assertEquals(4, writer.getDroppedFixes());
+        assertEquals(8, writer.getQueuedFixes());
+
+        writer.start(START_MS);
+        writer.finish(8000, 77.0f);
+        assertTrue(writer.awaitFinished(5000));
+
+        try (TrackReader reader = TrackReader.open(mFile)) {
+            int count = 0;
+            while (reader.next()) {
+                assertEquals(45.0 + (count % 6) * 1e-4, reader.getLatitude(), 1e-7);
+                count++;
+            }
+            assertEquals(8, count);
+        }
+    }
+
+    /**
+     * A channel that takes a fixed time over every write, as storage that has stalled would.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+
+        private final FileChannel mChannel;
+        private final long mDelayMs;
+
+        SlowChannel(FileChannel channel, long delayMs) {
+            mChannel = channel;
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            try {
+                Thread.sleep(mDelayMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return mChannel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Appends a walk north to a writer on storage taking 2 ms a write, as fast as it will go,
+     * and finishes the track.
+     * @return  The bytes the appending thread allocated
+     */
+    private long appendToSlowStorage(int policy, int fixes) throws Exception {
+
+        int capacity = 64;
+        TrackWriter writer = new TrackWriter(
+                new SlowChannel(new FileOutputStream(mFile).getChannel(), 2),
+                FlushPolicy.everyFixes(16), capacity);
+        writer.setOverflowPolicy(policy);
+        writer.start(START_MS);
+
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(threadId);
+
+        int maxQueued = 0;
+        for (int i = 0; i < fixes; i++) {
+            writer.append(45.0 + i * 1e-5, -93.0, START_MS + i * 1000L, 5.0f, i * 1.5f);
+            maxQueued = Math.max(maxQueued, writer.getQueuedFixes());
+        }
+
+        long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        writer.finish(fixes * 1000L, (fixes - 1) * 1.5f);
+        assertTrue(writer.awaitFinished(30000));
+        assertNull(writer.getError());
+        assertTrue("queued " + maxQueued, maxQueued <= capacity);
+
+        /* Every fix taken and not dropped or merged since is in the file, in order */
+        long lastTimeMs = Long.MIN_VALUE;
+        int count = 0;
+        try (TrackReader reader = TrackReader.open(mFile)) {
+            while (reader.next()) {
+                assertTrue(reader.getTimeMs() > lastTimeMs);
+                lastTimeMs = reader.getTimeMs();
+                count++;
+            }
+            assertTrue(reader.skipToFooter());
+            assertEquals((fixes - 1) * 1.5f, reader.getDistanceMeters(), 0.0f);
+        }
+        assertEquals(writer.getStoredFixes(), count);
+        assertEquals(fixes, writer.getStoredFixes() + writer.getDroppedFixes()
+                            + writer.getMergedFixes());
+
+        /* Whatever else was lost, the track ends where it did */
+        if (policy != TrackWriter.OVERFLOW_DROP_NEWEST) {
+            assertEquals(START_MS + (fixes - 1) * 1000L, lastTimeMs);
+        }
+
+        return allocated;
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFixesOnSlowStorage() throws Exception {
+
+        long allocated = appendToSlowStorage(TrackWriter.OVERFLOW_DROP_OLDEST, 20000);
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+
+    @Test
+    public void mergeKeepsTheEndOnSlowStorage() throws Exception {
+
+        long allocated = appendToSlowStorage(TrackWriter.OVERFLOW_MERGE, 20000);
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+
+    @Test
+    public void blockLosesNothingOnSlowStorage() throws Exception {
+
+        appendToSlowStorage(TrackWriter.OVERFLOW_BLOCK, 3000);
+    }
+
+    @Test
+    public void countsEachPolicysLosses() throws Exception {
+
+        /* The writer thread isn't started, so nothing drains the ring */
+        int[] policies = { TrackWriter.OVERFLOW_DROP_NEWEST, TrackWriter.OVERFLOW_DROP_OLDEST,
+                           TrackWriter.OVERFLOW_MERGE, TrackWriter.OVERFLOW_BLOCK };
+        for (int policy : policies) {
+
+            TrackWriter writer = new TrackWriter(new FileOutputStream(mFile).getChannel(),
+                                                 FlushPolicy.onStop(), 4);
+            writer.setOverflowPolicy(policy);
+            for (int i = 0; i < 10; i++) {
+                writer.append(45.0, -93.0, START_MS + i, 5.0f, i);
+            }
+
+            assertEquals(4, writer.getQueuedFixes());
+            switch (policy) {
+                case TrackWriter.OVERFLOW_MERGE:
+                    /* One more is held back as the last point, with the rest merged into it */
+                    assertEquals(5, writer.getStoredFixes());
+                    assertEquals(5, writer.getMergedFixes());
+                    assertEquals(0, writer.getDroppedFixes());
+                    break;
+                default:
+                    /* Nothing drains the ring, so blocking gives up rather than waiting */
+                    assertEquals(4, writer.getStoredFixes());
+                    assertEquals(6, writer.getDroppedFixes());
+                    assertEquals(0, writer.getMergedFixes());
+                    break;
+            }
+
+            writer.start(START_MS);
+            writer.finish(0, 9.0f);
+            assertTrue(writer.awaitFinished(5000));
+
+            try (TrackReader reader = TrackReader.open(mFile)) {
+                int count = 0;
+                long lastTimeMs = 0;
+                while (reader.next()) {
+                    lastTimeMs = reader.getTimeMs();
+                    count++;
+                }
+                assertEquals(writer.getStoredFixes(), count);
+                long newest = (policy == TrackWriter.OVERFLOW_DROP_OLDEST)
+                              || (policy == TrackWriter.OVERFLOW_MERGE) ? 9 : 3;
+                assertEquals(START_MS + newest, lastTimeMs);
+            }
+        }
+    }
+}